@@ -0,0 +1,168 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compare two JMH JSON result files, benchmark by benchmark:
+ * java -cp benchmarks.jar bench.CompareResults baseline.json current.json
+ * A change counts only if the two scores' error intervals (99.9%) do not
+ * overlap. Exits with 1 if any benchmark got slower, so a script can stop on
+ * a regression.
+ */
+public class CompareResults {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json>");
+            System.exit(2);
+        }
+        Map<String, Map<String, Object>> baseline = load(args[0]);
+        Map<String, Map<String, Object>> current = load(args[1]);
+
+        int regressions = 0;
+        System.out.printf("%-70s %22s %22s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Map<String, Object>> entry : current.entrySet()) {
+            Map<String, Object> now = entry.getValue();
+            Map<String, Object> before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %22s %22s %9s%n", entry.getKey(), "-", score(now), "new");
+                continue;
+            }
+            double b = number(before, "score"), c = number(now, "score");
+            double bErr = number(before, "scoreError"), cErr = number(now, "scoreError");
+            boolean higherIsBetter = "thrpt".equals(now.get("mode"));
+            String verdict = "";
+            if (b - bErr > c + cErr || b + bErr < c - cErr) {
+                boolean better = higherIsBetter ? c > b : c < b;
+                verdict = better ? "  faster" : "  SLOWER";
+                if (!better)
+                    regressions++;
+            }
+            System.out.printf("%-70s %22s %22s %+8.1f%%%s%n", entry.getKey(), score(before), score(now),
+                    b == 0 ? 0.0 : 100.0 * (c - b) / b, verdict);
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name))
+                System.out.printf("%-70s %22s %22s %9s%n", name, score(baseline.get(name)), "-", "gone");
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the baseline");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Primary metric of each benchmark in a result file, keyed by name and
+     * parameters, e.g. "services.dispatch.DispatchBenchmark.nearestDriverScan drivers=1000"
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Map<String, Object>> load(String file) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, Map<String, Object>> results = new TreeMap<>();
+        for (Object item : (List<Object>) new Parser(json).value()) {
+            Map<String, Object> run = (Map<String, Object>) item;
+            StringBuilder key = new StringBuilder((String) run.get("benchmark"));
+            Object params = run.get("params");
+            if (params instanceof Map) {
+                for (Map.Entry<String, Object> p : ((Map<String, Object>) params).entrySet()) {
+                    key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+                }
+            }
+            Map<String, Object> metric = new LinkedHashMap<>((Map<String, Object>) run.get("primaryMetric"));
+            metric.put("mode", run.get("mode"));
+            results.put(key.toString(), metric);
+        }
+        return results;
+    }
+
+    private static double number(Map<String, Object> metric, String name) {
+        Object value = metric.get(name);
+        return value instanceof Double ? (Double) value : 0.0; // "NaN" for single-iteration runs
+    }
+
+    private static String score(Map<String, Object> metric) {
+        return String.format("%.3f +- %.3f %s", number(metric, "score"), number(metric, "scoreError"),
+                metric.get("scoreUnit"));
+    }
+
+    /**
+     * Just enough JSON for JMH's output: objects, arrays, strings, numbers
+     */
+    private static final class Parser {
+        private final String json;
+        private int pos;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Object value() {
+            skipBlanks();
+            char c = json.charAt(pos);
+            if (c == '{') {
+                Map<String, Object> map = new LinkedHashMap<>();
+                pos++;
+                while (next() != '}') {
+                    String key = (String) value();
+                    expect(':');
+                    map.put(key, value());
+                    if (next() == ',')
+                        pos++;
+                }
+                pos++;
+                return map;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                pos++;
+                while (next() != ']') {
+                    list.add(value());
+                    if (next() == ',')
+                        pos++;
+                }
+                pos++;
+                return list;
+            }
+            if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                for (pos++; json.charAt(pos) != '"'; pos++) {
+                    if (json.charAt(pos) == '\\')
+                        pos++;
+                    sb.append(json.charAt(pos));
+                }
+                pos++;
+                return sb.toString();
+            }
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0)
+                pos++;
+            String token = json.substring(start, pos);
+            if (token.equals("null") || token.equals("true") || token.equals("false"))
+                return token.equals("null") ? null : Boolean.valueOf(token);
+            return Double.valueOf(token);
+        }
+
+        private char next() {
+            skipBlanks();
+            return json.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (next() != c)
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            pos++;
+        }
+
+        private void skipBlanks() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+                pos++;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: JMH's own command line, with results
+ * written as JSON to jmh-result.json unless -rf / -rff say otherwise.
+ * JdbcBatchBenchmark needs MySQL and only runs when BENCH_MYSQL_URL is set.
+ * Example: java -jar benchmarks.jar DispatchBenchmark -p drivers=10000 -prof gc
+ */
+public class Run {
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add("jmh-result.json");
+        }
+        String mysql = System.getenv(services.database.JdbcBatchBenchmark.URL_VARIABLE);
+        if (mysql == null || mysql.isEmpty()) {
+            options.add("-e");
+            options.add("JdbcBatchBenchmark");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
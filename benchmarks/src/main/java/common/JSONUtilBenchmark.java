@@ -0,0 +1,53 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSONUtil on a ride request, the envelope every service parses and writes
+ * for each request
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JSONUtilBenchmark {
+    private Message message;
+    private String json;
+
+    @Setup
+    public void setup() {
+        message = new Message(MessageType.RIDE_REQUEST);
+        message.addPayload("passengerUsername", "alice");
+        message.addPayload("pickupLat", 6.927079);
+        message.addPayload("pickupLon", 79.861244);
+        message.addPayload("destLat", 6.901608);
+        message.addPayload("destLon", 79.858477);
+        message.addPayload("startAddr", "Fort Railway Station, Colombo");
+        message.addPayload("destAddr", "Galle Face Green, Colombo");
+        message.setDeadline(System.currentTimeMillis() + 10_000);
+        json = JSONUtil.toJSON(message);
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return JSONUtil.toJSON(message);
+    }
+
+    @Benchmark
+    public Message fromJSON() {
+        return JSONUtil.fromJSON(json);
+    }
+}
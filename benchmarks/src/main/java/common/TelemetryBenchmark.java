@@ -0,0 +1,63 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One accepted location update as the Driver Service handles it: parse the
+ * driver's UPDATE_LOCATION, build the LOCATION_UPDATED ack (a String, queued
+ * on the connection's OutboundQueue) and write the DB_UPDATE_DRIVER_LOCATION
+ * forward (LocationWriter). generic is the same through Message/JSONUtil.
+ * Run with -prof gc to see the bytes allocated per update
+ * (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryBenchmark {
+    private static final String UPDATE = "{\"type\":\"UPDATE_LOCATION\",\"payload\":{\"latitude\":6.927079,"
+            + "\"longitude\":79.861244},\"requestId\":\"5f0c1d2e-3a4b-4c5d-8e9f-0a1b2c3d4e5f\",\"timestamp\":1718000000000}";
+    private static final String USERNAME = "driver42";
+
+    private final PrintWriter sink = new PrintWriter(Writer.nullWriter());
+    private final TelemetryMessage in = new TelemetryMessage();
+    private final TelemetryMessage ack = new TelemetryMessage();
+    private final TelemetryMessage forward = new TelemetryMessage();
+    private long received;
+
+    @Benchmark
+    public String generic() {
+        Message message = JSONUtil.fromJSON(UPDATE);
+        Message dbUpdate = new Message(MessageType.DB_UPDATE_DRIVER_LOCATION);
+        dbUpdate.addPayload("username", USERNAME);
+        dbUpdate.addPayload("latitude", message.getPayloadDouble("latitude"));
+        dbUpdate.addPayload("longitude", message.getPayloadDouble("longitude"));
+        sink.println(JSONUtil.toJSON(dbUpdate));
+        Message reply = new Message(MessageType.LOCATION_UPDATED);
+        reply.addPayload("count", ++received);
+        return JSONUtil.toJSON(reply);
+    }
+
+    @Benchmark
+    public String telemetry() {
+        if (!in.parse(UPDATE))
+            throw new IllegalStateException("Telemetry parse failed");
+        forward.set(MessageType.DB_UPDATE_DRIVER_LOCATION).username(USERNAME)
+                .location(in.getLatitude(), in.getLongitude()).writeTo(sink);
+        return ack.set(MessageType.LOCATION_UPDATED).count(++received).toJSON();
+    }
+}
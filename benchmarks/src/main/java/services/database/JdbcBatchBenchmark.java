@@ -0,0 +1,122 @@
+package services.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second for the three ways DatabaseManager can write rows: a new
+ * PreparedStatement per row (the code before StatementCache), a cached
+ * statement per row, and a cached statement with addBatch in one
+ * transaction. Needs a MySQL server: set BENCH_MYSQL_URL, e.g.
+ * jdbc:mysql://localhost:3306/ride_sharing_distributed?user=root
+ * (bench.Run leaves this benchmark out when it is not set). Writes to a
+ * scratch table that is dropped at the end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JdbcBatchBenchmark {
+    public static final String URL_VARIABLE = "BENCH_MYSQL_URL";
+    static final int ROWS = 500;
+    private static final String INSERT = "INSERT INTO bench_driver_locations (username, latitude, longitude) VALUES (?, ?, ?)";
+    // What DatabaseManager's URL enables
+    private static final String TUNING = "useServerPrepStmts=true&cachePrepStmts=true&rewriteBatchedStatements=true";
+
+    private Connection plain;
+    private Connection tuned;
+    private StatementCache statements;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        String url = System.getenv(URL_VARIABLE);
+        if (url == null || url.isEmpty())
+            throw new IllegalStateException(URL_VARIABLE + " is not set");
+        plain = DriverManager.getConnection(url);
+        tuned = DriverManager.getConnection(url + (url.contains("?") ? "&" : "?") + TUNING);
+        statements = new StatementCache(tuned);
+        try (Statement stmt = plain.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS bench_driver_locations");
+            stmt.executeUpdate("CREATE TABLE bench_driver_locations (id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "username VARCHAR(50), latitude DOUBLE, longitude DOUBLE)");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyTable() throws SQLException {
+        try (Statement stmt = plain.createStatement()) {
+            stmt.executeUpdate("TRUNCATE TABLE bench_driver_locations");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement stmt = plain.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS bench_driver_locations");
+        }
+        statements.close();
+        tuned.close();
+        plain.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void uncached() throws SQLException {
+        for (int i = 0; i < ROWS; i++) {
+            try (PreparedStatement pstmt = plain.prepareStatement(INSERT)) {
+                bind(pstmt, i);
+                pstmt.executeUpdate();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void cached() throws SQLException {
+        for (int i = 0; i < ROWS; i++) {
+            PreparedStatement pstmt = statements.prepare(INSERT);
+            bind(pstmt, i);
+            pstmt.executeUpdate();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void batched() throws SQLException {
+        tuned.setAutoCommit(false);
+        PreparedStatement pstmt = statements.prepare(INSERT);
+        for (int i = 0; i < ROWS; i++) {
+            bind(pstmt, i);
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+        tuned.commit();
+        tuned.setAutoCommit(true);
+    }
+
+    private static void bind(PreparedStatement pstmt, int i) throws SQLException {
+        pstmt.setString(1, "bench_driver_" + i);
+        pstmt.setDouble(2, 6.9 + i * 1e-5);
+        pstmt.setDouble(3, 79.8 + i * 1e-5);
+    }
+}
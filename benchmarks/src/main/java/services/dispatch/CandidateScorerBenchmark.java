@@ -0,0 +1,71 @@
+package services.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CandidateScorer.nearest over fleets already in its buffers, with the
+ * scalar and the Vector API distance kernel, and the kernel pass alone.
+ * Forks with jdk.incubator.vector so both kernels can run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class CandidateScorerBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    int drivers;
+
+    @Param({ "scalar", "vector" })
+    String kernel;
+
+    DistanceKernel distanceKernel;
+    CandidateScorer scorer;
+    double[] lat;
+    double[] lon;
+    double[] out;
+    final int[] indices = new int[DispatchBenchmark.CANDIDATES];
+    final double[] distances = new double[DispatchBenchmark.CANDIDATES];
+
+    @Setup
+    public void setup() {
+        distanceKernel = "vector".equals(kernel) ? new VectorDistanceKernel() : new DistanceKernel.Scalar();
+        scorer = new CandidateScorer(drivers, distanceKernel);
+        Random random = new Random(42);
+        lat = new double[drivers];
+        lon = new double[drivers];
+        out = new double[drivers];
+        for (int i = 0; i < drivers; i++) {
+            lat[i] = DispatchBenchmark.PICKUP_LAT + (random.nextDouble() - 0.5) * 0.2;
+            lon[i] = DispatchBenchmark.PICKUP_LON + (random.nextDouble() - 0.5) * 0.2;
+            scorer.add(lat[i], lon[i]);
+        }
+    }
+
+    @Benchmark
+    public int nearest() {
+        return scorer.nearest(DispatchBenchmark.PICKUP_LAT, DispatchBenchmark.PICKUP_LON,
+                DispatchBenchmark.CANDIDATES, indices, distances);
+    }
+
+    @Benchmark
+    public double[] kernelOnly() {
+        distanceKernel.squaredDistances(lat, lon, drivers, DispatchBenchmark.PICKUP_LAT, DispatchBenchmark.PICKUP_LON,
+                0.9927, out);
+        return out;
+    }
+}
@@ -0,0 +1,102 @@
+package services.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The driver search of a ride request in DispatchServer: one Haversine
+ * distance, parsing the Driver Service's list of available drivers, and
+ * ranking them nearest first - by sorting the whole list, and with
+ * NearestDriverPolicy - for fleets of 1k, 10k and 100k drivers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    static final double PICKUP_LAT = 6.927079;
+    static final double PICKUP_LON = 79.861244;
+    static final int CANDIDATES = 16; // drivers a policy ranks per pickup
+
+    /**
+     * Available drivers scattered over about 20 km around the pickup, the
+     * same fleet on every run
+     */
+    @State(Scope.Thread)
+    public static class Fleet {
+        @Param({ "1000", "10000", "100000" })
+        int drivers;
+
+        String json;
+        List<Map<String, Object>> parsed;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(42);
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < drivers; i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append("{\"username\":\"driver").append(i).append("\",\"latitude\":")
+                        .append(PICKUP_LAT + (random.nextDouble() - 0.5) * 0.2).append(",\"longitude\":")
+                        .append(PICKUP_LON + (random.nextDouble() - 0.5) * 0.2).append(",\"available\":true}");
+            }
+            json = sb.append(']').toString();
+            parsed = DispatchServer.parseDriversJSON(json);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Point {
+        double lat = 6.901608;
+        double lon = 79.858477;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double calculateDistance(Point point) {
+        return DispatchServer.calculateDistance(PICKUP_LAT, PICKUP_LON, point.lat, point.lon);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> parseDriversJSON(Fleet fleet) {
+        return DispatchServer.parseDriversJSON(fleet.json);
+    }
+
+    /**
+     * Includes copying the list, so every scan starts from the order the
+     * Driver Service sent
+     */
+    @Benchmark
+    public List<Map<String, Object>> nearestDriverScan(Fleet fleet) {
+        List<Map<String, Object>> drivers = new ArrayList<>(fleet.parsed);
+        DispatchServer.sortByDistance(drivers, PICKUP_LAT, PICKUP_LON);
+        return drivers;
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> nearestPolicy(Fleet fleet, Policy policy) {
+        return policy.nearest.rank(new ArrayList<>(fleet.parsed), PICKUP_LAT, PICKUP_LON, CANDIDATES);
+    }
+
+    @State(Scope.Thread)
+    public static class Policy {
+        final NearestDriverPolicy nearest = new NearestDriverPolicy();
+    }
+}
@@ -0,0 +1,62 @@
+package services.driver;
+
+import common.JSONUtil;
+import common.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DriverServiceServer answering GET_AVAILABLE_DRIVERS: building the list
+ * (dead-reckoned positions included) and writing the response line, for
+ * 1k, 10k and 100k registered drivers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DriverListBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    int drivers;
+
+    private DriverServiceServer server;
+
+    @Setup
+    public void setup() {
+        // Registered straight into the registry; registerDriver() would also write each one to the database
+        server = new DriverServiceServer();
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < drivers; i++) {
+            double lat = 6.927079 + (random.nextDouble() - 0.5) * 0.2;
+            double lon = 79.861244 + (random.nextDouble() - 0.5) * 0.2;
+            DriverInfo info = new DriverInfo("driver" + i);
+            info.setLocation(lat, lon);
+            info.getFilter().anchor(lat, lon, now);
+            server.driverRegistry.put(info.getUsername(), info);
+        }
+    }
+
+    @Benchmark
+    public Message getAvailableDriversList() {
+        return server.getAvailableDriversList();
+    }
+
+    @Benchmark
+    public String getAvailableDriversListResponse() {
+        return JSONUtil.toJSON(server.getAvailableDriversList());
+    }
+}
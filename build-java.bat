@@ -25,8 +25,11 @@ mkdir "%OUT_DIR%" >nul
 set "SRC_LIST=%TEMP%\java_sources_%RANDOM%%RANDOM%.txt"
 del /q "%SRC_LIST%" 2>nul
 
+REM benchmarks\ is a separate Maven module (JMH), built with mvn -f benchmarks\pom.xml
+REM vector\ is the optional Vector API kernel, built below with "build-java.bat vector"
 for /r %%F in (*.java) do (
-  echo %%F>>"%SRC_LIST%"
+  set "SRC=%%F"
+  if "!SRC:\benchmarks\=!"=="!SRC!" if "!SRC:\vector\=!"=="!SRC!" echo %%F>>"%SRC_LIST%"
 )
 
 REM Compile
@@ -40,6 +43,17 @@ if not "%JAVAC_ERR%"=="0" (
   exit /b %JAVAC_ERR%
 )
 
+REM Optional: VectorDistanceKernel needs jdk.incubator.vector (javac warns about
+REM incubating modules); Dispatch uses it when started with --add-modules jdk.incubator.vector
+if /i "%~1"=="vector" (
+  javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp "%OUT_DIR%" -d "%OUT_DIR%" vector\services\dispatch\*.java
+  if errorlevel 1 (
+    echo.
+    echo ERROR: Vector kernel compilation failed.
+    exit /b 1
+  )
+)
+
 echo.
 echo Build OK. Classes written to %OUT_DIR%\
 exit /b 0
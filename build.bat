@@ -41,10 +41,20 @@ if %ERRORLEVEL% NEQ 0 (
     pause
     exit /b 1
 )
+REM Optional Vector API kernel for Dispatch: build.bat vector
+if /i "%~1"=="vector" (
+    javac --add-modules jdk.incubator.vector -cp . -d . vector\services\dispatch\*.java
+    if errorlevel 1 (
+        echo ERROR: Failed to compile the vector kernel
+        pause
+        exit /b 1
+    )
+)
 
 echo [4/5] Compiling client classes...
 javac -cp . -d . clients\passenger\*.java
 javac -cp . -d . clients\driver\*.java
+javac -cp . -d . clients\loadtest\*.java
 if %ERRORLEVEL% NEQ 0 (
     echo ERROR: Failed to compile client classes
     pause
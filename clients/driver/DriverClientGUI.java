@@ -8,6 +8,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -28,6 +30,12 @@ public class DriverClientGUI extends JFrame {
     // Location update timer
     private Timer locationTimer;
     
+    // Rides the service took back (event dispatch thread only), and the ride
+    // question on screen, closed when its ride is retracted
+    private final Set<Integer> retractedRides = new HashSet<>();
+    private JDialog rideDialog;
+    private int rideDialogRideId;
+    
     // GUI Components
     private JTextField usernameField, passwordField, phoneField;
     private JTextField latField, lonField;
@@ -288,6 +296,19 @@ public class DriverClientGUI extends JFrame {
                     handleRideAssignment(message);
                     break;
                     
+                case RIDE_OFFER_RETRACTED:
+                    int retracted = message.getPayloadInt("rideId");
+                    log("Ride " + retracted + " is no longer offered to you ("
+                        + message.getPayloadString("reason") + ")");
+                    retractedRides.add(retracted);
+                    if (rideDialog != null && rideDialogRideId == retracted) {
+                        rideDialog.dispose();
+                    }
+                    available = true;
+                    availableCheckbox.setSelected(true);
+                    updateAvailabilityStatus();
+                    break;
+                    
                 case ERROR:
                     String errorMsg = message.getPayloadString("error");
                     log("ERROR: " + errorMsg);
@@ -301,6 +322,9 @@ public class DriverClientGUI extends JFrame {
     
     private void handleRideAssignment(Message message) {
         int rideId = message.getPayloadInt("rideId");
+        if (retractedRides.contains(rideId)) {
+            return;
+        }
         String passenger = message.getPayloadString("passengerUsername");
         double pickupLat = message.getPayloadDouble("pickupLat");
         double pickupLon = message.getPayloadDouble("pickupLon");
@@ -318,16 +342,18 @@ public class DriverClientGUI extends JFrame {
         updateAvailabilityStatus();
         
         // Show dialog
-        int response = JOptionPane.showConfirmDialog(this,
+        int response = askAboutRide(rideId,
             "New Ride Request!\n\n" +
             "Ride ID: " + rideId + "\n" +
             "Passenger: " + passenger + "\n" +
             "Pickup: (" + pickupLat + ", " + pickupLon + ")\n\n" +
             "Accept this ride?",
             "New Ride Assignment",
-            JOptionPane.YES_NO_OPTION,
             JOptionPane.INFORMATION_MESSAGE);
         
+        if (retractedRides.contains(rideId)) {
+            return; // taken by another driver or expired while the dialog was open
+        }
         if (response == JOptionPane.YES_OPTION) {
             acceptRide(rideId);
         } else {
@@ -342,16 +368,31 @@ public class DriverClientGUI extends JFrame {
         log("Ride " + rideId + " ACCEPTED");
         
         // Ask if they want to start the ride now
-        int start = JOptionPane.showConfirmDialog(this,
+        int start = askAboutRide(rideId,
             "Start the ride now?",
             "Start Ride",
-            JOptionPane.YES_NO_OPTION);
+            JOptionPane.QUESTION_MESSAGE);
         
-        if (start == JOptionPane.YES_OPTION) {
+        if (start == JOptionPane.YES_OPTION && !retractedRides.contains(rideId)) {
             startRide(rideId);
         }
     }
     
+    /**
+     * Yes/no question about a ride, closed (CLOSED_OPTION) if the service
+     * retracts the ride while it is open
+     */
+    private int askAboutRide(int rideId, String text, String title, int messageType) {
+        JOptionPane pane = new JOptionPane(text, messageType, JOptionPane.YES_NO_OPTION);
+        rideDialog = pane.createDialog(this, title);
+        rideDialogRideId = rideId;
+        rideDialog.setVisible(true);
+        rideDialog.dispose();
+        rideDialog = null;
+        Object value = pane.getValue();
+        return value instanceof Integer ? (Integer) value : JOptionPane.CLOSED_OPTION;
+    }
+    
     private void rejectRide(int rideId) {
         Message message = new Message(MessageType.RIDE_REJECTED);
         message.addPayload("rideId", rideId);
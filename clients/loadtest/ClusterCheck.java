@@ -0,0 +1,341 @@
+package clients.loadtest;
+
+import common.JSONUtil;
+import common.Message;
+import common.MessageType;
+import services.dispatch.PartitionMap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a Dispatch cluster of three instances on loopback (5000, 5005,
+ * 5006) with the Database (embedded storage, scratch data directory) and
+ * Driver services, and checks what the cluster promises:
+ *   handoff     - a request for a cell another instance owns is matched there
+ *   kill        - requests for a dead instance's cells are still matched
+ *   rejoin      - once it is back, its cells are matched by it again
+ *   no double booking - concurrent requests through every instance never
+ *                 get the same driver (nor one assigned earlier in the run,
+ *                 as drivers here never finish a ride)
+ * Ownership is computed with the same PartitionMap the servers use. Prints
+ * each check and exits with 1 if any fails; service logs stay in the scratch
+ * directory.
+ *
+ * Usage: java clients.loadtest.ClusterCheck
+ */
+public class ClusterCheck {
+    private static final int[] DISPATCH_PORTS = { 5000, 5005, 5006 };
+    private static final int METRICS_OFFSET = 4000;
+    private static final long ANSWER_WAIT_MS = 20_000;
+    private static final long MEMBERSHIP_WAIT_MS = 20_000;
+    private static final double CENTER_LAT = 6.9271;
+    private static final double CENTER_LON = 79.8612;
+
+    private static final Map<Integer, Process> dispatchers = new LinkedHashMap<>();
+    private static final List<Process> services = new ArrayList<>();
+    private static final List<Client> clients = new ArrayList<>();
+    private static final List<String> assignedDrivers = new ArrayList<>();
+    private static File work;
+    private static String peers;
+    private static int failures;
+    private static int nextUser;
+
+    public static void main(String[] args) throws Exception {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            clients.forEach(Client::close);
+            dispatchers.values().forEach(Process::destroy);
+            services.forEach(Process::destroy);
+        }));
+        work = Files.createTempDirectory("clustercheck").toFile();
+        System.out.println("Starting services (logs and embedded data in " + work + ")");
+        List<String> nodes = new ArrayList<>();
+        for (int port : DISPATCH_PORTS) {
+            nodes.add("localhost:" + port);
+        }
+        peers = String.join(",", nodes);
+        start("services.database.DatabaseServiceServer", "database", 5002);
+        start("services.driver.DriverServiceServer", "driver", 5003);
+        for (int port : DISPATCH_PORTS) {
+            startDispatch(port);
+        }
+        for (int port : DISPATCH_PORTS) {
+            check("instance " + port + " sees the whole cluster", awaitMembers(port, DISPATCH_PORTS.length));
+        }
+
+        // Owners as the servers compute them
+        PartitionMap all = new PartitionMap(nodes.get(0), nodes, 0);
+        nodes.forEach(all::markAlive);
+        int entry = DISPATCH_PORTS[0];
+        int other = DISPATCH_PORTS[1];
+        int victim = DISPATCH_PORTS[2];
+
+        // Handoff
+        double[] pickup = pickupOwnedBy(all, "localhost:" + other);
+        long before = assigned(other);
+        connectDrivers(2);
+        check("request entering at " + entry + " for a cell of " + other + " is assigned",
+                requestRide(entry, pickup) != null);
+        check("it was matched by " + other, assigned(other) == before + 1);
+
+        // Kill the owner of a cell: the rest take its cells over
+        pickup = pickupOwnedBy(all, "localhost:" + victim);
+        dispatchers.remove(victim).destroyForcibly().waitFor();
+        connectDrivers(2);
+        check("request for a cell of the killed " + victim + " is still assigned", requestRide(entry, pickup) != null);
+
+        // Rejoin: the cell goes back to it
+        startDispatch(victim);
+        check("instance " + entry + " sees " + victim + " again", awaitMembers(entry, DISPATCH_PORTS.length));
+        connectDrivers(2);
+        check("request for its cell is assigned again", requestRide(entry, pickup) != null);
+        check("it was matched by the rejoined " + victim, assigned(victim) == 1);
+
+        // Concurrent requests through every instance, more than there are drivers
+        int drivers = 6;
+        connectDrivers(drivers);
+        List<Client> passengers = new ArrayList<>();
+        for (int i = 0; i < drivers * 2; i++) {
+            passengers.add(passenger(DISPATCH_PORTS[i % DISPATCH_PORTS.length]));
+        }
+        Random random = new Random(42);
+        for (Client passenger : passengers) {
+            passenger.send(rideRequest(new double[] { CENTER_LAT + (random.nextDouble() - 0.5) * 0.3,
+                    CENTER_LON + (random.nextDouble() - 0.5) * 0.3 }));
+        }
+        int answered = 0;
+        for (Client passenger : passengers) {
+            Message answer = passenger.await(ANSWER_WAIT_MS, MessageType.RIDE_ASSIGNMENT,
+                    MessageType.NO_DRIVERS_AVAILABLE, MessageType.ERROR);
+            if (answer == null)
+                continue;
+            answered++;
+            if (answer.getType() == MessageType.RIDE_ASSIGNMENT && Boolean.TRUE.equals(answer.getPayloadBoolean("success")))
+                assignedDrivers.add(answer.getPayloadString("driverUsername"));
+        }
+        check("all " + passengers.size() + " concurrent requests are answered", answered == passengers.size());
+        check("no driver is assigned twice " + assignedDrivers,
+                new HashSet<>(assignedDrivers).size() == assignedDrivers.size());
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed, logs in " + work);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed)
+            failures++;
+    }
+
+    // --- Services ---
+
+    private static Process spawn(String name, Map<String, String> env, String... command) throws IOException {
+        List<String> line = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path")));
+        line.addAll(Arrays.asList(command));
+        ProcessBuilder builder = new ProcessBuilder(line);
+        builder.environment().put("STORAGE_ENGINE", "embedded");
+        builder.environment().put("EMBEDDED_DATA_DIR", new File(work, "data").getPath());
+        builder.environment().putIfAbsent("TRACE_COLLECTOR", "off");
+        builder.environment().putAll(env);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(work, name + ".log")));
+        return builder.start();
+    }
+
+    private static void start(String mainClass, String name, int port) throws Exception {
+        services.add(spawn(name, Map.of(), mainClass));
+        LoadGenerator.awaitPort("localhost", port, name);
+    }
+
+    private static void startDispatch(int port) throws Exception {
+        dispatchers.put(port, spawn("dispatch-" + port, Map.of("DISPATCH_PEERS", peers),
+                "services.dispatch.DispatchServer", Integer.toString(port)));
+        LoadGenerator.awaitPort("localhost", port, "dispatch " + port);
+    }
+
+    private static boolean awaitMembers(int port, int members) throws InterruptedException {
+        long until = System.currentTimeMillis() + MEMBERSHIP_WAIT_MS;
+        while (System.currentTimeMillis() < until) {
+            if (metric(port, "dispatch_cluster_members") == members)
+                return true;
+            Thread.sleep(250);
+        }
+        return false;
+    }
+
+    private static long assigned(int port) {
+        return metric(port, "dispatch_assignments_total{result=\"assigned\"}");
+    }
+
+    /**
+     * One value from a Dispatch Server's /metrics, -1 if it cannot be read
+     */
+    private static long metric(int port, String name) {
+        try (InputStream in = new URL("http://localhost:" + (port + METRICS_OFFSET) + "/metrics").openStream()) {
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (line.startsWith(name + " "))
+                    return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not up (yet)
+        }
+        return -1;
+    }
+
+    // --- Clients ---
+
+    /**
+     * A pickup point near the center in a cell the given instance owns
+     */
+    private static double[] pickupOwnedBy(PartitionMap map, String node) {
+        for (int i = 0; ; i++) {
+            double lat = CENTER_LAT + (i % 20) * 0.05;
+            double lon = CENTER_LON + (i / 20) * 0.05;
+            if (map.ownerOfCell(map.cellOf(lat, lon)).equals(node))
+                return new double[] { lat, lon };
+        }
+    }
+
+    /**
+     * Drivers that accept every offer and never finish the ride
+     */
+    private static void connectDrivers(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            String username = "cc_driver_" + (nextUser++);
+            Client driver = new Client(5001, message -> message.getType() == MessageType.RIDE_ASSIGNMENT);
+            Message register = new Message(MessageType.REGISTER_DRIVER);
+            register.addPayload("username", username);
+            register.addPayload("latitude", CENTER_LAT);
+            register.addPayload("longitude", CENTER_LON);
+            driver.send(register);
+            if (driver.await(ANSWER_WAIT_MS, MessageType.LOGIN_SUCCESS) == null)
+                throw new IOException(username + " could not register with the Driver Service");
+        }
+    }
+
+    private static Client passenger(int port) throws Exception {
+        String username = "cc_passenger_" + (nextUser++);
+        Client passenger = new Client(port, null);
+        Message register = new Message(MessageType.REGISTER_PASSENGER);
+        register.addPayload("username", username);
+        register.addPayload("password", "clustercheck");
+        register.addPayload("phone", "0700000000");
+        passenger.send(register);
+        if (passenger.await(ANSWER_WAIT_MS, MessageType.LOGIN_SUCCESS) == null)
+            throw new IOException(username + " could not register through dispatch " + port);
+        return passenger;
+    }
+
+    private static Message rideRequest(double[] pickup) {
+        Message request = new Message(MessageType.RIDE_REQUEST);
+        request.addPayload("pickupLat", pickup[0]);
+        request.addPayload("pickupLon", pickup[1]);
+        request.addPayload("destLat", pickup[0] + 0.01);
+        request.addPayload("destLon", pickup[1] + 0.01);
+        request.addPayload("pickupAddr", "Cluster check pickup");
+        request.addPayload("destAddr", "Cluster check destination");
+        return request;
+    }
+
+    /**
+     * Request a ride through the given instance; the assigned driver, or null
+     */
+    private static String requestRide(int port, double[] pickup) throws Exception {
+        Client passenger = passenger(port);
+        passenger.send(rideRequest(pickup));
+        Message answer = passenger.await(ANSWER_WAIT_MS, MessageType.RIDE_ASSIGNMENT,
+                MessageType.NO_DRIVERS_AVAILABLE, MessageType.ERROR);
+        if (answer == null || answer.getType() != MessageType.RIDE_ASSIGNMENT
+                || !Boolean.TRUE.equals(answer.getPayloadBoolean("success"))) {
+            System.out.println("     answer: " + (answer != null ? JSONUtil.toJSON(answer) : "none"));
+            return null;
+        }
+        assignedDrivers.add(answer.getPayloadString("driverUsername"));
+        return answer.getPayloadString("driverUsername");
+    }
+
+    private interface AutoAccept {
+        boolean test(Message message);
+    }
+
+    /**
+     * Line-delimited JSON connection; offers matched by autoAccept are
+     * answered with RIDE_ACCEPTED, everything else is queued for await()
+     */
+    private static class Client {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+
+        Client(int port, AutoAccept autoAccept) throws IOException {
+            socket = new Socket("localhost", port);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        Message message = JSONUtil.fromJSON(line);
+                        if (message == null)
+                            continue;
+                        if (autoAccept != null && autoAccept.test(message)) {
+                            Message accept = new Message(MessageType.RIDE_ACCEPTED);
+                            accept.addPayload("rideId", message.getPayloadInt("rideId"));
+                            send(accept);
+                        } else {
+                            received.add(message);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "clustercheck-client");
+            reader.setDaemon(true);
+            reader.start();
+            clients.add(this);
+        }
+
+        synchronized void send(Message message) {
+            out.println(JSONUtil.toJSON(message));
+        }
+
+        Message await(long timeoutMs, MessageType... types) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeoutMs;
+            long left;
+            while ((left = until - System.currentTimeMillis()) > 0) {
+                Message message = received.poll(left, TimeUnit.MILLISECONDS);
+                if (message != null && Arrays.asList(types).contains(message.getType()))
+                    return message;
+            }
+            return null;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package clients.loadtest;
+
+import common.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless load test for the whole system: N simulated drivers stream GPS
+ * traces to the Driver Service (5001) while M simulated passengers send
+ * RIDE_REQUESTs to the Dispatch Server (5000) at a fixed rate. The rate is
+ * open-loop - requests are sent on schedule whether or not earlier ones were
+ * answered, so a slow server shows up as latency rather than as fewer
+ * requests. Reports assignment latency percentiles, throughput and error
+ * rates every few seconds and at the end.
+ *
+ * Usage: java clients.loadtest.LoadGenerator [--option=value ...]
+ *   --drivers=200        simulated drivers
+ *   --passengers=100     simulated passengers (each has one request in flight at most)
+ *   --rate=10            ride requests per second
+ *   --duration=60        seconds of load after everyone has logged in
+ *   --gps-interval=1000  ms between a driver's location updates
+ *   --ride-seconds=20    how long a ride lasts, from assignment to completion
+ *   --decline=0          fraction of ride offers drivers turn down (RIDE_REJECTED)
+ *   --answer-ms=0        mean ms a driver takes to answer a ride offer
+ *   --timeout=15000      ms a passenger waits for an answer before counting a timeout
+ *   --ack=EVERY_N        driver ack mode (ALL, NONE, EVERY_N); --ack-every=50
+ *   --center=6.9271,79.8612 --radius=5   area (km) drivers and pickups are spread over
+ *   --host=localhost --dispatch-port=5000 --driver-port=5001
+ *   --report=file.json   also write the summary as JSON
+ *   --spawn              start the Database (embedded storage, scratch data
+ *                        directory), Driver and Dispatch services as child
+ *                        processes for the run, so nothing else is needed
+ */
+public class LoadGenerator {
+    private static final int READER_STACK_BYTES = 128 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+    private static final long LOGIN_WAIT_MS = 30_000;
+    private static final long SPAWN_WAIT_MS = 60_000;
+
+    private static final ScheduledExecutorService timers = Executors.newScheduledThreadPool(2, daemon("loadtest-timer"));
+    private static volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.parse(args);
+        Stats stats = new Stats();
+        List<Process> services = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> services.forEach(Process::destroy)));
+
+        if (settings.spawn)
+            spawnServices(settings, services);
+
+        System.out.printf("Connecting %d drivers and %d passengers to %s...%n", settings.drivers, settings.passengers,
+                settings.host);
+        Random seeds = new Random(settings.seed);
+        List<SimulatedDriver> drivers = new ArrayList<>();
+        for (int i = 0; i < settings.drivers; i++) {
+            SimulatedDriver driver = new SimulatedDriver("lt_driver_" + i, settings, stats, seeds.nextLong());
+            driver.connect();
+            drivers.add(driver);
+        }
+        List<SimulatedPassenger> passengers = new ArrayList<>();
+        for (int i = 0; i < settings.passengers; i++) {
+            SimulatedPassenger passenger = new SimulatedPassenger("lt_passenger_" + i, settings, stats,
+                    seeds.nextLong());
+            passenger.connect();
+            passengers.add(passenger);
+        }
+        long waitUntil = System.currentTimeMillis() + LOGIN_WAIT_MS;
+        while ((stats.driversRegistered.get() < settings.drivers
+                || stats.passengersRegistered.get() < settings.passengers)
+                && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(100);
+        }
+        System.out.printf("%d/%d drivers and %d/%d passengers logged in%n", stats.driversRegistered.get(),
+                settings.drivers, stats.passengersRegistered.get(), settings.passengers);
+
+        ScheduledExecutorService gps = Executors.newScheduledThreadPool(2, daemon("loadtest-gps"));
+        for (SimulatedDriver driver : drivers) {
+            driver.startTrace(gps);
+        }
+
+        // Open loop: one request every 1/rate seconds, from the next idle passenger
+        AtomicInteger cursor = new AtomicInteger();
+        ScheduledExecutorService requests = Executors.newSingleThreadScheduledExecutor(daemon("loadtest-requests"));
+        long period = Math.max(1, (long) (1_000_000_000L / settings.rate));
+        requests.scheduleAtFixedRate(() -> {
+            for (int tried = 0; tried < passengers.size(); tried++) {
+                int next = Math.floorMod(cursor.getAndIncrement(), passengers.size());
+                if (passengers.get(next).tryRequest())
+                    return;
+            }
+            stats.skipped.increment();
+        }, 0, period, TimeUnit.NANOSECONDS);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        long lastTime = start;
+        long lastRequests = 0;
+        long lastAssigned = 0;
+        while (System.nanoTime() < end) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+            Thread.sleep(Math.max(1, Math.min(PROGRESS_INTERVAL_MS, remainingMs)));
+            long requested = stats.requests.get();
+            long assigned = stats.assigned.get();
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - lastTime) / 1e9;
+            System.out.printf(Locale.ROOT,
+                    "[%3ds] %6.1f req/s  %6.1f assigned/s  p50 %s  p99 %s  no-driver %d  errors %d  timeouts %d  gps %d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), (requested - lastRequests) / seconds,
+                    (assigned - lastAssigned) / seconds, ms(stats.assignmentLatency.quantile(0.5)),
+                    ms(stats.assignmentLatency.quantile(0.99)), stats.noDrivers.get(), stats.errors.get(),
+                    stats.timeouts.get(), stats.gpsSent.get());
+            lastTime = now;
+            lastRequests = requested;
+            lastAssigned = assigned;
+        }
+        requests.shutdownNow();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Give requests still in flight a chance to be answered
+        long drainUntil = System.currentTimeMillis() + settings.timeoutMs;
+        while (answered(stats) < stats.requests.get() && System.currentTimeMillis() < drainUntil) {
+            Thread.sleep(100);
+        }
+
+        stopping = true;
+        gps.shutdownNow();
+        drivers.forEach(SimulatedDriver::close);
+        passengers.forEach(SimulatedPassenger::close);
+
+        Map<String, Object> report = report(settings, stats, elapsed);
+        print(report);
+        if (settings.reportFile != null) {
+            try (PrintWriter out = new PrintWriter(settings.reportFile, "UTF-8")) {
+                out.println(toJSON(report));
+            }
+            System.out.println("Report written to " + settings.reportFile);
+        }
+        services.forEach(Process::destroy);
+        System.exit(stats.disconnects.get() > 0 ? 1 : 0);
+    }
+
+    static boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Run task after delayMs on the shared timer
+     */
+    static void later(Runnable task, long delayMs) {
+        if (!stopping)
+            timers.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start a connection's reader thread; thousands of them, so with a small stack
+     */
+    static void startReader(String name, Runnable reader) {
+        Thread thread = new Thread(null, reader, name, READER_STACK_BYTES);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static long answered(Stats stats) {
+        return stats.assigned.get() + stats.noDrivers.get() + stats.errors.get() + stats.timeouts.get();
+    }
+
+    /**
+     * Start the Database, Driver and Dispatch services from this classpath,
+     * in dependency order, each once the one before is listening
+     */
+    private static void spawnServices(Settings settings, List<Process> services) throws Exception {
+        File work = Files.createTempDirectory("loadtest").toFile();
+        System.out.println("Starting services (logs and embedded data in " + work + ")");
+        String[][] order = {
+                { "services.database.DatabaseServiceServer", "database", "5002" },
+                { "services.driver.DriverServiceServer", "driver", "5003" },
+                { "services.dispatch.DispatchServer", "dispatch", Integer.toString(settings.dispatchPort) } };
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (String[] service : order) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    service[0]);
+            builder.environment().put("STORAGE_ENGINE", "embedded");
+            builder.environment().put("EMBEDDED_DATA_DIR", new File(work, "data").getPath());
+            builder.environment().putIfAbsent("TRACE_COLLECTOR", "off");
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(work, service[1] + ".log"));
+            services.add(builder.start());
+            awaitPort("localhost", Integer.parseInt(service[2]), service[1]);
+        }
+    }
+
+    static void awaitPort(String host, int port, String service) throws Exception {
+        long until = System.currentTimeMillis() + SPAWN_WAIT_MS;
+        while (System.currentTimeMillis() < until) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 500);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(200);
+            }
+        }
+        throw new IOException(service + " service did not start listening on port " + port);
+    }
+
+    private static Map<String, Object> report(Settings settings, Stats stats, double elapsed) {
+        Metrics.Histogram latency = stats.assignmentLatency;
+        long requested = stats.requests.get();
+        long failed = stats.errors.get() + stats.timeouts.get();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("drivers", settings.drivers);
+        report.put("passengers", settings.passengers);
+        report.put("targetRate", settings.rate);
+        report.put("durationSeconds", round(elapsed));
+        report.put("requests", requested);
+        report.put("skipped", stats.skipped.get());
+        report.put("assigned", stats.assigned.get());
+        report.put("noDriver", stats.noDrivers.get());
+        report.put("errors", stats.errors.get());
+        report.put("timeouts", stats.timeouts.get());
+        report.put("requestsPerSecond", round(requested / elapsed));
+        report.put("assignmentsPerSecond", round(stats.assigned.get() / elapsed));
+        report.put("errorRate", requested > 0 ? round((double) failed / requested) : 0.0);
+        report.put("assignmentLatencyMs", percentiles(latency));
+        report.put("noDriverLatencyMs", percentiles(stats.noDriverLatency));
+        report.put("driverAssignments", stats.driverAssignments.get());
+        report.put("driverDeclines", stats.driverDeclines.get());
+        report.put("driverRetractions", stats.driverRetractions.get());
+        report.put("ridesCompleted", stats.ridesCompleted.get());
+        report.put("gpsUpdatesSent", stats.gpsSent.get());
+        report.put("gpsAcks", stats.gpsAcks.get());
+        report.put("driverErrors", stats.driverErrors.get());
+        report.put("disconnects", stats.disconnects.get());
+        return report;
+    }
+
+    private static Map<String, Object> percentiles(Metrics.Histogram histogram) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("count", histogram.getCount());
+        values.put("p50", round(histogram.quantile(0.5) / 1e6));
+        values.put("p90", round(histogram.quantile(0.9) / 1e6));
+        values.put("p99", round(histogram.quantile(0.99) / 1e6));
+        values.put("p999", round(histogram.quantile(0.999) / 1e6));
+        values.put("max", round(histogram.quantile(1.0) / 1e6));
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(Map<String, Object> report) {
+        System.out.println();
+        System.out.println("============================================================");
+        System.out.println("LOAD TEST SUMMARY");
+        System.out.println("============================================================");
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                StringBuilder line = new StringBuilder();
+                for (Map.Entry<String, Object> p : ((Map<String, Object>) entry.getValue()).entrySet()) {
+                    line.append(p.getKey()).append(' ').append(p.getValue()).append("  ");
+                }
+                System.out.printf("%-22s %s%n", entry.getKey(), line.toString().trim());
+            } else {
+                System.out.printf("%-22s %s%n", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String toJSON(Map<String, Object> map) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append('"').append(entry.getKey()).append("\":");
+            Object value = entry.getValue();
+            sb.append(value instanceof Map ? toJSON((Map<String, Object>) value) : String.valueOf(value));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Command-line options
+     */
+    static final class Settings {
+        int drivers = 200;
+        int passengers = 100;
+        double rate = 10;
+        int durationSeconds = 60;
+        long gpsIntervalMs = 1000;
+        int rideSeconds = 20;
+        double declineRate = 0;
+        long answerMs = 0;
+        long timeoutMs = 15_000;
+        String ackMode = "EVERY_N";
+        int ackEvery = 50;
+        double centerLat = 6.9271;
+        double centerLon = 79.8612;
+        double radiusKm = 5;
+        String host = "localhost";
+        int dispatchPort = 5000;
+        int driverPort = 5001;
+        long seed = 42;
+        String reportFile;
+        boolean spawn;
+
+        static Settings parse(String[] args) {
+            Settings s = new Settings();
+            for (String arg : args) {
+                if (!arg.startsWith("--"))
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                int eq = arg.indexOf('=');
+                String key = eq > 0 ? arg.substring(2, eq) : arg.substring(2);
+                String value = eq > 0 ? arg.substring(eq + 1) : "true";
+                switch (key) {
+                    case "drivers": s.drivers = Integer.parseInt(value); break;
+                    case "passengers": s.passengers = Integer.parseInt(value); break;
+                    case "rate": s.rate = Double.parseDouble(value); break;
+                    case "duration": s.durationSeconds = Integer.parseInt(value); break;
+                    case "gps-interval": s.gpsIntervalMs = Long.parseLong(value); break;
+                    case "ride-seconds": s.rideSeconds = Integer.parseInt(value); break;
+                    case "decline": s.declineRate = Double.parseDouble(value); break;
+                    case "answer-ms": s.answerMs = Long.parseLong(value); break;
+                    case "timeout": s.timeoutMs = Long.parseLong(value); break;
+                    case "ack": s.ackMode = value.toUpperCase(Locale.ROOT); break;
+                    case "ack-every": s.ackEvery = Integer.parseInt(value); break;
+                    case "center":
+                        String[] latLon = value.split(",");
+                        s.centerLat = Double.parseDouble(latLon[0]);
+                        s.centerLon = Double.parseDouble(latLon[1]);
+                        break;
+                    case "radius": s.radiusKm = Double.parseDouble(value); break;
+                    case "host": s.host = value; break;
+                    case "dispatch-port": s.dispatchPort = Integer.parseInt(value); break;
+                    case "driver-port": s.driverPort = Integer.parseInt(value); break;
+                    case "seed": s.seed = Long.parseLong(value); break;
+                    case "report": s.reportFile = value; break;
+                    case "spawn": s.spawn = Boolean.parseBoolean(value); break;
+                    default: throw new IllegalArgumentException("Unknown option --" + key);
+                }
+            }
+            if (s.rate <= 0 || s.passengers <= 0 || s.gpsIntervalMs <= 0)
+                throw new IllegalArgumentException("--rate, --passengers and --gps-interval must be positive");
+            return s;
+        }
+
+        /**
+         * A point uniformly distributed over the test area
+         */
+        double[] randomPoint(Random random) {
+            double distance = radiusKm * 1000 * Math.sqrt(random.nextDouble());
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            double lat = centerLat + distance * Math.cos(bearing) / 111_320;
+            double lon = centerLon + distance * Math.sin(bearing) / (111_320 * Math.cos(Math.toRadians(centerLat)));
+            return new double[] { lat, lon };
+        }
+    }
+
+    /**
+     * Everything the run measures. Kept in common.Metrics so the histograms
+     * are the services' own (same buckets, same quantile estimate).
+     */
+    static final class Stats {
+        final Metrics.Counter requests = Metrics.counter("loadtest_ride_requests_total", "Ride requests sent");
+        final Metrics.Counter skipped = Metrics.counter("loadtest_requests_skipped_total",
+                "Scheduled requests not sent because every passenger was busy");
+        final Metrics.Counter assigned = Metrics.counter("loadtest_assigned_total", "Requests answered with a driver");
+        final Metrics.Counter noDrivers = Metrics.counter("loadtest_no_driver_total",
+                "Requests answered with NO_DRIVERS_AVAILABLE");
+        final Metrics.Counter errors = Metrics.counter("loadtest_errors_total", "Requests answered with an error");
+        final Metrics.Counter timeouts = Metrics.counter("loadtest_timeouts_total", "Requests not answered in time");
+        final Metrics.Histogram assignmentLatency = Metrics.histogram("loadtest_assignment_seconds",
+                "RIDE_REQUEST sent to RIDE_ASSIGNMENT received");
+        final Metrics.Histogram noDriverLatency = Metrics.histogram("loadtest_no_driver_seconds",
+                "RIDE_REQUEST sent to NO_DRIVERS_AVAILABLE received");
+        final Metrics.Counter driversRegistered = Metrics.counter("loadtest_drivers_registered_total",
+                "Drivers logged in");
+        final Metrics.Counter passengersRegistered = Metrics.counter("loadtest_passengers_registered_total",
+                "Passengers logged in");
+        final Metrics.Counter driverAssignments = Metrics.counter("loadtest_driver_assignments_total",
+                "RIDE_ASSIGNMENTs (ride offers) received by drivers");
+        final Metrics.Counter driverDeclines = Metrics.counter("loadtest_driver_declines_total",
+                "Ride offers drivers answered with RIDE_REJECTED");
+        final Metrics.Counter driverRetractions = Metrics.counter("loadtest_driver_retractions_total",
+                "RIDE_OFFER_RETRACTED received by drivers (ride taken by another driver, or offer expired)");
+        final Metrics.Counter ridesCompleted = Metrics.counter("loadtest_rides_completed_total",
+                "Rides driven to completion");
+        final Metrics.Counter gpsSent = Metrics.counter("loadtest_gps_updates_total", "Location updates sent");
+        final Metrics.Counter gpsAcks = Metrics.counter("loadtest_gps_acks_total", "LOCATION_UPDATED acks received");
+        final Metrics.Counter driverErrors = Metrics.counter("loadtest_driver_errors_total",
+                "ERROR messages received by drivers");
+        final Metrics.Counter disconnects = Metrics.counter("loadtest_disconnects_total",
+                "Connections the server closed during the run");
+    }
+}
@@ -0,0 +1,220 @@
+package clients.loadtest;
+
+import common.JSONUtil;
+import common.Message;
+import common.MessageType;
+import common.TelemetryMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One driver client on the Driver Service's port (5001): registers, then
+ * streams a GPS trace - a vehicle wandering the streets at city speeds,
+ * turning gradually, with a few metres of receiver noise - and plays its
+ * part in each ride it is offered (accept or decline, start, complete).
+ */
+class SimulatedDriver {
+    private static final double METRES_PER_DEGREE = 111_320;
+    private static final double GPS_NOISE_M = 4;
+
+    private final String username;
+    private final LoadGenerator.Settings settings;
+    private final LoadGenerator.Stats stats;
+    private final Random random;
+    private final TelemetryMessage update = new TelemetryMessage();
+    private Socket socket;
+    private PrintWriter out;
+
+    // Vehicle state, owned by the GPS task
+    private double lat;
+    private double lon;
+    private double heading; // radians, 0 = north
+    private double speed; // m/s
+    private volatile int currentRide; // accepted and not yet completed or retracted, 0 if none
+    private volatile int retractedRide; // the last offer withdrawn before we answered it
+
+    SimulatedDriver(String username, LoadGenerator.Settings settings, LoadGenerator.Stats stats, long seed) {
+        this.username = username;
+        this.settings = settings;
+        this.stats = stats;
+        this.random = new Random(seed);
+        double[] start = settings.randomPoint(random);
+        this.lat = start[0];
+        this.lon = start[1];
+        this.heading = random.nextDouble() * 2 * Math.PI;
+        this.speed = 6 + random.nextDouble() * 8;
+    }
+
+    /**
+     * Connect and register; replies are read on a thread of its own
+     */
+    void connect() throws IOException {
+        socket = new Socket(settings.host, settings.driverPort);
+        socket.setTcpNoDelay(true);
+        out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        LoadGenerator.startReader("driver-" + username, () -> read(in));
+
+        Message register = new Message(MessageType.REGISTER_DRIVER);
+        register.addPayload("username", username);
+        register.addPayload("latitude", lat);
+        register.addPayload("longitude", lon);
+        register.addPayload("ackMode", settings.ackMode);
+        register.addPayload("ackEvery", settings.ackEvery);
+        out.println(JSONUtil.toJSON(register));
+    }
+
+    /**
+     * Report a position every GPS interval, starting at a random offset so
+     * the fleet's updates are spread over the interval
+     */
+    void startTrace(ScheduledExecutorService scheduler) {
+        long interval = settings.gpsIntervalMs;
+        scheduler.scheduleAtFixedRate(this::tick, random.nextInt((int) interval), interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        if (socket.isClosed())
+            return;
+        move(settings.gpsIntervalMs / 1000.0);
+        double north = random.nextGaussian() * GPS_NOISE_M;
+        double east = random.nextGaussian() * GPS_NOISE_M;
+        out.println(update.set(MessageType.UPDATE_LOCATION)
+                .location(lat + north / METRES_PER_DEGREE, lon + east / metresPerDegreeLon())
+                .toJSON());
+        stats.gpsSent.increment();
+    }
+
+    /**
+     * Drive for dt seconds: drift the heading, change speed a little, and
+     * turn back towards the centre when leaving the area
+     */
+    private void move(double dt) {
+        heading += random.nextGaussian() * 0.15;
+        speed = Math.max(2, Math.min(16, speed + random.nextGaussian() * 0.8));
+        double dNorth = (settings.centerLat - lat) * METRES_PER_DEGREE;
+        double dEast = (settings.centerLon - lon) * metresPerDegreeLon();
+        if (Math.hypot(dNorth, dEast) > settings.radiusKm * 1000) {
+            heading = Math.atan2(dEast, dNorth) + random.nextGaussian() * 0.3;
+        }
+        lat += speed * dt * Math.cos(heading) / METRES_PER_DEGREE;
+        lon += speed * dt * Math.sin(heading) / metresPerDegreeLon();
+    }
+
+    private double metresPerDegreeLon() {
+        return METRES_PER_DEGREE * Math.cos(Math.toRadians(lat));
+    }
+
+    private void read(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (TelemetryMessage.peekType(line) == MessageType.LOCATION_UPDATED) {
+                    stats.gpsAcks.increment();
+                    continue;
+                }
+                Message message = JSONUtil.fromJSON(line);
+                if (message == null)
+                    continue;
+                switch (message.getType()) {
+                    case LOGIN_SUCCESS:
+                        stats.driversRegistered.increment();
+                        break;
+                    case RIDE_ASSIGNMENT:
+                        onAssignment(message);
+                        break;
+                    case RIDE_OFFER_RETRACTED:
+                        onRetraction(message);
+                        break;
+                    case ERROR:
+                        stats.driverErrors.increment();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+        if (!LoadGenerator.isStopping())
+            stats.disconnects.increment();
+    }
+
+    private void onAssignment(Message assignment) {
+        Integer rideId = assignment.getPayloadInt("rideId");
+        if (rideId == null)
+            return;
+        stats.driverAssignments.increment();
+        if (settings.answerMs > 0) {
+            // Someone reading the offer: between none and twice the mean
+            LoadGenerator.later(() -> answer(rideId), (long) (random.nextDouble() * 2 * settings.answerMs));
+        } else {
+            answer(rideId);
+        }
+    }
+
+    private void answer(int rideId) {
+        if (retractedRide == rideId)
+            return; // withdrawn while we were thinking
+        if (currentRide != 0 || random.nextDouble() < settings.declineRate) {
+            stats.driverDeclines.increment();
+            send(MessageType.RIDE_REJECTED, rideId, false);
+            return;
+        }
+        currentRide = rideId;
+        send(MessageType.RIDE_ACCEPTED, rideId, false);
+        long rideMs = settings.rideSeconds * 1000L;
+        LoadGenerator.later(() -> {
+            if (currentRide == rideId)
+                send(MessageType.RIDE_STARTED, rideId, true);
+        }, rideMs / 4);
+        LoadGenerator.later(() -> {
+            if (currentRide != rideId)
+                return;
+            send(MessageType.RIDE_COMPLETED, rideId, true);
+            currentRide = 0;
+            stats.ridesCompleted.increment();
+        }, rideMs);
+    }
+
+    /**
+     * The ride went to another driver, or the offer expired, before our
+     * answer counted
+     */
+    private void onRetraction(Message retraction) {
+        Integer rideId = retraction.getPayloadInt("rideId");
+        if (rideId == null)
+            return;
+        stats.driverRetractions.increment();
+        retractedRide = rideId;
+        if (currentRide == rideId)
+            currentRide = 0;
+    }
+
+    private void send(MessageType type, int rideId, boolean withPosition) {
+        if (socket.isClosed())
+            return;
+        Message message = new Message(type);
+        message.addPayload("rideId", rideId);
+        if (withPosition) {
+            message.addPayload("latitude", lat);
+            message.addPayload("longitude", lon);
+        }
+        out.println(JSONUtil.toJSON(message));
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException | NullPointerException e) {
+            // already gone
+        }
+    }
+}
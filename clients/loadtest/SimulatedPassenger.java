@@ -0,0 +1,160 @@
+package clients.loadtest;
+
+import common.JSONUtil;
+import common.Message;
+import common.MessageType;
+import common.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One passenger client on the Dispatch Server's port (5000): registers (or
+ * logs in, if the account is left over from an earlier run) and, each time
+ * the generator picks it, requests a ride and times the answer. A passenger
+ * has at most one request in flight; after an assignment it is busy for the
+ * length of the ride.
+ */
+class SimulatedPassenger {
+    private static final String PASSWORD = "loadtest";
+
+    private final String username;
+    private final LoadGenerator.Settings settings;
+    private final LoadGenerator.Stats stats;
+    private final Random random;
+    private final AtomicBoolean busy = new AtomicBoolean(true); // until logged in
+    private Socket socket;
+    private PrintWriter out;
+
+    private volatile long requestedAt; // System.nanoTime() of the request in flight, 0 if none
+
+    SimulatedPassenger(String username, LoadGenerator.Settings settings, LoadGenerator.Stats stats, long seed) {
+        this.username = username;
+        this.settings = settings;
+        this.stats = stats;
+        this.random = new Random(seed);
+    }
+
+    void connect() throws IOException {
+        socket = new Socket(settings.host, settings.dispatchPort);
+        socket.setTcpNoDelay(true);
+        out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        LoadGenerator.startReader("passenger-" + username, () -> read(in));
+
+        Message register = new Message(MessageType.REGISTER_PASSENGER);
+        register.addPayload("username", username);
+        register.addPayload("password", PASSWORD);
+        register.addPayload("phone", "07" + (10_000_000 + random.nextInt(90_000_000)));
+        out.println(JSONUtil.toJSON(register));
+    }
+
+    /**
+     * Request a ride if this passenger is idle; false if it is not
+     */
+    boolean tryRequest() {
+        if (socket.isClosed() || !busy.compareAndSet(false, true))
+            return false;
+        double[] pickup = settings.randomPoint(random);
+        double[] destination = settings.randomPoint(random);
+        Message request = new Message(MessageType.RIDE_REQUEST);
+        request.addPayload("pickupLat", pickup[0]);
+        request.addPayload("pickupLon", pickup[1]);
+        request.addPayload("destLat", destination[0]);
+        request.addPayload("destLon", destination[1]);
+        request.addPayload("pickupAddr", "Load test pickup");
+        request.addPayload("destAddr", "Load test destination");
+        String json = JSONUtil.toJSON(request);
+        long sentAt = System.nanoTime();
+        requestedAt = sentAt;
+        stats.requests.increment();
+        out.println(json);
+        LoadGenerator.later(() -> timeout(sentAt), settings.timeoutMs);
+        return true;
+    }
+
+    /**
+     * No answer within the timeout: count it and free the passenger
+     */
+    private void timeout(long sentAt) {
+        if (requestedAt == sentAt) {
+            requestedAt = 0;
+            stats.timeouts.increment();
+            busy.set(false);
+        }
+    }
+
+    private void read(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Message message = JSONUtil.fromJSON(line);
+                if (message != null)
+                    onMessage(message);
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+        if (!LoadGenerator.isStopping())
+            stats.disconnects.increment();
+    }
+
+    private void onMessage(Message message) {
+        switch (message.getType()) {
+            case LOGIN_SUCCESS:
+                stats.passengersRegistered.increment();
+                busy.set(false);
+                break;
+            case LOGIN_FAILED:
+                // Registered by an earlier run
+                Message login = new Message(MessageType.LOGIN);
+                login.addPayload("username", username);
+                login.addPayload("password", PASSWORD);
+                out.println(JSONUtil.toJSON(login));
+                break;
+            case RIDE_ASSIGNMENT:
+                if (Boolean.TRUE.equals(message.getPayloadBoolean("success"))) {
+                    answered(stats.assigned, stats.assignmentLatency);
+                    // Busy until the ride is over
+                    LoadGenerator.later(() -> busy.set(false), settings.rideSeconds * 1000L);
+                } else {
+                    answered(stats.errors, null);
+                    busy.set(false);
+                }
+                break;
+            case NO_DRIVERS_AVAILABLE:
+                answered(stats.noDrivers, stats.noDriverLatency);
+                busy.set(false);
+                break;
+            case ERROR:
+                answered(stats.errors, null);
+                busy.set(false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void answered(Metrics.Counter outcome, Metrics.Histogram latency) {
+        long sentAt = requestedAt;
+        if (sentAt == 0)
+            return; // timed out already
+        requestedAt = 0;
+        outcome.increment();
+        if (latency != null)
+            latency.recordSince(sentAt);
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException | NullPointerException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package common;
+
+/**
+ * Acknowledgement mode for location updates, negotiated per connection.
+ * A client asks for a mode with "ackMode" (ALL, NONE or EVERY_N) and
+ * "ackEvery" in the REGISTER_DRIVER / LOGIN / REGISTER_PASSENGER payload; the
+ * server echoes the mode it granted in LOGIN_SUCCESS. Clients that send
+ * nothing get ALL, the original one-ack-per-update behaviour.
+ * In EVERY_N mode the LOCATION_UPDATED ack is cumulative: its "count" is the
+ * number of updates received on the connection so far.
+ * Not thread-safe: owned by the connection's reader thread.
+ */
+public class AckPolicy {
+    public enum Mode {
+        ALL, NONE, EVERY_N
+    }
+
+    private static final int MAX_EVERY = 10_000;
+
+    private final Mode mode;
+    private final int every;
+    private long received;
+    private long lastAcked;
+
+    public AckPolicy() {
+        this(Mode.ALL, 1);
+    }
+
+    public AckPolicy(Mode mode, int every) {
+        this.mode = mode;
+        this.every = Math.max(1, Math.min(every, MAX_EVERY));
+    }
+
+    /**
+     * Policy requested in a registration/login payload. Unknown or missing
+     * values fall back to ALL.
+     */
+    public static AckPolicy fromPayload(Message message) {
+        String requested = message.getPayloadString("ackMode");
+        if (requested == null)
+            return new AckPolicy();
+        try {
+            Mode mode = Mode.valueOf(requested.trim().toUpperCase());
+            Integer every = message.getPayloadInt("ackEvery");
+            if (mode == Mode.EVERY_N && (every == null || every <= 1))
+                return new AckPolicy();
+            return new AckPolicy(mode, every != null ? every : 1);
+        } catch (IllegalArgumentException e) {
+            return new AckPolicy();
+        }
+    }
+
+    /**
+     * Count an applied location update and decide whether to ack it
+     */
+    public boolean onUpdate() {
+        received++;
+        switch (mode) {
+            case NONE:
+                return false;
+            case EVERY_N:
+                if (received - lastAcked >= every) {
+                    lastAcked = received;
+                    return true;
+                }
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Count an update that was dropped because a newer one was already queued
+     */
+    public void onSuperseded() {
+        received++;
+    }
+
+    /**
+     * Superseded updates may only be dropped when the client is not waiting
+     * for an ack per update
+     */
+    public boolean allowsCoalescing() {
+        return mode != Mode.ALL;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Add the granted mode to a LOGIN_SUCCESS response
+     */
+    public void describe(Message response) {
+        response.addPayload("ackMode", mode.name());
+        if (mode == Mode.EVERY_N) {
+            response.addPayload("ackEvery", every);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package common;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings shared by every service: an environment variable if set,
+ * otherwise config.properties in the working directory (read once per
+ * process), otherwise the caller's fallback. Values are trimmed; a blank
+ * value counts as unset.
+ */
+public final class Config {
+    private static final Properties file = new Properties();
+
+    static {
+        try (InputStream input = new FileInputStream("config.properties")) {
+            file.load(input);
+        } catch (IOException ex) {
+            // Ignore, file might not exist
+        }
+    }
+
+    private Config() {
+    }
+
+    public static String get(String key, String fallback) {
+        String value = System.getenv(key);
+        if (value == null || value.trim().isEmpty())
+            value = file.getProperty(key);
+        return value == null || value.trim().isEmpty() ? fallback : value.trim();
+    }
+
+    public static int getInt(String key, int fallback) {
+        String value = get(key, null);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long fallback) {
+        String value = get(key, null);
+        return value == null ? fallback : Long.parseLong(value);
+    }
+
+    public static double getDouble(String key, double fallback) {
+        String value = get(key, null);
+        return value == null ? fallback : Double.parseDouble(value);
+    }
+}
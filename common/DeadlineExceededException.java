@@ -0,0 +1,16 @@
+package common;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown instead of starting a downstream call when the current request's
+ * deadline has already passed. A SocketTimeoutException, so existing
+ * IOException handling treats it like any other timeout.
+ */
+public class DeadlineExceededException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,181 @@
+package common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-cell counts over a square lat/lon grid (HEATMAP_CELL_DEGREES), kept
+ * incrementally as events arrive:
+ *   - record(): events in the last HEATMAP_WINDOW_SECONDS (ride requests);
+ *   - adjust(): a level that goes up and down (available drivers).
+ * The window is a ring of BUCKETS buckets per cell. Each bucket is one long
+ * packing the bucket's epoch (time / bucket length) with its count, so an
+ * increment is a single compare-and-set that also resets a bucket left over
+ * from an earlier turn of the ring: no locks, and O(1) per event however
+ * many cells the city has. Reading a window sums one ring.
+ * Dispatch counts demand, the Driver Service supply; the gateway merges the
+ * two snapshots (encode() / decode()) into /api/heatmap.
+ */
+public final class GeoHeatmap {
+    public static final int BUCKETS = 60;
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final double CELL_DEGREES = Config.getDouble("HEATMAP_CELL_DEGREES", 0.01); // ~1.1 km
+    private static final long WINDOW_SECONDS = Config.getLong("HEATMAP_WINDOW_SECONDS", 600);
+    private static final double SURGE_RATIO = Config.getDouble("SURGE_RATIO", 2.0);
+    private static final long SURGE_MIN_REQUESTS = Config.getLong("SURGE_MIN_REQUESTS", 3);
+
+    /**
+     * One cell's window ring and level
+     */
+    private static final class Cell {
+        final AtomicLongArray ring = new AtomicLongArray(BUCKETS);
+        final AtomicInteger level = new AtomicInteger();
+    }
+
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+    private final double cellDegrees;
+    private final long bucketMillis;
+
+    public GeoHeatmap() {
+        this(CELL_DEGREES, WINDOW_SECONDS * 1000);
+    }
+
+    public GeoHeatmap(double cellDegrees, long windowMillis) {
+        this.cellDegrees = cellDegrees;
+        this.bucketMillis = Math.max(1000, windowMillis / BUCKETS); // keeps the epoch within its 40 bits
+    }
+
+    /**
+     * Cell id of a position: row (from the south pole) in the high 32 bits,
+     * column (from the antimeridian) in the low 32
+     */
+    public long cellOf(double lat, double lon) {
+        long row = (long) Math.floor((lat + 90.0) / cellDegrees);
+        long col = (long) Math.floor((lon + 180.0) / cellDegrees);
+        return (row << 32) | col;
+    }
+
+    /**
+     * Count an event at (lat, lon) now
+     */
+    public void record(double lat, double lon) {
+        record(cellOf(lat, lon), System.currentTimeMillis());
+    }
+
+    public void record(long cell, long now) {
+        AtomicLongArray ring = cell(cell).ring;
+        long epoch = now / bucketMillis;
+        int i = (int) (epoch % BUCKETS);
+        long current;
+        long next;
+        do {
+            current = ring.get(i);
+            long count = (current >>> COUNT_BITS) == epoch ? (current & COUNT_MASK) : 0;
+            next = (epoch << COUNT_BITS) | Math.min(COUNT_MASK, count + 1);
+        } while (!ring.compareAndSet(i, current, next));
+    }
+
+    /**
+     * Move the cell's level by delta
+     */
+    public void adjust(long cell, int delta) {
+        cell(cell).level.addAndGet(delta);
+    }
+
+    /**
+     * Events in the cell over the window ending now
+     */
+    public long windowCount(long cell, long now) {
+        Cell c = cells.get(cell);
+        return c == null ? 0 : sum(c.ring, now / bucketMillis);
+    }
+
+    public int level(long cell) {
+        Cell c = cells.get(cell);
+        return c == null ? 0 : c.level.get();
+    }
+
+    private Cell cell(long cell) {
+        Cell c = cells.get(cell);
+        return c != null ? c : cells.computeIfAbsent(cell, k -> new Cell());
+    }
+
+    private static long sum(AtomicLongArray ring, long epoch) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = ring.get(i);
+            if (epoch - (bucket >>> COUNT_BITS) < BUCKETS)
+                total += bucket & COUNT_MASK;
+        }
+        return total;
+    }
+
+    /**
+     * Non-empty cells as "row,col,windowCount,level" entries joined by ';'
+     */
+    public String encode() {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            long count = sum(entry.getValue().ring, epoch);
+            int level = entry.getValue().level.get();
+            if (count == 0 && level == 0)
+                continue;
+            long cell = entry.getKey();
+            if (sb.length() > 0)
+                sb.append(';');
+            sb.append(cell >>> 32).append(',').append(cell & 0xFFFFFFFFL).append(',')
+                    .append(count).append(',').append(level);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add the entries of an encode() string into totals, cell id to
+     * {windowCount, level}
+     */
+    public static void decode(String encoded, Map<Long, long[]> totals) {
+        if (encoded == null || encoded.isEmpty())
+            return;
+        for (String entry : encoded.split(";")) {
+            String[] f = entry.split(",");
+            if (f.length != 4)
+                continue;
+            long cell = (Long.parseLong(f[0]) << 32) | Long.parseLong(f[1]);
+            long[] total = totals.computeIfAbsent(cell, k -> new long[2]);
+            total[0] += Long.parseLong(f[2]);
+            total[1] += Long.parseLong(f[3]);
+        }
+    }
+
+    /**
+     * Requests per available driver; with no drivers, the requests themselves
+     */
+    public static double ratio(long demand, long supply) {
+        return (double) demand / Math.max(1, supply);
+    }
+
+    /**
+     * Demand is outrunning supply: at least SURGE_MIN_REQUESTS requests in the
+     * window and SURGE_RATIO or more per available driver
+     */
+    public static boolean isSurge(long demand, long supply) {
+        return demand >= SURGE_MIN_REQUESTS && ratio(demand, supply) >= SURGE_RATIO;
+    }
+
+    public double getCellDegrees() {
+        return cellDegrees;
+    }
+
+    public long getWindowSeconds() {
+        return bucketMillis * BUCKETS / 1000;
+    }
+
+    public int size() {
+        return cells.size();
+    }
+}
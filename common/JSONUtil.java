@@ -8,6 +8,7 @@ import java.util.Map;
  * Uses manual JSON parsing to avoid external dependencies.
  */
 public class JSONUtil {
+    private static final Log log = Log.get("JSONUtil");
 
     /**
      * Convert a Message object to JSON string
@@ -38,6 +39,17 @@ public class JSONUtil {
         // Add timestamp
         json.append("\"timestamp\":").append(message.getTimestamp());
 
+        // Add deadline (only when set) as the time left, so peers' clocks need not agree
+        if (message.getDeadline() > 0)
+            json.append(",\"budgetMs\":").append(message.getDeadline() - System.currentTimeMillis());
+
+        // Add trace context (only when traced)
+        if (message.getTraceId() != null) {
+            json.append(",\"traceId\":\"").append(message.getTraceId()).append("\"");
+            if (message.getSpanId() != null)
+                json.append(",\"spanId\":\"").append(message.getSpanId()).append("\"");
+        }
+
         json.append("}");
         return json.toString();
     }
@@ -86,7 +98,7 @@ public class JSONUtil {
     /**
      * Escape special characters in JSON strings
      */
-    private static String escapeJSONString(String str) {
+    public static String escapeJSONString(String str) {
         return str.replace("\\", "\\\\")
                 .replace("\"", "\\\"")
                 .replace("\n", "\\n")
@@ -94,6 +106,38 @@ public class JSONUtil {
                 .replace("\t", "\\t");
     }
 
+    /**
+     * Reverse of escapeJSONString, so a payload string that is itself JSON
+     * (e.g. the Driver Service's "drivers" list) arrives as it was sent
+     */
+    private static String unescapeJSONString(String str) {
+        if (str.indexOf('\\') < 0)
+            return str;
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c != '\\' || i + 1 == str.length()) {
+                sb.append(c);
+                continue;
+            }
+            char next = str.charAt(++i);
+            switch (next) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                default:
+                    sb.append(next); // \" \\ \/
+            }
+        }
+        return sb.toString();
+    }
+
     /**
      * Parse JSON string to Message object
      */
@@ -130,25 +174,22 @@ public class JSONUtil {
                         message.setRequestId(value.replace("\"", "").trim());
                     } else if (key.equals("timestamp")) {
                         message.setTimestamp(Long.parseLong(value.trim()));
+                    } else if (key.equals("budgetMs")) {
+                        message.setDeadline(System.currentTimeMillis() + Long.parseLong(value.trim()));
+                    } else if (key.equals("traceId")) {
+                        message.setTraceId(value.replace("\"", "").trim());
+                    } else if (key.equals("spanId")) {
+                        message.setSpanId(value.replace("\"", "").trim());
                     }
                 } catch (Exception e) {
-                    try (java.io.FileWriter fw = new java.io.FileWriter("gateway_log.txt", true)) {
-                        fw.write("\nERROR parsing field '" + key + "': " + e.getMessage() + "\n");
-                    } catch (Exception ex) {
-                    }
+                    log.debug("Error parsing field '{}': {}", key, e.getMessage());
                     throw e;
                 }
             }
 
             return message;
         } catch (Exception e) {
-            try (java.io.FileWriter fw = new java.io.FileWriter("gateway_log.txt", true)) {
-                fw.write("\nJSON parsing failed: " + e.getMessage() + "\n");
-                java.io.PrintWriter pw = new java.io.PrintWriter(fw);
-                e.printStackTrace(pw);
-                fw.write("\n");
-            } catch (Exception ex) {
-            }
+            log.warn("JSON parsing failed: {}", e);
             return null;
         }
     }
@@ -229,7 +270,7 @@ public class JSONUtil {
             } else if (value.equals("true") || value.equals("false")) {
                 payload.put(key, Boolean.parseBoolean(value));
             } else if (value.startsWith("\"") && value.endsWith("\"")) {
-                payload.put(key, value.substring(1, value.length() - 1));
+                payload.put(key, unescapeJSONString(value.substring(1, value.length() - 1)));
             } else {
                 // Try to parse as number
                 try {
@@ -0,0 +1,416 @@
+package common;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger. A call records a structured event (time, level,
+ * component, thread, template, arguments) in a preallocated ring buffer and
+ * returns; one background thread formats and writes the events. Nothing is
+ * formatted for levels that are off, and "{}" placeholders are filled in on
+ * the writer thread, so arguments must not change after the call (strings,
+ * numbers, enums).
+ * If the ring is full the event is dropped and counted rather than making the
+ * caller wait. sampled(n) gives a logger for high-frequency events that
+ * keeps one event in n.
+ * Settings (config.properties, environment overrides): LOG_LEVEL (DEBUG,
+ * INFO, WARN, ERROR; default INFO), LOG_FORMAT (text or json).
+ * Output: INFO and below to stdout, WARN and ERROR to stderr, as before.
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    // Polls before the writer parks; spinning only helps with a spare core
+    private static final int IDLE_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 2_000 : 1;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static final int minOrdinal;
+    private static final boolean json;
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(); // next sequence to claim
+    private static volatile long head = 0; // next sequence to write, owned by the writer
+    private static final AtomicBoolean writerParked = new AtomicBoolean();
+    private static final Thread writer;
+
+    private static final Metrics.Counter dropped = Metrics.counter("log_events_dropped_total",
+            "Log events dropped because the ring buffer was full");
+    private static final Metrics.Counter sampledOut = Metrics.counter("log_events_sampled_out_total",
+            "High-frequency log events skipped by sampling");
+
+    static {
+        minOrdinal = Level.valueOf(Config.get("LOG_LEVEL", "INFO").toUpperCase()).ordinal();
+        json = "json".equalsIgnoreCase(Config.get("LOG_FORMAT", "text"));
+
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event(i - CAPACITY);
+        }
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        Metrics.gauge("log_ring_pending", "Log events waiting to be written", () -> tail.get() - head);
+    }
+
+    private final String component;
+    private final int every;
+    private final AtomicLong calls;
+
+    private Log(String component, int every) {
+        this.component = component;
+        this.every = every;
+        this.calls = every > 1 ? new AtomicLong() : null;
+    }
+
+    /**
+     * Logger whose lines are tagged [component]
+     */
+    public static Log get(String component) {
+        return new Log(component, 1);
+    }
+
+    /**
+     * Logger for the same component that keeps one call in n (per logger,
+     * so keep it in a field)
+     */
+    public Log sampled(int n) {
+        return new Log(component, n);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= minOrdinal;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    // --- Calls without varargs arrays for up to three arguments ---
+
+    public void debug(String template) {
+        log(Level.DEBUG, template, 0, null, null, null, null, null);
+    }
+
+    public void debug(String template, Object a) {
+        log(Level.DEBUG, template, 1, a, null, null, null, null);
+    }
+
+    public void debug(String template, Object a, Object b) {
+        log(Level.DEBUG, template, 2, a, b, null, null, null);
+    }
+
+    public void debug(String template, Object a, Object b, Object c) {
+        log(Level.DEBUG, template, 3, a, b, c, null, null);
+    }
+
+    public void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args.length, null, null, null, args, null);
+    }
+
+    public void info(String template) {
+        log(Level.INFO, template, 0, null, null, null, null, null);
+    }
+
+    public void info(String template, Object a) {
+        log(Level.INFO, template, 1, a, null, null, null, null);
+    }
+
+    public void info(String template, Object a, Object b) {
+        log(Level.INFO, template, 2, a, b, null, null, null);
+    }
+
+    public void info(String template, Object a, Object b, Object c) {
+        log(Level.INFO, template, 3, a, b, c, null, null);
+    }
+
+    public void info(String template, Object... args) {
+        log(Level.INFO, template, args.length, null, null, null, args, null);
+    }
+
+    public void warn(String template) {
+        log(Level.WARN, template, 0, null, null, null, null, null);
+    }
+
+    public void warn(String template, Object a) {
+        log(Level.WARN, template, 1, a, null, null, null, null);
+    }
+
+    public void warn(String template, Object a, Object b) {
+        log(Level.WARN, template, 2, a, b, null, null, null);
+    }
+
+    public void warn(String template, Object a, Object b, Object c) {
+        log(Level.WARN, template, 3, a, b, c, null, null);
+    }
+
+    public void warn(String template, Object... args) {
+        log(Level.WARN, template, args.length, null, null, null, args, null);
+    }
+
+    public void error(String template) {
+        log(Level.ERROR, template, 0, null, null, null, null, null);
+    }
+
+    public void error(String template, Object a) {
+        log(Level.ERROR, template, 1, a, null, null, null, null);
+    }
+
+    /**
+     * Error with its stack trace
+     */
+    public void error(String template, Throwable error) {
+        log(Level.ERROR, template, 0, null, null, null, null, error);
+    }
+
+    public void error(String template, Object a, Throwable error) {
+        log(Level.ERROR, template, 1, a, null, null, null, error);
+    }
+
+    private void log(Level level, String template, int argc, Object a, Object b, Object c, Object[] more,
+            Throwable error) {
+        if (level.ordinal() < minOrdinal)
+            return;
+        if (every > 1 && calls.getAndIncrement() % every != 0) {
+            sampledOut.increment();
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        Event event = ring[(int) (sequence & MASK)];
+        event.time = System.currentTimeMillis();
+        event.level = level;
+        event.component = component;
+        event.thread = Thread.currentThread().getName();
+        event.template = template;
+        event.argc = argc;
+        event.a = a;
+        event.b = b;
+        event.c = c;
+        event.more = more;
+        event.error = error;
+        event.every = every;
+        event.published = sequence; // volatile write: the event is now visible to the writer
+
+        // Only the first event after the writer parked pays for waking it
+        if (writerParked.get() && writerParked.compareAndSet(true, false))
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Block until every event logged so far has been written (used at exit)
+     */
+    public static void flush() {
+        long target = tail.get();
+        long giveUp = System.currentTimeMillis() + 2000;
+        while (head < target && System.currentTimeMillis() < giveUp) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    // --- Writer thread ---
+
+    private static void drain() {
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        Writer err = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.err), StandardCharsets.UTF_8), 1 << 14);
+        StringBuilder line = new StringBuilder(256);
+        int idle = 0;
+        while (true) {
+            long next = head;
+            Event event = ring[(int) (next & MASK)];
+            if (event.published != next) {
+                if (idle++ == 0) {
+                    try {
+                        out.flush();
+                        err.flush();
+                    } catch (IOException e) {
+                        // Nowhere left to report it
+                    }
+                } else if (idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    writerParked.set(true);
+                    if (event.published != next)
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    writerParked.set(false);
+                    idle = 1;
+                }
+                continue;
+            }
+            idle = 0;
+
+            line.setLength(0);
+            format(event, line);
+            // Read before freeing the slot: a producer may refill it at once
+            boolean toErr = event.level.compareTo(Level.WARN) >= 0;
+            event.clear();
+            head = next + 1;
+            try {
+                (toErr ? err : out).append(line);
+            } catch (IOException e) {
+                // Nowhere left to report it
+            }
+        }
+    }
+
+    private static void format(Event event, StringBuilder sb) {
+        if (json) {
+            sb.append("{\"time\":").append(event.time);
+            sb.append(",\"level\":\"").append(event.level).append('"');
+            sb.append(",\"component\":");
+            quote(sb, event.component);
+            sb.append(",\"thread\":");
+            quote(sb, event.thread);
+            sb.append(",\"template\":");
+            quote(sb, event.template);
+            if (event.argc > 0) {
+                sb.append(",\"args\":[");
+                for (int i = 0; i < event.argc; i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    Object arg = event.arg(i);
+                    if (arg instanceof Number || arg instanceof Boolean)
+                        sb.append(arg);
+                    else
+                        quote(sb, String.valueOf(arg));
+                }
+                sb.append(']');
+            }
+            sb.append(",\"message\":");
+            StringBuilder message = new StringBuilder();
+            message(event, message);
+            quote(sb, message.toString());
+            if (event.every > 1)
+                sb.append(",\"sampled\":").append(event.every);
+            if (event.error != null) {
+                sb.append(",\"error\":");
+                quote(sb, stackTrace(event.error));
+            }
+            sb.append('}').append(System.lineSeparator());
+            return;
+        }
+
+        TIME.formatTo(Instant.ofEpochMilli(event.time), sb);
+        sb.append(' ').append(event.level).append(event.level.name().length() == 4 ? "  [" : " [")
+                .append(event.component).append("] ");
+        message(event, sb);
+        if (event.every > 1)
+            sb.append(" (1 in ").append(event.every).append(')');
+        sb.append(System.lineSeparator());
+        if (event.error != null)
+            sb.append(stackTrace(event.error));
+    }
+
+    private static void message(Event event, StringBuilder sb) {
+        String template = event.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < event.argc && (at = template.indexOf("{}", from)) >= 0) {
+            sb.append(template, from, at).append(event.arg(arg++));
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+    }
+
+    private static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20)
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    else
+                        sb.append(ch);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String stackTrace(Throwable error) {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    /**
+     * One ring slot, reused; published holds the sequence of the event it
+     * currently contains
+     */
+    private static final class Event {
+        volatile long published;
+        long time;
+        Level level;
+        String component;
+        String thread;
+        String template;
+        int argc;
+        Object a;
+        Object b;
+        Object c;
+        Object[] more;
+        Throwable error;
+        int every;
+
+        Event(long published) {
+            this.published = published;
+        }
+
+        Object arg(int i) {
+            if (more != null)
+                return more[i];
+            return i == 0 ? a : i == 1 ? b : c;
+        }
+
+        void clear() {
+            a = b = c = null;
+            more = null;
+            error = null;
+            template = null;
+        }
+    }
+}
@@ -13,6 +13,9 @@ public class Message {
     private Map<String, Object> payload;
     private String requestId;
     private long timestamp;
+    private long deadline; // epoch ms (this host's clock) after which the sender no longer wants an answer; 0 = none; sent as the time left
+    private String traceId; // trace this request belongs to, null if not traced (see Tracer)
+    private String spanId; // the sender's span, parent of the receiver's
 
     // Constructors
     public Message() {
@@ -64,6 +67,34 @@ public class Message {
         this.timestamp = timestamp;
     }
 
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public void setSpanId(String spanId) {
+        this.spanId = spanId;
+    }
+
+    public boolean isExpired() {
+        return deadline > 0 && System.currentTimeMillis() > deadline;
+    }
+
     // Helper methods
     public void addPayload(String key, Object value) {
         this.payload.put(key, value);
@@ -123,6 +154,7 @@ public class Message {
                 ", payload=" + payload +
                 ", requestId='" + requestId + '\'' +
                 ", timestamp=" + timestamp +
+                (deadline > 0 ? ", deadline=" + deadline : "") +
                 '}';
     }
 }
@@ -22,6 +22,7 @@ public enum MessageType {
     RIDE_ASSIGNMENT,
     RIDE_ACCEPTED,
     RIDE_REJECTED,
+    RIDE_OFFER_RETRACTED,
     RIDE_STARTED,
     RIDE_COMPLETED,
    RIDE_CANCELLED,
@@ -47,6 +48,8 @@ public enum MessageType {
     DB_INSERT_DRIVER_DETAILED,
     DB_GET_PENDING_DRIVERS,
     DB_APPROVE_DRIVER,
+    DB_BULK_INSERT_DRIVERS,
+    DB_BULK_UPDATE_DRIVER_LOCATIONS,
     DB_RESPONSE,
     
     // System Messages
@@ -60,8 +63,16 @@ public enum MessageType {
     // Web/API Messages
     GET_LOCATIONS,
     LOCATIONS_DATA,
+    GET_HEATMAP,
+    HEATMAP_DATA,
     
     // Synchronization
     SYNC_REQUEST,
-    SYNC_DATA_RESPONSE
+    SYNC_DATA_RESPONSE,
+
+    // Dispatch cluster (instance to instance)
+    DISPATCH_HEARTBEAT,
+    DISPATCH_HANDOFF,
+    DISPATCH_CLAIM_DRIVER,
+    DISPATCH_RELEASE_DRIVER
 }
@@ -0,0 +1,348 @@
+package common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics: counters, gauges and latency histograms, rendered in
+ * the Prometheus text format by scrape().
+ * Recording never locks: a counter is a LongAdder and a histogram one atomic
+ * increment in a fixed bucket array. All the work (summing, quantiles,
+ * formatting) happens on scrape, so metrics nobody reads cost next to nothing.
+ * Names may carry labels, e.g. db_request_seconds{type="CREATE_RIDE"};
+ * look labelled metrics up once and keep the handle on hot paths.
+ * Each service serves scrape() over HTTP at /metrics on its port +
+ * METRICS_PORT_OFFSET (default 4000, 0 disables), see serve().
+ */
+public final class Metrics {
+    public static final int DEFAULT_PORT_OFFSET = 4000;
+
+    private static final Map<String, Metric> registry = new ConcurrentHashMap<>();
+    private static final Map<String, String> help = new ConcurrentHashMap<>();
+
+    static {
+        gauge("process_uptime_seconds", "Seconds since the JVM started",
+                () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1000);
+        gauge("process_heap_used_bytes", "Heap in use",
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        gauge("process_threads", "Live threads", () -> Thread.activeCount());
+    }
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String description) {
+        return (Counter) register(name, description, Counter::new);
+    }
+
+    /**
+     * Histogram of durations, recorded in nanoseconds and reported in seconds
+     */
+    public static Histogram histogram(String name, String description) {
+        return (Histogram) register(name, description, Histogram::new);
+    }
+
+    /**
+     * Histograms of one name split by one label (e.g. the message type);
+     * each label value's histogram is created on first use
+     */
+    public static HistogramFamily histograms(String name, String label, String description) {
+        help.putIfAbsent(name, description);
+        return new HistogramFamily(name, label);
+    }
+
+    /**
+     * Value read on each scrape (queue depth, open connections, ...)
+     */
+    public static void gauge(String name, String description, LongSupplier value) {
+        registry.put(name, new Gauge(value));
+        describe(name, description);
+    }
+
+    private static Metric register(String name, String description, Supplier<Metric> create) {
+        Metric metric = registry.get(name);
+        if (metric == null) {
+            metric = registry.computeIfAbsent(name, k -> create.get());
+            describe(name, description);
+        }
+        return metric;
+    }
+
+    /**
+     * The family's HELP text; series after the first may pass null
+     */
+    private static void describe(String name, String description) {
+        if (description != null)
+            help.putIfAbsent(baseName(name), description);
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        String family = null;
+        // Sorted by family first, so each family's series stay together
+        Map<String, Metric> sorted = new TreeMap<>(
+                Comparator.comparing(Metrics::baseName).thenComparing(Comparator.naturalOrder()));
+        sorted.putAll(registry);
+        for (Map.Entry<String, Metric> entry : sorted.entrySet()) {
+            String name = entry.getKey();
+            String base = baseName(name);
+            if (!base.equals(family)) {
+                family = base;
+                sb.append("# HELP ").append(base).append(' ').append(help.getOrDefault(base, base)).append('\n');
+                sb.append("# TYPE ").append(base).append(' ').append(entry.getValue().type()).append('\n');
+            }
+            entry.getValue().render(base, labels(name), sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serve /metrics on servicePort + METRICS_PORT_OFFSET (config.properties,
+     * environment overrides)
+     */
+    public static void serve(String service, int servicePort) {
+        int offset = Config.getInt("METRICS_PORT_OFFSET", DEFAULT_PORT_OFFSET);
+        if (offset == 0)
+            return;
+        int port = servicePort + offset;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", t -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                t.sendResponseHeaders(200, body.length);
+                try (OutputStream os = t.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            server.start();
+            // Not a static field: Log's own counters initialize Metrics
+            Log.get("Metrics").info("{} metrics on http://localhost:{}/metrics", service, port);
+        } catch (IOException e) {
+            Log.get("Metrics").warn("Could not serve metrics on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    private static String baseName(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static String labels(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra, String value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null)
+                sb.append(labels.isEmpty() ? "" : ",").append(extra);
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private interface Metric {
+        String type();
+
+        void render(String name, String labels, StringBuilder sb);
+    }
+
+    public static final class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public String type() {
+            return "counter";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder sb) {
+            sample(sb, name, labels, null, Long.toString(get()));
+        }
+    }
+
+    public static final class HistogramFamily {
+        private final String name;
+        private final String label;
+        private final Map<Object, Histogram> members = new ConcurrentHashMap<>();
+
+        HistogramFamily(String name, String label) {
+            this.name = name;
+            this.label = label;
+        }
+
+        public Histogram get(Object value) {
+            Histogram histogram = members.get(value);
+            if (histogram == null) {
+                histogram = members.computeIfAbsent(value,
+                        v -> histogram(name + "{" + label + "=\"" + v + "\"}", null));
+            }
+            return histogram;
+        }
+    }
+
+    private static final class Gauge implements Metric {
+        private final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public String type() {
+            return "gauge";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder sb) {
+            sample(sb, name, labels, null, Long.toString(value.getAsLong()));
+        }
+    }
+
+    /**
+     * Log-linear buckets in the style of HdrHistogram: values below 32 ns
+     * exactly, then 32 buckets per power of two, so any recorded value is
+     * reported within about 3%. Covers up to 2^40 ns (about 18 minutes);
+     * longer values land in the last bucket.
+     */
+    public static final class Histogram implements Metric {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+        private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            sum.add(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // retry
+            }
+        }
+
+        /**
+         * Record the time since startNanos (a System.nanoTime() reading)
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Value at quantile q (0 to 1) of everything recorded so far, in ns
+         */
+        public long quantile(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = snapshot(snapshot);
+            return valueAt(snapshot, total, q, max.get());
+        }
+
+        private long snapshot(long[] into) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                into[i] = counts.get(i);
+                total += into[i];
+            }
+            return total;
+        }
+
+        private static long valueAt(long[] snapshot, long total, double q, long highest) {
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), highest);
+            }
+            return highest;
+        }
+
+        static int index(long value) {
+            if (value < SUB_COUNT)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT)
+                return BUCKETS - 1;
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        /**
+         * Highest value that falls in bucket i
+         */
+        static long upperBound(int i) {
+            if (i < SUB_COUNT)
+                return i;
+            int exponent = (i - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+            int sub = (i - SUB_COUNT) % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        @Override
+        public String type() {
+            return "summary";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder sb) {
+            long[] snapshot = new long[BUCKETS];
+            long total = snapshot(snapshot);
+            long highest = max.get();
+            for (double q : QUANTILES) {
+                sample(sb, name, labels, "quantile=\"" + q + "\"", seconds(valueAt(snapshot, total, q, highest)));
+            }
+            sample(sb, name + "_sum", labels, null, seconds(sum.sum()));
+            sample(sb, name + "_count", labels, null, Long.toString(count.sum()));
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+}
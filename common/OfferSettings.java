@@ -0,0 +1,27 @@
+package common;
+
+/**
+ * How a ride is offered to drivers: OFFER_TIMEOUT_MS, OFFER_CANDIDATES and
+ * OFFER_BROADCAST (config.properties, environment overrides). Shared by the
+ * Dispatch Server, which makes the offers, and the gateway, which has to wait
+ * for them.
+ */
+public final class OfferSettings {
+    public static final int TIMEOUT_MS = Math.max(1, Config.getInt("OFFER_TIMEOUT_MS", 5_000)); // how long a driver has to accept
+    public static final int CANDIDATES = Math.max(1, Config.getInt("OFFER_CANDIDATES", 5)); // ranked drivers tried per request
+    public static final int BROADCAST = Math.max(1, Config.getInt("OFFER_BROADCAST", 1)); // drivers offered a ride at once
+    private static final int MATCHING_SLACK_MS = 5_000; // search and DB writes around the offers
+
+    private OfferSettings() {
+    }
+
+    /**
+     * Longest matching a ride request can take: every round of offers timing
+     * out, plus the search and DB writes around them. The budget of ride
+     * requests, at the gateway and at Dispatch, and the wait for a handoff.
+     */
+    public static int matchingBudgetMs() {
+        int rounds = (CANDIDATES + BROADCAST - 1) / BROADCAST;
+        return rounds * TIMEOUT_MS + MATCHING_SLACK_MS;
+    }
+}
@@ -0,0 +1,137 @@
+package common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded outbound queue for one client connection, drained by its own
+ * writer thread. Senders never touch the socket, so a slow client cannot
+ * block the thread (or the lock) that is sending to it. Lines queued while
+ * the writer is busy go out together with one flush. A client that lets its
+ * queue fill up is disconnected: onOverflow is run, typically closing the
+ * socket so the reader thread cleans up.
+ */
+public class OutboundQueue implements Runnable {
+    private static final Log log = Log.get("OutboundQueue");
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_BATCH = 64;
+    private static final String NEWLINE = System.lineSeparator();
+
+    // Service-wide counters
+    private static final Metrics.Counter linesWritten = Metrics.counter("outbound_lines_written_total",
+            "Lines written to client sockets");
+    private static final Metrics.Counter flushes = Metrics.counter("outbound_flushes_total",
+            "Socket flushes (one per batch of queued lines)");
+    private static final Metrics.Counter overflowDisconnects = Metrics.counter("outbound_overflow_disconnects_total",
+            "Clients disconnected for letting their queue fill up");
+
+    private final String name;
+    private final BlockingQueue<String> queue;
+    private final Writer writer;
+    private final Runnable onOverflow;
+    private final Thread thread;
+    private volatile boolean open = true;
+
+    public OutboundQueue(OutputStream out, String name, Runnable onOverflow) {
+        this(out, name, DEFAULT_CAPACITY, onOverflow);
+    }
+
+    public OutboundQueue(OutputStream out, String name, int capacity, Runnable onOverflow) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out), 8192);
+        this.onOverflow = onOverflow;
+        this.thread = new Thread(this, "outbound-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue one line (without its line terminator). Never blocks. Returns
+     * false if the connection is closed or was just disconnected for overflow.
+     */
+    public boolean offer(String line) {
+        if (!open)
+            return false;
+        if (queue.offer(line))
+            return true;
+
+        synchronized (this) {
+            if (!open)
+                return false;
+            open = false;
+        }
+        overflowDisconnects.increment();
+        log.warn("{} is not keeping up ({} messages queued), disconnecting", name, queue.size());
+        onOverflow.run();
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (open || !queue.isEmpty()) {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (String line : batch) {
+                    writer.write(line);
+                    writer.write(NEWLINE);
+                }
+                writer.flush();
+                linesWritten.add(batch.size());
+                flushes.increment();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // Socket closed under us; the reader thread handles the disconnect
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        open = false;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Stop accepting lines and give the writer a moment to send what is queued
+     */
+    public void close() {
+        open = false;
+        if (Thread.currentThread() == thread)
+            return;
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static long getLinesWritten() {
+        return linesWritten.get();
+    }
+
+    public static long getFlushes() {
+        return flushes.get();
+    }
+
+    public static long getOverflowDisconnects() {
+        return overflowDisconnects.get();
+    }
+}
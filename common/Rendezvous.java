@@ -0,0 +1,31 @@
+package common;
+
+/**
+ * Rendezvous (highest-random-weight) hashing: a key belongs to the node with
+ * the highest weight(node, key), so when a node leaves only its keys move.
+ * Used for the gateway's sticky routing and for Dispatch partition ownership.
+ */
+public final class Rendezvous {
+    private Rendezvous() {
+    }
+
+    /**
+     * FNV-1a over "node|key" followed by a 64-bit finalizer; identical on every JVM
+     */
+    public static long weight(String node, String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < node.length(); i++) {
+            h = (h ^ node.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ '|') * 0x100000001b3L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,116 @@
+package common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Deadline of the request the current thread is working on.
+ * A request carries its deadline in the Message envelope as the time left
+ * ("budgetMs"), which each receiver turns back into an epoch ms deadline on
+ * its own clock, so hosts whose clocks disagree still agree on the budget
+ * (time spent on the wire is not counted). Each service enters it with begin() when it starts handling the request, stamps
+ * it on every downstream message with propagate(), and opens downstream
+ * sockets with connect(), whose timeouts never exceed the time left. Work
+ * found past its deadline is abandoned and counted (getExpired()).
+ * Threads with no request (background writers, heartbeats) have no deadline
+ * and just get the default socket timeouts.
+ */
+public final class RequestContext {
+    private static final Log log = Log.get("RequestContext");
+    public static final int CONNECT_TIMEOUT_MS = 2_000;
+    public static final int READ_TIMEOUT_MS = 10_000;
+
+    private static final ThreadLocal<long[]> DEADLINE = ThreadLocal.withInitial(() -> new long[1]);
+    private static final Metrics.Counter expired = Metrics.counter("request_deadline_exceeded_total",
+            "Requests abandoned because their deadline had passed");
+
+    private RequestContext() {
+    }
+
+    /**
+     * Enter a request: its own deadline, or now + defaultBudgetMs if it has
+     * none (0 = no deadline)
+     */
+    public static void begin(Message request, long defaultBudgetMs) {
+        long deadline = request.getDeadline();
+        if (deadline <= 0 && defaultBudgetMs > 0)
+            deadline = System.currentTimeMillis() + defaultBudgetMs;
+        begin(deadline);
+    }
+
+    public static void begin(long deadline) {
+        DEADLINE.get()[0] = deadline;
+    }
+
+    public static void end() {
+        DEADLINE.get()[0] = 0;
+    }
+
+    public static long getDeadline() {
+        return DEADLINE.get()[0];
+    }
+
+    public static long remainingMillis() {
+        long deadline = DEADLINE.get()[0];
+        return deadline <= 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+    }
+
+    public static boolean isExpired() {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * True (and counted) if the current request is past its deadline and the
+     * caller should give up on it
+     */
+    public static boolean checkExpired(String where) {
+        if (!isExpired())
+            return false;
+        expired.increment();
+        log.warn("Deadline exceeded in {}, abandoning request", where);
+        return true;
+    }
+
+    /**
+     * Stamp the current deadline (never extending one it already has) and
+     * trace on an outgoing message
+     */
+    public static void propagate(Message outgoing) {
+        long deadline = DEADLINE.get()[0];
+        if (deadline > 0 && (outgoing.getDeadline() <= 0 || outgoing.getDeadline() > deadline))
+            outgoing.setDeadline(deadline);
+        Tracer.inject(outgoing);
+    }
+
+    /**
+     * fallbackMs, cut down to the time left; throws if none is left
+     */
+    public static int timeout(int fallbackMs) throws DeadlineExceededException {
+        long remaining = remainingMillis();
+        if (remaining <= 0) {
+            expired.increment();
+            throw new DeadlineExceededException("Deadline exceeded");
+        }
+        return (int) Math.min(fallbackMs, remaining);
+    }
+
+    /**
+     * Open a socket whose connect and read timeouts fit in the time left
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout(CONNECT_TIMEOUT_MS));
+            socket.setSoTimeout(timeout(READ_TIMEOUT_MS));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    public static long getExpired() {
+        return expired.get();
+    }
+}
@@ -0,0 +1,183 @@
+package common;
+
+/**
+ * One timed step of a traced request: a handler, a downstream call, a wait
+ * on a lock. Spans of one request share its traceId and point at the span
+ * that caused them (parentId), which is how the collector rebuilds the tree.
+ * Start them through Tracer and close them in a finally block (or
+ * try-with-resources); closing makes the enclosing span current again and
+ * hands this one to the exporter.
+ */
+public final class Span implements AutoCloseable {
+    /** Returned when the request is not traced; closing it does nothing */
+    public static final Span NOOP = new Span(null, null, null, null, null);
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentId;
+    private final String service;
+    private final String name;
+    final Span enclosing; // span current on this thread before this one
+    private final long startNanos;
+    private long startMicros;
+    private long durationMicros = -1;
+    private String error;
+
+    Span(String traceId, String spanId, String parentId, String service, String name) {
+        this(traceId, spanId, parentId, service, name, null);
+    }
+
+    Span(String traceId, String spanId, String parentId, String service, String name, Span enclosing) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.service = service;
+        this.name = name;
+        this.enclosing = enclosing;
+        this.startNanos = traceId == null ? 0 : System.nanoTime();
+        this.startMicros = traceId == null ? 0 : Tracer.epochMicros(startNanos);
+    }
+
+    public boolean isRecording() {
+        return traceId != null;
+    }
+
+    /**
+     * Mark the step as failed; shown in the waterfall
+     */
+    public Span setError(String error) {
+        if (isRecording())
+            this.error = error;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (!isRecording() || durationMicros >= 0)
+            return;
+        durationMicros = (System.nanoTime() - startNanos) / 1000;
+        Tracer.finish(this);
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Epoch microseconds */
+    public long getStart() {
+        return startMicros;
+    }
+
+    public long getEnd() {
+        return startMicros + durationMicros;
+    }
+
+    public long getDuration() {
+        return durationMicros;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * One line of JSON, the form spans travel to the collector in
+     */
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder(192);
+        sb.append("{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(spanId).append('"');
+        if (parentId != null)
+            sb.append(",\"parentId\":\"").append(parentId).append('"');
+        sb.append(",\"service\":");
+        quote(sb, service);
+        sb.append(",\"name\":");
+        quote(sb, name);
+        sb.append(",\"start\":").append(startMicros).append(",\"duration\":").append(durationMicros);
+        if (error != null) {
+            sb.append(",\"error\":");
+            quote(sb, error);
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Read a span written by toJSON(); null if the line is not one
+     */
+    public static Span parse(String json) {
+        String traceId = stringField(json, "traceId");
+        String spanId = stringField(json, "spanId");
+        if (traceId == null || spanId == null)
+            return null;
+        try {
+            Span span = new Span(traceId, spanId, stringField(json, "parentId"), stringField(json, "service"),
+                    stringField(json, "name"));
+            span.startMicros = Long.parseLong(numberField(json, "start"));
+            span.durationMicros = Long.parseLong(numberField(json, "duration"));
+            span.error = stringField(json, "error");
+            return span;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; value != null && i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < ' ')
+                sb.append(' ');
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static int valueIndex(String json, String name) {
+        int i = json.indexOf("\"" + name + "\":");
+        return i < 0 ? -1 : i + name.length() + 3;
+    }
+
+    private static String stringField(String json, String name) {
+        int i = valueIndex(json, name);
+        if (i < 0 || i >= json.length() || json.charAt(i) != '"')
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"')
+                return sb.toString();
+            if (c == '\\' && i + 1 < json.length())
+                c = json.charAt(++i);
+            sb.append(c);
+        }
+        return null;
+    }
+
+    private static String numberField(String json, String name) {
+        int start = valueIndex(json, name);
+        if (start < 0)
+            throw new IllegalArgumentException("Missing " + name);
+        int end = start;
+        while (end < json.length() && (json.charAt(end) == '-' || Character.isDigit(json.charAt(end))))
+            end++;
+        return json.substring(start, end);
+    }
+}
@@ -0,0 +1,524 @@
+package common;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable, allocation-free form of the high-frequency messages
+ * (UPDATE_LOCATION, LOCATION_UPDATED, HEARTBEAT, UPDATE_AVAILABILITY,
+ * AVAILABILITY_UPDATED, and the Driver Service's DB_UPDATE_DRIVER_LOCATION).
+ * Uses the same JSON wire format as Message/JSONUtil, but holds the payload in
+ * primitive fields, takes request ids from a counter instead of UUIDs and
+ * parses/serializes without building a map or intermediate strings.
+ * An instance is owned by one thread (typically one per connection) and is
+ * overwritten by every parse() or set(). Anything it cannot handle makes
+ * parse() return false so the caller falls back to JSONUtil.fromJSON.
+ */
+public final class TelemetryMessage {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final String NEWLINE = System.lineSeparator();
+    private static final MessageType[] TYPES = {
+            MessageType.UPDATE_LOCATION,
+            MessageType.LOCATION_UPDATED,
+            MessageType.HEARTBEAT,
+            MessageType.UPDATE_AVAILABILITY,
+            MessageType.AVAILABILITY_UPDATED,
+            MessageType.DB_UPDATE_DRIVER_LOCATION
+    };
+    private static final String[] TYPE_NAMES = new String[TYPES.length];
+    private static final double[] POW10 = new double[23];
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPE_NAMES[i] = TYPES[i].name();
+        }
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private MessageType type;
+    private double latitude;
+    private double longitude;
+    private boolean hasLocation;
+    private boolean available;
+    private boolean hasAvailable;
+    private long count = -1; // cumulative ack count, -1 when absent
+    private long requestId;
+    private long timestamp;
+
+    // Username is kept as a range of the parsed line and only materialized on demand
+    private String username;
+    private String source;
+    private int usernameStart = -1;
+    private int usernameEnd;
+
+    private int pos; // parse cursor
+    private final StringBuilder buffer = new StringBuilder(192);
+    private char[] chars = new char[192];
+
+    public static boolean isTelemetryType(MessageType type) {
+        for (MessageType t : TYPES) {
+            if (t == type)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Telemetry type of a JSON line, or null, without parsing the rest of it
+     */
+    public static MessageType peekType(String json) {
+        int key = json.indexOf("\"type\"");
+        if (key < 0)
+            return null;
+        int i = key + 6;
+        int n = json.length();
+        while (i < n && (json.charAt(i) == ':' || json.charAt(i) == ' '))
+            i++;
+        if (i >= n || json.charAt(i) != '"')
+            return null;
+        i++;
+        for (int t = 0; t < TYPE_NAMES.length; t++) {
+            String name = TYPE_NAMES[t];
+            int end = i + name.length();
+            if (end < n && json.charAt(end) == '"' && json.regionMatches(i, name, 0, name.length()))
+                return TYPES[t];
+        }
+        return null;
+    }
+
+    /**
+     * Start a new outgoing message of the given type
+     */
+    public TelemetryMessage set(MessageType type) {
+        clear();
+        this.type = type;
+        this.requestId = NEXT_ID.incrementAndGet();
+        this.timestamp = System.currentTimeMillis();
+        return this;
+    }
+
+    public TelemetryMessage location(double lat, double lon) {
+        this.latitude = lat;
+        this.longitude = lon;
+        this.hasLocation = true;
+        return this;
+    }
+
+    public TelemetryMessage available(boolean available) {
+        this.available = available;
+        this.hasAvailable = true;
+        return this;
+    }
+
+    public TelemetryMessage count(long count) {
+        this.count = count;
+        return this;
+    }
+
+    public TelemetryMessage username(String username) {
+        this.username = username;
+        this.usernameStart = -1;
+        return this;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public boolean hasAvailable() {
+        return hasAvailable;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Username from the payload, or null. Allocates the first time it is read.
+     */
+    public String getUsername() {
+        if (username == null && usernameStart >= 0) {
+            username = source.substring(usernameStart, usernameEnd);
+        }
+        return username;
+    }
+
+    private void clear() {
+        type = null;
+        latitude = 0.0;
+        longitude = 0.0;
+        hasLocation = false;
+        available = false;
+        hasAvailable = false;
+        count = -1;
+        requestId = 0;
+        timestamp = 0;
+        username = null;
+        source = null;
+        usernameStart = -1;
+    }
+
+    // --- Parsing ---
+
+    /**
+     * Parse a line if it is a well-formed telemetry message. Returns false
+     * (without side effects the caller can observe) for anything else.
+     */
+    public boolean parse(String json) {
+        clear();
+        source = json;
+        pos = 0;
+        try {
+            if (!parseObject()) {
+                type = null;
+                return false;
+            }
+        } catch (RuntimeException e) {
+            type = null;
+            return false;
+        }
+        if (type == null)
+            return false;
+        if ((type == MessageType.UPDATE_LOCATION || type == MessageType.DB_UPDATE_DRIVER_LOCATION) && !hasLocation)
+            return false;
+        if (type == MessageType.UPDATE_AVAILABILITY && !hasAvailable)
+            return false;
+        return true;
+    }
+
+    private boolean parseObject() {
+        skipWhitespace();
+        if (!consume('{'))
+            return false;
+        skipWhitespace();
+        if (consume('}'))
+            return true;
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            if (keyEnd < 0)
+                return false;
+            skipWhitespace();
+            if (!consume(':'))
+                return false;
+            skipWhitespace();
+
+            if (keyIs(keyStart, keyEnd, "type")) {
+                int start = pos + 1;
+                int end = skipString();
+                if (end < 0 || (type = matchType(start, end)) == null)
+                    return false;
+            } else if (keyIs(keyStart, keyEnd, "payload")) {
+                if (!parsePayload())
+                    return false;
+            } else if (keyIs(keyStart, keyEnd, "timestamp")) {
+                timestamp = (long) parseNumber();
+            } else if (keyIs(keyStart, keyEnd, "requestId")) {
+                if (skipValue() < 0)
+                    return false;
+            } else if (skipValue() < 0) {
+                return false;
+            }
+
+            skipWhitespace();
+            if (consume(','))
+                continue;
+            return consume('}');
+        }
+    }
+
+    private boolean parsePayload() {
+        if (!consume('{'))
+            return false;
+        skipWhitespace();
+        if (consume('}'))
+            return true;
+        boolean hasLat = false;
+        boolean hasLon = false;
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            if (keyEnd < 0)
+                return false;
+            skipWhitespace();
+            if (!consume(':'))
+                return false;
+            skipWhitespace();
+
+            if (keyIs(keyStart, keyEnd, "latitude")) {
+                latitude = parseNumber();
+                hasLat = true;
+            } else if (keyIs(keyStart, keyEnd, "longitude")) {
+                longitude = parseNumber();
+                hasLon = true;
+            } else if (keyIs(keyStart, keyEnd, "available")) {
+                if (source.startsWith("true", pos)) {
+                    available = true;
+                    pos += 4;
+                } else if (source.startsWith("false", pos)) {
+                    available = false;
+                    pos += 5;
+                } else {
+                    return false;
+                }
+                hasAvailable = true;
+            } else if (keyIs(keyStart, keyEnd, "count")) {
+                count = (long) parseNumber();
+            } else if (keyIs(keyStart, keyEnd, "username")) {
+                int start = pos + 1;
+                int end = skipString();
+                if (end < 0)
+                    return false;
+                usernameStart = start;
+                usernameEnd = end;
+            } else if (skipValue() < 0) {
+                return false;
+            }
+
+            skipWhitespace();
+            if (consume(','))
+                continue;
+            hasLocation = hasLat && hasLon;
+            return consume('}');
+        }
+    }
+
+    private MessageType matchType(int start, int end) {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (keyIs(start, end, TYPE_NAMES[i]))
+                return TYPES[i];
+        }
+        return null;
+    }
+
+    private boolean keyIs(int start, int end, String name) {
+        return end - start == name.length() && source.regionMatches(start, name, 0, name.length());
+    }
+
+    /**
+     * Skip a string without escapes, returning the index of its closing quote
+     * (or -1). Escaped strings are left to the generic parser.
+     */
+    private int skipString() {
+        if (!consume('"'))
+            return -1;
+        int n = source.length();
+        while (pos < n) {
+            char c = source.charAt(pos);
+            if (c == '"')
+                return pos++;
+            if (c == '\\')
+                return -1;
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Skip a scalar value. Nested objects and arrays are not telemetry.
+     */
+    private int skipValue() {
+        if (pos >= source.length())
+            return -1;
+        char c = source.charAt(pos);
+        if (c == '"')
+            return skipString();
+        if (c == '{' || c == '[')
+            return -1;
+        while (pos < source.length()) {
+            c = source.charAt(pos);
+            if (c == ',' || c == '}' || c == ' ')
+                break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Decimal parser for the common case (up to 18 significant digits, no
+     * exponent): the mantissa and power of ten are both exact doubles, so a
+     * single division gives the correctly rounded result. Everything else
+     * goes through Double.parseDouble.
+     */
+    private double parseNumber() {
+        int start = pos;
+        int n = source.length();
+        boolean negative = false;
+        if (pos < n && source.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean slow = false;
+        while (pos < n) {
+            char c = source.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    if (dot)
+                        scale++;
+                } else {
+                    slow = true;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else if (c == 'e' || c == 'E' || c == '+' || c == '-') {
+                slow = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start)
+            throw new NumberFormatException("Expected a number");
+        if (slow || scale >= POW10.length || mantissa >= (1L << 53)) {
+            return Double.parseDouble(source.substring(start, pos));
+        }
+        double value = mantissa / POW10[scale];
+        return negative ? -value : value;
+    }
+
+    private void skipWhitespace() {
+        int n = source.length();
+        while (pos < n && Character.isWhitespace(source.charAt(pos)))
+            pos++;
+    }
+
+    private boolean consume(char c) {
+        if (pos < source.length() && source.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    // --- Serialization ---
+
+    /**
+     * Append the JSON form (same layout as JSONUtil.toJSON)
+     */
+    public StringBuilder appendTo(StringBuilder json) {
+        json.append("{\"type\":\"").append(type.name()).append("\",\"payload\":{");
+        boolean first = true;
+        if (hasLocation) {
+            json.append("\"latitude\":").append(latitude).append(",\"longitude\":").append(longitude);
+            first = false;
+        }
+        if (hasAvailable) {
+            if (!first)
+                json.append(',');
+            json.append("\"available\":").append(available);
+            first = false;
+        }
+        if (count >= 0) {
+            if (!first)
+                json.append(',');
+            json.append("\"count\":").append(count);
+            first = false;
+        }
+        String user = getUsername();
+        if (user != null) {
+            if (!first)
+                json.append(',');
+            json.append("\"username\":\"");
+            appendEscaped(json, user);
+            json.append('"');
+        }
+        json.append("},\"requestId\":\"").append(requestId).append("\",\"timestamp\":").append(timestamp)
+                .append('}');
+        return json;
+    }
+
+    /**
+     * Write this message as one line. Reuses the internal buffers and writes
+     * the whole line in a single call so concurrent senders cannot interleave.
+     */
+    public void writeTo(PrintWriter out) {
+        buffer.setLength(0);
+        appendTo(buffer).append(NEWLINE);
+        int len = buffer.length();
+        if (chars.length < len) {
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+        buffer.getChars(0, len, chars, 0);
+        out.write(chars, 0, len);
+        out.flush();
+    }
+
+    /**
+     * JSON form as a String, built in the reusable buffer (one allocation)
+     */
+    public String toJSON() {
+        buffer.setLength(0);
+        return appendTo(buffer).toString();
+    }
+
+    /**
+     * Generic form, for code paths that need a Message
+     */
+    public Message toMessage() {
+        Message message = new Message(type);
+        if (hasLocation) {
+            message.addPayload("latitude", latitude);
+            message.addPayload("longitude", longitude);
+        }
+        if (hasAvailable) {
+            message.addPayload("available", available);
+        }
+        if (count >= 0) {
+            message.addPayload("count", count);
+        }
+        if (getUsername() != null) {
+            message.addPayload("username", getUsername());
+        }
+        return message;
+    }
+
+    private static void appendEscaped(StringBuilder json, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\');
+            json.append(c);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TelemetryMessage" + toJSON();
+    }
+}
@@ -0,0 +1,214 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Request tracing across services. A request's trace id and the id of the
+ * span that sent it travel in the Message envelope (traceId, spanId) and in
+ * the X-Trace-Id / X-Parent-Span-Id HTTP headers. Each service continues the
+ * trace with begin() when it picks a request up, times the steps it cares
+ * about with start(), and stamps outgoing messages with inject() (done by
+ * RequestContext.propagate()). The span current on a thread is kept in a
+ * ThreadLocal, like the deadline.
+ * Only edges (the gateway, passenger connections) start traces, for a share
+ * TRACE_SAMPLE_RATE of requests (default 1.0). An edge that decides against
+ * tracing stamps NOT_SAMPLED so later hops don't start their own trace.
+ * Finished spans are queued and sent in batches, once a second, to
+ * TRACE_COLLECTOR (default http://localhost:8080/traces, the gateway's
+ * collector; "off" disables tracing in that service). A full queue drops
+ * spans rather than slowing requests down.
+ */
+public final class Tracer {
+    public static final String NOT_SAMPLED = "0";
+    public static final String TRACE_HEADER = "X-Trace-Id";
+    public static final String PARENT_HEADER = "X-Parent-Span-Id";
+
+    private static final Log log = Log.get("Tracer");
+    private static final Log exportLog = log.sampled(30);
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH = 512;
+    private static final long EXPORT_INTERVAL_MS = 1000;
+    private static final int EXPORT_TIMEOUT_MS = 1000;
+    private static final long EPOCH_OFFSET_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+    private static final BlockingQueue<Span> finished = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final double sampleRate = Config.getDouble("TRACE_SAMPLE_RATE", 1.0);
+    private static final String collectorUrl = Config.get("TRACE_COLLECTOR", "http://localhost:8080/traces");
+    private static volatile String service;
+    private static volatile Consumer<List<Span>> exporter; // null until init(): tracing off
+
+    private static final Metrics.Counter recorded = Metrics.counter("trace_spans_total",
+            "Spans finished in this process");
+    private static final Metrics.Counter dropped = Metrics.counter("trace_spans_dropped_total",
+            "Spans dropped because the export queue was full");
+    private static final Metrics.Counter exportFailures = Metrics.counter("trace_export_failures_total",
+            "Span batches the collector could not be sent");
+
+    private Tracer() {
+    }
+
+    /**
+     * Turn tracing on for this process, sending spans to TRACE_COLLECTOR
+     */
+    public static void init(String serviceName) {
+        if ("off".equalsIgnoreCase(collectorUrl)) {
+            log.info("Tracing off for {}", serviceName);
+            return;
+        }
+        init(serviceName, Tracer::post);
+    }
+
+    /**
+     * Turn tracing on, handing finished spans to sink (batches, on one
+     * background thread)
+     */
+    public static synchronized void init(String serviceName, Consumer<List<Span>> sink) {
+        service = serviceName;
+        boolean started = exporter != null;
+        exporter = sink;
+        if (!started) {
+            Thread thread = new Thread(Tracer::export, "trace-exporter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        log.info("Tracing {} at sample rate {}", serviceName, sampleRate);
+    }
+
+    /**
+     * Enter a request: continue the trace it carries, or (edge only) start
+     * one if it carries none and the request is sampled
+     */
+    public static Span begin(Message request, String name, boolean edge) {
+        return begin(request.getTraceId(), request.getSpanId(), name, edge);
+    }
+
+    public static Span begin(String traceId, String parentId, String name, boolean edge) {
+        if (exporter == null || NOT_SAMPLED.equals(traceId))
+            return Span.NOOP;
+        if (traceId == null || traceId.isEmpty()) {
+            if (!edge || ThreadLocalRandom.current().nextDouble() >= sampleRate)
+                return Span.NOOP;
+            traceId = newId();
+            parentId = null;
+        }
+        Span span = new Span(traceId, newId(), parentId, service, name, current.get());
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Time a step of the current request, as a child of the current span
+     */
+    public static Span start(String name) {
+        Span parent = current.get();
+        if (parent == null)
+            return Span.NOOP;
+        Span span = new Span(parent.getTraceId(), newId(), parent.getSpanId(), service, name, parent);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * The span current on this thread (Span.NOOP if the request isn't traced)
+     */
+    public static Span current() {
+        Span span = current.get();
+        return span != null ? span : Span.NOOP;
+    }
+
+    /**
+     * Stamp the current trace on an outgoing message, so the receiver's spans
+     * become children of the current span
+     */
+    public static void inject(Message outgoing) {
+        Span span = current.get();
+        if (span != null && outgoing.getTraceId() == null) {
+            outgoing.setTraceId(span.getTraceId());
+            outgoing.setSpanId(span.getSpanId());
+        }
+    }
+
+    static void finish(Span span) {
+        // Also drops any step left open inside this span
+        current.set(span.enclosing);
+        recorded.increment();
+        if (!finished.offer(span))
+            dropped.increment();
+    }
+
+    static long epochMicros(long nanoTime) {
+        return EPOCH_OFFSET_MICROS + nanoTime / 1000;
+    }
+
+    private static String newId() {
+        long value = ThreadLocalRandom.current().nextLong() | 1; // never "0..0"
+        char[] id = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            id[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(id);
+    }
+
+    private static void export() {
+        List<Span> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                Thread.sleep(EXPORT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            while (finished.drainTo(batch, BATCH) > 0) {
+                try {
+                    exporter.accept(batch);
+                } catch (RuntimeException e) {
+                    exportFailures.increment();
+                    exportLog.warn("Span export failed: {}", e);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * POST a batch to the collector, one span per line
+     */
+    private static void post(List<Span> batch) {
+        StringBuilder body = new StringBuilder(batch.size() * 192);
+        for (Span span : batch) {
+            body.append(span.toJSON()).append('\n');
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(collectorUrl).openConnection();
+            connection.setConnectTimeout(EXPORT_TIMEOUT_MS);
+            connection.setReadTimeout(EXPORT_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status >= 300) {
+                exportFailures.increment();
+                exportLog.warn("Collector answered {} to {} spans", status, batch.size());
+            }
+        } catch (IOException e) {
+            exportFailures.increment();
+            exportLog.warn("Could not send {} spans to {}: {}", batch.size(), collectorUrl, e.getMessage());
+        }
+    }
+}
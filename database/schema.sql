@@ -27,9 +27,11 @@ CREATE TABLE IF NOT EXISTS drivers (
     latitude DOUBLE DEFAULT NULL,
     longitude DOUBLE DEFAULT NULL,
     is_available BOOLEAN DEFAULT TRUE,
+    status VARCHAR(20) DEFAULT 'APPROVED',
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     INDEX idx_username (username),
     INDEX idx_available (is_available),
+    INDEX idx_available_status (is_available, status),
     INDEX idx_location (latitude, longitude)
 );
 
@@ -61,11 +63,16 @@ CREATE TABLE IF NOT EXISTS ride_status_history (
     latitude DOUBLE DEFAULT NULL,
     longitude DOUBLE DEFAULT NULL,
     timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    FOREIGN KEY (ride_id) REFERENCES rides(id) ON DELETE CASCADE,
+    -- No foreign key: rows move to ride_status_history_archive with their ride
     INDEX idx_ride (ride_id),
+    INDEX idx_ride_time (ride_id, timestamp),
     INDEX idx_timestamp (timestamp)
 );
 
+-- Table: rides_archive (completed/cancelled rides moved out of the hot table)
+CREATE TABLE IF NOT EXISTS rides_archive LIKE rides;
+CREATE TABLE IF NOT EXISTS ride_status_history_archive LIKE ride_status_history;
+
 -- Insert sample test data
 INSERT IGNORE INTO passengers (username, password, phone, latitude, longitude) VALUES
 ('alice', 'pass123', '0911111111', 9.0054, 38.7636),
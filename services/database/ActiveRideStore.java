@@ -0,0 +1,268 @@
+package services.database;
+
+import java.util.*;
+
+/**
+ * In-memory store of active rides (REQUESTED, ASSIGNED, STARTED).
+ * This is the authoritative copy for active-ride reads in the Database Service.
+ * Rides are keyed by id and indexed by driver, passenger and status so the web
+ * map never has to scan the rides table. Completed and cancelled rides leave
+ * the store and are archived in MySQL by the RideWriteBehind.
+ */
+public class ActiveRideStore {
+    public static final String REQUESTED = "REQUESTED";
+    public static final String ASSIGNED = "ASSIGNED";
+    public static final String STARTED = "STARTED";
+
+    /**
+     * Snapshot of a single active ride
+     */
+    public static class ActiveRide {
+        int id;
+        String passenger;
+        String driver;
+        String status;
+        double startLat;
+        double startLon;
+        double destLat;
+        double destLon;
+        String startAddr;
+        String destAddr;
+
+        // Last known positions of the ride participants (for the live map)
+        double passengerLat;
+        double passengerLon;
+        double driverLat;
+        double driverLon;
+
+        ActiveRide copy() {
+            ActiveRide c = new ActiveRide();
+            c.id = id;
+            c.passenger = passenger;
+            c.driver = driver;
+            c.status = status;
+            c.startLat = startLat;
+            c.startLon = startLon;
+            c.destLat = destLat;
+            c.destLon = destLon;
+            c.startAddr = startAddr;
+            c.destAddr = destAddr;
+            c.passengerLat = passengerLat;
+            c.passengerLon = passengerLon;
+            c.driverLat = driverLat;
+            c.driverLon = driverLon;
+            return c;
+        }
+    }
+
+    private final Map<Integer, ActiveRide> rides = new LinkedHashMap<>();
+    private final Map<String, Set<Integer>> byDriver = new HashMap<>();
+    private final Map<String, Set<Integer>> byPassenger = new HashMap<>();
+    private final Map<String, Set<Integer>> byStatus = new HashMap<>();
+
+    public static boolean isActiveStatus(String status) {
+        return REQUESTED.equals(status) || ASSIGNED.equals(status) || STARTED.equals(status);
+    }
+
+    /**
+     * Add (or replace) an active ride
+     */
+    public synchronized void put(ActiveRide ride) {
+        remove(ride.id);
+        if (!isActiveStatus(ride.status))
+            return;
+        rides.put(ride.id, ride);
+        index(byPassenger, ride.passenger, ride.id);
+        index(byDriver, ride.driver, ride.id);
+        index(byStatus, ride.status, ride.id);
+    }
+
+    public synchronized boolean contains(int rideId) {
+        return rides.containsKey(rideId);
+    }
+
+    public synchronized ActiveRide get(int rideId) {
+        ActiveRide ride = rides.get(rideId);
+        return ride != null ? ride.copy() : null;
+    }
+
+    /**
+     * Assign a driver to an active ride. Returns false if the ride is not active.
+     */
+    public synchronized boolean assignDriver(int rideId, String driver, double driverLat, double driverLon) {
+        ActiveRide ride = rides.get(rideId);
+        if (ride == null)
+            return false;
+
+        unindex(byDriver, ride.driver, rideId);
+        unindex(byStatus, ride.status, rideId);
+        ride.driver = driver;
+        ride.driverLat = driverLat;
+        ride.driverLon = driverLon;
+        ride.status = ASSIGNED;
+        index(byDriver, driver, rideId);
+        index(byStatus, ASSIGNED, rideId);
+        return true;
+    }
+
+    /**
+     * Move an active ride to a new status. Terminal statuses remove the ride
+     * from the store. Returns the ride as it was before the change, or null if
+     * the ride is not active.
+     */
+    public synchronized ActiveRide updateStatus(int rideId, String status) {
+        ActiveRide ride = rides.get(rideId);
+        if (ride == null)
+            return null;
+
+        ActiveRide before = ride.copy();
+        if (!isActiveStatus(status)) {
+            remove(rideId);
+        } else {
+            unindex(byStatus, ride.status, rideId);
+            ride.status = status;
+            index(byStatus, status, rideId);
+        }
+        return before;
+    }
+
+    /**
+     * Refresh the cached position of a driver on all of their active rides
+     */
+    public synchronized void updateDriverLocation(String driver, double lat, double lon) {
+        Set<Integer> ids = byDriver.get(driver);
+        if (ids == null)
+            return;
+        for (Integer id : ids) {
+            ActiveRide ride = rides.get(id);
+            ride.driverLat = lat;
+            ride.driverLon = lon;
+        }
+    }
+
+    /**
+     * Refresh the cached position of a passenger on all of their active rides
+     */
+    public synchronized void updatePassengerLocation(String passenger, double lat, double lon) {
+        Set<Integer> ids = byPassenger.get(passenger);
+        if (ids == null)
+            return;
+        for (Integer id : ids) {
+            ActiveRide ride = rides.get(id);
+            ride.passengerLat = lat;
+            ride.passengerLon = lon;
+        }
+    }
+
+    /**
+     * Copies of all rides currently in one of the given statuses, in creation order
+     */
+    public synchronized List<ActiveRide> findByStatus(String... statuses) {
+        Set<Integer> ids = new TreeSet<>();
+        for (String status : statuses) {
+            Set<Integer> matching = byStatus.get(status);
+            if (matching != null)
+                ids.addAll(matching);
+        }
+        List<ActiveRide> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            result.add(rides.get(id).copy());
+        }
+        return result;
+    }
+
+    public synchronized List<ActiveRide> findByDriver(String driver) {
+        return collect(byDriver.get(driver));
+    }
+
+    public synchronized List<ActiveRide> findByPassenger(String passenger) {
+        return collect(byPassenger.get(passenger));
+    }
+
+    public synchronized int size() {
+        return rides.size();
+    }
+
+    /**
+     * JSON array used by DB_GET_ACTIVE_RIDES (rides with a driver only)
+     */
+    public static String toActiveRidesJson(List<ActiveRide> rides) {
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (ActiveRide ride : rides) {
+            if (ride.driver == null)
+                continue;
+            if (!first)
+                json.append(",");
+            json.append("{");
+            json.append("\"rideId\":").append(ride.id).append(",");
+            json.append("\"passenger\":\"").append(ride.passenger).append("\",");
+            json.append("\"driver\":\"").append(ride.driver).append("\",");
+            json.append("\"p_lat\":").append(ride.passengerLat).append(",");
+            json.append("\"p_lon\":").append(ride.passengerLon).append(",");
+            json.append("\"d_lat\":").append(ride.driverLat).append(",");
+            json.append("\"d_lon\":").append(ride.driverLon).append(",");
+            json.append("\"status\":\"").append(ride.status).append("\"");
+            json.append("}");
+            first = false;
+        }
+        return json.append("]").toString();
+    }
+
+    /**
+     * JSON array used for the "rides" section of GET_LOCATIONS (pickup and destination)
+     */
+    public static String toMapRidesJson(List<ActiveRide> rides) {
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (ActiveRide ride : rides) {
+            if (!first)
+                json.append(",");
+            json.append("{\"id\":").append(ride.id).append(",");
+            json.append("\"passenger\":\"").append(ride.passenger).append("\",");
+            json.append("\"p_lat\":").append(ride.startLat).append(",");
+            json.append("\"p_lon\":").append(ride.startLon).append(",");
+            json.append("\"d_lat\":").append(ride.destLat).append(",");
+            json.append("\"d_lon\":").append(ride.destLon).append(",");
+            json.append("\"status\":\"").append(ride.status).append("\"}");
+            first = false;
+        }
+        return json.append("]").toString();
+    }
+
+    private void remove(int rideId) {
+        ActiveRide old = rides.remove(rideId);
+        if (old != null) {
+            unindex(byPassenger, old.passenger, rideId);
+            unindex(byDriver, old.driver, rideId);
+            unindex(byStatus, old.status, rideId);
+        }
+    }
+
+    private List<ActiveRide> collect(Set<Integer> ids) {
+        List<ActiveRide> result = new ArrayList<>();
+        if (ids != null) {
+            for (Integer id : ids) {
+                result.add(rides.get(id).copy());
+            }
+        }
+        return result;
+    }
+
+    private static void index(Map<String, Set<Integer>> index, String key, int rideId) {
+        if (key == null)
+            return;
+        index.computeIfAbsent(key, k -> new TreeSet<>()).add(rideId);
+    }
+
+    private static void unindex(Map<String, Set<Integer>> index, String key, int rideId) {
+        if (key == null)
+            return;
+        Set<Integer> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(rideId);
+            if (ids.isEmpty())
+                index.remove(key);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package services.database;
+
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs the embedded storage engine against a scratch directory and checks
+ * that rides behave as they do on MySQL: unknown and finished rides cannot
+ * change status, finished rides leave memory and reach rides_archive.log
+ * when the log is compacted, and ride ids are never reused across restarts.
+ * Prints each check and exits with 1 if any fails.
+ *
+ *     java -cp out services.database.CheckEmbeddedStorage
+ */
+public class CheckEmbeddedStorage {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("embedded-check").toFile();
+        try {
+            run(dir.getPath());
+        } finally {
+            try (Stream<Path> files = Files.walk(dir.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void run(String dataDir) throws IOException {
+        EmbeddedStorageEngine store = new EmbeddedStorageEngine(dataDir);
+        store.registerPassenger("check_passenger", "secret", "0700000000");
+        store.registerDriver("check_driver", "secret", "0700000001");
+
+        Message unknown = store.updateRideStatus(999, "STARTED", 0, 0);
+        check("unknown ride is not found", !unknown.getPayloadBoolean("success")
+                && "Ride 999 not found".equals(unknown.getPayloadString("error")));
+
+        int rideId = store.createRide("check_passenger", "check_driver", 6.9, 79.8, 6.95, 79.85, "A", "B")
+                .getPayloadInt("rideId");
+        check("ride starts", store.updateRideStatus(rideId, "STARTED", 6.9, 79.8).getPayloadBoolean("success"));
+        check("ride completes", store.updateRideStatus(rideId, "COMPLETED", 6.95, 79.85).getPayloadBoolean("success"));
+        Message late = store.updateRideStatus(rideId, "STARTED", 6.95, 79.85);
+        check("finished ride stays finished", !late.getPayloadBoolean("success")
+                && ("Ride " + rideId + " is finished and archived").equals(late.getPayloadString("error")));
+        check("finished ride is not active", !store.getActiveRides().getPayloadString("rides").contains("\"rideId\":" + rideId + ","));
+        store.close();
+
+        // Replay, then enough records to compact on the next start
+        store = new EmbeddedStorageEngine(dataDir);
+        check("finished ride stays finished after replay",
+                !store.updateRideStatus(rideId, "ASSIGNED", 0, 0).getPayloadBoolean("success"));
+        for (int i = 0; i <= 10_000; i++) {
+            store.updatePassengerLocation("check_passenger", 6.9 + i * 1e-6, 79.8);
+        }
+        store.close();
+
+        store = new EmbeddedStorageEngine(dataDir);
+        File archive = new File(dataDir, "rides_archive.log");
+        check("compaction archives the finished ride", archive.exists()
+                && new String(Files.readAllBytes(archive.toPath()), StandardCharsets.UTF_8).contains("\"rideId\":" + rideId));
+        check("log is compacted", Files.readAllLines(new File(dataDir, "store.log").toPath()).size() < 10);
+        store.close();
+
+        store = new EmbeddedStorageEngine(dataDir);
+        check("archived ride stays finished",
+                !store.updateRideStatus(rideId, "STARTED", 0, 0).getPayloadBoolean("success"));
+        int nextId = store.createRide("check_passenger", null, 6.9, 79.8, 6.95, 79.85, "A", "B").getPayloadInt("rideId");
+        check("ride ids are not reused", nextId > rideId);
+        store.close();
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed)
+            failures++;
+    }
+}
@@ -1,20 +1,12 @@
 package services.database;
 
+import common.Config;
+
 import java.sql.*;
-import java.io.FileInputStream;
-import java.util.Properties;
 
 public class CheckSchema {
   public static void main(String[] args) {
-    String DB_HOST = "localhost";
-    try (java.io.InputStream input = new FileInputStream("config.properties")) {
-      Properties prop = new Properties();
-      prop.load(input);
-      String h = prop.getProperty("MYSQL_HOST");
-      if (h != null && !h.isEmpty())
-        DB_HOST = h;
-    } catch (Exception e) {
-    }
+    String DB_HOST = Config.get("MYSQL_HOST", "localhost");
 
     String URL = "jdbc:mysql://" + DB_HOST + ":3306/ride_sharing_distributed";
     String USER = "root";
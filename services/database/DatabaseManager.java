@@ -1,8 +1,10 @@
 package services.database;
 
+import common.Config;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
 
 import java.sql.*;
 import java.io.*;
@@ -10,35 +12,32 @@ import java.util.*;
 
 /**
  * Database Manager handles all MySQL database operations.
- * This is used by the DatabaseServiceServer to perform actual database work.
+ * This is the default StorageEngine used by the DatabaseServiceServer.
  */
-public class DatabaseManager {
+public class DatabaseManager implements StorageEngine {
+    private static final Log log = Log.get("DatabaseManager");
+    private static final Log locationErrorLog = log.sampled(100);
     // Allow configuring the DB Host (default to localhost)
-    private static String DB_HOST = "localhost";
-    static {
-        // Try config file first
-        try (InputStream input = new FileInputStream("config.properties")) {
-            Properties prop = new Properties();
-            prop.load(input);
-            if (prop.getProperty("MYSQL_HOST") != null && !prop.getProperty("MYSQL_HOST").isEmpty()) {
-                DB_HOST = prop.getProperty("MYSQL_HOST");
-            }
-        } catch (IOException ex) {
-            /* Ignore */ }
-
-        // Fallback to Env
-        if (System.getenv("MYSQL_HOST") != null) {
-            DB_HOST = System.getenv("MYSQL_HOST");
-        }
-    }
+    private static final String DB_HOST = Config.get("MYSQL_HOST", "localhost");
 
-    private static final String URL = "jdbc:mysql://" + DB_HOST + ":3306/ride_sharing_distributed";
+    // Server-side prepared statements are cached by the driver; batches are rewritten into multi-row statements
+    private static final String URL = "jdbc:mysql://" + DB_HOST + ":3306/ride_sharing_distributed"
+            + "?useServerPrepStmts=true&cachePrepStmts=true&rewriteBatchedStatements=true";
     private static final String USER = "root";
     private static final String PASSWORD = "";
+    private static final String RIDE_JOURNAL_PATH = "data/active_rides.wal";
+    private static final String RIDE_DEAD_LETTER_PATH = "data/active_rides.dead";
+    private static final String HISTORY_SPILL_PATH = "data/ride_history.spill";
 
     private Connection connection;
+    private StatementCache statements;
     private static final Object dbLock = new Object();
 
+    // Hot/cold split: active rides live in memory, MySQL is written behind
+    private final ActiveRideStore activeRides = new ActiveRideStore();
+    private RideWriteBehind rideWriter;
+    private RideHistoryWriter historyWriter;
+
     public DatabaseManager() {
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
@@ -49,18 +48,34 @@ public class DatabaseManager {
                     Statement stmt = setupConn.createStatement()) {
                 stmt.executeUpdate("CREATE DATABASE IF NOT EXISTS ride_sharing_distributed");
             } catch (SQLException e) {
-                System.out.println(
-                        "[DatabaseManager] Info: Could not auto-create database (might exist or permission denied): "
-                                + e.getMessage());
+                log.info("Could not auto-create database (might exist or permission denied): {}", e.getMessage());
             }
 
             // 2. Connect to the database
             this.connection = DriverManager.getConnection(URL, USER, PASSWORD);
-            System.out.println("[DatabaseManager] Connected to MySQL database successfully.");
+            this.statements = new StatementCache(connection);
+            log.info("Connected to MySQL database successfully.");
 
-            // 3. Initialize Tables (Auto-Migration)
-            initializeSchema();
-            updateSchema(); // Ensure new columns exist
+            // 3. Apply pending schema migrations (tables, columns, indexes)
+            try {
+                new SchemaMigrator(connection).migrate();
+            } catch (SQLException e) {
+                log.warn("Schema migration warning: {}", e.getMessage());
+            }
+
+            // 4. Start the batched history writer
+            historyWriter = new RideHistoryWriter(DriverManager.getConnection(URL, USER, PASSWORD),
+                    new RideJournal(HISTORY_SPILL_PATH));
+            historyWriter.start();
+
+            // 5. Load active rides and start the MySQL write-behind
+            RideJournal journal = new RideJournal(RIDE_JOURNAL_PATH);
+            rideWriter = new RideWriteBehind(DriverManager.getConnection(URL, USER, PASSWORD), journal,
+                    new RideJournal(RIDE_DEAD_LETTER_PATH));
+            loadActiveRides();
+            replayJournal(journal);
+            rideWriter.start();
+            rideWriter.archiveFinishedRides();
 
         } catch (ClassNotFoundException e) {
             throw new RuntimeException("MySQL JDBC Driver not found. Ensure library is in classpath.", e);
@@ -70,119 +85,13 @@ public class DatabaseManager {
         }
     }
 
-    private void updateSchema() {
-        // Migration to add columns to existing drivers table if they don't exist
-        String[] columns = {
-                "ADD COLUMN full_name VARCHAR(100)",
-                "ADD COLUMN dob VARCHAR(50)",
-                "ADD COLUMN gender VARCHAR(20)",
-                "ADD COLUMN nationality VARCHAR(50)",
-                "ADD COLUMN id_number VARCHAR(50)",
-                "ADD COLUMN email VARCHAR(100)",
-                "ADD COLUMN address TEXT",
-                "ADD COLUMN license_number VARCHAR(50)",
-                "ADD COLUMN license_type VARCHAR(50)",
-                "ADD COLUMN license_issue_date VARCHAR(50)",
-                "ADD COLUMN license_expiry_date VARCHAR(50)",
-                "ADD COLUMN vehicle_type VARCHAR(50)",
-                "ADD COLUMN vehicle_model VARCHAR(50)",
-                "ADD COLUMN vehicle_year INT",
-                "ADD COLUMN license_plate VARCHAR(50)"
-        };
-
-        try (Statement stmt = connection.createStatement()) {
-            for (String col : columns) {
-                try {
-                    stmt.executeUpdate("ALTER TABLE drivers " + col);
-                    System.out.println("[DatabaseManager] Added missing column: " + col);
-                } catch (SQLException e) {
-                    // Ignore "Duplicate column name" error (Code 1060)
-                    if (e.getErrorCode() != 1060) {
-                        System.err.println("[DatabaseManager] Migration warning: " + e.getMessage());
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void initializeSchema() {
-        try (Statement stmt = connection.createStatement()) {
-            // Passengers
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS passengers (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "username VARCHAR(50) NOT NULL UNIQUE, " +
-                    "password VARCHAR(255) NOT NULL, " +
-                    "phone VARCHAR(20), " +
-                    "latitude DOUBLE DEFAULT 0.0, " +
-                    "longitude DOUBLE DEFAULT 0.0, " +
-                    "is_login TINYINT(1) DEFAULT 0)");
-
-            // Drivers - Including all fields used in registerDriverDetailed
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS drivers (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "username VARCHAR(50) NOT NULL UNIQUE, " +
-                    "password VARCHAR(255) NOT NULL, " +
-                    "phone VARCHAR(20), " +
-                    "latitude DOUBLE DEFAULT 0.0, " +
-                    "longitude DOUBLE DEFAULT 0.0, " +
-                    "is_available TINYINT(1) DEFAULT 1, " +
-                    "is_login TINYINT(1) DEFAULT 0, " +
-                    "full_name VARCHAR(100), " +
-                    "dob VARCHAR(50), " + // broadened
-                    "gender VARCHAR(20), " +
-                    "nationality VARCHAR(50), " +
-                    "id_number VARCHAR(50), " +
-                    "email VARCHAR(100), " +
-                    "address TEXT, " +
-                    "license_number VARCHAR(50), " +
-                    "license_type VARCHAR(50), " +
-                    "license_issue_date VARCHAR(50), " +
-                    "license_expiry_date VARCHAR(50), " +
-                    "vehicle_type VARCHAR(50), " +
-                    "vehicle_model VARCHAR(50), " +
-                    "vehicle_year INT, " +
-                    "license_plate VARCHAR(50), " +
-                    "status VARCHAR(20) DEFAULT 'APPROVED')");
-
-            // Rides
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS rides (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "passenger_id INT NOT NULL, " +
-                    "driver_id INT DEFAULT NULL, " +
-                    "status VARCHAR(20) DEFAULT 'REQUESTED', " +
-                    "start_latitude DOUBLE NOT NULL, " +
-                    "start_longitude DOUBLE NOT NULL, " +
-                    "dest_latitude DOUBLE NOT NULL, " +
-                    "dest_longitude DOUBLE NOT NULL, " +
-                    "start_address VARCHAR(255), " +
-                    "dest_address VARCHAR(255), " +
-                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                    "FOREIGN KEY (passenger_id) REFERENCES passengers(id))");
-
-            // Ride History
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS ride_status_history (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "ride_id INT NOT NULL, " +
-                    "status VARCHAR(20), " +
-                    "latitude DOUBLE, " +
-                    "longitude DOUBLE, " +
-                    "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
-
-            System.out.println("[DatabaseManager] Database schema initialized.");
-
-        } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Schema initialization warning: " + e.getMessage());
-        }
-    }
-
     /**
      * Register a new passenger
      */
     public synchronized Message registerPassenger(String username, String password, String phone) {
         String query = "INSERT INTO passengers (username, password, phone) VALUES (?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement pstmt = statements.prepareWithKeys(query);
             pstmt.setString(1, username);
             pstmt.setString(2, password);
             pstmt.setString(3, phone);
@@ -200,7 +109,7 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error registering passenger: " + e.getMessage());
+            log.warn("Error registering passenger: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -218,7 +127,8 @@ public class DatabaseManager {
      */
     public synchronized Message registerDriver(String username, String password, String phone) {
         String query = "INSERT INTO drivers (username, password, phone, status) VALUES (?, ?, ?, 'APPROVED')";
-        try (PreparedStatement pstmt = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement pstmt = statements.prepareWithKeys(query);
             pstmt.setString(1, username);
             pstmt.setString(2, password);
             pstmt.setString(3, phone);
@@ -236,7 +146,7 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error registering driver: " + e.getMessage());
+            log.warn("Error registering driver: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -256,7 +166,8 @@ public class DatabaseManager {
                 +
                 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 'PENDING')";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             // Helper to safely get string
             pstmt.setString(1, getStr(data, "username"));
             pstmt.setString(2, getStr(data, "password"));
@@ -288,15 +199,13 @@ public class DatabaseManager {
             pstmt.setString(18, getStr(data, "license_plate"));
 
             pstmt.executeUpdate();
-            System.out.println(
-                    "[DatabaseManager] Driver " + getStr(data, "username") + " submitted application successfully.");
+            log.info("Driver {} submitted application successfully.", getStr(data, "username"));
 
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", true);
             return response;
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("[DatabaseManager] registerDriverDetailed FAILED: " + e.getMessage());
+            log.error("registerDriverDetailed FAILED", e);
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage() != null ? e.getMessage() : "Database Error (See Server Logs)");
@@ -325,7 +234,7 @@ public class DatabaseManager {
                 pending.add(row);
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("getPendingDrivers failed", e);
         }
 
         Message response = new Message(MessageType.DB_RESPONSE);
@@ -337,7 +246,8 @@ public class DatabaseManager {
     public synchronized Message approveDriver(String username, boolean approve) {
         String status = approve ? "APPROVED" : "REJECTED";
         String query = "UPDATE drivers SET status = ?, is_available = ? WHERE username = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setString(1, status);
             pstmt.setBoolean(2, approve);
             pstmt.setString(3, username);
@@ -346,7 +256,7 @@ public class DatabaseManager {
             response.addPayload("success", true);
             return response;
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("approveDriver failed", e);
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -370,7 +280,8 @@ public class DatabaseManager {
             query = "SELECT id FROM drivers WHERE username = ? AND password = ? AND status = 'APPROVED'";
         }
 
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setString(1, username);
             pstmt.setString(2, password);
 
@@ -387,7 +298,7 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Login validation error: " + e.getMessage());
+            log.warn("Login validation error: {}", e.getMessage());
         }
 
         Message response = new Message(MessageType.DB_RESPONSE);
@@ -405,17 +316,19 @@ public class DatabaseManager {
      */
     public synchronized Message updatePassengerLocation(String username, double lat, double lon) {
         String query = "UPDATE passengers SET latitude = ?, longitude = ? WHERE username = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setDouble(1, lat);
             pstmt.setDouble(2, lon);
             pstmt.setString(3, username);
             pstmt.executeUpdate();
+            activeRides.updatePassengerLocation(username, lat, lon);
 
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", true);
             return response;
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error updating passenger location: " + e.getMessage());
+            log.warn("Error updating passenger location: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -428,17 +341,19 @@ public class DatabaseManager {
      */
     public synchronized Message updateDriverLocation(String username, double lat, double lon) {
         String query = "UPDATE drivers SET latitude = ?, longitude = ? WHERE username = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setDouble(1, lat);
             pstmt.setDouble(2, lon);
             pstmt.setString(3, username);
             pstmt.executeUpdate();
+            activeRides.updateDriverLocation(username, lat, lon);
 
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", true);
             return response;
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error updating driver location: " + e.getMessage());
+            locationErrorLog.warn("Error updating driver location: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -452,8 +367,7 @@ public class DatabaseManager {
     public synchronized Message createRide(String passengerUsername, String driverUsername,
             double startLat, double startLon, double destLat, double destLon,
             String startAddr, String destAddr) {
-        System.out.println("[DatabaseManager] Creating ride for " + passengerUsername + " (Addr: " + startAddr + " -> "
-                + destAddr + ")");
+        log.info("Creating ride for {} (Addr: {} -> {})", passengerUsername, startAddr, destAddr);
 
         String query;
         if (driverUsername == null || driverUsername.isEmpty()) {
@@ -468,13 +382,17 @@ public class DatabaseManager {
 
         try {
             // Check if passenger exists
-            String checkPass = "SELECT id FROM passengers WHERE username = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(checkPass)) {
-                pstmt.setString(1, passengerUsername);
-                ResultSet rs = pstmt.executeQuery();
-                if (!rs.next()) {
-                    System.err.println("[DatabaseManager] createRide FAIL: Passenger '" + passengerUsername
-                            + "' not found in DB.");
+            String checkPass = "SELECT id, latitude, longitude FROM passengers WHERE username = ?";
+            double passengerLat;
+            double passengerLon;
+            PreparedStatement check = statements.prepare(checkPass);
+            check.setString(1, passengerUsername);
+            try (ResultSet rs = check.executeQuery()) {
+                if (rs.next()) {
+                    passengerLat = rs.getDouble("latitude");
+                    passengerLon = rs.getDouble("longitude");
+                } else {
+                    log.warn("createRide FAIL: Passenger '{}' not found in DB.", passengerUsername);
                     Message response = new Message(MessageType.DB_RESPONSE);
                     response.addPayload("success", false);
                     response.addPayload("error", "Passenger record not found for username: " + passengerUsername);
@@ -482,46 +400,63 @@ public class DatabaseManager {
                 }
             }
 
-            try (PreparedStatement pstmt = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-                pstmt.setString(1, passengerUsername);
-                int paramIndex = 2;
-                if (driverUsername != null && !driverUsername.isEmpty()) {
-                    pstmt.setString(2, driverUsername);
-                    paramIndex = 3;
-                }
-                pstmt.setDouble(paramIndex++, startLat);
-                pstmt.setDouble(paramIndex++, startLon);
-                pstmt.setDouble(paramIndex++, destLat);
-                pstmt.setDouble(paramIndex++, destLon);
-                pstmt.setString(paramIndex++, startAddr);
-                pstmt.setString(paramIndex++, destAddr);
-
-                int rows = pstmt.executeUpdate();
-
-                if (rows > 0) {
-                    ResultSet rs = pstmt.getGeneratedKeys();
-                    if (rs.next()) {
-                        int rideId = rs.getInt(1);
-
-                        // Insert into ride status history
-                        String initStatus = (driverUsername != null && !driverUsername.isEmpty()) ? "ASSIGNED"
-                                : "REQUESTED";
-                        insertRideStatusHistory(rideId, initStatus, startLat, startLon);
-
-                        Message response = new Message(MessageType.DB_RESPONSE);
-                        response.addPayload("success", true);
-                        response.addPayload("rideId", rideId);
-                        System.out.println("[DatabaseManager] Ride created successfully: ID=" + rideId);
-                        return response;
+            PreparedStatement pstmt = statements.prepareWithKeys(query);
+            pstmt.setString(1, passengerUsername);
+            int paramIndex = 2;
+            if (driverUsername != null && !driverUsername.isEmpty()) {
+                pstmt.setString(2, driverUsername);
+                paramIndex = 3;
+            }
+            pstmt.setDouble(paramIndex++, startLat);
+            pstmt.setDouble(paramIndex++, startLon);
+            pstmt.setDouble(paramIndex++, destLat);
+            pstmt.setDouble(paramIndex++, destLon);
+            pstmt.setString(paramIndex++, startAddr);
+            pstmt.setString(paramIndex++, destAddr);
+
+            int rows = pstmt.executeUpdate();
+
+            if (rows > 0) {
+                ResultSet rs = pstmt.getGeneratedKeys();
+                if (rs.next()) {
+                    int rideId = rs.getInt(1);
+
+                    // Insert into ride status history
+                    String initStatus = (driverUsername != null && !driverUsername.isEmpty()) ? "ASSIGNED"
+                            : "REQUESTED";
+                    insertRideStatusHistory(rideId, initStatus, startLat, startLon);
+
+                    ActiveRideStore.ActiveRide ride = new ActiveRideStore.ActiveRide();
+                    ride.id = rideId;
+                    ride.passenger = passengerUsername;
+                    ride.driver = (driverUsername != null && !driverUsername.isEmpty()) ? driverUsername : null;
+                    ride.status = initStatus;
+                    ride.startLat = startLat;
+                    ride.startLon = startLon;
+                    ride.destLat = destLat;
+                    ride.destLon = destLon;
+                    ride.startAddr = startAddr;
+                    ride.destAddr = destAddr;
+                    ride.passengerLat = passengerLat;
+                    ride.passengerLon = passengerLon;
+                    if (ride.driver != null) {
+                        double[] driverPos = findDriverLocation(ride.driver);
+                        ride.driverLat = driverPos[0];
+                        ride.driverLon = driverPos[1];
                     }
-                } else {
-                    System.err.println("[DatabaseManager] createRide: No rows affected. Passenger '" + passengerUsername
-                            + "' might not exist.");
+                    activeRides.put(ride);
+
+                    Message response = new Message(MessageType.DB_RESPONSE);
+                    response.addPayload("success", true);
+                    response.addPayload("rideId", rideId);
+                    log.info("Ride created successfully: ID={}", rideId);
+                    return response;
                 }
+            } else {
+                log.warn("createRide: No rows affected. Passenger '{}' might not exist.", passengerUsername);
             }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] createRide SQL Error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("createRide SQL Error", e);
             Message err = new Message(MessageType.ERROR);
             err.addPayload("error", "Database Error: " + e.getMessage());
             err.addPayload("success", false);
@@ -538,8 +473,20 @@ public class DatabaseManager {
      * Update ride status
      */
     public synchronized Message assignRideDriver(int rideId, String driverUsername) {
+        if (activeRides.contains(rideId)) {
+            double[] driverPos = findDriverLocation(driverUsername);
+            activeRides.assignDriver(rideId, driverUsername, driverPos[0], driverPos[1]);
+            rideWriter.submit(new String[] { "A", String.valueOf(rideId), driverUsername },
+                    cache -> persistDriverAssignment(cache, rideId, driverUsername));
+
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", true);
+            return response;
+        }
+
         String query = "UPDATE rides SET driver_id = (SELECT id FROM drivers WHERE username=?), status = 'ASSIGNED' WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setString(1, driverUsername);
             pstmt.setInt(2, rideId);
 
@@ -549,7 +496,7 @@ public class DatabaseManager {
             response.addPayload("success", rows > 0);
             return response;
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("assignRideDriver failed", e);
             Message err = new Message(MessageType.ERROR);
             err.addPayload("error", e.getMessage());
             err.addPayload("success", false);
@@ -558,12 +505,28 @@ public class DatabaseManager {
     }
 
     public synchronized Message updateRideStatus(int rideId, String status, double lat, double lon) {
+        if (activeRides.contains(rideId)) {
+            applyRideStatus(rideId, status, lat, lon, System.currentTimeMillis(), false);
+
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", true);
+            return response;
+        }
+
         String query = "UPDATE rides SET status = ? WHERE id = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setString(1, status);
             pstmt.setInt(2, rideId);
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() == 0) {
+                // Finished rides leave the hot table; their status is final
+                Message response = new Message(MessageType.DB_RESPONSE);
+                response.addPayload("success", false);
+                response.addPayload("error", isArchived(rideId) ? "Ride " + rideId + " is finished and archived"
+                        : "Ride " + rideId + " not found");
+                return response;
+            }
 
             // Insert into history
             insertRideStatusHistory(rideId, status, lat, lon);
@@ -571,17 +534,16 @@ public class DatabaseManager {
             // If COMPLETED or CANCELLED, mark driver available again
             if (status.equals("COMPLETED") || status.equals("CANCELLED")) {
                 String updateDriver = "UPDATE drivers SET is_available = TRUE WHERE id = (SELECT driver_id FROM rides WHERE id = ?)";
-                try (PreparedStatement ps = connection.prepareStatement(updateDriver)) {
-                    ps.setInt(1, rideId);
-                    ps.executeUpdate();
-                }
+                PreparedStatement ps = statements.prepare(updateDriver);
+                ps.setInt(1, rideId);
+                ps.executeUpdate();
             }
 
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", true);
             return response;
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error updating ride status: " + e.getMessage());
+            log.warn("Error updating ride status: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -589,70 +551,184 @@ public class DatabaseManager {
         }
     }
 
+    private boolean isArchived(int rideId) throws SQLException {
+        PreparedStatement ps = statements.prepare("SELECT 1 FROM rides_archive WHERE id = ?");
+        ps.setInt(1, rideId);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next();
+        }
+    }
+
     /**
-     * Insert ride status history
+     * Apply a status change to an active ride, journal it and queue its MySQL write
      */
-    private void insertRideStatusHistory(int rideId, String status, double lat, double lon) {
-        String query = "INSERT INTO ride_status_history (ride_id, status, latitude, longitude) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+    private void applyRideStatus(int rideId, String status, double lat, double lon, long time, boolean replayed) {
+        ActiveRideStore.ActiveRide before = activeRides.updateStatus(rideId, status);
+        if (before == null)
+            return;
+
+        boolean finished = status.equals("COMPLETED") || status.equals("CANCELLED");
+        String driver = before.driver;
+        String[] record = { "S", String.valueOf(rideId), status, String.valueOf(lat), String.valueOf(lon),
+                String.valueOf(time) };
+
+        rideWriter.submit(record, cache -> {
+            PreparedStatement ps = cache.prepare("UPDATE rides SET status = ? WHERE id = ?");
+            ps.setString(1, status);
+            ps.setInt(2, rideId);
+            ps.executeUpdate();
+            // If COMPLETED or CANCELLED, mark driver available again
+            if (finished && driver != null) {
+                PreparedStatement available = cache
+                        .prepare("UPDATE drivers SET is_available = TRUE WHERE username = ?");
+                available.setString(1, driver);
+                available.executeUpdate();
+            }
+        });
+
+        // A replayed transition's history row may have been written before the restart
+        if (!replayed || !historyStored(rideId, status, time)) {
+            historyWriter.append(rideId, status, lat, lon, time);
+        }
+
+        if (finished) {
+            rideWriter.archiveLater(rideId);
+        }
+    }
+
+    private static void persistDriverAssignment(StatementCache cache, int rideId, String driverUsername)
+            throws SQLException {
+        PreparedStatement ps = cache.prepare(
+                "UPDATE rides SET driver_id = (SELECT id FROM drivers WHERE username=?), status = 'ASSIGNED' WHERE id = ?");
+        ps.setString(1, driverUsername);
+        ps.setInt(2, rideId);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Whether ride_status_history already has this transition: the same
+     * status within a second of its time (TIMESTAMP drops the milliseconds),
+     * or at any time for journal records written before they carried one
+     */
+    private boolean historyStored(int rideId, String status, long time) {
+        String query = "SELECT 1 FROM ride_status_history WHERE ride_id = ? AND status = ?"
+                + (time > 0 ? " AND timestamp BETWEEN ? AND ?" : "") + " LIMIT 1";
+        try {
+            PreparedStatement pstmt = statements.prepare(query);
             pstmt.setInt(1, rideId);
             pstmt.setString(2, status);
-            pstmt.setDouble(3, lat);
-            pstmt.setDouble(4, lon);
-            pstmt.executeUpdate();
+            if (time > 0) {
+                pstmt.setTimestamp(3, new Timestamp(time - 1000));
+                pstmt.setTimestamp(4, new Timestamp(time + 1000));
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error inserting ride status history: " + e.getMessage());
+            log.warn("Error checking ride history: {}", e.getMessage());
+            return false;
         }
     }
 
+    private double[] findDriverLocation(String driverUsername) {
+        try {
+            PreparedStatement pstmt = statements.prepare("SELECT latitude, longitude FROM drivers WHERE username = ?");
+            pstmt.setString(1, driverUsername);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new double[] { rs.getDouble("latitude"), rs.getDouble("longitude") };
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Error reading driver location: {}", e.getMessage());
+        }
+        return new double[] { 0.0, 0.0 };
+    }
+
     /**
-     * Get active rides (for web map)
+     * Populate the active-ride store from MySQL (once, at startup)
      */
-    public synchronized Message getActiveRides() {
-        String query = "SELECT r.id, p.username as passenger, d.username as driver, " +
-                "p.latitude as p_lat, p.longitude as p_lon, " +
-                "d.latitude as d_lat, d.longitude as d_lon, r.status " +
+    private void loadActiveRides() {
+        String query = "SELECT r.id, p.username AS passenger, d.username AS driver, r.status, " +
+                "r.start_latitude, r.start_longitude, r.dest_latitude, r.dest_longitude, " +
+                "r.start_address, r.dest_address, " +
+                "p.latitude AS p_lat, p.longitude AS p_lon, d.latitude AS d_lat, d.longitude AS d_lon " +
                 "FROM rides r " +
                 "JOIN passengers p ON r.passenger_id = p.id " +
-                "JOIN drivers d ON r.driver_id = d.id " +
-                "WHERE r.status IN ('ASSIGNED', 'STARTED')";
-
-        StringBuilder ridesJson = new StringBuilder("[");
+                "LEFT JOIN drivers d ON r.driver_id = d.id " +
+                "WHERE r.status IN ('REQUESTED', 'ASSIGNED', 'STARTED')";
 
         try (Statement stmt = connection.createStatement();
                 ResultSet rs = stmt.executeQuery(query)) {
-
-            boolean first = true;
             while (rs.next()) {
-                if (!first)
-                    ridesJson.append(",");
-                ridesJson.append("{");
-                ridesJson.append("\"rideId\":").append(rs.getInt("id")).append(",");
-                ridesJson.append("\"passenger\":\"").append(rs.getString("passenger")).append("\",");
-                ridesJson.append("\"driver\":\"").append(rs.getString("driver")).append("\",");
-                ridesJson.append("\"p_lat\":").append(rs.getDouble("p_lat")).append(",");
-                ridesJson.append("\"p_lon\":").append(rs.getDouble("p_lon")).append(",");
-                ridesJson.append("\"d_lat\":").append(rs.getDouble("d_lat")).append(",");
-                ridesJson.append("\"d_lon\":").append(rs.getDouble("d_lon")).append(",");
-                ridesJson.append("\"status\":\"").append(rs.getString("status")).append("\"");
-                ridesJson.append("}");
-                first = false;
+                ActiveRideStore.ActiveRide ride = new ActiveRideStore.ActiveRide();
+                ride.id = rs.getInt("id");
+                ride.passenger = rs.getString("passenger");
+                ride.driver = rs.getString("driver");
+                ride.status = rs.getString("status");
+                ride.startLat = rs.getDouble("start_latitude");
+                ride.startLon = rs.getDouble("start_longitude");
+                ride.destLat = rs.getDouble("dest_latitude");
+                ride.destLon = rs.getDouble("dest_longitude");
+                ride.startAddr = rs.getString("start_address");
+                ride.destAddr = rs.getString("dest_address");
+                ride.passengerLat = rs.getDouble("p_lat");
+                ride.passengerLon = rs.getDouble("p_lon");
+                ride.driverLat = rs.getDouble("d_lat");
+                ride.driverLon = rs.getDouble("d_lon");
+                activeRides.put(ride);
             }
+            log.info("Loaded {} active rides into memory.", activeRides.size());
+        } catch (SQLException e) {
+            log.warn("Could not load active rides: {}", e.getMessage());
+        }
+    }
 
-            ridesJson.append("]");
+    /**
+     * Re-apply journaled mutations that may not have reached MySQL before the
+     * last shutdown. Replayed records are journaled again until the
+     * write-behind has persisted them; the UPDATEs are idempotent, and a
+     * status history row already stored is not written again.
+     */
+    private void replayJournal(RideJournal journal) {
+        List<String[]> records = journal.readAll();
+        for (String[] record : records) {
+            try {
+                int rideId = Integer.parseInt(record[1]);
+                if (record[0].equals("A")) {
+                    String driver = record[2];
+                    double[] driverPos = findDriverLocation(driver);
+                    activeRides.assignDriver(rideId, driver, driverPos[0], driverPos[1]);
+                    rideWriter.submit(record, cache -> persistDriverAssignment(cache, rideId, driver));
+                } else if (record[0].equals("S")) {
+                    long time = record.length > 5 ? Long.parseLong(record[5]) : 0;
+                    applyRideStatus(rideId, record[2], Double.parseDouble(record[3]),
+                            Double.parseDouble(record[4]), time, true);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Skipping bad journal record: {}", String.join(" ", record));
+            }
+        }
+        if (!records.isEmpty()) {
+            log.info("Replayed {} journaled ride updates.", records.size());
+        }
+    }
 
-            Message response = new Message(MessageType.DB_RESPONSE);
-            response.addPayload("success", true);
-            response.addPayload("rides", ridesJson.toString());
-            return response;
+    /**
+     * Queue a ride status history row for the batched history writer
+     */
+    private void insertRideStatusHistory(int rideId, String status, double lat, double lon) {
+        historyWriter.append(rideId, status, lat, lon, System.currentTimeMillis());
+    }
 
-        } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error getting active rides: " + e.getMessage());
-            Message response = new Message(MessageType.DB_RESPONSE);
-            response.addPayload("success", false);
-            response.addPayload("error", e.getMessage());
-            return response;
-        }
+    /**
+     * Get active rides (for web map), served from the in-memory store
+     */
+    public synchronized Message getActiveRides() {
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("rides", ActiveRideStore.toActiveRidesJson(activeRides.findByStatus("ASSIGNED", "STARTED")));
+        return response;
     }
 
     /**
@@ -693,24 +769,10 @@ public class DatabaseManager {
             }
             json.append("],");
 
-            // Get active rides (REQUESTED, ASSIGNED, STARTED)
-            json.append("\"rides\":[");
-            rs = stmt.executeQuery(
-                    "SELECT r.id, p.username as passenger, r.status, r.start_latitude, r.start_longitude, r.dest_latitude, r.dest_longitude FROM rides r JOIN passengers p ON r.passenger_id = p.id WHERE r.status IN ('REQUESTED', 'ASSIGNED', 'STARTED')");
-            first = true;
-            while (rs.next()) {
-                if (!first)
-                    json.append(",");
-                json.append("{\"id\":").append(rs.getInt("id")).append(",");
-                json.append("\"passenger\":\"").append(rs.getString("passenger")).append("\",");
-                json.append("\"p_lat\":").append(rs.getDouble("start_latitude")).append(",");
-                json.append("\"p_lon\":").append(rs.getDouble("start_longitude")).append(",");
-                json.append("\"d_lat\":").append(rs.getDouble("dest_latitude")).append(",");
-                json.append("\"d_lon\":").append(rs.getDouble("dest_longitude")).append(",");
-                json.append("\"status\":\"").append(rs.getString("status")).append("\"}");
-                first = false;
-            }
-            json.append("]}");
+            // Active rides (REQUESTED, ASSIGNED, STARTED) come from the in-memory store
+            json.append("\"rides\":");
+            json.append(ActiveRideStore.toMapRidesJson(activeRides.findByStatus("REQUESTED", "ASSIGNED", "STARTED")));
+            json.append("}");
 
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", true);
@@ -718,7 +780,7 @@ public class DatabaseManager {
             return response;
 
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error getting locations: " + e.getMessage());
+            log.warn("Error getting locations: {}", e.getMessage());
             Message response = new Message(MessageType.DB_RESPONSE);
             response.addPayload("success", false);
             response.addPayload("error", e.getMessage());
@@ -775,7 +837,7 @@ public class DatabaseManager {
             return response;
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("getAllTableData failed", e);
             return new Message(MessageType.ERROR);
         }
     }
@@ -784,47 +846,139 @@ public class DatabaseManager {
      * Import data from another server
      */
     public synchronized void importData(String passJson, String drivJson) {
+        List<Map<String, String>> passengers = parseUserRecords(passJson);
+        List<Map<String, String>> drivers = parseUserRecords(drivJson);
         try {
-            // Very basic JSON parsing (regex) to avoid heavy libs
-            // Insert Passengers
-            if (passJson != null && passJson.length() > 2) {
-                // Remove [ ]
-                String content = passJson.substring(1, passJson.length() - 1);
-                String[] items = content.split("\\},\\{"); // loose split
-                for (String item : items) {
-                    item = item.replace("{", "").replace("}", "").replace("\"", "");
-                    Map<String, String> map = new HashMap<>();
-                    for (String pair : item.split(",")) {
-                        String[] kv = pair.split(":");
-                        if (kv.length == 2)
-                            map.put(kv[0], kv[1]);
-                    }
-                    if (map.containsKey("username")) {
-                        registerPassenger(map.get("username"), map.get("password"), map.get("phone"));
-                    }
-                }
+            connection.setAutoCommit(false);
+            addUserBatch("INSERT IGNORE INTO passengers (username, password, phone) VALUES (?, ?, ?)", passengers);
+            addUserBatch("INSERT IGNORE INTO drivers (username, password, phone, status) VALUES (?, ?, ?, 'APPROVED')",
+                    drivers);
+            connection.commit();
+            log.info("Data Import Complete ({} passengers, {} drivers)", passengers.size(), drivers.size());
+        } catch (SQLException e) {
+            rollbackQuietly();
+            log.warn("Import failed: {}", e.getMessage());
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+    /**
+     * Register many drivers in one transaction. Existing usernames are skipped.
+     */
+    public synchronized Message registerDriversBatch(List<Map<String, String>> drivers) {
+        try {
+            connection.setAutoCommit(false);
+            addUserBatch("INSERT IGNORE INTO drivers (username, password, phone, status) VALUES (?, ?, ?, 'APPROVED')",
+                    drivers);
+            connection.commit();
+
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", true);
+            response.addPayload("count", drivers.size());
+            return response;
+        } catch (SQLException e) {
+            rollbackQuietly();
+            log.warn("Error registering driver batch: {}", e.getMessage());
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", false);
+            response.addPayload("error", e.getMessage());
+            return response;
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+    /**
+     * Apply many driver location updates (username, latitude, longitude) in one transaction
+     */
+    public synchronized Message updateDriverLocationsBatch(List<Map<String, String>> locations) {
+        String query = "UPDATE drivers SET latitude = ?, longitude = ? WHERE username = ?";
+        try {
+            connection.setAutoCommit(false);
+            PreparedStatement pstmt = statements.prepare(query);
+            for (Map<String, String> loc : locations) {
+                pstmt.setDouble(1, Double.parseDouble(loc.get("latitude")));
+                pstmt.setDouble(2, Double.parseDouble(loc.get("longitude")));
+                pstmt.setString(3, loc.get("username"));
+                pstmt.addBatch();
             }
-            // Same for drivers... (Implementation simplified for brevity)
-            if (drivJson != null && drivJson.length() > 2) {
-                String content = drivJson.substring(1, drivJson.length() - 1);
-                String[] items = content.split("\\},\\{");
-                for (String item : items) {
-                    item = item.replace("{", "").replace("}", "").replace("\"", "");
-                    Map<String, String> map = new HashMap<>();
-                    for (String pair : item.split(",")) {
-                        String[] kv = pair.split(":");
-                        if (kv.length == 2)
-                            map.put(kv[0], kv[1]);
-                    }
-                    if (map.containsKey("username")) {
-                        registerDriver(map.get("username"), map.get("password"), map.get("phone"));
-                    }
-                }
+            pstmt.executeBatch();
+            connection.commit();
+
+            for (Map<String, String> loc : locations) {
+                activeRides.updateDriverLocation(loc.get("username"), Double.parseDouble(loc.get("latitude")),
+                        Double.parseDouble(loc.get("longitude")));
+            }
+
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", true);
+            response.addPayload("count", locations.size());
+            return response;
+        } catch (SQLException | RuntimeException e) {
+            rollbackQuietly();
+            log.warn("Error updating driver location batch: {}", e.getMessage());
+            Message response = new Message(MessageType.DB_RESPONSE);
+            response.addPayload("success", false);
+            response.addPayload("error", e.getMessage());
+            return response;
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+    private void addUserBatch(String query, List<Map<String, String>> users) throws SQLException {
+        if (users.isEmpty())
+            return;
+        PreparedStatement pstmt = statements.prepare(query);
+        for (Map<String, String> user : users) {
+            pstmt.setString(1, user.get("username"));
+            pstmt.setString(2, user.get("password"));
+            pstmt.setString(3, user.get("phone"));
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private void restoreAutoCommit() {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Parse the flat user list produced by getAllTableData.
+     * Very basic JSON parsing to avoid heavy libs.
+     */
+    static List<Map<String, String>> parseUserRecords(String json) {
+        List<Map<String, String>> records = new ArrayList<>();
+        if (json == null || json.length() <= 2)
+            return records;
+
+        // Remove [ ]
+        String content = json.substring(1, json.length() - 1);
+        String[] items = content.split("\\},\\{"); // loose split
+        for (String item : items) {
+            item = item.replace("{", "").replace("}", "").replace("\"", "");
+            Map<String, String> map = new HashMap<>();
+            for (String pair : item.split(",")) {
+                String[] kv = pair.split(":");
+                if (kv.length == 2)
+                    map.put(kv[0], kv[1]);
+            }
+            if (map.containsKey("username")) {
+                records.add(map);
             }
-            System.out.println("[DatabaseManager] Data Import Complete");
-        } catch (Exception e) {
-            System.err.println("Import failed: " + e.getMessage());
         }
+        return records;
     }
 
     public Connection getConnection() {
@@ -832,13 +986,22 @@ public class DatabaseManager {
     }
 
     public void close() {
+        if (statements != null) {
+            statements.close();
+        }
+        if (rideWriter != null) {
+            rideWriter.close();
+        }
+        if (historyWriter != null) {
+            historyWriter.close();
+        }
         try {
             if (connection != null && !connection.isClosed()) {
                 connection.close();
-                System.out.println("[DatabaseManager] Database connection closed.");
+                log.info("Database connection closed.");
             }
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error closing connection: " + e.getMessage());
+            log.warn("Error closing connection: {}", e.getMessage());
         }
     }
 }
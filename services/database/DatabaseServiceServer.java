@@ -1,14 +1,21 @@
 package services.database;
 
+import common.Config;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.Metrics;
+import common.RequestContext;
+import common.Span;
+import common.Tracer;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Database Service Server - Isolated process for database operations.
@@ -16,8 +23,10 @@ import java.util.concurrent.Executors;
  * This demonstrates true distributed architecture by separating database logic.
  */
 public class DatabaseServiceServer {
+    private static final Log log = Log.get("DatabaseService");
+    private static final Log discoveryLog = Log.get("AutoDiscovery");
     private static final int PORT = 5002;
-    private static DatabaseManager dbManager;
+    private static StorageEngine dbManager;
     private static ExecutorService threadPool = Executors.newCachedThreadPool();
     private static volatile boolean running = true;
 
@@ -25,37 +34,23 @@ public class DatabaseServiceServer {
     private static final java.util.List<String> SYNC_HOSTS = new java.util.ArrayList<>();
 
     public static void main(String[] args) {
-        String syncConfig = null;
-
-        // 1. Try reading from config.properties
-        try (InputStream input = new FileInputStream("config.properties")) {
-            Properties prop = new Properties();
-            prop.load(input);
-            syncConfig = prop.getProperty("SYNC_DB_HOSTS");
-        } catch (IOException ex) {
-            // Ignore, file might not exist
-        }
-
-        // 2. Fallback to Env Var
-        if (syncConfig == null || syncConfig.isEmpty()) {
-            syncConfig = System.getenv("SYNC_DB_HOSTS");
-        }
+        String syncConfig = Config.get("SYNC_DB_HOSTS", null);
+        String storageEngine = Config.get("STORAGE_ENGINE", null);
 
-        // Read Sync Hosts from Config or Env
-        if (syncConfig != null && !syncConfig.isEmpty()) {
+        if (syncConfig != null) {
             for (String host : syncConfig.split(",")) {
                 SYNC_HOSTS.add(host.trim());
             }
-            System.out.println("[DatabaseService] Synchronization Enabled with: " + SYNC_HOSTS);
+            log.info("Synchronization enabled with: {}", SYNC_HOSTS);
         }
 
-        System.out.println("============================================================");
-        System.out.println("DATABASE SERVICE SERVER");
-        System.out.println("============================================================");
-        System.out.println("[DatabaseService] Starting on port " + PORT);
+        log.info("Database Service starting on port {}", PORT);
 
-        // Initialize database connection
-        dbManager = new DatabaseManager();
+        // Initialize storage (MySQL by default, or the embedded engine)
+        log.info("Storage engine: {}", storageEngine == null ? "mysql" : storageEngine);
+        dbManager = StorageEngine.create(storageEngine);
+        Metrics.serve("DatabaseService", PORT);
+        Tracer.init("database");
 
         // --- AUTO-DISCOVERY STARTUP ---
         // Start listening and broadcasting presence
@@ -68,20 +63,17 @@ public class DatabaseServiceServer {
 
         // Start server
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("[DatabaseService] Ready to accept connections");
-            System.out.println("[DatabaseService] Waiting for requests from Dispatch Server and Driver Service...");
-            System.out.println("============================================================");
+            log.info("Ready to accept connections from Dispatch Server and Driver Service");
 
             while (running) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("[DatabaseService] New connection from: " + clientSocket.getInetAddress());
+                log.info("New connection from: {}", clientSocket.getInetAddress());
 
                 // Handle each request in a separate thread
                 threadPool.execute(new DatabaseRequestHandler(clientSocket, dbManager, SYNC_HOSTS));
             }
         } catch (IOException e) {
-            System.err.println("[DatabaseService] Server error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Server error", e);
         } finally {
             dbManager.close();
             threadPool.shutdown();
@@ -97,7 +89,7 @@ public class DatabaseServiceServer {
     private static void performInitialSync() {
         if (SYNC_HOSTS.isEmpty())
             return;
-        System.out.println("[DatabaseService] Performing Initial Sync with configured hosts...");
+        log.info("Performing Initial Sync with configured hosts...");
         for (String host : SYNC_HOSTS) {
             performSingleSync(host);
         }
@@ -106,7 +98,7 @@ public class DatabaseServiceServer {
     // Called by DiscoveryService when a new peer is found
     public static synchronized void addSyncPeer(String ip) {
         if (!SYNC_HOSTS.contains(ip)) {
-            System.out.println("[AutoDiscovery] Found new peer: " + ip + ". Added to Sync List.");
+            discoveryLog.info("Found new peer: {}. Added to Sync List.", ip);
             SYNC_HOSTS.add(ip);
             // Trigger an initial sync with this new peer immediately
             new Thread(() -> performSingleSync(ip)).start();
@@ -114,11 +106,11 @@ public class DatabaseServiceServer {
     }
 
     private static void performSingleSync(String host) {
-        try (Socket s = new Socket(host, 5002);
+        try (Socket s = RequestContext.connect(host, 5002);
                 PrintWriter out = new PrintWriter(s.getOutputStream(), true);
                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
 
-            System.out.println("[DatabaseService] Requesting data from found peer " + host);
+            log.info("Requesting data from found peer {}", host);
 
             Message req = new Message(MessageType.SYNC_REQUEST);
             out.println(JSONUtil.toJSON(req));
@@ -127,13 +119,13 @@ public class DatabaseServiceServer {
             if (resJson != null) {
                 Message res = JSONUtil.fromJSON(resJson);
                 if (res != null && res.getType() == MessageType.SYNC_DATA_RESPONSE) {
-                    System.out.println("[DatabaseService] Received data. Importing...");
+                    log.info("Received data. Importing...");
                     dbManager.importData(res.getPayloadString("passengers"), res.getPayloadString("drivers"));
-                    System.out.println("[DatabaseService] Auto-Sync Complete with " + host);
+                    log.info("Auto-Sync Complete with {}", host);
                 }
             }
         } catch (Exception e) {
-            System.err.println("[DatabaseService] Auto-Sync failed with " + host + ": " + e.getMessage());
+            log.warn("Auto-Sync failed with {}: {}", host, e.getMessage());
         }
     }
 
@@ -146,7 +138,7 @@ public class DatabaseServiceServer {
 
         @Override
         public void run() {
-            System.out.println("[AutoDiscovery] Started. Looking for peers on LAN...");
+            discoveryLog.info("Started. Looking for peers on LAN...");
             new Thread(this::listenForPeers).start();
             try (DatagramSocket socket = new DatagramSocket()) {
                 socket.setBroadcast(true);
@@ -162,7 +154,7 @@ public class DatabaseServiceServer {
                     }
                 }
             } catch (Exception e) {
-                System.err.println("[AutoDiscovery] Broadcaster failed: " + e.getMessage());
+                discoveryLog.warn("Broadcaster failed: {}", e.getMessage());
             }
         }
 
@@ -179,7 +171,7 @@ public class DatabaseServiceServer {
                     }
                 }
             } catch (Exception e) {
-                System.err.println("[AutoDiscovery] Listener failed: " + e.getMessage());
+                discoveryLog.warn("Listener failed: {}", e.getMessage());
             }
         }
 
@@ -197,13 +189,25 @@ public class DatabaseServiceServer {
  * Handles individual database requests from other services
  */
 class DatabaseRequestHandler implements Runnable {
+    private static final Log log = Log.get("DatabaseRequestHandler");
+    private static final Log locationLog = log.sampled(100); // one per accepted GPS point
     private Socket socket;
-    private DatabaseManager dbManager;
+    private StorageEngine dbManager;
     private BufferedReader in;
     private PrintWriter out;
     private java.util.List<String> syncHosts;
 
-    public DatabaseRequestHandler(Socket socket, DatabaseManager dbManager, java.util.List<String> syncHosts) {
+    private static final Metrics.HistogramFamily requestLatency = Metrics.histograms("db_request_seconds", "type",
+            "Time to process a request against the storage engine, by message type");
+    private static final Metrics.Counter failures = Metrics.counter("db_request_failures_total",
+            "Requests answered with success=false or an error");
+    private static final AtomicInteger openConnections = new AtomicInteger();
+
+    static {
+        Metrics.gauge("db_connections", "Open connections from other services", openConnections::get);
+    }
+
+    public DatabaseRequestHandler(Socket socket, StorageEngine dbManager, java.util.List<String> syncHosts) {
         this.socket = socket;
         this.dbManager = dbManager;
         this.syncHosts = syncHosts;
@@ -211,63 +215,94 @@ class DatabaseRequestHandler implements Runnable {
 
     @Override
     public void run() {
+        openConnections.incrementAndGet();
         try {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(socket.getOutputStream(), true);
 
-            // Read request
-            String requestJson = in.readLine();
-            if (requestJson == null || requestJson.trim().isEmpty()) {
-                System.err.println("[DatabaseRequestHandler] Received empty request");
-                return;
-            }
-
-            System.out.println("[DatabaseRequestHandler] Received: "
-                    + requestJson.substring(0, Math.min(requestJson.length(), 100)) + "...");
-
-            // Parse request
-            Message request = JSONUtil.fromJSON(requestJson);
-            if (request == null) {
-                sendErrorResponse("Invalid JSON format");
-                return;
-            }
-
-            // Process request based on type
-            Message response = processRequest(request);
-
-            // --- SYNCHRONIZATION ---
-            // If modification was successful AND type is modification AND not already a
-            // sync message
-            if (response != null && response.getPayloadBoolean("success") &&
-                    isModificationType(request.getType()) && !request.getPayload().containsKey("isSync")) {
-
-                syncToPeers(request);
+            // Serve requests until the caller closes the connection (the
+            // gateway keeps pooled connections open between requests)
+            String requestJson;
+            while ((requestJson = in.readLine()) != null) {
+                if (requestJson.trim().isEmpty()) {
+                    log.warn("Received empty request");
+                    continue;
+                }
+                handleRequest(requestJson);
             }
 
-            // Send response
-            String responseJson = JSONUtil.toJSON(response);
-            out.println(responseJson);
-            System.out.println("[DatabaseRequestHandler] Sent response for request: " + request.getRequestId());
-
         } catch (IOException e) {
-            System.err.println("[DatabaseRequestHandler] Error handling request: " + e.getMessage());
+            log.warn("Error handling request: {}", e.getMessage());
         } finally {
+            openConnections.decrementAndGet();
             try {
                 if (socket != null && !socket.isClosed()) {
                     socket.close();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Could not close socket: {}", e.getMessage());
             }
         }
     }
 
+    /**
+     * Process one request line and write its response
+     */
+    private void handleRequest(String requestJson) {
+        // Parse request
+        Message request = JSONUtil.fromJSON(requestJson);
+        if (request == null) {
+            log.warn("Invalid JSON: {}", requestJson.substring(0, Math.min(requestJson.length(), 100)));
+            sendErrorResponse("Invalid JSON format");
+            return;
+        }
+        (request.getType() == MessageType.DB_UPDATE_DRIVER_LOCATION ? locationLog : log)
+                .debug("Received {} ({} bytes)", request.getType(), requestJson.length());
+
+        RequestContext.begin(request, 0);
+        Span span = Tracer.begin(request, request.getType().name(), false);
+        try {
+            if (RequestContext.checkExpired("DatabaseRequestHandler " + request.getType())) {
+                span.setError("Deadline exceeded");
+                sendErrorResponse("Request deadline exceeded");
+                return;
+            }
+            processAndRespond(request);
+        } finally {
+            span.close();
+            RequestContext.end();
+        }
+    }
+
+    private void processAndRespond(Message request) {
+        // Process request based on type
+        long start = System.nanoTime();
+        Message response = processRequest(request);
+        requestLatency.get(request.getType()).recordSince(start);
+        if (response == null || response.getType() == MessageType.ERROR || !Boolean.TRUE.equals(response.getPayloadBoolean("success")))
+            failures.increment();
+
+        // --- SYNCHRONIZATION ---
+        // If modification was successful AND type is modification AND not already a
+        // sync message
+        if (response != null && response.getPayloadBoolean("success") &&
+                isModificationType(request.getType()) && !request.getPayload().containsKey("isSync")) {
+
+            syncToPeers(request);
+        }
+
+        // Send response
+        String responseJson = JSONUtil.toJSON(response);
+        out.println(responseJson);
+        log.debug("Sent response for request: {}", request.getRequestId());
+    }
+
     /**
      * Process database request and return response
      */
     private Message processRequest(Message request) {
         MessageType type = request.getType();
-        System.out.println("[DatabaseRequestHandler] Processing request type: " + type);
+        log.debug("Processing request type: {}", type);
 
         try {
             switch (type) {
@@ -301,6 +336,14 @@ class DatabaseRequestHandler implements Runnable {
                             request.getPayloadDouble("latitude"),
                             request.getPayloadDouble("longitude"));
 
+                case DB_BULK_INSERT_DRIVERS:
+                    return dbManager.registerDriversBatch(
+                            DatabaseManager.parseUserRecords(request.getPayloadString("drivers")));
+
+                case DB_BULK_UPDATE_DRIVER_LOCATIONS:
+                    return dbManager.updateDriverLocationsBatch(
+                            DatabaseManager.parseUserRecords(request.getPayloadString("locations")));
+
                 case DB_CREATE_RIDE:
                     return dbManager.createRide(
                             request.getPayloadString("passengerUsername"),
@@ -350,8 +393,7 @@ class DatabaseRequestHandler implements Runnable {
                     return createErrorResponse("Unknown request type: " + type);
             }
         } catch (Exception e) {
-            System.err.println("[DatabaseRequestHandler] Error processing request: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing request", e);
             return createErrorResponse("Error processing request: " + e.getMessage());
         }
     }
@@ -374,6 +416,7 @@ class DatabaseRequestHandler implements Runnable {
     private boolean isModificationType(MessageType type) {
         return type == MessageType.DB_INSERT_PASSENGER ||
                 type == MessageType.DB_INSERT_DRIVER ||
+                type == MessageType.DB_BULK_INSERT_DRIVERS ||
                 type == MessageType.DB_INSERT_DRIVER_DETAILED ||
                 type == MessageType.DB_APPROVE_DRIVER ||
                 type == MessageType.DB_CREATE_RIDE ||
@@ -392,12 +435,12 @@ class DatabaseRequestHandler implements Runnable {
 
         for (String host : syncHosts) {
             new Thread(() -> { // Async fire-and-forget
-                try (Socket s = new Socket(host, 5002);
+                try (Socket s = RequestContext.connect(host, 5002);
                         PrintWriter pw = new PrintWriter(s.getOutputStream(), true)) {
                     pw.println(json);
-                    System.out.println("[DatabaseService] Synced " + originalRequest.getType() + " to " + host);
+                    log.debug("Synced {} to {}", originalRequest.getType(), host);
                 } catch (Exception e) {
-                    System.err.println("[DatabaseService] Failed to sync to " + host + ": " + e.getMessage());
+                    log.warn("Failed to sync to {}: {}", host, e.getMessage());
                 }
             }).start();
         }
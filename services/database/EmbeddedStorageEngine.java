@@ -0,0 +1,819 @@
+package services.database;
+
+import common.Config;
+import common.Message;
+import common.MessageType;
+import common.JSONUtil;
+import common.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Embedded storage engine for edge deployments and test rigs without MySQL.
+ * All tables live in memory. Every mutation is appended to a command log
+ * (one JSON message per line) which is replayed on startup, so the service
+ * is ready in milliseconds. The log is compacted into a snapshot when it
+ * grows large. Only unfinished rides are kept in memory: like MySQL's
+ * rides_archive, finished rides move to rides_archive.log when the log is
+ * compacted, and their status can no longer change. ride_status_history
+ * goes to a separate append-only file. Neither file is ever replayed.
+ */
+public class EmbeddedStorageEngine implements StorageEngine {
+    private static final Log logger = Log.get("EmbeddedStorage");
+    private static final int COMPACT_THRESHOLD = 10_000; // log lines before compaction on startup
+
+    private static final String DATA_DIR = Config.get("EMBEDDED_DATA_DIR", "data/embedded");
+    // No admins table: one admin from config, by default the one setup.sql seeds into MySQL
+    private static final String ADMIN_USERNAME = Config.get("EMBEDDED_ADMIN_USERNAME", "admin");
+    private static final String ADMIN_PASSWORD = Config.get("EMBEDDED_ADMIN_PASSWORD", "admin123");
+
+    private static final String[] DRIVER_DETAIL_FIELDS = {
+            "full_name", "dob", "gender", "nationality", "id_number", "email", "address",
+            "license_number", "license_type", "license_issue_date", "license_expiry_date",
+            "vehicle_type", "vehicle_model", "vehicle_year", "license_plate"
+    };
+
+    static class Passenger {
+        int id;
+        String username;
+        String password;
+        String phone;
+        double latitude;
+        double longitude;
+    }
+
+    static class Driver {
+        int id;
+        String username;
+        String password;
+        String phone;
+        double latitude;
+        double longitude;
+        boolean available = true;
+        String status = "APPROVED";
+        Map<String, Object> details = new LinkedHashMap<>();
+    }
+
+    private final Map<String, Passenger> passengers = new LinkedHashMap<>();
+    private final Map<String, Driver> drivers = new LinkedHashMap<>();
+    private final Map<Integer, ActiveRideStore.ActiveRide> rides = new LinkedHashMap<>(); // unfinished only
+    private final ActiveRideStore activeRides = new ActiveRideStore();
+    private int nextPassengerId = 1;
+    private int nextDriverId = 1;
+    private int nextRideId = 1;
+
+    private final File logFile;
+    private final File historyFile;
+    private final File archiveFile;
+    // Rides that finished in the replayed log, archived if it is compacted
+    private List<ActiveRideStore.ActiveRide> replayedFinished;
+    private Writer log;
+    private Writer historyLog;
+
+    public EmbeddedStorageEngine() {
+        this(DATA_DIR);
+    }
+
+    public EmbeddedStorageEngine(String dataDir) {
+        long start = System.currentTimeMillis();
+        File dir = new File(dataDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.logFile = new File(dir, "store.log");
+        this.historyFile = new File(dir, "ride_status_history.log");
+        this.archiveFile = new File(dir, "rides_archive.log");
+
+        replayedFinished = new ArrayList<>();
+        int records = replay();
+        if (records > COMPACT_THRESHOLD) {
+            compact();
+        }
+        replayedFinished = null;
+        log = openWriter(logFile, true);
+        historyLog = openWriter(historyFile, true);
+
+        logger.info("Ready in {} ms ({} passengers, {} drivers, {} rides, data dir {})",
+                System.currentTimeMillis() - start, passengers.size(), drivers.size(), rides.size(), dir.getPath());
+    }
+
+    // --- Passengers & Drivers ---
+
+    public synchronized Message registerPassenger(String username, String password, String phone) {
+        if (passengers.containsKey(username)) {
+            return failure("Duplicate entry '" + username + "' for key 'passengers.username'");
+        }
+        Message record = new Message(MessageType.DB_INSERT_PASSENGER);
+        record.addPayload("id", nextPassengerId);
+        record.addPayload("username", username);
+        record.addPayload("password", password);
+        record.addPayload("phone", phone);
+        commit(record);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("passengerId", passengers.get(username).id);
+        response.addPayload("message", "Passenger registered successfully");
+        return response;
+    }
+
+    public synchronized Message registerDriver(String username, String password, String phone) {
+        if (drivers.containsKey(username)) {
+            return failure("Duplicate entry '" + username + "' for key 'drivers.username'");
+        }
+        Message record = new Message(MessageType.DB_INSERT_DRIVER_DETAILED);
+        record.addPayload("id", nextDriverId);
+        record.addPayload("username", username);
+        record.addPayload("password", password);
+        record.addPayload("phone", phone);
+        record.addPayload("status", "APPROVED");
+        commit(record);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("driverId", drivers.get(username).id);
+        response.addPayload("message", "Driver registered successfully");
+        return response;
+    }
+
+    public synchronized Message registerDriverDetailed(Map<String, Object> data) {
+        String username = getStr(data, "username");
+        if (drivers.containsKey(username)) {
+            return failure("Duplicate entry '" + username + "' for key 'drivers.username'");
+        }
+        Message record = new Message(MessageType.DB_INSERT_DRIVER_DETAILED);
+        record.addPayload("id", nextDriverId);
+        record.addPayload("username", username);
+        record.addPayload("password", getStr(data, "password"));
+        record.addPayload("phone", getStr(data, "phone"));
+        record.addPayload("status", "PENDING");
+        for (String field : DRIVER_DETAIL_FIELDS) {
+            record.addPayload(field, getStr(data, field));
+        }
+        int year = 2000;
+        try {
+            Object yObj = data.get("vehicle_year");
+            if (yObj != null)
+                year = Integer.parseInt(yObj.toString());
+        } catch (Exception e) {
+        }
+        record.addPayload("vehicle_year", year);
+        commit(record);
+        logger.info("Driver {} submitted application successfully.", username);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        return response;
+    }
+
+    private String getStr(Map<String, Object> data, String key) {
+        Object val = data.get(key);
+        return val != null ? val.toString() : "";
+    }
+
+    public synchronized Message getPendingDrivers() {
+        List<Map<String, Object>> pending = new ArrayList<>();
+        for (Driver d : drivers.values()) {
+            if (!"PENDING".equals(d.status))
+                continue;
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", d.id);
+            row.put("username", d.username);
+            row.put("password", d.password);
+            row.put("phone", d.phone);
+            row.put("latitude", d.latitude);
+            row.put("longitude", d.longitude);
+            row.put("is_available", d.available);
+            row.put("is_login", false);
+            for (String field : DRIVER_DETAIL_FIELDS) {
+                row.put(field, d.details.get(field));
+            }
+            row.put("status", d.status);
+            pending.add(row);
+        }
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("drivers", JSONUtil.toJSON(pending));
+        return response;
+    }
+
+    public synchronized Message approveDriver(String username, boolean approve) {
+        if (drivers.containsKey(username)) {
+            Message record = new Message(MessageType.DB_APPROVE_DRIVER);
+            record.addPayload("username", username);
+            record.addPayload("approve", approve);
+            commit(record);
+        }
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        return response;
+    }
+
+    public synchronized Message validateLogin(String role, String username, String password) {
+        boolean valid = false;
+        int id = 0;
+        if (role.equalsIgnoreCase("PASSENGER")) {
+            Passenger p = passengers.get(username);
+            if (p != null && Objects.equals(p.password, password)) {
+                valid = true;
+                id = p.id;
+            }
+        } else if (role.equalsIgnoreCase("DRIVER")) {
+            // Only for drivers, check if they are APPROVED
+            Driver d = drivers.get(username);
+            if (d != null && Objects.equals(d.password, password) && "APPROVED".equals(d.status)) {
+                valid = true;
+                id = d.id;
+            }
+        } else if (role.equalsIgnoreCase("ADMIN")) {
+            if (ADMIN_USERNAME.equals(username) && ADMIN_PASSWORD.equals(password)) {
+                valid = true;
+                id = 1;
+            }
+        }
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("valid", valid);
+        if (valid) {
+            response.addPayload("userId", id);
+            response.addPayload("username", username);
+            response.addPayload("role", role);
+        } else if (role.equalsIgnoreCase("DRIVER")) {
+            response.addPayload("error", "Your account is not yet approved. Please wait for admin verification.");
+        }
+        return response;
+    }
+
+    public synchronized Message updatePassengerLocation(String username, double lat, double lon) {
+        if (passengers.containsKey(username)) {
+            Message record = new Message(MessageType.DB_UPDATE_PASSENGER_LOCATION);
+            record.addPayload("username", username);
+            record.addPayload("latitude", lat);
+            record.addPayload("longitude", lon);
+            commit(record);
+        }
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        return response;
+    }
+
+    public synchronized Message updateDriverLocation(String username, double lat, double lon) {
+        if (drivers.containsKey(username)) {
+            Message record = new Message(MessageType.DB_UPDATE_DRIVER_LOCATION);
+            record.addPayload("username", username);
+            record.addPayload("latitude", lat);
+            record.addPayload("longitude", lon);
+            commit(record);
+        }
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        return response;
+    }
+
+    public synchronized Message registerDriversBatch(List<Map<String, String>> batch) {
+        List<Message> records = new ArrayList<>();
+        for (Map<String, String> map : batch) {
+            String username = map.get("username");
+            if (drivers.containsKey(username))
+                continue;
+            Message record = new Message(MessageType.DB_INSERT_DRIVER_DETAILED);
+            record.addPayload("id", nextDriverId + records.size());
+            record.addPayload("username", username);
+            record.addPayload("password", map.get("password"));
+            record.addPayload("phone", map.get("phone"));
+            record.addPayload("status", "APPROVED");
+            records.add(record);
+        }
+        commitAll(records);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("count", batch.size());
+        return response;
+    }
+
+    public synchronized Message updateDriverLocationsBatch(List<Map<String, String>> locations) {
+        List<Message> records = new ArrayList<>();
+        try {
+            for (Map<String, String> loc : locations) {
+                if (!drivers.containsKey(loc.get("username")))
+                    continue;
+                Message record = new Message(MessageType.DB_UPDATE_DRIVER_LOCATION);
+                record.addPayload("username", loc.get("username"));
+                record.addPayload("latitude", Double.parseDouble(loc.get("latitude")));
+                record.addPayload("longitude", Double.parseDouble(loc.get("longitude")));
+                records.add(record);
+            }
+        } catch (RuntimeException e) {
+            return failure(e.getMessage());
+        }
+        commitAll(records);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("count", locations.size());
+        return response;
+    }
+
+    // --- Rides ---
+
+    public synchronized Message createRide(String passengerUsername, String driverUsername,
+            double startLat, double startLon, double destLat, double destLon,
+            String startAddr, String destAddr) {
+        logger.info("Creating ride for {} (Addr: {} -> {})", passengerUsername, startAddr, destAddr);
+
+        if (!passengers.containsKey(passengerUsername)) {
+            logger.warn("createRide FAIL: Passenger '{}' not found.", passengerUsername);
+            return failure("Passenger record not found for username: " + passengerUsername);
+        }
+
+        boolean hasDriver = driverUsername != null && !driverUsername.isEmpty();
+        int rideId = nextRideId;
+        String status = hasDriver ? "ASSIGNED" : "REQUESTED";
+
+        Message record = new Message(MessageType.DB_CREATE_RIDE);
+        record.addPayload("rideId", rideId);
+        record.addPayload("passengerUsername", passengerUsername);
+        record.addPayload("driverUsername", hasDriver ? driverUsername : null);
+        record.addPayload("status", status);
+        record.addPayload("startLat", startLat);
+        record.addPayload("startLon", startLon);
+        record.addPayload("destLat", destLat);
+        record.addPayload("destLon", destLon);
+        record.addPayload("startAddr", startAddr);
+        record.addPayload("destAddr", destAddr);
+        commit(record);
+        appendHistory(rideId, status, startLat, startLon);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("rideId", rideId);
+        logger.info("Ride created successfully: ID={}", rideId);
+        return response;
+    }
+
+    public synchronized Message assignRideDriver(int rideId, String driverUsername) {
+        boolean exists = rides.containsKey(rideId);
+        if (exists) {
+            Message record = new Message(MessageType.ASSIGN_DRIVER);
+            record.addPayload("rideId", rideId);
+            record.addPayload("driverUsername", driverUsername);
+            commit(record);
+        }
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", exists);
+        return response;
+    }
+
+    public synchronized Message updateRideStatus(int rideId, String status, double lat, double lon) {
+        if (!rides.containsKey(rideId)) {
+            // Finished rides leave memory (ids are never reused); their status is final
+            return failure(rideId > 0 && rideId < nextRideId ? "Ride " + rideId + " is finished and archived"
+                    : "Ride " + rideId + " not found");
+        }
+        Message record = new Message(MessageType.DB_UPDATE_RIDE);
+        record.addPayload("rideId", rideId);
+        record.addPayload("status", status);
+        commit(record);
+        appendHistory(rideId, status, lat, lon);
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        return response;
+    }
+
+    public synchronized Message getActiveRides() {
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("rides", ActiveRideStore.toActiveRidesJson(activeRides.findByStatus("ASSIGNED", "STARTED")));
+        return response;
+    }
+
+    public synchronized Message getAllLocations() {
+        StringBuilder json = new StringBuilder("{");
+
+        json.append("\"passengers\":[");
+        boolean first = true;
+        for (Passenger p : passengers.values()) {
+            if (!first)
+                json.append(",");
+            json.append("{\"username\":\"").append(p.username).append("\",");
+            json.append("\"lat\":").append(p.latitude).append(",");
+            json.append("\"lng\":").append(p.longitude).append("}");
+            first = false;
+        }
+        json.append("],");
+
+        json.append("\"drivers\":[");
+        first = true;
+        for (Driver d : drivers.values()) {
+            if (!first)
+                json.append(",");
+            json.append("{\"username\":\"").append(d.username).append("\",");
+            json.append("\"lat\":").append(d.latitude).append(",");
+            json.append("\"lng\":").append(d.longitude).append(",");
+            json.append("\"available\":").append(d.available).append("}");
+            first = false;
+        }
+        json.append("],");
+
+        json.append("\"rides\":");
+        json.append(ActiveRideStore.toMapRidesJson(activeRides.findByStatus("REQUESTED", "ASSIGNED", "STARTED")));
+        json.append("}");
+
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", true);
+        response.addPayload("locations", json.toString());
+        return response;
+    }
+
+    // --- Synchronization ---
+
+    public synchronized Message getAllTableData() {
+        StringBuilder passJson = new StringBuilder("[");
+        boolean first = true;
+        for (Passenger p : passengers.values()) {
+            if (!first)
+                passJson.append(",");
+            passJson.append("{\"username\":\"").append(p.username).append("\",");
+            passJson.append("\"password\":\"").append(p.password).append("\",");
+            passJson.append("\"phone\":\"").append(p.phone).append("\"}");
+            first = false;
+        }
+        passJson.append("]");
+
+        StringBuilder drivJson = new StringBuilder("[");
+        first = true;
+        for (Driver d : drivers.values()) {
+            if (!first)
+                drivJson.append(",");
+            drivJson.append("{\"username\":\"").append(d.username).append("\",");
+            drivJson.append("\"password\":\"").append(d.password).append("\",");
+            drivJson.append("\"phone\":\"").append(d.phone).append("\"}");
+            first = false;
+        }
+        drivJson.append("]");
+
+        Message response = new Message(MessageType.SYNC_DATA_RESPONSE);
+        response.addPayload("passengers", passJson.toString());
+        response.addPayload("drivers", drivJson.toString());
+        response.addPayload("success", true);
+        return response;
+    }
+
+    public synchronized void importData(String passJson, String drivJson) {
+        for (Map<String, String> map : DatabaseManager.parseUserRecords(passJson)) {
+            registerPassenger(map.get("username"), map.get("password"), map.get("phone"));
+        }
+        for (Map<String, String> map : DatabaseManager.parseUserRecords(drivJson)) {
+            registerDriver(map.get("username"), map.get("password"), map.get("phone"));
+        }
+        logger.info("Data Import Complete");
+    }
+
+    public synchronized void close() {
+        closeQuietly(log);
+        closeQuietly(historyLog);
+        log = null;
+        historyLog = null;
+        logger.info("Store closed.");
+    }
+
+    // --- Command log ---
+
+    /**
+     * Apply a mutation to memory and append it to the command log
+     */
+    private void commit(Message record) {
+        apply(record);
+        if (log == null)
+            return;
+        try {
+            log.write(JSONUtil.toJSON(record));
+            log.write('\n');
+            log.flush();
+        } catch (IOException e) {
+            logger.warn("Log write failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Apply and log a list of mutations with a single flush
+     */
+    private void commitAll(List<Message> records) {
+        for (Message record : records) {
+            apply(record);
+        }
+        if (log == null || records.isEmpty())
+            return;
+        try {
+            for (Message record : records) {
+                write(record);
+            }
+            log.flush();
+        } catch (IOException e) {
+            logger.warn("Log write failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The single mutation path, shared by live requests and log replay
+     */
+    private void apply(Message r) {
+        switch (r.getType()) {
+            case DB_INSERT_PASSENGER: {
+                Passenger p = new Passenger();
+                p.id = r.getPayloadInt("id");
+                p.username = r.getPayloadString("username");
+                p.password = r.getPayloadString("password");
+                p.phone = r.getPayloadString("phone");
+                Double lat = r.getPayloadDouble("latitude");
+                Double lon = r.getPayloadDouble("longitude");
+                p.latitude = lat != null ? lat : 0.0;
+                p.longitude = lon != null ? lon : 0.0;
+                passengers.put(p.username, p);
+                nextPassengerId = Math.max(nextPassengerId, p.id + 1);
+                break;
+            }
+            case DB_INSERT_DRIVER_DETAILED: {
+                Driver d = new Driver();
+                d.id = r.getPayloadInt("id");
+                d.username = r.getPayloadString("username");
+                d.password = r.getPayloadString("password");
+                d.phone = r.getPayloadString("phone");
+                d.status = r.getPayloadString("status");
+                Boolean available = r.getPayloadBoolean("available");
+                d.available = available == null || available;
+                Double lat = r.getPayloadDouble("latitude");
+                Double lon = r.getPayloadDouble("longitude");
+                d.latitude = lat != null ? lat : 0.0;
+                d.longitude = lon != null ? lon : 0.0;
+                for (String field : DRIVER_DETAIL_FIELDS) {
+                    if (r.getPayload().containsKey(field))
+                        d.details.put(field, r.getPayloadValue(field));
+                }
+                drivers.put(d.username, d);
+                nextDriverId = Math.max(nextDriverId, d.id + 1);
+                break;
+            }
+            case DB_APPROVE_DRIVER: {
+                Driver d = drivers.get(r.getPayloadString("username"));
+                boolean approve = Boolean.TRUE.equals(r.getPayloadBoolean("approve"));
+                d.status = approve ? "APPROVED" : "REJECTED";
+                d.available = approve;
+                break;
+            }
+            case DB_UPDATE_PASSENGER_LOCATION: {
+                Passenger p = passengers.get(r.getPayloadString("username"));
+                p.latitude = r.getPayloadDouble("latitude");
+                p.longitude = r.getPayloadDouble("longitude");
+                activeRides.updatePassengerLocation(p.username, p.latitude, p.longitude);
+                break;
+            }
+            case DB_UPDATE_DRIVER_LOCATION: {
+                Driver d = drivers.get(r.getPayloadString("username"));
+                d.latitude = r.getPayloadDouble("latitude");
+                d.longitude = r.getPayloadDouble("longitude");
+                activeRides.updateDriverLocation(d.username, d.latitude, d.longitude);
+                break;
+            }
+            case DB_CREATE_RIDE: {
+                int rideId = r.getPayloadInt("rideId");
+                nextRideId = Math.max(nextRideId, rideId + 1);
+                if (!ActiveRideStore.isActiveStatus(r.getPayloadString("status")))
+                    break; // a compacted log's record of the last ride id handed out
+                ActiveRideStore.ActiveRide ride = new ActiveRideStore.ActiveRide();
+                ride.id = rideId;
+                ride.passenger = r.getPayloadString("passengerUsername");
+                ride.driver = r.getPayloadString("driverUsername");
+                ride.status = r.getPayloadString("status");
+                ride.startLat = r.getPayloadDouble("startLat");
+                ride.startLon = r.getPayloadDouble("startLon");
+                ride.destLat = r.getPayloadDouble("destLat");
+                ride.destLon = r.getPayloadDouble("destLon");
+                ride.startAddr = r.getPayloadString("startAddr");
+                ride.destAddr = r.getPayloadString("destAddr");
+                Passenger p = passengers.get(ride.passenger);
+                if (p != null) {
+                    ride.passengerLat = p.latitude;
+                    ride.passengerLon = p.longitude;
+                }
+                Driver d = ride.driver != null ? drivers.get(ride.driver) : null;
+                if (d != null) {
+                    ride.driverLat = d.latitude;
+                    ride.driverLon = d.longitude;
+                }
+                rides.put(ride.id, ride);
+                activeRides.put(ride.copy());
+                break;
+            }
+            case ASSIGN_DRIVER: {
+                ActiveRideStore.ActiveRide ride = rides.get(r.getPayloadInt("rideId"));
+                if (ride == null)
+                    break; // finished (logs written before finished rides were final)
+                String driver = r.getPayloadString("driverUsername");
+                Driver d = drivers.get(driver);
+                ride.driver = driver;
+                ride.status = "ASSIGNED";
+                ride.driverLat = d != null ? d.latitude : 0.0;
+                ride.driverLon = d != null ? d.longitude : 0.0;
+                if (!activeRides.assignDriver(ride.id, driver, ride.driverLat, ride.driverLon)) {
+                    activeRides.put(ride.copy());
+                }
+                break;
+            }
+            case DB_UPDATE_RIDE: {
+                ActiveRideStore.ActiveRide ride = rides.get(r.getPayloadInt("rideId"));
+                if (ride == null)
+                    break; // finished (logs written before finished rides were final)
+                String status = r.getPayloadString("status");
+                ride.status = status;
+                activeRides.updateStatus(ride.id, status);
+                if (!ActiveRideStore.isActiveStatus(status)) {
+                    rides.remove(ride.id);
+                    if (replayedFinished != null)
+                        replayedFinished.add(ride);
+                }
+                // If COMPLETED or CANCELLED, mark driver available again
+                if ((status.equals("COMPLETED") || status.equals("CANCELLED")) && ride.driver != null) {
+                    Driver d = drivers.get(ride.driver);
+                    if (d != null)
+                        d.available = true;
+                }
+                break;
+            }
+            default:
+                logger.warn("Ignoring unknown log record: {}", r.getType());
+        }
+    }
+
+    private int replay() {
+        if (!logFile.exists())
+            return 0;
+        int count = 0;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                Message record = JSONUtil.fromJSON(line);
+                if (record == null || record.getType() == null) {
+                    logger.warn("Skipping corrupt log line {}", (count + 1));
+                    continue;
+                }
+                try {
+                    apply(record);
+                } catch (RuntimeException e) {
+                    logger.warn("Skipping bad log record: {}", e.getMessage());
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            logger.warn("Replay failed: {}", e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Rewrite the command log as a minimal snapshot of the current state,
+     * after moving the rides that finished in it to the archive
+     */
+    private void compact() {
+        if (!archive(replayedFinished)) {
+            logger.warn("Compaction skipped, could not archive finished rides");
+            return;
+        }
+        File tmp = new File(logFile.getPath() + ".tmp");
+        Writer saved = log;
+        log = openWriter(tmp, false);
+        try {
+            for (Passenger p : passengers.values()) {
+                Message record = new Message(MessageType.DB_INSERT_PASSENGER);
+                record.addPayload("id", p.id);
+                record.addPayload("username", p.username);
+                record.addPayload("password", p.password);
+                record.addPayload("phone", p.phone);
+                record.addPayload("latitude", p.latitude);
+                record.addPayload("longitude", p.longitude);
+                write(record);
+            }
+            for (Driver d : drivers.values()) {
+                Message record = new Message(MessageType.DB_INSERT_DRIVER_DETAILED);
+                record.addPayload("id", d.id);
+                record.addPayload("username", d.username);
+                record.addPayload("password", d.password);
+                record.addPayload("phone", d.phone);
+                record.addPayload("status", d.status);
+                record.addPayload("available", d.available);
+                record.addPayload("latitude", d.latitude);
+                record.addPayload("longitude", d.longitude);
+                for (Map.Entry<String, Object> e : d.details.entrySet()) {
+                    record.addPayload(e.getKey(), e.getValue());
+                }
+                write(record);
+            }
+            for (ActiveRideStore.ActiveRide ride : rides.values()) {
+                write(rideRecord(ride));
+            }
+            if (nextRideId > 1 && !rides.containsKey(nextRideId - 1)) {
+                // Keep the id sequence when the newest ride is archived
+                Message record = new Message(MessageType.DB_CREATE_RIDE);
+                record.addPayload("rideId", nextRideId - 1);
+                record.addPayload("status", "ARCHIVED");
+                write(record);
+            }
+            log.close();
+            if (!tmp.renameTo(logFile)) {
+                logFile.delete();
+                tmp.renameTo(logFile);
+            }
+            logger.info("Compacted command log");
+        } catch (IOException e) {
+            logger.warn("Compaction failed, keeping old log: {}", e.getMessage());
+            tmp.delete();
+        } finally {
+            log = saved;
+        }
+    }
+
+    private static Message rideRecord(ActiveRideStore.ActiveRide ride) {
+        Message record = new Message(MessageType.DB_CREATE_RIDE);
+        record.addPayload("rideId", ride.id);
+        record.addPayload("passengerUsername", ride.passenger);
+        record.addPayload("driverUsername", ride.driver);
+        record.addPayload("status", ride.status);
+        record.addPayload("startLat", ride.startLat);
+        record.addPayload("startLon", ride.startLon);
+        record.addPayload("destLat", ride.destLat);
+        record.addPayload("destLon", ride.destLon);
+        record.addPayload("startAddr", ride.startAddr);
+        record.addPayload("destAddr", ride.destAddr);
+        return record;
+    }
+
+    /**
+     * Append finished rides to rides_archive.log, one ride record per line
+     */
+    private boolean archive(List<ActiveRideStore.ActiveRide> finished) {
+        if (finished.isEmpty())
+            return true;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(archiveFile, true), StandardCharsets.UTF_8))) {
+            for (ActiveRideStore.ActiveRide ride : finished) {
+                out.write(JSONUtil.toJSON(rideRecord(ride)));
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            logger.warn("Archiving rides failed: {}", e.getMessage());
+            return false;
+        }
+        logger.info("Archived {} finished rides", finished.size());
+        return true;
+    }
+
+    private void write(Message record) throws IOException {
+        log.write(JSONUtil.toJSON(record));
+        log.write('\n');
+    }
+
+    private void appendHistory(int rideId, String status, double lat, double lon) {
+        if (historyLog == null)
+            return;
+        try {
+            historyLog.write(rideId + "\t" + status + "\t" + lat + "\t" + lon + "\t" + System.currentTimeMillis() + "\n");
+            historyLog.flush();
+        } catch (IOException e) {
+            logger.warn("Error writing ride status history: {}", e.getMessage());
+        }
+    }
+
+    private static Writer openWriter(File file, boolean append) {
+        try {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Could not open {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Writer writer) {
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+            logger.warn("Close failed: {}", e.getMessage());
+        }
+    }
+
+    private static Message failure(String error) {
+        Message response = new Message(MessageType.DB_RESPONSE);
+        response.addPayload("success", false);
+        response.addPayload("error", error);
+        return response;
+    }
+}
@@ -0,0 +1,231 @@
+package services.database;
+
+import common.Log;
+import common.Metrics;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background writer for ride_status_history.
+ * Status transitions are appended to a bounded queue and flushed as one JDBC
+ * batch of a cached INSERT (rewritten into a multi-row statement by the driver),
+ * one transaction per batch, on a dedicated connection. The event
+ * time is captured when the transition is queued, not when it is written.
+ * When the queue is full, callers block until the writer catches up.
+ * A batch that still fails after its retries is spilled to a file and
+ * written again once the writer is idle, so no history is dropped.
+ */
+public class RideHistoryWriter implements Runnable {
+    private static final Log log = Log.get("RideHistoryWriter");
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final int MAX_BATCH = 200;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long SPILL_RETRY_MS = 30_000;
+
+    private static final Metrics.Counter spilled = Metrics.counter("db_history_spilled_total",
+            "Status history rows spilled to disk after failed writes");
+
+    private static class HistoryEntry {
+        final int rideId;
+        final String status;
+        final double latitude;
+        final double longitude;
+        final Timestamp timestamp;
+
+        HistoryEntry(int rideId, String status, double latitude, double longitude, long time) {
+            this.rideId = rideId;
+            this.status = status;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.timestamp = new Timestamp(time);
+        }
+    }
+
+    private final Connection connection;
+    private final StatementCache statements;
+    private final RideJournal spill;
+    private String insertSql; // resolved from the live schema on first write
+    private long lastSpillRetry;
+    private final BlockingQueue<HistoryEntry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public RideHistoryWriter(Connection connection, RideJournal spill) {
+        this.connection = connection;
+        this.statements = new StatementCache(connection);
+        this.spill = spill;
+        this.thread = new Thread(this, "ride-history-writer");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        Metrics.gauge("db_history_queue", "Status history rows waiting to be written", queue::size);
+        thread.start();
+    }
+
+    /**
+     * Queue a status transition for the history table
+     */
+    public void append(int rideId, String status, double lat, double lon, long time) {
+        try {
+            queue.put(new HistoryEntry(rideId, status, lat, lon, time));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted, dropped history for ride {}", rideId);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<HistoryEntry> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                HistoryEntry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    if (!write(batch)) {
+                        spill(batch);
+                    }
+                    batch.clear();
+                }
+                if (running && System.currentTimeMillis() - lastSpillRetry >= SPILL_RETRY_MS)
+                    retrySpill();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!batch.isEmpty())
+                    spill(batch);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write a batch in one transaction, retrying briefly; false if it still failed
+     */
+    private boolean write(List<HistoryEntry> batch) throws InterruptedException {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                PreparedStatement pstmt = statements.prepare(insertSql());
+                connection.setAutoCommit(false);
+                for (HistoryEntry entry : batch) {
+                    pstmt.setInt(1, entry.rideId);
+                    pstmt.setString(2, entry.status);
+                    pstmt.setDouble(3, entry.latitude);
+                    pstmt.setDouble(4, entry.longitude);
+                    pstmt.setTimestamp(5, entry.timestamp);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                connection.commit();
+                return true;
+            } catch (SQLException e) {
+                log.warn("Batch of {} failed (attempt {}): {}", batch.size(), attempt, e.getMessage());
+                insertSql = null; // look at the schema again, it may have been migrated
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                Thread.sleep(200L * attempt);
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The INSERT, naming the time column the table really has: databases
+     * created from setup.sql and not yet migrated call it updated_at
+     */
+    private String insertSql() throws SQLException {
+        if (insertSql == null) {
+            String column = hasColumn("timestamp") || !hasColumn("updated_at") ? "timestamp" : "updated_at";
+            insertSql = "INSERT INTO ride_status_history (ride_id, status, latitude, longitude, " + column
+                    + ") VALUES (?, ?, ?, ?, ?)";
+        }
+        return insertSql;
+    }
+
+    private boolean hasColumn(String column) throws SQLException {
+        try (ResultSet rs = connection.getMetaData().getColumns(connection.getCatalog(), null,
+                "ride_status_history", column)) {
+            return rs.next();
+        }
+    }
+
+    private void spill(List<HistoryEntry> batch) {
+        appendToSpill(batch);
+        spilled.add(batch.size());
+        log.error("Spilled {} history rows to disk, written again once the database accepts them", batch.size());
+    }
+
+    private void appendToSpill(List<HistoryEntry> entries) {
+        for (HistoryEntry entry : entries) {
+            spill.append(String.valueOf(entry.rideId), entry.status, String.valueOf(entry.latitude),
+                    String.valueOf(entry.longitude), String.valueOf(entry.timestamp.getTime()));
+        }
+    }
+
+    /**
+     * Write spilled rows again, keeping whatever still fails
+     */
+    private void retrySpill() throws InterruptedException {
+        lastSpillRetry = System.currentTimeMillis();
+        List<String[]> records = spill.readAll();
+        if (records.isEmpty())
+            return;
+        List<HistoryEntry> entries = new ArrayList<>(records.size());
+        for (String[] record : records) {
+            try {
+                entries.add(new HistoryEntry(Integer.parseInt(record[0]), record[1], Double.parseDouble(record[2]),
+                        Double.parseDouble(record[3]), Long.parseLong(record[4])));
+            } catch (RuntimeException e) {
+                log.warn("Skipping bad spilled history row: {}", String.join(" ", record));
+            }
+        }
+        int written = 0;
+        while (written < entries.size()) {
+            List<HistoryEntry> batch = entries.subList(written, Math.min(written + MAX_BATCH, entries.size()));
+            if (!write(batch))
+                break;
+            written += batch.size();
+        }
+        if (written == 0 && entries.size() == records.size())
+            return;
+        spill.truncate();
+        appendToSpill(entries.subList(written, entries.size()));
+        log.info("Wrote {} spilled history rows, {} still spilled", written, entries.size() - written);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Flush everything still queued and stop the writer thread
+     */
+    public void close() {
+        running = false;
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        statements.close();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Error closing connection: {}", e.getMessage());
+        }
+        spill.close();
+    }
+}
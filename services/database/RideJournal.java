@@ -0,0 +1,106 @@
+package services.database;
+
+import common.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Write-ahead log for active-ride mutations.
+ * Each record is one tab-separated line and is forced to disk before the
+ * mutation is acknowledged, so rides survive a crash even when the MySQL
+ * write-behind has not caught up yet. The journal is truncated whenever the
+ * write-behind queue is fully persisted.
+ */
+public class RideJournal {
+    private static final Log log = Log.get("RideJournal");
+
+    private final File file;
+    private FileOutputStream stream;
+    private Writer writer;
+
+    public RideJournal(String path) {
+        this.file = new File(path);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        open(true);
+    }
+
+    private void open(boolean append) {
+        try {
+            stream = new FileOutputStream(file, append);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error("Could not open {}", file, e);
+        }
+    }
+
+    /**
+     * Append a record and force it to disk
+     */
+    public synchronized void append(String... fields) {
+        if (writer == null)
+            return;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                line.append('\t');
+            line.append(clean(fields[i]));
+        }
+        try {
+            writer.write(line.append('\n').toString());
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            log.error("Append failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Read back every record currently in the journal
+     */
+    public synchronized List<String[]> readAll() {
+        List<String[]> records = new ArrayList<>();
+        if (!file.exists())
+            return records;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty())
+                    records.add(line.split("\t", -1));
+            }
+        } catch (IOException e) {
+            log.error("Replay failed: {}", e.getMessage());
+        }
+        return records;
+    }
+
+    /**
+     * Discard all records (called once everything has reached MySQL)
+     */
+    public synchronized void truncate() {
+        close();
+        open(false);
+    }
+
+    public synchronized void close() {
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+            log.warn("Close failed: {}", e.getMessage());
+        }
+        writer = null;
+        stream = null;
+    }
+
+    private static String clean(String value) {
+        if (value == null)
+            return "";
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
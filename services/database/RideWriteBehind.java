@@ -0,0 +1,263 @@
+package services.database;
+
+import common.Log;
+import common.Metrics;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous writer that brings MySQL up to date with the ActiveRideStore.
+ * Runs on its own connection so request threads never wait on ride UPDATEs.
+ * Rides that reach a terminal status are moved from rides to rides_archive
+ * in batches, together with their ride_status_history rows
+ * (ride_status_history_archive), so no archived ride leaves rows behind that
+ * reference it.
+ * A write that fails with a transient error (connection lost, lock wait
+ * timeout, deadlock) is held and retried before anything queued after it.
+ * One that fails with any other error would fail forever and stall every
+ * later write: after MAX_ATTEMPTS it is dead-lettered (its journal record
+ * is kept in a separate file for inspection) and the writer moves on.
+ */
+public class RideWriteBehind implements Runnable {
+    private static final Log log = Log.get("RideWriteBehind");
+    private static final int ARCHIVE_BATCH_SIZE = 100;
+    private static final long ARCHIVE_INTERVAL_MS = 30_000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_INTERVAL_MS = 5_000;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ER_LOCK_DEADLOCK = 1213;
+
+    private static final Metrics.Counter deadLettered = Metrics.counter("db_write_behind_dead_letters_total",
+            "Ride writes given up on after a permanent error");
+
+    /**
+     * A unit of SQL work executed on the writer connection through its statement cache
+     */
+    public interface SqlTask {
+        void run(StatementCache statements) throws SQLException;
+    }
+
+    /**
+     * A queued task and the journal record it came from (null for the
+     * writer's own archival tasks)
+     */
+    private static final class Write {
+        final String[] record;
+        final SqlTask task;
+
+        Write(String[] record, SqlTask task) {
+            this.record = record;
+            this.task = task;
+        }
+    }
+
+    private final Connection connection;
+    private final StatementCache statements;
+    private final RideJournal journal;
+    private final RideJournal deadLetters;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final List<Integer> pendingArchive = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private Write held; // failed transiently, retried before anything queued after it
+    private boolean journaled = false; // guarded by journal
+    private long lastArchive = System.currentTimeMillis();
+
+    public RideWriteBehind(Connection connection, RideJournal journal, RideJournal deadLetters) {
+        this.connection = connection;
+        this.statements = new StatementCache(connection);
+        this.journal = journal;
+        this.deadLetters = deadLetters;
+        this.thread = new Thread(this, "ride-write-behind");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        Metrics.gauge("db_write_behind_queue", "Ride writes waiting to reach MySQL", queue::size);
+        thread.start();
+    }
+
+    /**
+     * Journal a mutation and queue its SQL. The journal write and the enqueue
+     * happen under the journal lock so truncation never loses a queued record.
+     */
+    public void submit(String[] record, SqlTask task) {
+        synchronized (journal) {
+            if (record != null) {
+                journal.append(record);
+                journaled = true;
+            }
+            queue.add(new Write(record, task));
+        }
+    }
+
+    /**
+     * Queue a ride for archival once every earlier write for it has run
+     */
+    public void archiveLater(int rideId) {
+        queue.add(new Write(null, cache -> pendingArchive.add(rideId)));
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                // A failed task keeps its place: later writes to the same
+                // ride must not overtake it
+                Write write = held != null ? held : queue.poll(1, TimeUnit.SECONDS);
+                if (write != null) {
+                    if (execute(write)) {
+                        held = null;
+                    } else {
+                        held = write;
+                        if (!running)
+                            break; // still in the journal, replayed on the next start
+                        Thread.sleep(RETRY_INTERVAL_MS);
+                    }
+                }
+
+                boolean due = System.currentTimeMillis() - lastArchive >= ARCHIVE_INTERVAL_MS;
+                if (pendingArchive.size() >= ARCHIVE_BATCH_SIZE || (due && !pendingArchive.isEmpty())) {
+                    flushArchive();
+                }
+
+                synchronized (journal) {
+                    if (journaled && queue.isEmpty() && held == null) {
+                        journal.truncate();
+                        journaled = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!pendingArchive.isEmpty()) {
+            flushArchive();
+        }
+    }
+
+    /**
+     * Run a task, retrying briefly. True once it is done with (written, or
+     * dead-lettered after a permanent error); false after a transient error,
+     * to be retried later.
+     */
+    private boolean execute(Write write) throws InterruptedException {
+        SQLException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                write.task.run(statements);
+                return true;
+            } catch (SQLException e) {
+                failure = e;
+                log.warn("Write failed (attempt {}): {}", attempt, e.getMessage());
+                Thread.sleep(200L * attempt);
+            }
+        }
+        if (isTransient(failure))
+            return false;
+        deadLettered.increment();
+        String record = write.record != null ? String.join(" ", write.record) : "(archival)";
+        if (write.record != null)
+            deadLetters.append(write.record);
+        log.error("Gave up on ride write {} after a permanent error", record, failure);
+        return true;
+    }
+
+    /**
+     * Errors that go away by themselves: lost connections, lock wait
+     * timeouts and deadlocks. Anything else (constraint violations, missing
+     * tables or columns) fails the same way every time.
+     */
+    static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || e instanceof SQLNonTransientConnectionException
+                || (state != null && (state.startsWith("08") || state.startsWith("40")))
+                || e.getErrorCode() == ER_LOCK_WAIT_TIMEOUT || e.getErrorCode() == ER_LOCK_DEADLOCK;
+    }
+
+    /**
+     * Move finished rides and their status history into the archive tables,
+     * one transaction per batch. History goes first: nothing may still
+     * reference a ride when its row is deleted.
+     */
+    private void flushArchive() {
+        lastArchive = System.currentTimeMillis();
+        while (!pendingArchive.isEmpty()) {
+            List<Integer> batch = pendingArchive.subList(0, Math.min(ARCHIVE_BATCH_SIZE, pendingArchive.size()));
+            StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0)
+                    ids.append(",");
+                ids.append(batch.get(i).intValue());
+            }
+
+            try (Statement stmt = connection.createStatement()) {
+                connection.setAutoCommit(false);
+                stmt.executeUpdate("INSERT IGNORE INTO ride_status_history_archive SELECT * FROM ride_status_history WHERE ride_id IN (" + ids + ")");
+                stmt.executeUpdate("DELETE FROM ride_status_history WHERE ride_id IN (" + ids + ")");
+                stmt.executeUpdate("INSERT IGNORE INTO rides_archive SELECT * FROM rides WHERE id IN (" + ids + ")");
+                stmt.executeUpdate("DELETE FROM rides WHERE id IN (" + ids + ")");
+                connection.commit();
+                log.info("Archived {} finished rides", batch.size());
+                batch.clear();
+            } catch (SQLException e) {
+                log.warn("Archive batch failed: {}", e.getMessage());
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                return; // retry on the next interval
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue every finished ride still in the hot table (e.g. after an upgrade or crash)
+     */
+    public void archiveFinishedRides() {
+        queue.add(new Write(null, cache -> {
+            try (Statement stmt = cache.getConnection().createStatement();
+                    ResultSet rs = stmt.executeQuery(
+                            "SELECT id FROM rides WHERE status IN ('COMPLETED', 'CANCELLED')")) {
+                while (rs.next()) {
+                    pendingArchive.add(rs.getInt(1));
+                }
+            }
+        }));
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Drain outstanding writes and stop the writer thread
+     */
+    public void close() {
+        running = false;
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        statements.close();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Error closing connection: {}", e.getMessage());
+        }
+        journal.close();
+        deadLetters.close();
+    }
+}
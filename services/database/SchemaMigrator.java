@@ -0,0 +1,268 @@
+package services.database;
+
+import common.Log;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned schema migrations for the MySQL engine.
+ * Applied versions are recorded in schema_migrations, so an up-to-date
+ * database costs a single SELECT at startup. Migrations are idempotent
+ * (IF NOT EXISTS, and "duplicate column"/"duplicate key name"/"can't drop"
+ * errors are ignored) so databases created from database/schema.sql or by older
+ * releases converge on the same schema.
+ * New schema changes go at the end of MIGRATIONS with the next version number;
+ * never edit a migration that has shipped.
+ */
+public class SchemaMigrator {
+    private static final Log log = Log.get("SchemaMigrator");
+    private static final int ER_TABLE_MISSING = 1146;
+    private static final int ER_DUP_FIELDNAME = 1060;
+    private static final int ER_DUP_KEYNAME = 1061;
+    private static final int ER_CANT_DROP_FIELD_OR_KEY = 1091;
+
+    /**
+     * One step of a migration: a statement, or a check of the live schema
+     * for changes that depend on how the database was created
+     */
+    private interface Step {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step[] steps;
+
+        Migration(int version, String description, Step... steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = steps;
+        }
+
+        Migration(int version, String description, String... statements) {
+            this(version, description, Arrays.stream(statements).map(SchemaMigrator::sql).toArray(Step[]::new));
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        MIGRATIONS.add(new Migration(1, "Base tables",
+                "CREATE TABLE IF NOT EXISTS passengers (" +
+                        "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                        "username VARCHAR(50) NOT NULL UNIQUE, " +
+                        "password VARCHAR(255) NOT NULL, " +
+                        "phone VARCHAR(20), " +
+                        "latitude DOUBLE DEFAULT 0.0, " +
+                        "longitude DOUBLE DEFAULT 0.0, " +
+                        "is_login TINYINT(1) DEFAULT 0)",
+                // Drivers - Including all fields used in registerDriverDetailed
+                "CREATE TABLE IF NOT EXISTS drivers (" +
+                        "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                        "username VARCHAR(50) NOT NULL UNIQUE, " +
+                        "password VARCHAR(255) NOT NULL, " +
+                        "phone VARCHAR(20), " +
+                        "latitude DOUBLE DEFAULT 0.0, " +
+                        "longitude DOUBLE DEFAULT 0.0, " +
+                        "is_available TINYINT(1) DEFAULT 1, " +
+                        "is_login TINYINT(1) DEFAULT 0, " +
+                        "full_name VARCHAR(100), " +
+                        "dob VARCHAR(50), " +
+                        "gender VARCHAR(20), " +
+                        "nationality VARCHAR(50), " +
+                        "id_number VARCHAR(50), " +
+                        "email VARCHAR(100), " +
+                        "address TEXT, " +
+                        "license_number VARCHAR(50), " +
+                        "license_type VARCHAR(50), " +
+                        "license_issue_date VARCHAR(50), " +
+                        "license_expiry_date VARCHAR(50), " +
+                        "vehicle_type VARCHAR(50), " +
+                        "vehicle_model VARCHAR(50), " +
+                        "vehicle_year INT, " +
+                        "license_plate VARCHAR(50), " +
+                        "status VARCHAR(20) DEFAULT 'APPROVED')",
+                "CREATE TABLE IF NOT EXISTS rides (" +
+                        "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                        "passenger_id INT NOT NULL, " +
+                        "driver_id INT DEFAULT NULL, " +
+                        "status VARCHAR(20) DEFAULT 'REQUESTED', " +
+                        "start_latitude DOUBLE NOT NULL, " +
+                        "start_longitude DOUBLE NOT NULL, " +
+                        "dest_latitude DOUBLE NOT NULL, " +
+                        "dest_longitude DOUBLE NOT NULL, " +
+                        "start_address VARCHAR(255), " +
+                        "dest_address VARCHAR(255), " +
+                        "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                        "FOREIGN KEY (passenger_id) REFERENCES passengers(id))",
+                "CREATE TABLE IF NOT EXISTS ride_status_history (" +
+                        "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                        "ride_id INT NOT NULL, " +
+                        "status VARCHAR(20), " +
+                        "latitude DOUBLE, " +
+                        "longitude DOUBLE, " +
+                        "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP)"));
+
+        // Databases created before driver registration collected details
+        MIGRATIONS.add(new Migration(2, "Driver registration details",
+                "ALTER TABLE drivers ADD COLUMN full_name VARCHAR(100)",
+                "ALTER TABLE drivers ADD COLUMN dob VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN gender VARCHAR(20)",
+                "ALTER TABLE drivers ADD COLUMN nationality VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN id_number VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN email VARCHAR(100)",
+                "ALTER TABLE drivers ADD COLUMN address TEXT",
+                "ALTER TABLE drivers ADD COLUMN license_number VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN license_type VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN license_issue_date VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN license_expiry_date VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN vehicle_type VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN vehicle_model VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN vehicle_year INT",
+                "ALTER TABLE drivers ADD COLUMN license_plate VARCHAR(50)",
+                "ALTER TABLE drivers ADD COLUMN status VARCHAR(20) DEFAULT 'APPROVED'"));
+
+        // Cold storage for completed/cancelled rides
+        MIGRATIONS.add(new Migration(3, "Ride archive",
+                "CREATE TABLE IF NOT EXISTS rides_archive LIKE rides"));
+
+        // Indexes for the hot paths: active-ride loading and archival (status),
+        // driver lookups (driver_id), per-ride history in time order and the
+        // available/approved driver scan. Names match database/schema.sql.
+        // Databases created from setup.sql call the history time column
+        // updated_at; it is renamed first (the index failed on them, so none
+        // of them has recorded this version).
+        MIGRATIONS.add(new Migration(4, "Hot path indexes",
+                renameColumn("ride_status_history", "updated_at", "timestamp", "TIMESTAMP DEFAULT CURRENT_TIMESTAMP"),
+                sql("CREATE INDEX idx_status ON rides (status)"),
+                sql("CREATE INDEX idx_driver ON rides (driver_id)"),
+                sql("CREATE INDEX idx_ride_time ON ride_status_history (ride_id, timestamp)"),
+                sql("CREATE INDEX idx_available_status ON drivers (is_available, status)")));
+
+        // Status history is archived with its ride. The history writer is
+        // asynchronous and may still add a row after the ride has moved, so
+        // ride_id no longer has a foreign key into rides (schema.sql and
+        // setup.sql no longer declare it).
+        MIGRATIONS.add(new Migration(5, "Ride history archive",
+                dropForeignKeys("ride_status_history", "ride_id"),
+                sql("CREATE TABLE IF NOT EXISTS ride_status_history_archive LIKE ride_status_history")));
+    }
+
+    private final Connection connection;
+
+    public SchemaMigrator(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Apply every migration newer than the recorded schema version
+     */
+    public void migrate() throws SQLException {
+        int current = currentVersion();
+        int latest = MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+        if (current >= latest) {
+            log.info("Schema is up to date (version {})", current);
+            return;
+        }
+
+        try (Statement stmt = connection.createStatement()) {
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= current)
+                    continue;
+                for (Step step : migration.steps) {
+                    step.apply(stmt);
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement(
+                        "INSERT IGNORE INTO schema_migrations (version, description) VALUES (?, ?)")) {
+                    pstmt.setInt(1, migration.version);
+                    pstmt.setString(2, migration.description);
+                    pstmt.executeUpdate();
+                }
+                log.info("Applied migration {}: {}", migration.version, migration.description);
+            }
+        }
+    }
+
+    /**
+     * Highest applied version, creating the bookkeeping table on first run
+     */
+    private int currentVersion() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_migrations")) {
+                rs.next();
+                return rs.getInt(1);
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ER_TABLE_MISSING)
+                    throw e;
+            }
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                    "version INT PRIMARY KEY, " +
+                    "description VARCHAR(255), " +
+                    "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            return 0;
+        }
+    }
+
+    private static Step sql(String statement) {
+        return stmt -> execute(stmt, statement);
+    }
+
+    /**
+     * Rename a column if the table still has it under its old name
+     */
+    private static Step renameColumn(String table, String from, String to, String definition) {
+        return stmt -> {
+            if (hasColumn(stmt.getConnection(), table, from) && !hasColumn(stmt.getConnection(), table, to))
+                stmt.executeUpdate("ALTER TABLE " + table + " CHANGE COLUMN " + from + " `" + to + "` " + definition);
+        };
+    }
+
+    /**
+     * Drop every foreign key on a column, whatever name it was created with
+     */
+    private static Step dropForeignKeys(String table, String column) {
+        return stmt -> {
+            List<String> names = new ArrayList<>();
+            try (PreparedStatement pstmt = stmt.getConnection().prepareStatement(
+                    "SELECT CONSTRAINT_NAME FROM information_schema.KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = DATABASE() "
+                            + "AND TABLE_NAME = ? AND COLUMN_NAME = ? AND REFERENCED_TABLE_NAME IS NOT NULL")) {
+                pstmt.setString(1, table);
+                pstmt.setString(2, column);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next())
+                        names.add(rs.getString(1));
+                }
+            }
+            for (String name : names) {
+                execute(stmt, "ALTER TABLE " + table + " DROP FOREIGN KEY `" + name + "`");
+            }
+        };
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT 1 FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() "
+                        + "AND TABLE_NAME = ? AND COLUMN_NAME = ?")) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, column);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void execute(Statement stmt, String sql) throws SQLException {
+        try {
+            stmt.executeUpdate(sql);
+        } catch (SQLException e) {
+            // Already applied by schema.sql or an older release
+            if (e.getErrorCode() != ER_DUP_FIELDNAME && e.getErrorCode() != ER_DUP_KEYNAME
+                    && e.getErrorCode() != ER_CANT_DROP_FIELD_OR_KEY)
+                throw e;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package services.database;
+
+import common.RequestContext;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-connection cache of prepared statements for the fixed query set.
+ * Statements are prepared once (server-side when the JDBC URL enables
+ * useServerPrepStmts) and reused on every call. When the calling thread is
+ * serving a request with a deadline, the statement's query timeout is set to
+ * the time left. Not thread-safe: use it under the same lock that guards its
+ * connection.
+ */
+public class StatementCache {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> keyStatements = new HashMap<>();
+
+    public StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Cached statement for a query, with parameters cleared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return lookup(statements, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Cached statement that returns generated keys (INSERTs into AUTO_INCREMENT tables)
+     */
+    public PreparedStatement prepareWithKeys(String sql) throws SQLException {
+        return lookup(keyStatements, sql, Statement.RETURN_GENERATED_KEYS);
+    }
+
+    private PreparedStatement lookup(Map<String, PreparedStatement> cache, String sql, int keys)
+            throws SQLException {
+        PreparedStatement pstmt = cache.get(sql);
+        if (pstmt == null || pstmt.isClosed()) {
+            pstmt = connection.prepareStatement(sql, keys);
+            cache.put(sql, pstmt);
+        } else {
+            pstmt.clearParameters();
+            pstmt.clearBatch();
+        }
+        long remaining = RequestContext.remainingMillis();
+        pstmt.setQueryTimeout(remaining == Long.MAX_VALUE ? 0 : (int) Math.max(1, (remaining + 999) / 1000));
+        return pstmt;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public int size() {
+        return statements.size() + keyStatements.size();
+    }
+
+    public void close() {
+        closeAll(statements);
+        closeAll(keyStatements);
+    }
+
+    private static void closeAll(Map<String, PreparedStatement> cache) {
+        for (PreparedStatement pstmt : cache.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                // Connection is going away anyway
+            }
+        }
+        cache.clear();
+    }
+}
@@ -0,0 +1,68 @@
+package services.database;
+
+import common.Message;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage backend used by the Database Service.
+ * Every operation answers with the same DB_RESPONSE messages regardless of
+ * engine, so callers cannot tell which one is running.
+ * Engines: "mysql" (DatabaseManager, default) and "embedded"
+ * (EmbeddedStorageEngine, no external services).
+ */
+public interface StorageEngine {
+
+    Message registerPassenger(String username, String password, String phone);
+
+    Message registerDriver(String username, String password, String phone);
+
+    Message registerDriverDetailed(Map<String, Object> data);
+
+    Message getPendingDrivers();
+
+    Message approveDriver(String username, boolean approve);
+
+    Message validateLogin(String role, String username, String password);
+
+    Message updatePassengerLocation(String username, double lat, double lon);
+
+    Message updateDriverLocation(String username, double lat, double lon);
+
+    /**
+     * Bulk variants: one transaction (or one log flush) for the whole list.
+     * Records use the flat string maps produced by DatabaseManager.parseUserRecords.
+     */
+    Message registerDriversBatch(List<Map<String, String>> drivers);
+
+    Message updateDriverLocationsBatch(List<Map<String, String>> locations);
+
+    Message createRide(String passengerUsername, String driverUsername,
+            double startLat, double startLon, double destLat, double destLon,
+            String startAddr, String destAddr);
+
+    Message assignRideDriver(int rideId, String driverUsername);
+
+    Message updateRideStatus(int rideId, String status, double lat, double lon);
+
+    Message getActiveRides();
+
+    Message getAllLocations();
+
+    Message getAllTableData();
+
+    void importData(String passJson, String drivJson);
+
+    void close();
+
+    /**
+     * Create the engine named by STORAGE_ENGINE ("mysql" or "embedded")
+     */
+    static StorageEngine create(String name) {
+        if (name != null && name.equalsIgnoreCase("embedded")) {
+            return new EmbeddedStorageEngine();
+        }
+        return new DatabaseManager();
+    }
+}
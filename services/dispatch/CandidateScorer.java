@@ -0,0 +1,156 @@
+package services.dispatch;
+
+import java.util.Arrays;
+
+/**
+ * Nearest-driver search over primitive structure-of-arrays buffers (one
+ * double[] of latitudes, one of longitudes) instead of boxed Doubles in maps.
+ * nearest() runs in three steps:
+ *   1. DistanceKernel: equirectangular squared distance to every driver, a
+ *      multiply-add loop with no trigonometry;
+ *   2. a bounded max-heap keeps the best k + MARGIN of them, so each other
+ *      driver costs one comparison with the heap's top;
+ *   3. exact Haversine for those only, sorted.
+ * Within a city the equirectangular error is far below the distance between
+ * neighbouring drivers, so the margin keeps the exact top k in the heap.
+ * Not thread-safe: reuse one per thread.
+ */
+final class CandidateScorer {
+    private static final int MARGIN = 8;
+    private static final DistanceKernel KERNEL = DistanceKernel.best();
+
+    private final DistanceKernel kernel;
+    private double[] lat;
+    private double[] lon;
+    private double[] scratch;
+    private int size;
+
+    // Heap of candidate indices, worst (largest squared distance) on top
+    private int[] heap = new int[0];
+    private double[] heapKey = new double[0];
+
+    CandidateScorer(int capacity) {
+        this(capacity, KERNEL);
+    }
+
+    CandidateScorer(int capacity, DistanceKernel kernel) {
+        this.kernel = kernel;
+        capacity = Math.max(16, capacity);
+        lat = new double[capacity];
+        lon = new double[capacity];
+        scratch = new double[capacity];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add a driver's position; returns its index
+     */
+    int add(double latitude, double longitude) {
+        if (size == lat.length) {
+            int capacity = lat.length * 2;
+            lat = Arrays.copyOf(lat, capacity);
+            lon = Arrays.copyOf(lon, capacity);
+            scratch = new double[capacity];
+        }
+        lat[size] = latitude;
+        lon[size] = longitude;
+        return size++;
+    }
+
+    void set(int index, double latitude, double longitude) {
+        lat[index] = latitude;
+        lon[index] = longitude;
+    }
+
+    /**
+     * The (up to) k drivers nearest (pickupLat, pickupLon), nearest first:
+     * their indices into indices, their distances (km) into distancesKm.
+     * Returns how many were found.
+     */
+    int nearest(double pickupLat, double pickupLon, int k, int[] indices, double[] distancesKm) {
+        if (size == 0 || k <= 0)
+            return 0;
+        kernel.squaredDistances(lat, lon, size, pickupLat, pickupLon, Math.cos(Math.toRadians(pickupLat)), scratch);
+
+        int keep = Math.min(size, k + MARGIN);
+        if (heap.length < keep) {
+            heap = new int[keep];
+            heapKey = new double[keep];
+        }
+        for (int i = 0; i < keep; i++) {
+            siftUp(i, i, scratch[i]);
+        }
+        double worst = heapKey[0];
+        for (int i = keep; i < size; i++) {
+            if (scratch[i] < worst) {
+                siftDown(keep, i, scratch[i]);
+                worst = heapKey[0];
+            }
+        }
+
+        // Exact distances for the survivors, then sort them (a handful)
+        double[] exact = new double[keep];
+        int[] order = new int[keep];
+        for (int j = 0; j < keep; j++) {
+            order[j] = heap[j];
+            exact[j] = DispatchServer.calculateDistance(pickupLat, pickupLon, lat[heap[j]], lon[heap[j]]);
+        }
+        for (int a = 1; a < keep; a++) {
+            int index = order[a];
+            double d = exact[a];
+            int b = a - 1;
+            while (b >= 0 && exact[b] > d) {
+                exact[b + 1] = exact[b];
+                order[b + 1] = order[b];
+                b--;
+            }
+            exact[b + 1] = d;
+            order[b + 1] = index;
+        }
+        int found = Math.min(k, keep);
+        System.arraycopy(order, 0, indices, 0, found);
+        System.arraycopy(exact, 0, distancesKm, 0, found);
+        return found;
+    }
+
+    private void siftUp(int slot, int index, double key) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (heapKey[parent] >= key)
+                break;
+            heap[slot] = heap[parent];
+            heapKey[slot] = heapKey[parent];
+            slot = parent;
+        }
+        heap[slot] = index;
+        heapKey[slot] = key;
+    }
+
+    /**
+     * Replace the top (the worst kept) with a better candidate
+     */
+    private void siftDown(int count, int index, double key) {
+        int slot = 0;
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= count)
+                break;
+            if (child + 1 < count && heapKey[child + 1] > heapKey[child])
+                child++;
+            if (heapKey[child] <= key)
+                break;
+            heap[slot] = heap[child];
+            heapKey[slot] = heapKey[child];
+            slot = child;
+        }
+        heap[slot] = index;
+        heapKey[slot] = key;
+    }
+}
@@ -0,0 +1,97 @@
+package services.dispatch;
+
+import common.JSONUtil;
+import common.Log;
+import common.Message;
+import common.MessageType;
+import common.RequestContext;
+import common.Span;
+import common.Tracer;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Handles one request from another Dispatch Server in the cluster:
+ * heartbeats, ride requests handed off to the owner of their pickup cell,
+ * and claims/releases of drivers whose reservation this instance owns.
+ */
+class DispatchPeerHandler implements Runnable {
+    private static final Log log = Log.get("DispatchPeerHandler");
+    private final Socket socket;
+
+    DispatchPeerHandler(Socket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+
+            String line = in.readLine();
+            if (line == null)
+                return;
+            Message request = JSONUtil.fromJSON(line);
+            if (request == null)
+                return;
+
+            RequestContext.begin(request, 0);
+            Span span = Tracer.begin(request, request.getType().name(), false);
+            try {
+                Message response = process(request);
+                out.println(JSONUtil.toJSON(response));
+            } finally {
+                span.close();
+                RequestContext.end();
+            }
+        } catch (IOException e) {
+            log.warn("Error handling peer request: {}", e.getMessage());
+        }
+    }
+
+    private Message process(Message request) {
+        Message response = new Message(request.getType());
+        switch (request.getType()) {
+            case DISPATCH_HEARTBEAT:
+                DispatchServer.getPartitions().markAlive(request.getPayloadString("from"));
+                response.addPayload("success", true);
+                break;
+
+            case DISPATCH_HANDOFF:
+                if (RequestContext.checkExpired("handoff from peer")) {
+                    response.addPayload("success", true);
+                    response.addPayload("result", null);
+                    break;
+                }
+                String result = DispatchServer.assignNearestDriver(
+                        request.getPayloadString("passengerUsername"),
+                        request.getPayloadDouble("pickupLat"),
+                        request.getPayloadDouble("pickupLon"),
+                        request.getPayloadDouble("destLat"),
+                        request.getPayloadDouble("destLon"),
+                        request.getPayloadString("startAddr"),
+                        request.getPayloadString("destAddr"));
+                response.addPayload("success", true);
+                response.addPayload("result", result);
+                break;
+
+            case DISPATCH_CLAIM_DRIVER:
+                Boolean force = request.getPayloadBoolean("force");
+                response.addPayload("success", DispatchServer.claimLocally(request.getPayloadString("driverUsername"),
+                        force != null && force));
+                break;
+
+            case DISPATCH_RELEASE_DRIVER:
+                DispatchServer.releaseLocally(request.getPayloadString("driverUsername"));
+                response.addPayload("success", true);
+                break;
+
+            default:
+                response = new Message(MessageType.ERROR);
+                response.addPayload("error", "Unknown cluster request: " + request.getType());
+        }
+        return response;
+    }
+}
@@ -1,8 +1,16 @@
 package services.dispatch;
 
+import common.Config;
+import common.GeoHeatmap;
 import common.Message;
+import common.OfferSettings;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.Metrics;
+import common.RequestContext;
+import common.Span;
+import common.Tracer;
 
 import java.io.*;
 import java.net.*;
@@ -12,64 +20,241 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Dispatch Server - Handles passenger ride requests and assigns drivers.
- * Runs on port 5000 and coordinates with Driver Service and Database Service.
+ * Runs on port 5000 (or the port given as the first argument) and coordinates
+ * with Driver Service and Database Service.
  * This is the main orchestrator of the ride-sharing system.
+ * Several instances can run as a cluster (DISPATCH_PEERS): each owns a share
+ * of the map's geo cells and of the driver reservations, see PartitionMap.
  */
 public class DispatchServer {
-    private static final int PORT = 5000;
-    private static final String DRIVER_SERVICE_HOST = System.getenv("DRIVER_SERVICE_HOST") != null ? System.getenv("DRIVER_SERVICE_HOST") : "localhost";
+    private static final Log log = Log.get("DispatchServer");
+    private static final int DEFAULT_PORT = 5000;
+    private static int port = DEFAULT_PORT;
+    private static final String DRIVER_SERVICE_HOST = Config.get("DRIVER_SERVICE_HOST", "localhost");
     private static final int DRIVER_SERVICE_PORT = 5003;  // API port
-    private static final String DB_SERVICE_HOST = System.getenv("DB_SERVICE_HOST") != null ? System.getenv("DB_SERVICE_HOST") : "localhost";
+    private static final String DB_SERVICE_HOST = Config.get("DB_SERVICE_HOST", "localhost");
     private static final int DB_SERVICE_PORT = 5002;
     
     // Synchronization for driver assignment (prevents race conditions)
     private static final ReentrantLock assignmentLock = new ReentrantLock();
     private static Set<String> busyDrivers = ConcurrentHashMap.newKeySet();
     
+    private static final Metrics.Histogram lockWait = Metrics.histogram("dispatch_assign_lock_wait_seconds",
+            "Time spent waiting for the driver assignment lock");
+    private static final Metrics.Histogram lockHeld = Metrics.histogram("dispatch_assign_lock_held_seconds",
+            "Time the driver assignment lock is held per request");
+    private static final Metrics.Counter assigned = Metrics.counter("dispatch_assignments_total{result=\"assigned\"}",
+            "Ride requests by outcome of the driver search");
+    private static final Metrics.Counter waiting = Metrics.counter("dispatch_assignments_total{result=\"waiting\"}", null);
+    private static final Metrics.Counter failed = Metrics.counter("dispatch_assignments_total{result=\"failed\"}", null);
+    private static final Metrics.Counter offersAccepted = Metrics.counter("dispatch_offers_total{result=\"accepted\"}",
+            "Ride offers made to drivers, by outcome");
+    private static final Metrics.Counter offersRefused = Metrics.counter("dispatch_offers_total{result=\"refused\"}", null);
+    
     // Active passenger connections
     private static ConcurrentHashMap<String, PassengerHandler> activePassengers = new ConcurrentHashMap<>();
     
+    // Cell and driver ownership across Dispatch Server instances
+    private static PartitionMap partitions = PartitionMap.standalone("localhost:" + DEFAULT_PORT);
+    
+    // How the available drivers are ranked for a pickup (MATCHING_POLICY)
+    private static MatchingPolicy matchingPolicy = new NearestDriverPolicy();
+    private static final int REPLY_MARGIN_MS = 500;     // kept back to answer the passenger
+    private static final int MIN_OFFER_MS = 1_000;      // shorter offers are not worth sending
+    
+    // Ride requests per pickup cell, over the heatmap window
+    private static final GeoHeatmap demand = new GeoHeatmap();
+    
     private static ExecutorService threadPool = Executors.newCachedThreadPool();
     private static volatile boolean running = true;
     
     public static void main(String[] args) {
-        System.out.println("============================================================");
-        System.out.println("DISPATCH SERVER");
-        System.out.println("============================================================");
-        System.out.println("[DispatchServer] Starting on port " + PORT);
-        System.out.println("[DispatchServer] Will connect to:");
-        System.out.println("  - Driver Service: " + DRIVER_SERVICE_HOST + ":" + DRIVER_SERVICE_PORT);
-        System.out.println("  - Database Service: " + DB_SERVICE_HOST + ":" + DB_SERVICE_PORT);
-        System.out.println("============================================================");
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        partitions = loadPartitionMap();
+        loadMatchingSettings();
+        Metrics.gauge("dispatch_active_passengers", "Passengers connected to this instance", activePassengers::size);
+        Metrics.gauge("dispatch_reserved_drivers", "Drivers reserved by this instance", busyDrivers::size);
+        Metrics.gauge("dispatch_cluster_members", "Live Dispatch Server instances, this one included",
+                () -> partitions.getMembers().size());
+        Metrics.gauge("dispatch_heatmap_cells", "Pickup cells with demand counts", demand::size);
+        Metrics.gauge("dispatch_assign_lock_queue", "Threads waiting for the assignment lock",
+                assignmentLock::getQueueLength);
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("[DispatchServer] Ready to accept passenger connections");
+        log.info("Dispatch Server starting on port {}", port);
+        log.info("Driver Service: {}:{}", DRIVER_SERVICE_HOST, DRIVER_SERVICE_PORT);
+        log.info("Database Service: {}:{}", DB_SERVICE_HOST, DB_SERVICE_PORT);
+        log.info("Matching policy: {} (offers to up to {} drivers, {} at a time, {} ms each)",
+                matchingPolicy.name(), OfferSettings.CANDIDATES, OfferSettings.BROADCAST, OfferSettings.TIMEOUT_MS);
+        if (partitions.isClustered()) {
+            log.info("Cluster: {} (peers on port +{})", partitions.getSelf(), PartitionMap.PEER_PORT_OFFSET);
+            new Thread(DispatchServer::startPeerServer, "dispatch-peers").start();
+            partitions.addListener(DispatchServer::handOverReservations);
+            partitions.start();
+        }
+        Metrics.serve("DispatchServer", port);
+        Tracer.init("dispatch:" + port);
+        
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            log.info("Ready to accept passenger connections");
             
             while (running) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("[DispatchServer] New passenger connection from: " + clientSocket.getInetAddress());
+                log.info("New passenger connection from: {}", clientSocket.getInetAddress());
                 
                 PassengerHandler handler = new PassengerHandler(clientSocket);
                 threadPool.execute(handler);
             }
         } catch (IOException e) {
-            System.err.println("[DispatchServer] Server error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Server error", e);
         } finally {
             threadPool.shutdown();
         }
     }
     
+    /**
+     * MATCHING_POLICY (nearest driver if unset or unknown; config.properties,
+     * overridden by environment variables). The offers themselves are
+     * OfferSettings.
+     */
+    private static void loadMatchingSettings() {
+        String name = Config.get("MATCHING_POLICY", null);
+        MatchingPolicy policy = MatchingPolicy.byName(name);
+        if (policy == null) {
+            if (name != null)
+                log.warn("Unknown MATCHING_POLICY '{}', using nearest driver", name);
+            policy = new NearestDriverPolicy();
+        }
+        matchingPolicy = policy;
+    }
+    
+    /**
+     * Build the partition map from DISPATCH_PEERS / DISPATCH_SELF / DISPATCH_CELL_DEGREES
+     * (config.properties, overridden by environment variables)
+     */
+    private static PartitionMap loadPartitionMap() {
+        String peersConfig = Config.get("DISPATCH_PEERS", null);
+        List<String> peers = new ArrayList<>();
+        if (peersConfig != null) {
+            for (String peer : peersConfig.split(",")) {
+                if (!peer.trim().isEmpty()) peers.add(peer.trim());
+            }
+        }
+        
+        // Self is DISPATCH_SELF, else the one peer entry with our port
+        String self = Config.get("DISPATCH_SELF", null);
+        if (self == null) {
+            List<String> matches = new ArrayList<>();
+            for (String peer : peers) {
+                if (peer.endsWith(":" + port)) matches.add(peer);
+            }
+            if (matches.size() > 1) {
+                throw new IllegalStateException("DISPATCH_PEERS has several entries on port " + port + " " + matches
+                        + "; set DISPATCH_SELF to the one that is this instance");
+            }
+            self = matches.isEmpty() ? "localhost:" + port : matches.get(0);
+        }
+        if (!peers.isEmpty() && !peers.contains(self)) {
+            throw new IllegalStateException("This instance (" + self + ") is not in DISPATCH_PEERS " + peers
+                    + "; add it, or set DISPATCH_SELF to its entry");
+        }
+        
+        double cellDegrees = Config.getDouble("DISPATCH_CELL_DEGREES", 0);
+        if (peers.isEmpty() || (peers.size() == 1 && peers.contains(self))) {
+            return PartitionMap.standalone(self);
+        }
+        return new PartitionMap(self, peers, cellDegrees);
+    }
+    
+    /**
+     * Accept requests from other Dispatch Server instances
+     */
+    private static void startPeerServer() {
+        int peerPort = port + PartitionMap.PEER_PORT_OFFSET;
+        try (ServerSocket peerSocket = new ServerSocket(peerPort)) {
+            log.info("Cluster port ready on {}", peerPort);
+            while (running) {
+                Socket socket = peerSocket.accept();
+                threadPool.execute(new DispatchPeerHandler(socket));
+            }
+        } catch (IOException e) {
+            log.warn("Cluster port error: {}", e.getMessage());
+        }
+    }
+    
+    static PartitionMap getPartitions() {
+        return partitions;
+    }
+    
+    /**
+     * Entry point for ride requests: matched here if this instance owns the
+     * pickup cell, otherwise handed off to the owner. If the owner cannot be
+     * reached it is marked dead and ownership is recomputed; if it was reached
+     * but did not answer, the request is not matched here as well.
+     */
+    public static String requestRide(String passengerUsername, double passengerLat, double passengerLon,
+                                     double destLat, double destLon, String startAddr, String destAddr) {
+        long cell = partitions.cellOf(passengerLat, passengerLon);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            String owner = partitions.ownerOfCell(cell);
+            if (partitions.isSelf(owner)) break;
+            
+            Message handoff = new Message(MessageType.DISPATCH_HANDOFF);
+            handoff.addPayload("passengerUsername", passengerUsername);
+            handoff.addPayload("pickupLat", passengerLat);
+            handoff.addPayload("pickupLon", passengerLon);
+            handoff.addPayload("destLat", destLat);
+            handoff.addPayload("destLon", destLon);
+            handoff.addPayload("startAddr", startAddr);
+            handoff.addPayload("destAddr", destAddr);
+            Message response = null;
+            boolean unreachable = false;
+            try (Span span = Tracer.start("handoff to cell owner")) {
+                RequestContext.propagate(handoff);
+                try {
+                    // The owner may spend its whole offer budget on the request
+                    response = partitions.exchange(owner, handoff, OfferSettings.matchingBudgetMs());
+                } catch (ConnectException e) {
+                    unreachable = true;
+                    span.setError(owner + " unreachable");
+                } catch (IOException e) {
+                    span.setError(owner + " did not answer: " + e.getMessage());
+                }
+            }
+            if (RequestContext.isExpired()) {
+                // Out of time, not a dead peer
+                RequestContext.checkExpired("requestRide handoff to " + owner);
+                return null;
+            }
+            if (response != null && Boolean.TRUE.equals(response.getPayloadBoolean("success"))) {
+                log.info("Ride request for {} handled by {}", passengerUsername, owner);
+                return response.getPayloadString("result");
+            }
+            if (!unreachable) {
+                // The owner got the request and may still be offering it: matching
+                // it here as well would create a second ride
+                log.warn("Cell owner {} did not answer the handoff for {}", owner, passengerUsername);
+                return null;
+            }
+            log.warn("Cell owner {} unreachable, recomputing ownership", owner);
+            partitions.markDead(owner);
+        }
+        return assignNearestDriver(passengerUsername, passengerLat, passengerLon, destLat, destLon, startAddr, destAddr);
+    }
+    
     /**
      * Request available drivers from Driver Service
      */
     public static List<Map<String, Object>> getAvailableDrivers() {
+        Span span = Tracer.start("getAvailableDrivers");
         try {
-            Socket socket = new Socket(DRIVER_SERVICE_HOST, DRIVER_SERVICE_PORT);
+            Socket socket = RequestContext.connect(DRIVER_SERVICE_HOST, DRIVER_SERVICE_PORT);
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             
             Message request = new Message(MessageType.GET_AVAILABLE_DRIVERS);
+            RequestContext.propagate(request);
             String requestJson = JSONUtil.toJSON(request);
             out.println(requestJson);
             
@@ -84,7 +269,10 @@ public class DispatchServer {
                 }
             }
         } catch (IOException e) {
-            System.err.println("[DispatchServer] Error getting available drivers: " + e.getMessage());
+            log.warn("Error getting available drivers: {}", e.getMessage());
+            span.setError(e.getMessage());
+        } finally {
+            span.close();
         }
         
         return new ArrayList<>();
@@ -93,7 +281,7 @@ public class DispatchServer {
     /**
      * Parse drivers JSON string to list
      */
-    private static List<Map<String, Object>> parseDriversJSON(String jsonStr) {
+    static List<Map<String, Object>> parseDriversJSON(String jsonStr) {
         List<Map<String, Object>> drivers = new ArrayList<>();
         
         try {
@@ -131,72 +319,138 @@ public class DispatchServer {
                 drivers.add(driver);
             }
         } catch (Exception e) {
-            System.err.println("[DispatchServer] Error parsing drivers JSON: " + e.getMessage());
+            log.warn("Error parsing drivers JSON: {}", e.getMessage());
         }
         
         return drivers;
     }
     
     /**
-     * Find nearest available driver (with synchronization to prevent double-booking)
+     * Find a driver for a ride request: rank the available drivers by the
+     * matching policy, then offer the ride to the best of them until one
+     * accepts - OFFER_BROADCAST at a time, the first to accept winning. Each
+     * offer waits at most OFFER_TIMEOUT_MS, and a refusal moves on down the
+     * same ranked list rather than searching again. The ride is
+     * recorded first (REQUESTED) and the accepting driver added to it, so a
+     * request no driver accepts in time is left waiting.
      */
     public static String assignNearestDriver(String passengerUsername, double passengerLat, double passengerLon, 
                                             double destLat, double destLon, String startAddr, String destAddr) {
+        List<Map<String, Object>> drivers = rankAvailableDrivers(passengerUsername, passengerLat, passengerLon);
+        if (drivers == null) {
+            failed.increment();
+            return null;
+        }
+        
+        // ALWAYS Create ride in database (REQUESTED until a driver accepts)
+        int rideId = createRideInDB(passengerUsername, null, passengerLat, passengerLon, destLat, destLon, startAddr, destAddr);
+        if (rideId <= 0) {
+            failed.increment();
+            return null;
+        }
+        
+        try (Span span = Tracer.start("offer ride")) {
+            Iterator<Map<String, Object>> ranked = drivers.iterator();
+            int tried = 0;
+            while (tried < OfferSettings.CANDIDATES && ranked.hasNext()) {
+                // Out of time: the ride stays REQUESTED, and the passenger must
+                // hear that before their deadline
+                long remaining = RequestContext.remainingMillis() - REPLY_MARGIN_MS;
+                if (remaining < MIN_OFFER_MS) {
+                    log.info("Request for ride {} ran out of time after {} candidates", rideId, tried);
+                    span.setError("Out of time after " + tried + " candidates");
+                    break;
+                }
+                
+                // The next OFFER_BROADCAST drivers we can reserve (another request or
+                // instance may have reserved some since the ranking) share one offer
+                List<String> batch = new ArrayList<>();
+                while (batch.size() < OfferSettings.BROADCAST && tried < OfferSettings.CANDIDATES && ranked.hasNext()) {
+                    String candidate = (String) ranked.next().get("username");
+                    tried++;
+                    if (reserveDriver(candidate, false)) batch.add(candidate);
+                }
+                if (batch.isEmpty()) continue;
+                
+                String winner = assignDriverViaService(batch, passengerUsername, rideId,
+                        passengerLat, passengerLon, (int) Math.min(OfferSettings.TIMEOUT_MS, remaining));
+                // Accepted or not, the Driver Service now has the drivers' true
+                // state, so the reservations have done their job (otherwise they
+                // stay reserved here and are never offered again)
+                for (String candidate : batch) {
+                    releaseDriver(candidate);
+                }
+                if (winner != null) {
+                    offersAccepted.increment();
+                    if (!assignDriverInDB(rideId, winner)) {
+                        log.warn("Ride {} accepted by {} but not recorded in the DB", rideId, winner);
+                    }
+                    assigned.increment();
+                    return winner + ":" + rideId;
+                }
+                offersRefused.increment();
+                log.info("No driver of {} took ride {}, trying the next candidates", batch, rideId);
+            }
+        }
+        
+        // No driver accepted, but Request logged
+        waiting.increment();
+        return "WAITING:" + rideId;
+    }
+    
+    /**
+     * Available drivers not reserved here, best first by the matching policy;
+     * null if the request ran out of time waiting for the assignment lock.
+     * The lock only covers the search: offers wait on drivers, and
+     * reservations already keep two requests from offering the same one.
+     */
+    private static List<Map<String, Object>> rankAvailableDrivers(String passengerUsername, double passengerLat, double passengerLon) {
+        Span waitSpan = Tracer.start("assignment lock wait");
+        long waitStart = System.nanoTime();
         assignmentLock.lock();
+        long heldStart = System.nanoTime();
+        lockWait.record(heldStart - waitStart);
+        waitSpan.close();
+        Span span = Tracer.start("rankAvailableDrivers");
         try {
-            System.out.println("[DispatchServer] Assigning driver for " + passengerUsername);
+            // Waiting for the lock may have used up the caller's budget
+            if (RequestContext.checkExpired("assignNearestDriver (after lock wait)")) {
+                return null;
+            }
+            log.info("Assigning driver for {}", passengerUsername);
             
             // Get available drivers
             List<Map<String, Object>> drivers = getAvailableDrivers();
             drivers.removeIf(d -> busyDrivers.contains(d.get("username")));
             
-            // Find nearest
-            Map<String, Object> nearestDriver = null;
-            double minDistance = Double.MAX_VALUE;
-            
-            for (Map<String, Object> driver : drivers) {
-                double dLat = (Double) driver.get("latitude");
-                double dLon = (Double) driver.get("longitude");
-                double distance = calculateDistance(passengerLat, passengerLon, dLat, dLon);
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    nearestDriver = driver;
-                }
-            }
-            
-            String driverUsername = null;
-            if (nearestDriver != null) {
-                driverUsername = (String) nearestDriver.get("username");
-                busyDrivers.add(driverUsername); // Reserve driver
-            }
-            
-            // ALWAYS Create ride in database (REQUESTED or ASSIGNED)
-            int rideId = createRideInDB(passengerUsername, driverUsername, passengerLat, passengerLon, destLat, destLon, startAddr, destAddr);
-            
-            if (rideId > 0) {
-                if (driverUsername != null) {
-                    // Notify Driver Service
-                    assignDriverViaService(driverUsername, passengerUsername, rideId, passengerLat, passengerLon);
-                    return driverUsername + ":" + rideId;
-                } else {
-                    // No driver found, but Request logged
-                    return "WAITING:" + rideId;
-                }
-            }
-            
-            // If failed, cleanup
-            if (driverUsername != null) busyDrivers.remove(driverUsername);
-            return null;
-            
+            // Best first, by the matching policy
+            Span rankSpan = Tracer.start("rank drivers");
+            drivers = matchingPolicy.rank(drivers, passengerLat, passengerLon, OfferSettings.CANDIDATES);
+            rankSpan.close();
+            return drivers;
         } finally {
             assignmentLock.unlock();
+            lockHeld.recordSince(heldStart);
+            span.close();
         }
     }
     
+    /**
+     * Sort drivers nearest first, recording each one's "distance" (km)
+     */
+    static void sortByDistance(List<Map<String, Object>> drivers, double lat, double lon) {
+        for (Map<String, Object> driver : drivers) {
+            double dLat = (Double) driver.get("latitude");
+            double dLon = (Double) driver.get("longitude");
+            driver.put("distance", calculateDistance(lat, lon, dLat, dLon));
+        }
+        drivers.sort(Comparator.comparingDouble(d -> (Double) d.get("distance")));
+    }
+    
     /**
      * Calculate distance between two points using Haversine formula
      */
-    private static double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
+    static double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
         final double R = 6371; // Earth radius in km
         
         double dLat = Math.toRadians(lat2 - lat1);
@@ -216,8 +470,9 @@ public class DispatchServer {
      */
     private static int createRideInDB(String passenger, String driver, double startLat, double startLon, 
                                      double destLat, double destLon, String startAddr, String destAddr) {
+        Span span = Tracer.start("createRideInDB");
         try {
-            Socket socket = new Socket(DB_SERVICE_HOST, DB_SERVICE_PORT);
+            Socket socket = RequestContext.connect(DB_SERVICE_HOST, DB_SERVICE_PORT);
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             
@@ -230,6 +485,7 @@ public class DispatchServer {
             request.addPayload("destLon", destLon);
             request.addPayload("startAddr", startAddr);
             request.addPayload("destAddr", destAddr);
+            RequestContext.propagate(request);
             
             String requestJson = JSONUtil.toJSON(request);
             out.println(requestJson);
@@ -244,28 +500,44 @@ public class DispatchServer {
                 }
             }
         } catch (IOException e) {
-            System.err.println("[DispatchServer] Error creating ride in DB: " + e.getMessage());
+            log.warn("Error creating ride in DB: {}", e.getMessage());
+            span.setError(e.getMessage());
+        } finally {
+            span.close();
         }
         
         return -1;
     }
     
     /**
-     * Assign driver via Driver Service
+     * Assign driver via Driver Service. With an offer timeout (ms, 0 for
+     * none) the ride is offered to all the drivers at once and this waits for
+     * the outcome; returns the driver who accepted first, or without a
+     * timeout the driver if the Driver Service took the assignment (and now
+     * reports them as unavailable). Null if no driver took it.
      */
-    private static void assignDriverViaService(String driverUsername, String passengerUsername, 
-                                              int rideId, double pickupLat, double pickupLon) {
+    private static String assignDriverViaService(List<String> driverUsernames, String passengerUsername, 
+                                              int rideId, double pickupLat, double pickupLon, int offerTimeoutMs) {
+        Span span = Tracer.start("assignDriverViaService");
         try {
-            Socket socket = new Socket(DRIVER_SERVICE_HOST, DRIVER_SERVICE_PORT);
+            Socket socket = RequestContext.connect(DRIVER_SERVICE_HOST, DRIVER_SERVICE_PORT);
+            if (offerTimeoutMs > 0) {
+                socket.setSoTimeout(RequestContext.timeout(offerTimeoutMs + RequestContext.READ_TIMEOUT_MS));
+            }
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             
             Message request = new Message(MessageType.ASSIGN_DRIVER);
-            request.addPayload("driverUsername", driverUsername);
+            request.addPayload("driverUsername", driverUsernames.get(0));
+            if (offerTimeoutMs > 0) {
+                request.addPayload("driverUsernames", String.join(",", driverUsernames));
+                request.addPayload("offerTimeoutMs", offerTimeoutMs);
+            }
             request.addPayload("passengerUsername", passengerUsername);
             request.addPayload("rideId", rideId);
             request.addPayload("pickupLat", pickupLat);
             request.addPayload("pickupLon", pickupLon);
+            RequestContext.propagate(request);
             
             String requestJson = JSONUtil.toJSON(request);
             out.println(requestJson);
@@ -273,9 +545,83 @@ public class DispatchServer {
             String responseJson = in.readLine();
             socket.close();
             
-            System.out.println("[DispatchServer] Driver assignment sent to Driver Service");
+            log.debug("Driver assignment sent to Driver Service");
+            Message response = responseJson != null ? JSONUtil.fromJSON(responseJson) : null;
+            if (response == null || response.getType() != MessageType.DRIVER_ASSIGNED
+                    || !Boolean.TRUE.equals(response.getPayloadBoolean("success"))) {
+                return null;
+            }
+            return response.getPayloadString("driverUsername");
         } catch (IOException e) {
-            System.err.println("[DispatchServer] Error assigning driver via service: " + e.getMessage());
+            log.warn("Error assigning driver via service: {}", e.getMessage());
+            span.setError(e.getMessage());
+            return null;
+        } finally {
+            span.close();
+        }
+    }
+    
+    /**
+     * Reserve a driver with the instance that owns its reservation.
+     * Returns false if the driver is already reserved (or its owner cannot be reached).
+     */
+    private static boolean reserveDriver(String driverUsername, boolean force) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String owner = partitions.ownerOfDriver(driverUsername);
+            if (partitions.isSelf(owner)) {
+                return claimLocally(driverUsername, force);
+            }
+            Message claim = new Message(MessageType.DISPATCH_CLAIM_DRIVER);
+            claim.addPayload("driverUsername", driverUsername);
+            claim.addPayload("force", force);
+            Message response = null;
+            try (Span span = Tracer.start("reserve driver with owner")) {
+                RequestContext.propagate(claim);
+                try {
+                    response = partitions.exchange(owner, claim);
+                } catch (ConnectException e) {
+                    span.setError(owner + " unreachable");
+                } catch (IOException e) {
+                    // Reachable but slow: not a reason to take over its cells
+                    span.setError(owner + " did not answer: " + e.getMessage());
+                    return false;
+                }
+            }
+            if (response != null) {
+                return Boolean.TRUE.equals(response.getPayloadBoolean("success"));
+            }
+            if (RequestContext.isExpired()) return false;
+            partitions.markDead(owner);
+        }
+        return false;
+    }
+    
+    static boolean claimLocally(String driverUsername, boolean force) {
+        if (driverUsername == null) return false;
+        boolean claimed = busyDrivers.add(driverUsername);
+        return claimed || force;
+    }
+    
+    static void releaseLocally(String driverUsername) {
+        if (driverUsername != null) busyDrivers.remove(driverUsername);
+    }
+    
+    /**
+     * After a membership change, pass reservations for drivers this instance
+     * no longer owns to their new owner
+     */
+    private static void handOverReservations() {
+        int moved = 0;
+        for (String driverUsername : new ArrayList<>(busyDrivers)) {
+            String owner = partitions.ownerOfDriver(driverUsername);
+            if (partitions.isSelf(owner)) continue;
+            if (reserveDriver(driverUsername, true)) {
+                busyDrivers.remove(driverUsername);
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            log.info("Handed over {} driver reservations after rebalance", moved);
         }
     }
     
@@ -283,8 +629,35 @@ public class DispatchServer {
      * Release driver from busy set (when ride completes)
      */
     public static void releaseDriver(String driverUsername) {
-        busyDrivers.remove(driverUsername);
-        System.out.println("[DispatchServer] Released driver: " + driverUsername);
+        String owner = partitions.ownerOfDriver(driverUsername);
+        if (partitions.isSelf(owner)) {
+            releaseLocally(driverUsername);
+        } else {
+            Message release = new Message(MessageType.DISPATCH_RELEASE_DRIVER);
+            release.addPayload("driverUsername", driverUsername);
+            if (partitions.call(owner, release) == null) {
+                log.warn("Could not release {} on {}", driverUsername, owner);
+            }
+        }
+        log.info("Released driver: {}", driverUsername);
+    }
+    
+    /**
+     * Count a ride request in its pickup cell
+     */
+    public static void recordDemand(double pickupLat, double pickupLon) {
+        demand.record(pickupLat, pickupLon);
+    }
+    
+    /**
+     * Ride requests received by this instance, per pickup cell
+     */
+    public static Message getDemand() {
+        Message response = new Message(MessageType.HEATMAP_DATA);
+        response.addPayload("cells", demand.encode());
+        response.addPayload("cellDegrees", demand.getCellDegrees());
+        response.addPayload("windowSeconds", demand.getWindowSeconds());
+        return response;
     }
     
     /**
@@ -292,8 +665,8 @@ public class DispatchServer {
      */
     public static void registerPassenger(String username, PassengerHandler handler) {
         activePassengers.put(username, handler);
-        System.out.println("[DispatchServer] Passenger registered: " + username);
-        System.out.println("[DispatchServer] Total active passengers: " + activePassengers.size());
+        log.info("Passenger registered: {}", username);
+        log.info("Total active passengers: {}", activePassengers.size());
     }
     
     /**
@@ -301,46 +674,58 @@ public class DispatchServer {
      */
     public static void unregisterPassenger(String username) {
         activePassengers.remove(username);
-        System.out.println("[DispatchServer] Passenger unregistered: " + username);
-        System.out.println("[DispatchServer] Total active passengers: " + activePassengers.size());
+        log.info("Passenger unregistered: {}", username);
+        log.info("Total active passengers: {}", activePassengers.size());
     }
     
     /**
      * Force assign driver (called by Admin Manual Assign)
      */
     public static boolean forceAssignDriver(int rideId, String driverUsername, double lat, double lon) {
-        // 1. Mark driver as busy locally
-        busyDrivers.add(driverUsername);
+        // 1. Mark driver as busy with the instance that owns its reservation
+        reserveDriver(driverUsername, true);
         
-        System.out.println("[DispatchServer] FORCE ASSIGN: " + driverUsername + " to Ride " + rideId);
+        log.info("FORCE ASSIGN: {} to Ride {}", driverUsername, rideId);
         
         // 2. Update DB (ASSIGN_DRIVER)
+        if (!assignDriverInDB(rideId, driverUsername)) {
+            log.warn("Failed to update DB for manual assignment");
+            return false;
+        }
+        
+        // 3. Notify Driver Service
+        assignDriverViaService(Collections.singletonList(driverUsername), "AdminManual", rideId, lat, lon, 0);
+        
+        return true;
+    }
+    
+    /**
+     * Record a ride's driver (and ASSIGNED status) in the database
+     */
+    private static boolean assignDriverInDB(int rideId, String driverUsername) {
+        Span span = Tracer.start("assignDriverInDB");
         try {
-            Socket socket = new Socket(DB_SERVICE_HOST, DB_SERVICE_PORT);
+            Socket socket = RequestContext.connect(DB_SERVICE_HOST, DB_SERVICE_PORT);
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             
             Message req = new Message(MessageType.ASSIGN_DRIVER);
             req.addPayload("rideId", rideId);
             req.addPayload("driverUsername", driverUsername);
+            RequestContext.propagate(req);
             out.println(JSONUtil.toJSON(req));
             
             String responseStr = in.readLine();
             socket.close();
             
-            Message res = JSONUtil.fromJSON(responseStr);
-            if (res == null || !res.getPayloadBoolean("success")) {
-                System.err.println("[DispatchServer] Failed to update DB for manual assignment");
-                return false;
-            }
-        } catch(Exception e) {
-            e.printStackTrace();
+            Message res = responseStr != null ? JSONUtil.fromJSON(responseStr) : null;
+            return res != null && Boolean.TRUE.equals(res.getPayloadBoolean("success"));
+        } catch (IOException e) {
+            log.warn("Error assigning driver in DB: {}", e.getMessage());
+            span.setError(e.getMessage());
             return false;
+        } finally {
+            span.close();
         }
-        
-        // 3. Notify Driver Service
-        assignDriverViaService(driverUsername, "AdminManual", rideId, lat, lon);
-        
-        return true;
     }
 }
@@ -0,0 +1,570 @@
+package services.dispatch;
+
+import common.Metrics;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete-event simulator for matching policies. Replays ride requests and
+ * driver movements through MatchingPolicy.rank on a virtual clock - no
+ * sockets, no services, hours of city time in seconds. Every policy sees the
+ * same demand and starts from the same fleet, so results compare side by side.
+ * Reports pickup distance, passenger wait (until pickup), driver utilization
+ * and the CPU time the policy spent ranking.
+ * A request no driver is free for waits, first come first served, until a
+ * driver drops a passenger off or --max-wait passes. Trips run at a fixed
+ * speed along the great circle stretched by --road-factor.
+ *
+ * Usage: java services.dispatch.DispatchSimulator [--option=value ...]
+ *   --policies=nearest,first-available   policies to compare (MatchingPolicy.byName)
+ *   --drivers=500 --hours=24 --requests-per-hour=1000 --seed=1
+ *   --hotspots=4          share of synthetic pickups clusters around this many spots
+ *   --requests=file.csv   recorded demand instead: seconds,pickupLat,pickupLon,destLat,destLon per line
+ *   --traces=file.csv     recorded idle-driver positions instead of the random wander:
+ *                         seconds,driver,latitude,longitude per line (sorted by time)
+ *   --gps-interval=5      seconds between position updates of the random wander
+ *   --speed-kmh=25 --road-factor=1.3 --max-wait=300 (seconds)
+ *   --center=6.9271,79.8612 --radius=5 (km)
+ */
+public class DispatchSimulator {
+    private static final int MOVE = 0;
+    private static final int TRACE = 1;
+    private static final int REQUEST = 2;
+    private static final int DROPOFF = 3;
+    private static final int ABANDON = 4;
+
+    private static final double METRES_PER_DEGREE = 111_320;
+    private static final double HOTSPOT_SHARE = 0.6;
+
+    public static void main(String[] args) throws IOException {
+        Settings settings = Settings.parse(args);
+        Demand demand = settings.requestsFile != null ? Demand.load(settings.requestsFile)
+                : Demand.generate(settings);
+        Traces traces = settings.tracesFile != null ? Traces.load(settings.tracesFile) : null;
+        int drivers = traces != null ? traces.names.size() : settings.drivers;
+        System.out.printf(Locale.ROOT, "%d requests, %d drivers, %.1f simulated hours%n", demand.size(), drivers,
+                settings.horizonMs / 3_600_000.0);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String name : settings.policies) {
+            MatchingPolicy policy = MatchingPolicy.byName(name);
+            if (policy == null)
+                throw new IllegalArgumentException("Unknown policy " + name);
+            results.add(new DispatchSimulator(settings, policy, demand, traces).run());
+        }
+        print(results);
+    }
+
+    private final Settings settings;
+    private final MatchingPolicy policy;
+    private final Demand demand;
+    private final Traces traces;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long seq;
+    private long now;
+
+    // Fleet, by index
+    private final List<Map<String, Object>> entries = new ArrayList<>(); // what the policy sees
+    private final Map<String, Integer> indexOf = new HashMap<>();
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] heading;
+    private final boolean[] busy;
+    private final long[] busySince;
+    private final Random[] wander;
+    private int idle;
+    private long busyMs;
+
+    // Requests waiting for a driver, oldest first; state per request
+    private final Deque<Integer> waiting = new ArrayDeque<>();
+    private final byte[] state; // 0 pending, 1 waiting, 2 matched, 3 abandoned
+
+    private long processed;
+    private long matched;
+    private long abandoned;
+    private long rankNanos;
+    private final Metrics.Histogram pickupMetres = new Metrics.Histogram();
+    private final Metrics.Histogram waitMs = new Metrics.Histogram();
+    private final Metrics.Histogram rankTime = new Metrics.Histogram();
+    private double pickupKmTotal;
+
+    DispatchSimulator(Settings settings, MatchingPolicy policy, Demand demand, Traces traces) {
+        this.settings = settings;
+        this.policy = policy;
+        this.demand = demand;
+        this.traces = traces;
+        int n = traces != null ? traces.names.size() : settings.drivers;
+        lat = new double[n];
+        lon = new double[n];
+        heading = new double[n];
+        busy = new boolean[n];
+        busySince = new long[n];
+        wander = new Random[n];
+        state = new byte[demand.size()];
+        Random fleet = new Random(settings.seed);
+        for (int i = 0; i < n; i++) {
+            String username = traces != null ? traces.names.get(i) : "sim_driver_" + i;
+            double[] start = traces != null ? traces.firstPosition(i) : settings.randomPoint(fleet);
+            lat[i] = start[0];
+            lon[i] = start[1];
+            heading[i] = fleet.nextDouble() * 2 * Math.PI;
+            wander[i] = new Random(settings.seed * 7919 + i);
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("username", username);
+            entry.put("latitude", lat[i]);
+            entry.put("longitude", lon[i]);
+            entry.put("available", true);
+            entries.add(entry);
+            indexOf.put(username, i);
+        }
+        idle = n;
+    }
+
+    Map<String, Object> run() {
+        long wallStart = System.nanoTime();
+        if (traces != null) {
+            schedule(traces.time(0), TRACE, 0);
+        } else {
+            for (int i = 0; i < busy.length; i++) {
+                schedule(wander[i].nextInt((int) settings.gpsIntervalMs), MOVE, i);
+            }
+        }
+        if (demand.size() > 0)
+            schedule(demand.time[0], REQUEST, 0);
+
+        Event event;
+        while ((event = events.poll()) != null && event.time <= settings.horizonMs) {
+            now = event.time;
+            processed++;
+            switch (event.kind) {
+                case MOVE:
+                    move(event.subject);
+                    schedule(now + settings.gpsIntervalMs, MOVE, event.subject);
+                    break;
+                case TRACE:
+                    trace(event.subject);
+                    if (event.subject + 1 < traces.size())
+                        schedule(traces.time(event.subject + 1), TRACE, event.subject + 1);
+                    break;
+                case REQUEST:
+                    request(event.subject);
+                    if (event.subject + 1 < demand.size())
+                        schedule(demand.time[event.subject + 1], REQUEST, event.subject + 1);
+                    break;
+                case DROPOFF:
+                    dropoff(event.subject);
+                    break;
+                case ABANDON:
+                    if (state[event.subject] == 1) {
+                        state[event.subject] = 3;
+                        abandoned++;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event " + event.kind);
+            }
+        }
+        long end = Math.min(now, settings.horizonMs);
+        for (int i = 0; i < busy.length; i++) {
+            if (busy[i])
+                busyMs += end - busySince[i];
+        }
+        return report(end, System.nanoTime() - wallStart);
+    }
+
+    private void schedule(long time, int kind, int subject) {
+        events.add(new Event(time, seq++, kind, subject));
+    }
+
+    /**
+     * Random wander of an idle driver, as in the load test: drifting heading,
+     * turning back towards the centre when leaving the area
+     */
+    private void move(int i) {
+        if (busy[i])
+            return;
+        Random random = wander[i];
+        double seconds = settings.gpsIntervalMs / 1000.0;
+        double metres = settings.speedKmh / 3.6 * seconds * (0.5 + random.nextDouble());
+        double dNorth = (settings.centerLat - lat[i]) * METRES_PER_DEGREE;
+        double dEast = (settings.centerLon - lon[i]) * METRES_PER_DEGREE * Math.cos(Math.toRadians(lat[i]));
+        heading[i] += random.nextGaussian() * 0.3;
+        if (Math.hypot(dNorth, dEast) > settings.radiusKm * 1000)
+            heading[i] = Math.atan2(dEast, dNorth);
+        setPosition(i, lat[i] + metres * Math.cos(heading[i]) / METRES_PER_DEGREE,
+                lon[i] + metres * Math.sin(heading[i]) / (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat[i]))));
+    }
+
+    private void trace(int row) {
+        int i = traces.driver[row];
+        if (!busy[i])
+            setPosition(i, traces.lat[row], traces.lon[row]);
+    }
+
+    private void setPosition(int i, double newLat, double newLon) {
+        lat[i] = newLat;
+        lon[i] = newLon;
+        Map<String, Object> entry = entries.get(i);
+        entry.put("latitude", newLat);
+        entry.put("longitude", newLon);
+    }
+
+    private void request(int r) {
+        if (idle == 0 || !match(r)) {
+            state[r] = 1;
+            waiting.add(r);
+            schedule(now + settings.maxWaitMs, ABANDON, r);
+        }
+    }
+
+    /**
+     * Rank the idle drivers for request r with the policy and give it the
+     * first; false if the policy offered none
+     */
+    private boolean match(int r) {
+        List<Map<String, Object>> candidates = new ArrayList<>(idle);
+        for (int i = 0; i < busy.length; i++) {
+            if (!busy[i])
+                candidates.add(entries.get(i));
+        }
+        long start = System.nanoTime();
+        List<Map<String, Object>> ranked = policy.rank(candidates, demand.pickupLat[r], demand.pickupLon[r], 1);
+        long spent = System.nanoTime() - start;
+        rankNanos += spent;
+        rankTime.record(spent);
+        if (ranked.isEmpty())
+            return false;
+
+        int i = indexOf.get((String) ranked.get(0).get("username"));
+        double pickupKm = DispatchServer.calculateDistance(lat[i], lon[i], demand.pickupLat[r], demand.pickupLon[r]);
+        double tripKm = DispatchServer.calculateDistance(demand.pickupLat[r], demand.pickupLon[r], demand.destLat[r],
+                demand.destLon[r]);
+        long pickupMs = travelMs(pickupKm);
+        busy[i] = true;
+        busySince[i] = now;
+        idle--;
+        entries.get(i).put("available", false);
+        setPosition(i, demand.destLat[r], demand.destLon[r]); // where it will be when free again
+        state[r] = 2;
+        matched++;
+        pickupKmTotal += pickupKm;
+        pickupMetres.record(Math.round(pickupKm * 1000));
+        waitMs.record(now - demand.time[r] + pickupMs);
+        schedule(now + pickupMs + travelMs(tripKm), DROPOFF, i);
+        return true;
+    }
+
+    private long travelMs(double km) {
+        return Math.round(km * settings.roadFactor / settings.speedKmh * 3_600_000);
+    }
+
+    private void dropoff(int i) {
+        busy[i] = false;
+        busyMs += now - busySince[i];
+        idle++;
+        entries.get(i).put("available", true);
+        while (idle > 0 && !waiting.isEmpty()) {
+            int r = waiting.peek();
+            if (state[r] != 1) {
+                waiting.poll(); // abandoned meanwhile
+            } else if (match(r)) {
+                waiting.poll();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private Map<String, Object> report(long simulatedMs, long wallNanos) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        long requests = 0;
+        for (byte s : state) {
+            if (s != 0)
+                requests++;
+        }
+        r.put("policy", policy.name());
+        r.put("requests", requests);
+        r.put("matched %", pct(matched, requests));
+        r.put("abandoned %", pct(abandoned, requests));
+        r.put("pickup km mean", fmt(matched > 0 ? pickupKmTotal / matched : 0));
+        r.put("pickup km p50", fmt(pickupMetres.quantile(0.5) / 1000.0));
+        r.put("pickup km p90", fmt(pickupMetres.quantile(0.9) / 1000.0));
+        r.put("wait min p50", fmt(waitMs.quantile(0.5) / 60_000.0));
+        r.put("wait min p90", fmt(waitMs.quantile(0.9) / 60_000.0));
+        r.put("wait min p99", fmt(waitMs.quantile(0.99) / 60_000.0));
+        r.put("utilization %", pct(busyMs, (long) busy.length * Math.max(1, simulatedMs)));
+        r.put("rank us mean", fmt(rankTime.getCount() > 0 ? rankNanos / 1000.0 / rankTime.getCount() : 0));
+        r.put("rank us p99", fmt(rankTime.quantile(0.99) / 1000.0));
+        r.put("events", processed);
+        r.put("wall ms", wallNanos / 1_000_000);
+        r.put("events/min", Math.round(processed * 60e9 / Math.max(1, wallNanos)));
+        return r;
+    }
+
+    private static void print(List<Map<String, Object>> results) {
+        System.out.println();
+        for (String key : results.get(0).keySet()) {
+            StringBuilder line = new StringBuilder(String.format("%-16s", key));
+            for (Map<String, Object> result : results) {
+                line.append(String.format("%18s", result.get(key)));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static String pct(long part, long whole) {
+        return fmt(whole > 0 ? 100.0 * part / whole : 0);
+    }
+
+    private static String fmt(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * Ordered by time, then by when it was scheduled, so runs are repeatable
+     */
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final int kind;
+        final int subject; // driver, request or trace row
+
+        Event(long time, long seq, int kind, int subject) {
+            this.time = time;
+            this.seq = seq;
+            this.kind = kind;
+            this.subject = subject;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Ride requests, sorted by time (virtual ms)
+     */
+    static final class Demand {
+        long[] time;
+        double[] pickupLat;
+        double[] pickupLon;
+        double[] destLat;
+        double[] destLon;
+
+        Demand(int n) {
+            time = new long[n];
+            pickupLat = new double[n];
+            pickupLon = new double[n];
+            destLat = new double[n];
+            destLon = new double[n];
+        }
+
+        int size() {
+            return time.length;
+        }
+
+        /**
+         * Poisson arrivals at --requests-per-hour; a share of pickups around
+         * a few hotspots, the rest and all destinations anywhere in the area
+         */
+        static Demand generate(Settings settings) {
+            Random random = new Random(settings.seed ^ 0x5DEECE66DL);
+            double[][] hotspots = new double[settings.hotspots][];
+            for (int h = 0; h < hotspots.length; h++) {
+                hotspots[h] = settings.randomPoint(random);
+            }
+            double meanGapMs = 3_600_000.0 / settings.requestsPerHour;
+            List<double[]> rows = new ArrayList<>();
+            double t = 0;
+            while (true) {
+                t += -Math.log(1 - random.nextDouble()) * meanGapMs;
+                if (t > settings.horizonMs)
+                    break;
+                double[] pickup;
+                if (hotspots.length > 0 && random.nextDouble() < HOTSPOT_SHARE) {
+                    double[] spot = hotspots[random.nextInt(hotspots.length)];
+                    pickup = new double[] { spot[0] + random.nextGaussian() * 600 / METRES_PER_DEGREE,
+                            spot[1] + random.nextGaussian() * 600 / METRES_PER_DEGREE };
+                } else {
+                    pickup = settings.randomPoint(random);
+                }
+                double[] dest = settings.randomPoint(random);
+                rows.add(new double[] { t, pickup[0], pickup[1], dest[0], dest[1] });
+            }
+            return of(rows);
+        }
+
+        static Demand load(String file) throws IOException {
+            List<double[]> rows = new ArrayList<>();
+            for (String[] fields : csv(file, 5)) {
+                rows.add(new double[] { Double.parseDouble(fields[0]) * 1000, Double.parseDouble(fields[1]),
+                        Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), Double.parseDouble(fields[4]) });
+            }
+            rows.sort((a, b) -> Double.compare(a[0], b[0]));
+            return of(rows);
+        }
+
+        private static Demand of(List<double[]> rows) {
+            Demand demand = new Demand(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                double[] row = rows.get(i);
+                demand.time[i] = (long) row[0];
+                demand.pickupLat[i] = row[1];
+                demand.pickupLon[i] = row[2];
+                demand.destLat[i] = row[3];
+                demand.destLon[i] = row[4];
+            }
+            return demand;
+        }
+    }
+
+    /**
+     * Recorded driver positions, sorted by time
+     */
+    static final class Traces {
+        final List<String> names = new ArrayList<>();
+        final List<double[]> first = new ArrayList<>(); // each driver's first position
+        long[] time;
+        int[] driver;
+        double[] lat;
+        double[] lon;
+
+        int size() {
+            return time.length;
+        }
+
+        long time(int row) {
+            return time[row];
+        }
+
+        double[] firstPosition(int i) {
+            return first.get(i);
+        }
+
+        static Traces load(String file) throws IOException {
+            List<String[]> rows = csv(file, 4);
+            rows.sort((a, b) -> Double.compare(Double.parseDouble(a[0]), Double.parseDouble(b[0])));
+            Traces traces = new Traces();
+            Map<String, Integer> ids = new HashMap<>();
+            traces.time = new long[rows.size()];
+            traces.driver = new int[rows.size()];
+            traces.lat = new double[rows.size()];
+            traces.lon = new double[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                String[] row = rows.get(i);
+                traces.time[i] = (long) (Double.parseDouble(row[0]) * 1000);
+                traces.lat[i] = Double.parseDouble(row[2]);
+                traces.lon[i] = Double.parseDouble(row[3]);
+                double[] position = { traces.lat[i], traces.lon[i] };
+                traces.driver[i] = ids.computeIfAbsent(row[1].trim(), name -> {
+                    traces.names.add(name);
+                    traces.first.add(position);
+                    return traces.names.size() - 1;
+                });
+            }
+            return traces;
+        }
+    }
+
+    /**
+     * Lines of a CSV file with at least the given number of fields, skipping
+     * blank lines, # comments and a header
+     */
+    private static List<String[]> csv(String file, int fields) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || !(Character.isDigit(line.charAt(0)) || line.charAt(0) == '.'))
+                    continue;
+                String[] row = line.split(",");
+                if (row.length < fields)
+                    throw new IOException(file + ": expected " + fields + " fields in '" + line + "'");
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Command-line options
+     */
+    static final class Settings {
+        List<String> policies = Arrays.asList(NearestDriverPolicy.NAME, FirstAvailablePolicy.NAME);
+        int drivers = 500;
+        long horizonMs = 24 * 3_600_000L;
+        double requestsPerHour = 1000;
+        int hotspots = 4;
+        long seed = 1;
+        String requestsFile;
+        String tracesFile;
+        long gpsIntervalMs = 5000;
+        double speedKmh = 25;
+        double roadFactor = 1.3;
+        long maxWaitMs = 300_000;
+        double centerLat = 6.9271;
+        double centerLon = 79.8612;
+        double radiusKm = 5;
+
+        static Settings parse(String[] args) {
+            Settings s = new Settings();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0)
+                    throw new IllegalArgumentException("Expected --option=value, got " + arg);
+                String key = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "policies": s.policies = Arrays.asList(value.split(",")); break;
+                    case "drivers": s.drivers = Integer.parseInt(value); break;
+                    case "hours": s.horizonMs = (long) (Double.parseDouble(value) * 3_600_000); break;
+                    case "requests-per-hour": s.requestsPerHour = Double.parseDouble(value); break;
+                    case "hotspots": s.hotspots = Integer.parseInt(value); break;
+                    case "seed": s.seed = Long.parseLong(value); break;
+                    case "requests": s.requestsFile = value; break;
+                    case "traces": s.tracesFile = value; break;
+                    case "gps-interval": s.gpsIntervalMs = (long) (Double.parseDouble(value) * 1000); break;
+                    case "speed-kmh": s.speedKmh = Double.parseDouble(value); break;
+                    case "road-factor": s.roadFactor = Double.parseDouble(value); break;
+                    case "max-wait": s.maxWaitMs = (long) (Double.parseDouble(value) * 1000); break;
+                    case "center":
+                        String[] latLon = value.split(",");
+                        s.centerLat = Double.parseDouble(latLon[0]);
+                        s.centerLon = Double.parseDouble(latLon[1]);
+                        break;
+                    case "radius": s.radiusKm = Double.parseDouble(value); break;
+                    default: throw new IllegalArgumentException("Unknown option --" + key);
+                }
+            }
+            if (s.gpsIntervalMs <= 0 || s.speedKmh <= 0 || s.requestsPerHour <= 0)
+                throw new IllegalArgumentException("--gps-interval, --speed-kmh and --requests-per-hour must be positive");
+            return s;
+        }
+
+        /**
+         * A point uniformly distributed over the area
+         */
+        double[] randomPoint(Random random) {
+            double distance = radiusKm * 1000 * Math.sqrt(random.nextDouble());
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            return new double[] { centerLat + distance * Math.cos(bearing) / METRES_PER_DEGREE,
+                    centerLon + distance * Math.sin(bearing) / (METRES_PER_DEGREE * Math.cos(Math.toRadians(centerLat))) };
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package services.dispatch;
+
+import common.Log;
+
+/**
+ * The inner loop of candidate scoring: equirectangular squared distance
+ * (degrees^2, longitude scaled by cos of the pickup latitude) from one point
+ * to every driver in structure-of-arrays buffers. Good enough to rank drivers
+ * within a city; CandidateScorer re-checks the best ones with Haversine.
+ * best() picks VectorDistanceKernel (jdk.incubator.vector, built separately
+ * from vector/) when it was built and the JVM was started with --add-modules
+ * jdk.incubator.vector, the scalar loop otherwise.
+ */
+interface DistanceKernel {
+    void squaredDistances(double[] lat, double[] lon, int n, double lat0, double lon0, double lonScale,
+            double[] out);
+
+    static DistanceKernel best() {
+        Log log = Log.get("DistanceKernel");
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                DistanceKernel kernel = (DistanceKernel) Class.forName("services.dispatch.VectorDistanceKernel")
+                        .getDeclaredConstructor().newInstance();
+                log.info("Scoring candidates with the vector kernel");
+                return kernel;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn("Vector kernel unavailable, using the scalar one: {}", e.toString());
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * Branch-free loop over primitive arrays, which C2 can auto-vectorize
+     */
+    final class Scalar implements DistanceKernel {
+        @Override
+        public void squaredDistances(double[] lat, double[] lon, int n, double lat0, double lon0, double lonScale,
+                double[] out) {
+            for (int i = 0; i < n; i++) {
+                double dy = lat[i] - lat0;
+                double dx = (lon[i] - lon0) * lonScale;
+                out[i] = dx * dx + dy * dy;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package services.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * No ranking: drivers in the order the Driver Service lists them. The
+ * baseline a smarter policy has to beat.
+ */
+public class FirstAvailablePolicy implements MatchingPolicy {
+    static final String NAME = "first-available";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<Map<String, Object>> rank(List<Map<String, Object>> drivers, double pickupLat, double pickupLon,
+            int limit) {
+        return drivers.size() <= limit ? drivers : new ArrayList<>(drivers.subList(0, limit));
+    }
+}
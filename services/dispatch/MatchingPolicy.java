@@ -0,0 +1,41 @@
+package services.dispatch;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How Dispatch chooses among the available drivers for a pickup. A policy
+ * ranks the candidates, best first; assignNearestDriver then offers the
+ * ride down that list until a driver accepts. Candidates are the entries of the Driver Service's
+ * available-driver list (username, latitude, longitude, available); a policy
+ * may reorder or drop entries and add fields of its own.
+ * The server's policy is MATCHING_POLICY (default "nearest"); compare
+ * policies offline with DispatchSimulator.
+ */
+public interface MatchingPolicy {
+    /**
+     * Name used in MATCHING_POLICY and in simulator reports
+     */
+    String name();
+
+    /**
+     * Up to limit candidates for a pickup at (pickupLat, pickupLon), best first
+     */
+    List<Map<String, Object>> rank(List<Map<String, Object>> drivers, double pickupLat, double pickupLon, int limit);
+
+    /**
+     * The built-in policy of that name, or null if there is none
+     */
+    static MatchingPolicy byName(String name) {
+        if (name == null)
+            return null;
+        switch (name.trim().toLowerCase()) {
+            case NearestDriverPolicy.NAME:
+                return new NearestDriverPolicy();
+            case FirstAvailablePolicy.NAME:
+                return new FirstAvailablePolicy();
+            default:
+                return null;
+        }
+    }
+}
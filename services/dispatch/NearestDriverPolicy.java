@@ -0,0 +1,47 @@
+package services.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nearest driver first, by great-circle distance to the pickup. Returns the
+ * limit nearest, each with its "distance" (km), found by CandidateScorer
+ * rather than by sorting the whole fleet.
+ */
+public class NearestDriverPolicy implements MatchingPolicy {
+    static final String NAME = "nearest";
+
+    private final ThreadLocal<CandidateScorer> scorers = ThreadLocal.withInitial(() -> new CandidateScorer(1024));
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<Map<String, Object>> rank(List<Map<String, Object>> drivers, double pickupLat, double pickupLon,
+            int limit) {
+        CandidateScorer scorer = scorers.get();
+        scorer.clear();
+        int[] source = new int[drivers.size()]; // scorer index -> list index
+        for (int i = 0; i < drivers.size(); i++) {
+            Object lat = drivers.get(i).get("latitude");
+            Object lon = drivers.get(i).get("longitude");
+            if (lat instanceof Double && lon instanceof Double)
+                source[scorer.add((Double) lat, (Double) lon)] = i;
+        }
+
+        int k = Math.min(limit, scorer.size());
+        int[] nearest = new int[k];
+        double[] distances = new double[k];
+        int found = scorer.nearest(pickupLat, pickupLon, k, nearest, distances);
+        List<Map<String, Object>> ranked = new ArrayList<>(found);
+        for (int j = 0; j < found; j++) {
+            Map<String, Object> driver = drivers.get(source[nearest[j]]);
+            driver.put("distance", distances[j]);
+            ranked.add(driver);
+        }
+        return ranked;
+    }
+}
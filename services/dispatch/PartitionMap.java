@@ -0,0 +1,227 @@
+package services.dispatch;
+
+import common.JSONUtil;
+import common.Log;
+import common.Message;
+import common.Rendezvous;
+import common.RequestContext;
+import common.MessageType;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ownership map for a cluster of Dispatch Servers.
+ * The map is divided into square geo cells (DISPATCH_CELL_DEGREES). Each
+ * cell, and each driver reservation, is owned by exactly one live instance,
+ * chosen by rendezvous (highest-random-weight) hashing over the live members.
+ * When an instance joins or leaves, only the cells and drivers it gains or
+ * loses change owner; the rest stay where they are.
+ * Members find each other through DISPATCH_PEERS (host:port of each
+ * instance's passenger port) and heartbeat on port + PEER_PORT_OFFSET.
+ */
+public class PartitionMap {
+    private static final Log log = Log.get("PartitionMap");
+    public static final int PEER_PORT_OFFSET = 1000;
+    private static final long HEARTBEAT_INTERVAL_MS = 2_000;
+    private static final long PEER_TIMEOUT_MS = 6_000;
+    private static final int CALL_TIMEOUT_MS = 2_000;
+
+    public static final double DEFAULT_CELL_DEGREES = 0.05; // ~5.5 km at the equator
+
+    private final String self;
+    private final double cellDegrees;
+    private final List<String> peers; // configured members other than self
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private volatile List<String> members;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "dispatch-rebalance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PartitionMap(String self, List<String> peers, double cellDegrees) {
+        this.self = self;
+        this.peers = new ArrayList<>(peers);
+        this.peers.remove(self);
+        this.cellDegrees = cellDegrees > 0 ? cellDegrees : DEFAULT_CELL_DEGREES;
+        this.members = Collections.singletonList(self);
+    }
+
+    /**
+     * Single-instance map: every cell and driver is owned locally
+     */
+    public static PartitionMap standalone(String self) {
+        return new PartitionMap(self, Collections.emptyList(), 0);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public boolean isClustered() {
+        return !peers.isEmpty();
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    // --- Ownership ---
+
+    public long cellOf(double lat, double lon) {
+        long row = (long) Math.floor((lat + 90.0) / cellDegrees);
+        long col = (long) Math.floor((lon + 180.0) / cellDegrees);
+        return (row << 32) | (col & 0xffffffffL);
+    }
+
+    public String ownerOfCell(long cell) {
+        return owner("cell:" + cell);
+    }
+
+    public String ownerOfDriver(String username) {
+        return owner("driver:" + username);
+    }
+
+    public boolean isSelf(String node) {
+        return self.equals(node);
+    }
+
+    private String owner(String key) {
+        String best = self;
+        long bestScore = Long.MIN_VALUE;
+        for (String node : members) {
+            long score = Rendezvous.weight(node, key);
+            if (score > bestScore || (score == bestScore && node.compareTo(best) < 0)) {
+                bestScore = score;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    // --- Membership ---
+
+    /**
+     * Run a callback after every membership change (used to hand over reservations)
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void markAlive(String node) {
+        if (!peers.contains(node))
+            return;
+        Long previous = lastSeen.put(node, System.currentTimeMillis());
+        if (previous == null || !members.contains(node)) {
+            recompute();
+        }
+    }
+
+    public void markDead(String node) {
+        if (lastSeen.remove(node) != null || members.contains(node)) {
+            recompute();
+        }
+    }
+
+    private synchronized void recompute() {
+        long now = System.currentTimeMillis();
+        List<String> live = new ArrayList<>();
+        live.add(self);
+        for (String peer : peers) {
+            Long seen = lastSeen.get(peer);
+            if (seen != null && now - seen <= PEER_TIMEOUT_MS)
+                live.add(peer);
+        }
+        Collections.sort(live);
+        if (!live.equals(members)) {
+            members = Collections.unmodifiableList(live);
+            log.info("Members now {} ({} is self)", live, self);
+            // Listeners talk to peers, so they run outside this lock
+            for (Runnable listener : listeners) {
+                notifier.execute(() -> {
+                    try {
+                        listener.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Rebalance listener failed: {}", e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Heartbeat every configured peer (dead ones too, so they can rejoin)
+     */
+    public void start() {
+        if (peers.isEmpty())
+            return;
+        ScheduledExecutorService heartbeats = Executors.newScheduledThreadPool(1, r -> {
+            Thread t = new Thread(r, "dispatch-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats.scheduleAtFixedRate(() -> {
+            for (String peer : peers) {
+                Message ping = new Message(MessageType.DISPATCH_HEARTBEAT);
+                ping.addPayload("from", self);
+                if (call(peer, ping) != null) {
+                    markAlive(peer);
+                }
+            }
+            recompute(); // expire peers we have not heard from
+        }, 0, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One request/response exchange with a peer's cluster port. Returns null
+     * if the peer cannot be reached (or the current request runs out of time).
+     */
+    public Message call(String node, Message request) {
+        try {
+            return exchange(node, request);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public Message exchange(String node, Message request) throws IOException {
+        return exchange(node, request, CALL_TIMEOUT_MS * 5);
+    }
+
+    /**
+     * One exchange, waiting up to readTimeoutMs (cut down to the current
+     * request's time left) for the reply. A ConnectException means the peer
+     * could not be reached and can be taken for dead; any other IOException
+     * means it has the request and did not answer in time - it may still be
+     * acting on it.
+     */
+    public Message exchange(String node, Message request, int readTimeoutMs) throws IOException {
+        int sep = node.lastIndexOf(':');
+        String host = node.substring(0, sep);
+        int port = Integer.parseInt(node.substring(sep + 1)) + PEER_PORT_OFFSET;
+        try (Socket socket = new Socket()) {
+            int connectTimeout = RequestContext.timeout(CALL_TIMEOUT_MS);
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            } catch (ConnectException e) {
+                throw e;
+            } catch (IOException e) {
+                ConnectException unreachable = new ConnectException(node + ": " + e.getMessage());
+                unreachable.initCause(e);
+                throw unreachable;
+            }
+            socket.setSoTimeout(RequestContext.timeout(readTimeoutMs));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(JSONUtil.toJSON(request));
+            String line = in.readLine();
+            if (line == null)
+                throw new EOFException(node + " closed the connection without a reply");
+            return JSONUtil.fromJSON(line);
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package services.dispatch;
 
+import common.AckPolicy;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.Metrics;
+import common.OfferSettings;
+import common.OutboundQueue;
+import common.RequestContext;
+import common.Span;
+import common.TelemetryMessage;
+import common.Tracer;
 
 import java.io.*;
 import java.net.*;
@@ -12,14 +21,26 @@ import java.net.*;
  * Server
  */
 public class PassengerHandler implements Runnable {
+    private static final Log log = Log.get("PassengerHandler");
+    private static final Log locationLog = log.sampled(100);
+
     private Socket socket;
     private BufferedReader in;
-    private PrintWriter out;
+    private OutboundQueue out;
     private String username;
     private volatile boolean running = true;
 
+    // Reused for the high-frequency location/heartbeat traffic
+    private final TelemetryMessage telemetryIn = new TelemetryMessage();
+    private final TelemetryMessage telemetryOut = new TelemetryMessage();
+    private AckPolicy ackPolicy = new AckPolicy();
+
     private static final String DB_SERVICE_HOST = "localhost";
     private static final int DB_SERVICE_PORT = 5002;
+    private static final long REQUEST_BUDGET_MS = 15_000; // for clients that send no deadline (ride requests: the offer budget)
+
+    private static final Metrics.HistogramFamily requestLatency = Metrics.histograms("dispatch_request_seconds",
+            "type", "Time to handle a passenger request, by message type");
 
     public PassengerHandler(Socket socket) {
         this.socket = socket;
@@ -29,70 +50,113 @@ public class PassengerHandler implements Runnable {
     public void run() {
         try {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            out = new OutboundQueue(socket.getOutputStream(), "passenger-" + socket.getPort(), this::closeSocket);
+            out.start();
 
-            System.out.println("[PassengerHandler] New passenger connection");
+            log.info("New passenger connection");
 
             // Handle messages from passenger
             String line;
             while (running && (line = in.readLine()) != null) {
+                // When behind, drop location updates superseded by a newer one already buffered
+                while (ackPolicy.allowsCoalescing() && in.ready()
+                        && TelemetryMessage.peekType(line) == MessageType.UPDATE_LOCATION) {
+                    String next = in.readLine();
+                    if (next == null)
+                        break;
+                    if (TelemetryMessage.peekType(next) != MessageType.UPDATE_LOCATION) {
+                        handleMessage(line);
+                        line = next;
+                        break;
+                    }
+                    ackPolicy.onSuperseded();
+                    line = next;
+                }
                 handleMessage(line);
             }
 
         } catch (IOException e) {
-            System.err.println("[PassengerHandler] Connection error: " + e.getMessage());
+            log.warn("Connection error: {}", e.getMessage());
         } finally {
             cleanup();
         }
     }
 
     private void handleMessage(String json) {
+        Span span = Span.NOOP;
         try {
+            if (telemetryIn.parse(json) && handleTelemetry(telemetryIn)) {
+                return;
+            }
+
             Message message = JSONUtil.fromJSON(json);
             if (message == null) {
                 sendError("Invalid message format");
                 return;
             }
 
-            System.out.println("[PassengerHandler] Received " + message.getType() +
-                    (username != null ? " from " + username : ""));
+            (message.getType() == MessageType.UPDATE_LOCATION ? locationLog : log)
+                    .debug("Received {} from {}", message.getType(), username);
+
+            RequestContext.begin(message, message.getType() == MessageType.RIDE_REQUEST
+                    ? OfferSettings.matchingBudgetMs() : REQUEST_BUDGET_MS);
+            // Passenger connections are an edge: requests (not location updates) may start a trace
+            span = Tracer.begin(message, message.getType().name(), message.getType() != MessageType.UPDATE_LOCATION);
+            if (RequestContext.checkExpired("PassengerHandler " + message.getType())) {
+                span.setError("Deadline exceeded");
+                sendError("Request deadline exceeded");
+                return;
+            }
+
+            long start = System.nanoTime();
+            dispatch(message);
+            requestLatency.get(message.getType()).recordSince(start);
+        } catch (Exception e) {
+            log.error("Error handling message", e);
+            span.setError(e.toString());
+        } finally {
+            span.close();
+            RequestContext.end();
+        }
+    }
 
-            switch (message.getType()) {
-                case REGISTER_PASSENGER:
-                    handleRegister(message);
-                    break;
+    private void dispatch(Message message) {
+        switch (message.getType()) {
+            case REGISTER_PASSENGER:
+                handleRegister(message);
+                break;
 
-                case LOGIN:
-                    handleLogin(message);
-                    break;
+            case LOGIN:
+                handleLogin(message);
+                break;
 
-                case UPDATE_LOCATION:
-                    handleLocationUpdate(message);
-                    break;
+            case UPDATE_LOCATION:
+                handleLocationUpdate(message);
+                break;
 
-                case RIDE_REQUEST:
-                    handleRideRequest(message);
-                    break;
+            case RIDE_REQUEST:
+                handleRideRequest(message);
+                break;
 
-                case ASSIGN_DRIVER:
-                    handleManualAssign(message); // New Method
-                    break;
+            case ASSIGN_DRIVER:
+                handleManualAssign(message); // New Method
+                break;
 
-                case RIDE_CANCELLED:
-                    handleRideCancellation(message);
-                    break;
+            case RIDE_CANCELLED:
+                handleRideCancellation(message);
+                break;
 
-                case DISCONNECT:
-                    running = false;
-                    break;
+            case GET_HEATMAP:
+                sendMessage(DispatchServer.getDemand());
+                break;
 
-                default:
-                    sendError("Unknown message type: " + message.getType());
+            case DISCONNECT:
+                running = false;
+                break;
+
+            default:
+                sendError("Unknown message type: " + message.getType());
             }
-        } catch (Exception e) {
-            System.err.println("[PassengerHandler] Error handling message: " + e.getMessage());
-            e.printStackTrace();
-        }
     }
 
     private void handleRegister(Message message) {
@@ -111,13 +175,15 @@ public class PassengerHandler implements Runnable {
         if (dbResponse != null && dbResponse.getPayloadBoolean("success")) {
             this.username = username;
             DispatchServer.registerPassenger(username, this);
+            ackPolicy = AckPolicy.fromPayload(message);
 
             Message response = new Message(MessageType.LOGIN_SUCCESS);
             response.addPayload("username", username);
             response.addPayload("message", "Registration successful");
+            ackPolicy.describe(response);
             sendMessage(response);
 
-            System.out.println("[PassengerHandler] Passenger registered: " + username);
+            log.info("Passenger registered: {}", username);
         } else {
             Message response = new Message(MessageType.LOGIN_FAILED);
             response.addPayload("error",
@@ -141,13 +207,15 @@ public class PassengerHandler implements Runnable {
         if (dbResponse != null && dbResponse.getPayloadBoolean("valid")) {
             this.username = username;
             DispatchServer.registerPassenger(username, this);
+            ackPolicy = AckPolicy.fromPayload(message);
 
             Message response = new Message(MessageType.LOGIN_SUCCESS);
             response.addPayload("username", username);
             response.addPayload("message", "Login successful");
+            ackPolicy.describe(response);
             sendMessage(response);
 
-            System.out.println("[PassengerHandler] Passenger logged in: " + username);
+            log.info("Passenger logged in: {}", username);
         } else {
             Message response = new Message(MessageType.LOGIN_FAILED);
             response.addPayload("error", "Invalid credentials");
@@ -155,20 +223,48 @@ public class PassengerHandler implements Runnable {
         }
     }
 
+    /**
+     * Fast path for location and heartbeat messages. Returns false for types
+     * the passenger protocol handles generically.
+     */
+    private boolean handleTelemetry(TelemetryMessage message) {
+        switch (message.getType()) {
+            case UPDATE_LOCATION:
+                String effectiveUsername = this.username != null ? this.username : message.getUsername();
+                if (updateLocation(effectiveUsername, message.getLatitude(), message.getLongitude())
+                        && ackPolicy.onUpdate()) {
+                    out.offer(telemetryOut.set(MessageType.LOCATION_UPDATED).count(ackPolicy.getReceived()).toJSON());
+                }
+                return true;
+
+            case HEARTBEAT:
+                return true; // keep-alive only
+
+            default:
+                return false;
+        }
+    }
+
     private void handleLocationUpdate(Message message) {
         String effectiveUsername = this.username;
         if (effectiveUsername == null) {
             effectiveUsername = message.getPayloadString("username");
         }
 
+        if (updateLocation(effectiveUsername, message.getPayloadDouble("latitude"),
+                message.getPayloadDouble("longitude")) && ackPolicy.onUpdate()) {
+            Message response = new Message(MessageType.LOCATION_UPDATED);
+            response.addPayload("count", ackPolicy.getReceived());
+            sendMessage(response);
+        }
+    }
+
+    private boolean updateLocation(String effectiveUsername, double lat, double lon) {
         if (effectiveUsername == null) {
             sendError("Please login first or provide username in payload");
-            return;
+            return false;
         }
 
-        double lat = message.getPayloadDouble("latitude");
-        double lon = message.getPayloadDouble("longitude");
-
         // Update location in Database Service
         Message dbRequest = new Message(MessageType.DB_UPDATE_PASSENGER_LOCATION);
         dbRequest.addPayload("username", effectiveUsername);
@@ -176,9 +272,7 @@ public class PassengerHandler implements Runnable {
         dbRequest.addPayload("longitude", lon);
 
         sendToDatabaseService(dbRequest);
-
-        Message response = new Message(MessageType.LOCATION_UPDATED);
-        sendMessage(response);
+        return true;
     }
 
     private void handleRideRequest(Message message) {
@@ -204,12 +298,13 @@ public class PassengerHandler implements Runnable {
             return;
         }
 
-        System.out.println("[PassengerHandler] Processing ride request for " + effectiveUsername);
-        System.out.println("  Pickup: " + startAddr + " (" + pickupLat + ", " + pickupLon + ")");
-        System.out.println("  Destination: " + destAddr + " (" + destLat + ", " + destLon + ")");
+        DispatchServer.recordDemand(pickupLat, pickupLon);
 
-        // Assign nearest driver (this uses synchronized driver assignment)
-        String result = DispatchServer.assignNearestDriver(effectiveUsername, pickupLat, pickupLon, destLat, destLon,
+        log.info("Processing ride request for {}: pickup {} ({}, {}), destination {} ({}, {})", effectiveUsername,
+                startAddr, pickupLat, pickupLon, destAddr, destLat, destLon);
+
+        // Assign nearest driver (on the instance that owns the pickup cell)
+        String result = DispatchServer.requestRide(effectiveUsername, pickupLat, pickupLon, destLat, destLon,
                 startAddr,
                 destAddr);
 
@@ -236,7 +331,7 @@ public class PassengerHandler implements Runnable {
                 response.addPayload("rideId", rideId);
                 sendMessage(response);
 
-                System.out.println("[PassengerHandler] Ride #" + rideId + " queued (No drivers)");
+                log.info("Ride #{} queued (No drivers)", rideId);
 
             } else {
                 String driverUsername = parts[0];
@@ -249,7 +344,7 @@ public class PassengerHandler implements Runnable {
                 response.addPayload("message", "Driver assigned successfully");
                 sendMessage(response);
 
-                System.out.println("[PassengerHandler] Ride assigned: " + driverUsername + " to " + effectiveUsername);
+                log.info("Ride assigned: {} to {}", driverUsername, effectiveUsername);
             }
         } else {
             // Failed to even create ride in DB
@@ -257,7 +352,7 @@ public class PassengerHandler implements Runnable {
             response.addPayload("error", "Failed to process ride request");
             sendMessage(response);
 
-            System.out.println("[PassengerHandler] Failed to create ride for " + effectiveUsername);
+            log.warn("Failed to create ride for {}", effectiveUsername);
         }
     }
 
@@ -267,7 +362,7 @@ public class PassengerHandler implements Runnable {
         double pLat = message.getPayloadDouble("pickupLat");
         double pLon = message.getPayloadDouble("pickupLon");
 
-        System.out.println("[PassengerHandler] Manual Assignment: Ride " + rideId + " -> " + driver);
+        log.info("Manual Assignment: Ride {} -> {}", rideId, driver);
 
         boolean success = DispatchServer.forceAssignDriver(rideId, driver, pLat, pLon);
 
@@ -287,18 +382,20 @@ public class PassengerHandler implements Runnable {
             DispatchServer.releaseDriver(driverUsername);
         }
 
-        System.out.println("[PassengerHandler] Ride cancelled: " + rideId);
+        log.info("Ride cancelled: {}", rideId);
     }
 
     /**
      * Send message to Database Service and wait for response
      */
     private Message sendToDatabaseService(Message request) {
+        Span span = Tracer.start("db " + request.getType());
         try {
-            Socket dbSocket = new Socket(DB_SERVICE_HOST, DB_SERVICE_PORT);
+            Socket dbSocket = RequestContext.connect(DB_SERVICE_HOST, DB_SERVICE_PORT);
             BufferedReader dbIn = new BufferedReader(new InputStreamReader(dbSocket.getInputStream()));
             PrintWriter dbOut = new PrintWriter(dbSocket.getOutputStream(), true);
 
+            RequestContext.propagate(request);
             String requestJson = JSONUtil.toJSON(request);
             dbOut.println(requestJson);
 
@@ -309,7 +406,10 @@ public class PassengerHandler implements Runnable {
                 return JSONUtil.fromJSON(responseJson);
             }
         } catch (IOException e) {
-            System.err.println("[PassengerHandler] Error communicating with Database Service: " + e.getMessage());
+            log.warn("Error communicating with Database Service: {}", e.getMessage());
+            span.setError(e.getMessage());
+        } finally {
+            span.close();
         }
 
         return null;
@@ -317,8 +417,7 @@ public class PassengerHandler implements Runnable {
 
     public void sendMessage(Message message) {
         if (out != null) {
-            String json = JSONUtil.toJSON(message);
-            out.println(json);
+            out.offer(JSONUtil.toJSON(message));
         }
     }
 
@@ -337,12 +436,19 @@ public class PassengerHandler implements Runnable {
         if (username != null) {
             DispatchServer.unregisterPassenger(username);
         }
+        if (out != null) {
+            out.close();
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Could not close socket: {}", e.getMessage());
         }
     }
 }
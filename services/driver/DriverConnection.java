@@ -1,8 +1,12 @@
 package services.driver;
 
+import common.AckPolicy;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.OutboundQueue;
+import common.TelemetryMessage;
 
 import java.io.*;
 import java.net.*;
@@ -18,6 +22,10 @@ class DriverInfo {
     private double longitude;
     private boolean available;
     private long lastUpdate;
+    private long supplyCell = NO_CELL; // heatmap cell this driver is counted in as supply
+    private final LocationFilter filter = new LocationFilter();
+    
+    static final long NO_CELL = -1;
     
     public DriverInfo(String username) {
         this.username = username;
@@ -30,6 +38,9 @@ class DriverInfo {
     public double getLongitude() { return longitude; }
     public boolean isAvailable() { return available; }
     public long getLastUpdate() { return lastUpdate; }
+    public LocationFilter getFilter() { return filter; }
+    long getSupplyCell() { return supplyCell; }
+    void setSupplyCell(long cell) { this.supplyCell = cell; }
     
     public void setLocation(double lat, double lon) {
         this.latitude = lat;
@@ -37,6 +48,13 @@ class DriverInfo {
         this.lastUpdate = System.currentTimeMillis();
     }
     
+    /**
+     * Record that the driver reported in without changing the stored position
+     */
+    public void touch() {
+        this.lastUpdate = System.currentTimeMillis();
+    }
+    
 public void setAvailable(boolean available) {
         this.available = available;
         this.lastUpdate = System.currentTimeMillis();
@@ -47,14 +65,22 @@ public void setAvailable(boolean available) {
  * Driver Connection - represents a connected driver client
  */
 class DriverConnection implements Runnable {
+    private static final Log log = Log.get("DriverConnection");
+    private static final Log locationLog = log.sampled(100); // one per GPS update otherwise
+    
     private Socket socket;
     private String username;
     private BufferedReader in;
-    private PrintWriter out;
+    private OutboundQueue out;
     private DriverServiceServer server;
     private volatile boolean running = true;
     private boolean isWebClient = false;
     
+    // Reused for the high-frequency location/availability/heartbeat traffic
+    private final TelemetryMessage telemetryIn = new TelemetryMessage();
+    private final TelemetryMessage telemetryOut = new TelemetryMessage();
+    private AckPolicy ackPolicy = new AckPolicy();
+    
     public DriverConnection(Socket socket, DriverServiceServer server) {
         this.socket = socket;
         this.server = server;
@@ -66,18 +92,33 @@ class DriverConnection implements Runnable {
     public void run() {
         try {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            out = new OutboundQueue(socket.getOutputStream(), "driver-" + socket.getPort(), this::closeSocket);
+            out.start();
             
-            System.out.println("[DriverConnection] New driver connection from: " + socket.getInetAddress());
+            log.info("New driver connection from: {}", socket.getInetAddress());
             
             // Handle messages from driver
             String line;
             while (running && (line = in.readLine()) != null) {
+                // When behind, drop location updates superseded by a newer one already buffered
+                while (ackPolicy.allowsCoalescing() && in.ready()
+                        && TelemetryMessage.peekType(line) == MessageType.UPDATE_LOCATION) {
+                    String next = in.readLine();
+                    if (next == null)
+                        break;
+                    if (TelemetryMessage.peekType(next) != MessageType.UPDATE_LOCATION) {
+                        handleMessage(line);
+                        line = next;
+                        break;
+                    }
+                    ackPolicy.onSuperseded();
+                    line = next;
+                }
                 handleMessage(line);
             }
             
         } catch (IOException e) {
-            System.err.println("[DriverConnection] Connection error: " + e.getMessage());
+            log.warn("Connection error: {}", e.getMessage());
         } finally {
             cleanup();
         }
@@ -85,13 +126,18 @@ class DriverConnection implements Runnable {
     
     private void handleMessage(String json) {
         try {
+            if (telemetryIn.parse(json) && handleTelemetry(telemetryIn)) {
+                return;
+            }
+            
             Message message = JSONUtil.fromJSON(json);
             if (message == null) {
                 sendError("Invalid message format");
                 return;
             }
             
-            System.out.println("[DriverConnection] Received " + message.getType() + " from " + username);
+            (message.getType() == MessageType.UPDATE_LOCATION ? locationLog : log)
+                    .debug("Received {} from {}", message.getType(), username);
             
             switch (message.getType()) {
                 case REGISTER_DRIVER:
@@ -110,6 +156,10 @@ class DriverConnection implements Runnable {
                     handleRideAccepted(message);
                     break;
                     
+                case RIDE_REJECTED:
+                    handleRideRejected(message);
+                    break;
+                    
                 case RIDE_STARTED:
                     handleRideStarted(message);
                     break;
@@ -126,8 +176,35 @@ class DriverConnection implements Runnable {
                     sendError("Unknown message type: " + message.getType());
             }
         } catch (Exception e) {
-            System.err.println("[DriverConnection] Error handling message: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling message", e);
+        }
+    }
+    
+    /**
+     * Fast path for location, availability and heartbeat messages. Returns
+     * false for types the driver protocol handles generically.
+     */
+    private boolean handleTelemetry(TelemetryMessage message) {
+        switch (message.getType()) {
+            case UPDATE_LOCATION:
+                server.updateDriverLocation(username, message.getLatitude(), message.getLongitude());
+                if (ackPolicy.onUpdate()) {
+                    out.offer(telemetryOut.set(MessageType.LOCATION_UPDATED).count(ackPolicy.getReceived()).toJSON());
+                }
+                return true;
+                
+            case UPDATE_AVAILABILITY:
+                boolean available = message.isAvailable();
+                server.updateDriverAvailability(username, available);
+                out.offer(telemetryOut.set(MessageType.AVAILABILITY_UPDATED).available(available).toJSON());
+                log.info("Driver {} availability: {}", username, available);
+                return true;
+                
+            case HEARTBEAT:
+                return true; // keep-alive only
+                
+            default:
+                return false;
         }
     }
     
@@ -140,17 +217,19 @@ class DriverConnection implements Runnable {
         Object webFlag = message.getPayloadValue("isWebClient");
         if (webFlag != null && (Boolean)webFlag) {
             this.isWebClient = true;
-            System.out.println("[DriverConnection] Web Client detected: " + username);
+            log.info("Web Client detected: {}", username);
         }
         
         server.registerDriver(username, lat, lon, this);
+        ackPolicy = AckPolicy.fromPayload(message);
         
         Message response = new Message(MessageType.LOGIN_SUCCESS);
         response.addPayload("username", username);
         response.addPayload("message", "Driver registered successfully");
+        ackPolicy.describe(response);
         sendMessage(response);
         
-        System.out.println("[DriverConnection] Driver registered: " + username);
+        log.info("Driver registered: {}", username);
     }
     
     private void handleLocationUpdate(Message message) {
@@ -159,8 +238,11 @@ class DriverConnection implements Runnable {
         
         server.updateDriverLocation(username, lat, lon);
         
-        Message response = new Message(MessageType.LOCATION_UPDATED);
-        sendMessage(response);
+        if (ackPolicy.onUpdate()) {
+            Message response = new Message(MessageType.LOCATION_UPDATED);
+            response.addPayload("count", ackPolicy.getReceived());
+            sendMessage(response);
+        }
     }
     
     private void handleAvailabilityUpdate(Message message) {
@@ -171,13 +253,17 @@ class DriverConnection implements Runnable {
         response.addPayload("available", available);
         sendMessage(response);
         
-        System.out.println("[DriverConnection] Driver " + username + " availability: " + available);
+        log.info("Driver {} availability: {}", username, available);
     }
     
     private void handleRideAccepted(Message message) {
         int rideId = message.getPayloadInt("rideId");
         server.notifyRideAccepted(username, rideId);
-        System.out.println("[DriverConnection] Driver " + username + " accepted ride " + rideId);
+    }
+    
+    private void handleRideRejected(Message message) {
+        int rideId = message.getPayloadInt("rideId");
+        server.notifyRideRejected(username, rideId);
     }
     
     private void handleRideStarted(Message message) {
@@ -185,7 +271,6 @@ class DriverConnection implements Runnable {
         double lat = message.getPayloadDouble("latitude");
         double lon = message.getPayloadDouble("longitude");
         server.notifyRideStarted(username, rideId, lat, lon);
-        System.out.println("[DriverConnection] Driver " + username + " started ride " + rideId);
     }
     
     private void handleRideCompleted(Message message) {
@@ -193,13 +278,20 @@ class DriverConnection implements Runnable {
         double lat = message.getPayloadDouble("latitude");
         double lon = message.getPayloadDouble("longitude");
         server.notifyRideCompleted(username, rideId, lat, lon);
-        System.out.println("[DriverConnection] Driver " + username + " completed ride " + rideId);
     }
     
     public void sendMessage(Message message) {
         if (out != null) {
-            String json = JSONUtil.toJSON(message);
-            out.println(json);
+            out.offer(JSONUtil.toJSON(message));
+        }
+    }
+    
+    /**
+     * Send an already encoded message (one encoding shared by several drivers)
+     */
+    void sendRaw(String json) {
+        if (out != null) {
+            out.offer(json);
         }
     }
     
@@ -218,14 +310,21 @@ class DriverConnection implements Runnable {
         // Only unregister if NOT a web client
         if (username != null && !isWebClient) {
             server.unregisterDriver(username);
-            System.out.println("[DriverConnection] Driver disconnected: " + username);
+            log.info("Driver disconnected: {}", username);
+        }
+        if (out != null) {
+            out.close();
         }
+        closeSocket();
+    }
+    
+    private void closeSocket() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Could not close socket: {}", e.getMessage());
         }
     }
 }
@@ -1,13 +1,22 @@
 package services.driver;
 
+import common.Config;
+import common.GeoHeatmap;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.Metrics;
+import common.RequestContext;
+import common.Span;
+import common.Tracer;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Driver Service Server - Manages all driver connections and availability.
@@ -15,23 +24,53 @@ import java.util.concurrent.*;
  * This is a separate distributed service from the Dispatch Server.
  */
 public class DriverServiceServer {
+    private static final Log log = Log.get("DriverService");
+    private static final Log apiLog = Log.get("DriverService-API");
     private static final int DRIVER_PORT = 5001;  // For driver clients
     private static final int API_PORT = 5003;      // For Dispatch Server queries
-    private static final String DB_SERVICE_HOST = System.getenv("DB_SERVICE_HOST") != null ? System.getenv("DB_SERVICE_HOST") : "localhost";
+    private static final String DB_SERVICE_HOST = Config.get("DB_SERVICE_HOST", "localhost");
     private static final int DB_SERVICE_PORT = 5002;
+    private static final long OFFER_TICK_MS = 10;       // offer expiry resolution
+    private static final int OFFER_WHEEL_SLOTS = 512;   // one turn of the wheel = 5.12 s
+    private static final long OFFER_LINGER_MS = 60_000; // closed offers kept for late answers
     
     // Thread-safe registry of active drivers
-    private ConcurrentHashMap<String, DriverInfo> driverRegistry = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<String, DriverInfo> driverRegistry = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, DriverConnection> driverConnections = new ConcurrentHashMap<>();
     
+    // Ride offers by ride id; closed ones linger a while to recognise late answers
+    private final ConcurrentHashMap<Integer, RideOffer> offers = new ConcurrentHashMap<>();
+    private final AtomicInteger openOffers = new AtomicInteger();
+    private final TimerWheel offerTimers = new TimerWheel("offer-timers", OFFER_TICK_MS, OFFER_WHEEL_SLOTS);
+    
+    // Ride each driver has (by ride id) from accepting until completing it;
+    // at most one per driver
+    private final ConcurrentHashMap<Integer, String> rideDrivers = new ConcurrentHashMap<>();
+    
+    // Accepted locations, streamed to the Database Service
+    private final LocationWriter locationWriter = new LocationWriter(DB_SERVICE_HOST, DB_SERVICE_PORT);
+    
+    // Available drivers per cell, for the demand/supply heatmap
+    private final GeoHeatmap supply = new GeoHeatmap();
+    
     private ExecutorService threadPool = Executors.newCachedThreadPool();
     private volatile boolean running = true;
     
+    private static final Metrics.HistogramFamily apiLatency = Metrics.histograms("driver_api_request_seconds", "type",
+            "Time to answer a Driver Service API request, by message type");
+    private static final Metrics.Histogram locationUpdate = Metrics.histogram("driver_location_update_seconds",
+            "Time the driver registry is held per location update (the DB write is only queued)");
+    private static final Metrics.Histogram offerAccept = Metrics.histogram("driver_offer_accept_seconds",
+            "Time from a ride offer to the first driver accepting it");
+    private static final Metrics.Counter offersAccepted = Metrics.counter("driver_offers_total{outcome=\"accepted\"}",
+            "Ride offers by how they closed");
+    private static final Metrics.Counter offersDeclined = Metrics.counter("driver_offers_total{outcome=\"declined\"}", null);
+    private static final Metrics.Counter offersExpired = Metrics.counter("driver_offers_total{outcome=\"expired\"}", null);
+    private static final Metrics.Counter retractions = Metrics.counter("driver_offer_retractions_total",
+            "RIDE_OFFER_RETRACTED messages sent to drivers who did not get the ride (including late acceptances)");
+    
     public static void main(String[] args) {
-        System.out.println("============================================================");
-        System.out.println("DRIVER SERVICE SERVER");
-        System.out.println("============================================================");
-        System.out.println("[DriverService] Starting...");
+        log.info("Driver Service starting");
         
         DriverServiceServer server = new DriverServiceServer();
         server.start();
@@ -40,129 +79,220 @@ public class DriverServiceServer {
     public void start() {
         // Start API server for Dispatch Server queries (in separate thread)
         new Thread(this::startAPIServer).start();
+        startFilterStats();
+        Metrics.gauge("driver_connections", "Connected driver clients", driverConnections::size);
+        Metrics.gauge("driver_offers_open", "Ride offers waiting for an answer", openOffers::get);
+        Metrics.gauge("driver_available", "Drivers currently available for rides",
+                () -> driverRegistry.values().stream().filter(DriverInfo::isAvailable).count());
+        Metrics.serve("DriverService", DRIVER_PORT);
+        Tracer.init("driver");
         
         // Start main server for driver connections
-        System.out.println("[DriverService] Listening for driver connections on port " + DRIVER_PORT);
-        System.out.println("[DriverService] API server for queries on port " + API_PORT);
-        System.out.println("============================================================");
+        log.info("Listening for driver connections on port {}", DRIVER_PORT);
+        log.info("API server for queries on port {}", API_PORT);
         
         try (ServerSocket serverSocket = new ServerSocket(DRIVER_PORT)) {
             while (running) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("[DriverService] New driver client connected");
+                log.info("New driver client connected");
                 
                 DriverConnection connection = new DriverConnection(clientSocket, this);
                 threadPool.execute(connection);
             }
         } catch (IOException e) {
-            System.err.println("[DriverService] Server error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Server error", e);
         } finally {
             threadPool.shutdown();
         }
     }
     
+    /**
+     * Log the GPS filter counters once a minute while updates are arriving
+     */
+    private void startFilterStats() {
+        ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gps-filter-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastReceived = { 0 };
+        stats.scheduleAtFixedRate(() -> {
+            long received = LocationFilter.getReceived();
+            if (received != lastReceived[0]) {
+                lastReceived[0] = received;
+                log.info("GPS filter: {}", LocationFilter.stats());
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+    }
+    
     /**
      * Start API server for handling requests from Dispatch Server
      */
     private void startAPIServer() {
         try (ServerSocket apiSocket = new ServerSocket(API_PORT)) {
-            System.out.println("[DriverService-API] API server ready on port " + API_PORT);
+            apiLog.info("API server ready on port {}", API_PORT);
             
             while (running) {
                 Socket clientSocket = apiSocket.accept();
                 threadPool.execute(() -> handleAPIRequest(clientSocket));
             }
         } catch (IOException e) {
-            System.err.println("[DriverService-API] API server error: " + e.getMessage());
+            apiLog.warn("API server error: {}", e.getMessage());
         }
     }
     
     /**
-     * Handle API requests from Dispatch Server
+     * Handle API requests from Dispatch Server (and the gateway, which keeps
+     * the connection open for further requests)
      */
     private void handleAPIRequest(Socket socket) {
         try {
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             
-            String requestJson = in.readLine();
-            if (requestJson == null) return;
-            
-            Message request = JSONUtil.fromJSON(requestJson);
-            if (request == null) return;
-            
-            System.out.println("[DriverService-API] Received: " + request.getType());
-            
-            Message response = null;
-            
-            switch (request.getType()) {
-                case GET_AVAILABLE_DRIVERS:
-                    response = getAvailableDriversList();
-                    break;
-                    
-                case ASSIGN_DRIVER:
-                    String driverUsername = request.getPayloadString("driverUsername");
-                    String passengerUsername = request.getPayloadString("passengerUsername");
-                    int rideId = request.getPayloadInt("rideId");
-                    double pickupLat = request.getPayloadDouble("pickupLat");
-                    double pickupLon = request.getPayloadDouble("pickupLon");
-                    response = assignRideToDriver(driverUsername, passengerUsername, rideId, pickupLat, pickupLon);
-                    break;
-                    
-                default:
-                    response = new Message(MessageType.ERROR);
-                    response.addPayload("error", "Unknown API request");
-            }
-            
-            if (response != null) {
-                String responseJson = JSONUtil.toJSON(response);
-                out.println(responseJson);
+            String requestJson;
+            while ((requestJson = in.readLine()) != null) {
+                Message request = JSONUtil.fromJSON(requestJson);
+                if (request == null) break;
+                
+                apiLog.debug("Received: {}", request.getType());
+                
+                Message response = null;
+                RequestContext.begin(request, 0);
+                Span span = Tracer.begin(request, request.getType().name(), false);
+                try {
+                    if (RequestContext.checkExpired("DriverService-API " + request.getType())) {
+                        span.setError("Deadline exceeded");
+                        response = new Message(MessageType.ERROR);
+                        response.addPayload("error", "Request deadline exceeded");
+                    } else if (request.getType() == MessageType.ASSIGN_DRIVER && request.getPayloadInt("offerTimeoutMs") != null) {
+                        // Answered when the offer closes, by whichever thread closes it
+                        long start = System.nanoTime();
+                        offerRide(request, outcome -> {
+                            apiLatency.get(MessageType.ASSIGN_DRIVER).recordSince(start);
+                            reply(out, outcome);
+                        });
+                    } else {
+                        long start = System.nanoTime();
+                        response = handleAPIMessage(request);
+                        apiLatency.get(request.getType()).recordSince(start);
+                    }
+                } finally {
+                    span.close();
+                    RequestContext.end();
+                }
+                
+                if (response != null) {
+                    reply(out, response);
+                }
             }
             
             socket.close();
         } catch (IOException e) {
-            System.err.println("[DriverService-API] Error handling request: " + e.getMessage());
+            apiLog.warn("Error handling request: {}", e.getMessage());
+        }
+    }
+    
+    private static void reply(PrintWriter out, Message response) {
+        String responseJson = JSONUtil.toJSON(response);
+        synchronized (out) {
+            out.println(responseJson);
         }
     }
     
+    /**
+     * Answer one API request
+     */
+    private Message handleAPIMessage(Message request) {
+        Message response;
+        
+        switch (request.getType()) {
+            case GET_AVAILABLE_DRIVERS:
+                response = getAvailableDriversList();
+                break;
+                
+            case GET_HEATMAP:
+                response = new Message(MessageType.HEATMAP_DATA);
+                response.addPayload("cells", supply.encode());
+                response.addPayload("cellDegrees", supply.getCellDegrees());
+                response.addPayload("windowSeconds", supply.getWindowSeconds());
+                break;
+                
+            case ASSIGN_DRIVER:
+                String driverUsername = request.getPayloadString("driverUsername");
+                String passengerUsername = request.getPayloadString("passengerUsername");
+                int rideId = request.getPayloadInt("rideId");
+                double pickupLat = request.getPayloadDouble("pickupLat");
+                double pickupLon = request.getPayloadDouble("pickupLon");
+                response = assignRideToDriver(driverUsername, passengerUsername, rideId, pickupLat, pickupLon);
+                break;
+                
+            default:
+                response = new Message(MessageType.ERROR);
+                response.addPayload("error", "Unknown API request");
+        }
+        
+        return response;
+    }
+    
     /**
      * Register a new driver
      */
     public synchronized void registerDriver(String username, double lat, double lon, DriverConnection connection) {
         DriverInfo info = new DriverInfo(username);
         info.setLocation(lat, lon);
+        info.getFilter().anchor(lat, lon, System.currentTimeMillis());
         info.setAvailable(true);
         
-        driverRegistry.put(username, info);
+        DriverInfo previous = driverRegistry.put(username, info);
         driverConnections.put(username, connection);
+        if (previous != null) updateSupply(previous, false);
+        updateSupply(info, true);
         
         // Update database
         updateDriverLocationInDB(username, lat, lon);
         
-        System.out.println("[DriverService] Driver registered: " + username + " at (" + lat + ", " + lon + ")");
-        System.out.println("[DriverService] Total active drivers: " + driverRegistry.size());
+        log.info("Driver registered: {} at ({}, {})", username, lat, lon);
+        log.info("Total active drivers: {}", driverRegistry.size());
     }
     
     /**
      * Unregister a driver (on disconnect)
      */
     public synchronized void unregisterDriver(String username) {
-        driverRegistry.remove(username);
+        DriverInfo info = driverRegistry.remove(username);
+        if (info != null) updateSupply(info, false);
         driverConnections.remove(username);
-        System.out.println("[DriverService] Driver unregistered: " + username);
-        System.out.println("[DriverService] Total active drivers: " + driverRegistry.size());
+        // A driver who has gone cannot take the ride
+        for (RideOffer offer : offers.values()) {
+            offer.decline(username);
+        }
+        log.info("Driver unregistered: {}", username);
+        log.info("Total active drivers: {}", driverRegistry.size());
     }
     
     /**
-     * Update driver location
+     * Update driver location. Only points the driver's LocationFilter accepts
+     * are stored and written to the database.
      */
     public synchronized void updateDriverLocation(String username, double lat, double lon) {
+        long start = System.nanoTime();
         DriverInfo info = driverRegistry.get(username);
         if (info != null) {
-            info.setLocation(lat, lon);
-            updateDriverLocationInDB(username, lat, lon);
+            switch (info.getFilter().offer(lat, lon, System.currentTimeMillis())) {
+                case ACCEPTED:
+                    info.setLocation(lat, lon);
+                    updateSupply(info, true);
+                    updateDriverLocationInDB(username, lat, lon);
+                    break;
+                case THROTTLED:
+                    info.touch();
+                    break;
+                case JITTER:
+                    break;
+            }
         }
+        locationUpdate.recordSince(start);
     }
     
     /**
@@ -172,10 +302,26 @@ public class DriverServiceServer {
         DriverInfo info = driverRegistry.get(username);
         if (info != null) {
             info.setAvailable(available);
-            System.out.println("[DriverService] Driver " + username + " is now " + (available ? "AVAILABLE" : "BUSY"));
+            updateSupply(info, true);
+            log.info("Driver {} is now {}", username, (available ? "AVAILABLE" : "BUSY"));
         }
     }
     
+    /**
+     * Keep the supply heatmap in step with a driver: counted in the cell they
+     * are in while registered and available, nowhere otherwise. O(1); call
+     * under the registry lock after changing the driver.
+     */
+    private void updateSupply(DriverInfo info, boolean registered) {
+        long cell = registered && info.isAvailable()
+                ? supply.cellOf(info.getLatitude(), info.getLongitude()) : DriverInfo.NO_CELL;
+        long previous = info.getSupplyCell();
+        if (cell == previous) return;
+        if (previous != DriverInfo.NO_CELL) supply.adjust(previous, -1);
+        if (cell != DriverInfo.NO_CELL) supply.adjust(cell, 1);
+        info.setSupplyCell(cell);
+    }
+    
     /**
      * Get list of available drivers (for Dispatch Server)
      */
@@ -184,12 +330,15 @@ public class DriverServiceServer {
         
         List<Map<String, Object>> driversList = new ArrayList<>();
         
+        long now = System.currentTimeMillis();
         for (DriverInfo info : driverRegistry.values()) {
             if (info.isAvailable()) {
+                // Dead-reckoned position, so throttled updates do not cost matching accuracy
+                double[] position = info.getFilter().predict(now);
                 Map<String, Object> driverData = new HashMap<>();
                 driverData.put("username", info.getUsername());
-                driverData.put("latitude", info.getLatitude());
-                driverData.put("longitude", info.getLongitude());
+                driverData.put("latitude", position[0]);
+                driverData.put("longitude", position[1]);
                 driverData.put("available", info.isAvailable());
                 driversList.add(driverData);
             }
@@ -212,7 +361,7 @@ public class DriverServiceServer {
         response.addPayload("drivers", driversJson.toString());
         response.addPayload("count", driversList.size());
         
-        System.out.println("[DriverService] Returning " + driversList.size() + " available drivers");
+        log.debug("Returning {} available drivers", driversList.size());
         
         return response;
     }
@@ -239,72 +388,223 @@ public class DriverServiceServer {
         
         // Mark driver as busy
         info.setAvailable(false);
+        updateSupply(info, true);
         
         // Send ride assignment to driver
+        connection.sendMessage(rideAssignment(rideId, passengerUsername, pickupLat, pickupLon));
+        
+        log.info("Assigned ride {} to driver {}", rideId, driverUsername);
+        
+        Message response = new Message(MessageType.DRIVER_ASSIGNED);
+        response.addPayload("success", true);
+        response.addPayload("driverUsername", driverUsername);
+        
+        return response;
+    }
+    
+    /**
+     * Offer a ride to one driver or several at once (driverUsernames, comma
+     * separated) for offerTimeoutMs, bounded by the request's deadline. The
+     * available ones are marked busy and sent the RIDE_ASSIGNMENT; the first
+     * RIDE_ACCEPTED takes the ride. reply gets DRIVER_ASSIGNED (success and
+     * the winner, or the outcome) when the offer closes, or an ERROR at once
+     * if none of the drivers can be offered it.
+     */
+    private void offerRide(Message request, Consumer<Message> reply) {
+        String names = request.getPayloadString("driverUsernames");
+        if (names == null) names = request.getPayloadString("driverUsername");
+        String passengerUsername = request.getPayloadString("passengerUsername");
+        int rideId = request.getPayloadInt("rideId");
+        double pickupLat = request.getPayloadDouble("pickupLat");
+        double pickupLon = request.getPayloadDouble("pickupLon");
+        long timeoutMs = Math.min(request.getPayloadInt("offerTimeoutMs"), RequestContext.remainingMillis());
+        
+        RideOffer offer;
+        List<DriverConnection> recipients = new ArrayList<>();
+        synchronized (this) {
+            List<String> offered = new ArrayList<>();
+            for (String name : names != null ? names.split(",") : new String[0]) {
+                DriverInfo info = driverRegistry.get(name);
+                DriverConnection connection = driverConnections.get(name);
+                if (info != null && connection != null && info.isAvailable()) {
+                    info.setAvailable(false);
+                    updateSupply(info, true);
+                    offered.add(name);
+                    recipients.add(connection);
+                }
+            }
+            if (offered.isEmpty()) {
+                offer = null;
+            } else {
+                offer = new RideOffer(rideId, offered.toArray(new String[0]), closed -> offerClosed(closed, reply));
+                offers.put(rideId, offer);
+                openOffers.incrementAndGet();
+            }
+        }
+        if (offer == null) {
+            Message response = new Message(MessageType.ERROR);
+            response.addPayload("error", "Driver not found, not connected or not available");
+            reply.accept(response);
+            return;
+        }
+        
+        String assignment = JSONUtil.toJSON(rideAssignment(rideId, passengerUsername, pickupLat, pickupLon));
+        for (DriverConnection connection : recipients) {
+            connection.sendRaw(assignment);
+        }
+        offer.expireAfter(offerTimers, timeoutMs, threadPool);
+        log.info("Offered ride {} to {} for {} ms", rideId, String.join(", ", offer.getDrivers()), timeoutMs);
+    }
+    
+    private static Message rideAssignment(int rideId, String passengerUsername, double pickupLat, double pickupLon) {
         Message assignment = new Message(MessageType.RIDE_ASSIGNMENT);
         assignment.addPayload("rideId", rideId);
         assignment.addPayload("passengerUsername", passengerUsername);
         assignment.addPayload("pickupLat", pickupLat);
         assignment.addPayload("pickupLon", pickupLon);
+        return assignment;
+    }
+    
+    /**
+     * An offer has been accepted, declined by everyone or has expired: free
+     * and retract it from the drivers who did not get it, and answer Dispatch.
+     * Blocks (registry lock, Dispatch's socket), so never on the timer wheel.
+     */
+    private void offerClosed(RideOffer offer, Consumer<Message> reply) {
+        openOffers.decrementAndGet();
+        String winner = offer.getWinner();
+        switch (offer.getState()) {
+            case ACCEPTED:
+                offersAccepted.increment();
+                offerAccept.recordSince(offer.getCreatedAt());
+                break;
+            case DECLINED:
+                offersDeclined.increment();
+                break;
+            default:
+                offersExpired.increment();
+                break;
+        }
         
-        connection.sendMessage(assignment);
+        if (winner != null) assignRide(offer.rideId, winner);
+        for (String driver : offer.getDrivers()) {
+            if (driver.equals(winner) || offer.hasDeclined(driver)) continue; // decliners were freed already
+            updateDriverAvailability(driver, true);
+            retract(driver, offer.rideId, winner != null ? "taken" : "expired");
+        }
+        offerTimers.schedule(() -> offers.remove(offer.rideId, offer), OFFER_LINGER_MS);
         
-        System.out.println("[DriverService] Assigned ride " + rideId + " to driver " + driverUsername);
+        String outcome = offer.getState().name().toLowerCase();
+        log.info("Offer of ride {}: {}{}", offer.rideId, outcome, winner != null ? " by " + winner : "");
         
         Message response = new Message(MessageType.DRIVER_ASSIGNED);
-        response.addPayload("success", true);
-        response.addPayload("driverUsername", driverUsername);
-        
-        return response;
+        response.addPayload("success", winner != null);
+        response.addPayload("outcome", outcome);
+        if (winner != null) response.addPayload("driverUsername", winner);
+        reply.accept(response);
     }
     
     /**
-     * Notify when ride is accepted
+     * Notify when ride is accepted (answering its offer, if there is one).
+     * An acceptance that loses (taken, expired, declined before, or never
+     * offered to this driver) is answered with a RIDE_OFFER_RETRACTED.
      */
     public void notifyRideAccepted(String driverUsername, int rideId) {
-        // This could notify the Dispatch Server or update database
-        System.out.println("[DriverService] Ride " + rideId + " accepted by " + driverUsername);
+        RideOffer offer = offers.get(rideId);
+        if (offer == null) {
+            assignRide(rideId, driverUsername);
+            log.info("Ride {} accepted by {}", rideId, driverUsername);
+        } else if (!offer.includes(driverUsername)) {
+            log.warn("Ride {} accepted by {}, who was not offered it", rideId, driverUsername);
+            retract(driverUsername, rideId, "not offered");
+        } else if (!offer.accept(driverUsername)) {
+            String winner = offer.getWinner();
+            String reason = offer.hasDeclined(driverUsername) ? "declined"
+                    : winner != null && !winner.equals(driverUsername) ? "taken" : "expired";
+            log.info("Late acceptance of ride {} by {} ({})", rideId, driverUsername, reason);
+            retract(driverUsername, rideId, reason);
+        }
+    }
+    
+    /**
+     * Notify when ride is declined: the driver is available again at once
+     */
+    public void notifyRideRejected(String driverUsername, int rideId) {
+        RideOffer offer = offers.get(rideId);
+        if (offer == null || !offer.includes(driverUsername) || offer.decline(driverUsername)) {
+            updateDriverAvailability(driverUsername, true);
+        }
+        log.info("Ride {} declined by {}", rideId, driverUsername);
     }
     
     /**
      * Notify when ride is started
      */
     public void notifyRideStarted(String driverUsername, int rideId, double lat, double lon) {
+        if (!hasRide(driverUsername, rideId)) return;
         // Update ride status in database
         updateRideStatusInDB(rideId, "STARTED", lat, lon);
-        System.out.println("[DriverService] Ride " + rideId + " started by " + driverUsername);
+        log.info("Ride {} started by {}", rideId, driverUsername);
     }
     
     /**
      * Notify when ride is completed
      */
     public void notifyRideCompleted(String driverUsername, int rideId, double lat, double lon) {
+        if (!hasRide(driverUsername, rideId)) return;
         // Update ride status and mark driver available
         updateRideStatusInDB(rideId, "COMPLETED", lat, lon);
+        rideDrivers.remove(rideId, driverUsername);
         updateDriverAvailability(driverUsername, true);
-        System.out.println("[DriverService] Ride " + rideId + " completed by " + driverUsername);
+        log.info("Ride {} completed by {}", rideId, driverUsername);
+    }
+    
+    /**
+     * Record that driverUsername has the ride, replacing any earlier ride of
+     * theirs (a driver carries one ride at a time)
+     */
+    private synchronized void assignRide(int rideId, String driverUsername) {
+        rideDrivers.values().remove(driverUsername);
+        rideDrivers.put(rideId, driverUsername);
+    }
+    
+    /**
+     * Whether driverUsername may report on the ride: it is theirs, or it was
+     * never offered through this service (assigned before a restart). Anyone
+     * else is sent an ERROR and the report is ignored.
+     */
+    private boolean hasRide(String driverUsername, int rideId) {
+        String driver = rideDrivers.get(rideId);
+        if (driver != null ? driver.equals(driverUsername) : !offers.containsKey(rideId)) return true;
+        log.warn("Ignoring ride {} status from {}, the ride is not theirs", rideId, driverUsername);
+        DriverConnection connection = driverConnections.get(driverUsername);
+        if (connection != null) {
+            Message error = new Message(MessageType.ERROR);
+            error.addPayload("error", "Ride " + rideId + " is not assigned to you");
+            connection.sendMessage(error);
+        }
+        return false;
+    }
+    
+    /**
+     * Tell a driver the ride is not (or no longer) theirs
+     */
+    private void retract(String driverUsername, int rideId, String reason) {
+        DriverConnection connection = driverConnections.get(driverUsername);
+        if (connection != null) {
+            Message retraction = new Message(MessageType.RIDE_OFFER_RETRACTED);
+            retraction.addPayload("rideId", rideId);
+            retraction.addPayload("reason", reason);
+            connection.sendMessage(retraction);
+            retractions.increment();
+        }
     }
     
     /**
      * Update driver location in database via Database Service
      */
     private void updateDriverLocationInDB(String username, double lat, double lon) {
-        try {
-            Socket dbSocket = new Socket(DB_SERVICE_HOST, DB_SERVICE_PORT);
-            PrintWriter out = new PrintWriter(dbSocket.getOutputStream(), true);
-            
-            Message request = new Message(MessageType.DB_UPDATE_DRIVER_LOCATION);
-            request.addPayload("username", username);
-            request.addPayload("latitude", lat);
-            request.addPayload("longitude", lon);
-            
-            String json = JSONUtil.toJSON(request);
-            out.println(json);
-            
-            dbSocket.close();
-        } catch (IOException e) {
-            System.err.println("[DriverService] Error updating driver location in DB: " + e.getMessage());
-        }
+        locationWriter.write(username, lat, lon);
     }
     
     /**
@@ -312,7 +612,7 @@ public class DriverServiceServer {
      */
     private void updateRideStatusInDB(int rideId, String status, double lat, double lon) {
         try {
-            Socket dbSocket = new Socket(DB_SERVICE_HOST, DB_SERVICE_PORT);
+            Socket dbSocket = RequestContext.connect(DB_SERVICE_HOST, DB_SERVICE_PORT);
             BufferedReader in = new BufferedReader(new InputStreamReader(dbSocket.getInputStream()));
             PrintWriter out = new PrintWriter(dbSocket.getOutputStream(), true);
             
@@ -330,7 +630,7 @@ public class DriverServiceServer {
             
             dbSocket.close();
         } catch (IOException e) {
-            System.err.println("[DriverService] Error updating ride status in DB: " + e.getMessage());
+            log.warn("Error updating ride status in DB: {}", e.getMessage());
         }
     }
 }
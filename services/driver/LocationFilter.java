@@ -0,0 +1,153 @@
+package services.driver;
+
+import common.Config;
+import common.Metrics;
+
+
+/**
+ * Per-driver GPS ingestion filter.
+ * Raw updates are classified as ACCEPTED (stored and written to the DB),
+ * THROTTLED (moved less than GPS_MIN_MOVE_METERS, or sooner than
+ * GPS_MIN_INTERVAL_MS after the last accepted point) or JITTER (implied speed
+ * above GPS_MAX_SPEED_MPS, ignored unless it repeats, which means the driver
+ * really is somewhere else). Every non-jitter sample feeds an EWMA velocity
+ * used to dead-reckon the position between accepted points for matching.
+ * Not thread-safe: DriverServiceServer calls it under its own lock.
+ */
+public class LocationFilter {
+    public enum Result {
+        ACCEPTED, THROTTLED, JITTER
+    }
+
+    private static final double EARTH_RADIUS_M = 6_371_000.0;
+    private static final double VELOCITY_ALPHA = 0.3; // EWMA weight of the newest sample
+    private static final int JITTER_REANCHOR = 3; // consecutive jumps that mean a real relocation
+    private static final long MAX_EXTRAPOLATE_MS = 10_000;
+
+    private static final double MIN_MOVE_METERS = Config.getDouble("GPS_MIN_MOVE_METERS", 15.0);
+    private static final long MIN_INTERVAL_MS = Config.getLong("GPS_MIN_INTERVAL_MS", 1_000);
+    private static final double MAX_SPEED_MPS = Config.getDouble("GPS_MAX_SPEED_MPS", 70.0); // ~250 km/h
+
+    // Service-wide counters
+    private static final Metrics.Counter received = Metrics.counter("gps_samples_total{result=\"received\"}",
+            "GPS samples from drivers, by what the filter did with them");
+    private static final Metrics.Counter accepted = Metrics.counter("gps_samples_total{result=\"accepted\"}", null);
+    private static final Metrics.Counter throttled = Metrics.counter("gps_samples_total{result=\"throttled\"}", null);
+    private static final Metrics.Counter jitter = Metrics.counter("gps_samples_total{result=\"jitter\"}", null);
+
+    private boolean anchored = false;
+
+    // Last accepted point
+    private double acceptedLat;
+    private double acceptedLon;
+    private long acceptedTime;
+
+    // Last plausible raw sample (accepted or throttled)
+    private double sampleLat;
+    private double sampleLon;
+    private long sampleTime;
+
+    // EWMA velocity in degrees per millisecond
+    private double velLat;
+    private double velLon;
+    private int jitterStreak;
+
+    /**
+     * Start from a known position (registration) without counting it as an update
+     */
+    public void anchor(double lat, double lon, long now) {
+        acceptedLat = sampleLat = lat;
+        acceptedLon = sampleLon = lon;
+        acceptedTime = sampleTime = now;
+        velLat = velLon = 0.0;
+        jitterStreak = 0;
+        anchored = true;
+    }
+
+    /**
+     * Classify a raw update. Only ACCEPTED points should be stored and written through.
+     */
+    public Result offer(double lat, double lon, long now) {
+        received.increment();
+        if (!anchored) {
+            anchor(lat, lon, now);
+            accepted.increment();
+            return Result.ACCEPTED;
+        }
+
+        long dt = Math.max(1, now - sampleTime);
+        double step = distanceMeters(sampleLat, sampleLon, lat, lon);
+        if (step > MIN_MOVE_METERS && step * 1000.0 / dt > MAX_SPEED_MPS) {
+            if (++jitterStreak < JITTER_REANCHOR) {
+                jitter.increment();
+                return Result.JITTER;
+            }
+            // The "jumps" keep agreeing with each other: treat it as a relocation
+            anchor(lat, lon, now);
+            accepted.increment();
+            return Result.ACCEPTED;
+        }
+        jitterStreak = 0;
+
+        velLat = VELOCITY_ALPHA * ((lat - sampleLat) / dt) + (1 - VELOCITY_ALPHA) * velLat;
+        velLon = VELOCITY_ALPHA * ((lon - sampleLon) / dt) + (1 - VELOCITY_ALPHA) * velLon;
+        sampleLat = lat;
+        sampleLon = lon;
+        sampleTime = now;
+
+        if (distanceMeters(acceptedLat, acceptedLon, lat, lon) < MIN_MOVE_METERS
+                || now - acceptedTime < MIN_INTERVAL_MS) {
+            throttled.increment();
+            return Result.THROTTLED;
+        }
+
+        acceptedLat = lat;
+        acceptedLon = lon;
+        acceptedTime = now;
+        accepted.increment();
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Dead-reckoned position at time now: the last plausible sample moved
+     * along the smoothed velocity, for at most MAX_EXTRAPOLATE_MS.
+     */
+    public double[] predict(long now) {
+        long ahead = Math.min(Math.max(0, now - sampleTime), MAX_EXTRAPOLATE_MS);
+        return new double[] { sampleLat + velLat * ahead, sampleLon + velLon * ahead };
+    }
+
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        // Equirectangular approximation, accurate to well under 1% at GPS-update distances
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_M;
+    }
+
+    public static long getReceived() {
+        return received.get();
+    }
+
+    public static long getAccepted() {
+        return accepted.get();
+    }
+
+    public static long getThrottled() {
+        return throttled.get();
+    }
+
+    public static long getJitter() {
+        return jitter.get();
+    }
+
+    /**
+     * One-line summary for the periodic stats log
+     */
+    public static String stats() {
+        long total = received.get();
+        long kept = accepted.get();
+        double ratio = total == 0 ? 0.0 : 100.0 * (total - kept) / total;
+        return "received=" + total + " accepted=" + kept + " throttled=" + throttled.get() + " jitter="
+                + jitter.get() + String.format(" (%.1f%% not written)", ratio);
+    }
+}
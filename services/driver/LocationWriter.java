@@ -0,0 +1,183 @@
+package services.driver;
+
+import common.Log;
+import common.Metrics;
+import common.MessageType;
+import common.RequestContext;
+import common.TelemetryMessage;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Forwards accepted driver locations to the Database Service over one
+ * long-lived connection, each update written as a DB_UPDATE_DRIVER_LOCATION
+ * TelemetryMessage from reused buffers: no socket, Message or UUID per
+ * update. write() only records the position; a writer thread owns the
+ * socket, so callers (which hold the driver registry lock) never wait for a
+ * connect or a slow socket. Pending positions are coalesced per driver, since
+ * only the newest one matters, and bounded at MAX_PENDING drivers: beyond
+ * that, updates of drivers not already pending are dropped. A reader thread
+ * drains and discards the replies, so a write never waits for MySQL. While
+ * the connection is down positions keep coalescing and a reconnect is tried
+ * once per RECONNECT_INTERVAL_MS.
+ */
+final class LocationWriter {
+    private static final Log log = Log.get("LocationWriter");
+    private static final Log errorLog = log.sampled(100);
+    private static final long RECONNECT_INTERVAL_MS = 1_000;
+    static final int MAX_PENDING = 10_000;
+
+    private static final Metrics.Counter coalesced = Metrics.counter("driver_location_writes_coalesced_total",
+            "Location updates replaced by a newer one of the same driver before being sent");
+    private static final Metrics.Counter dropped = Metrics.counter("driver_location_writes_dropped_total",
+            "Location updates not sent to the Database Service (queue full or connection lost)");
+
+    private final String host;
+    private final int port;
+
+    // Newest unsent position per driver, guarded by this
+    private Map<String, double[]> pending = new LinkedHashMap<>();
+    private Map<String, double[]> sending = new LinkedHashMap<>();
+
+    // Writer thread only
+    private final TelemetryMessage update = new TelemetryMessage();
+    private final StringBuilder batch = new StringBuilder();
+    private char[] chars = new char[8192];
+    private Socket socket;
+    private PrintWriter out;
+
+    LocationWriter(String host, int port) {
+        this.host = host;
+        this.port = port;
+        Metrics.gauge("driver_location_writes_pending", "Drivers whose newest position is waiting to be written",
+                () -> { synchronized (this) { return pending.size(); } });
+        Thread writer = new Thread(this::run, "db-location-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a driver's position for the Database Service. Never blocks on I/O.
+     */
+    void write(String username, double lat, double lon) {
+        synchronized (this) {
+            double[] location = pending.get(username);
+            if (location != null) {
+                location[0] = lat;
+                location[1] = lon;
+                coalesced.increment();
+                return;
+            }
+            if (pending.size() < MAX_PENDING) {
+                pending.put(username, new double[] { lat, lon });
+                if (pending.size() == 1)
+                    notify();
+                return;
+            }
+        }
+        dropped.increment();
+        errorLog.warn("Location update for {} dropped, {} drivers already waiting to be written", username, MAX_PENDING);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty())
+                        wait();
+                }
+                if (!connected() && !connect()) {
+                    Thread.sleep(RECONNECT_INTERVAL_MS);
+                    continue;
+                }
+                synchronized (this) {
+                    Map<String, double[]> swap = sending;
+                    sending = pending;
+                    pending = swap;
+                }
+                send();
+                sending.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write everything in sending with one flush
+     */
+    private void send() {
+        batch.setLength(0);
+        for (Map.Entry<String, double[]> e : sending.entrySet()) {
+            double[] location = e.getValue();
+            update.set(MessageType.DB_UPDATE_DRIVER_LOCATION).username(e.getKey()).location(location[0], location[1])
+                    .appendTo(batch).append('\n');
+        }
+        int len = batch.length();
+        if (chars.length < len)
+            chars = new char[Math.max(len, chars.length * 2)];
+        batch.getChars(0, len, chars, 0);
+        out.write(chars, 0, len);
+        out.flush();
+        if (out.checkError()) {
+            dropped.add(sending.size());
+            errorLog.warn("{} location updates not sent, reconnecting", sending.size());
+            close(socket);
+        }
+    }
+
+    private boolean connected() {
+        return socket != null && !socket.isClosed();
+    }
+
+    private boolean connect() {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), RequestContext.CONNECT_TIMEOUT_MS);
+            out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            errorLog.warn("Cannot reach the Database Service for location updates: {}", e.getMessage());
+            close(s);
+            return false;
+        }
+        socket = s;
+        Thread reader = new Thread(() -> drain(s), "db-location-replies");
+        reader.setDaemon(true);
+        reader.start();
+        log.info("Location updates connected to {}:{}", host, port);
+        return true;
+    }
+
+    /**
+     * Discard the Database Service's replies until the connection closes,
+     * then close it so the writer thread reconnects
+     */
+    private static void drain(Socket s) {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = s.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // Replies carry nothing a location update needs
+            }
+        } catch (IOException e) {
+            // Closed by either side
+        }
+        close(s);
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package services.driver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A ride offered to one or more drivers at once. An offer is OPEN until
+ * exactly one of:
+ *   ACCEPTED - a driver's RIDE_ACCEPTED won the compare-and-set on the state;
+ *   DECLINED - every driver offered it declined (or disconnected);
+ *   EXPIRED  - its timer on the wheel fired first.
+ * The transition that wins runs onClose, once; answers that arrive after it
+ * lose the compare-and-set and change nothing. onClose may block: expiry is
+ * decided on the timer wheel's thread, but onClose then runs on an executor.
+ */
+final class RideOffer {
+    enum State {
+        OPEN, ACCEPTED, DECLINED, EXPIRED
+    }
+
+    final int rideId;
+    private final String[] drivers;
+    private final AtomicReference<State> state = new AtomicReference<>(State.OPEN);
+    private final AtomicIntegerArray declined; // 1 for each driver who said no
+    private final AtomicInteger declines = new AtomicInteger();
+    private final Consumer<RideOffer> onClose;
+    private final long createdAt = System.nanoTime();
+    private volatile String winner;
+    private volatile TimerWheel.Timeout expiry;
+
+    RideOffer(int rideId, String[] drivers, Consumer<RideOffer> onClose) {
+        this.rideId = rideId;
+        this.drivers = drivers;
+        this.declined = new AtomicIntegerArray(drivers.length);
+        this.onClose = onClose;
+    }
+
+    /**
+     * Start the offer's clock; onClose runs on closer if it expires
+     */
+    void expireAfter(TimerWheel wheel, long timeoutMs, Executor closer) {
+        expiry = wheel.schedule(() -> {
+            if (state.compareAndSet(State.OPEN, State.EXPIRED))
+                closer.execute(() -> onClose.accept(this));
+        }, timeoutMs);
+        if (state.get() != State.OPEN) expiry.cancel(); // answered already
+    }
+
+    /**
+     * The driver takes the ride; true if they were first
+     */
+    boolean accept(String driverUsername) {
+        int i = indexOf(driverUsername);
+        if (i < 0 || declined.get(i) != 0 || !state.compareAndSet(State.OPEN, State.ACCEPTED))
+            return false;
+        winner = driverUsername;
+        finish();
+        return true;
+    }
+
+    /**
+     * The driver turns the ride down (or has gone); true unless they are not
+     * part of this offer or had answered already. The last refusal closes it.
+     */
+    boolean decline(String driverUsername) {
+        int i = indexOf(driverUsername);
+        if (i < 0 || !declined.compareAndSet(i, 0, 1))
+            return false;
+        if (declines.incrementAndGet() == drivers.length)
+            close(State.DECLINED);
+        return true;
+    }
+
+    private void close(State outcome) {
+        if (state.compareAndSet(State.OPEN, outcome))
+            finish();
+    }
+
+    private void finish() {
+        TimerWheel.Timeout timeout = expiry;
+        if (timeout != null) timeout.cancel();
+        onClose.accept(this);
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    /**
+     * The driver who accepted, once ACCEPTED
+     */
+    String getWinner() {
+        return winner;
+    }
+
+    String[] getDrivers() {
+        return drivers;
+    }
+
+    boolean includes(String driverUsername) {
+        return indexOf(driverUsername) >= 0;
+    }
+
+    boolean hasDeclined(String driverUsername) {
+        int i = indexOf(driverUsername);
+        return i >= 0 && declined.get(i) != 0;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    private int indexOf(String driverUsername) {
+        for (int i = 0; i < drivers.length; i++) {
+            if (drivers[i].equals(driverUsername)) return i;
+        }
+        return -1;
+    }
+}
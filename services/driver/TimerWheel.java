@@ -0,0 +1,175 @@
+package services.driver;
+
+import common.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel: one thread serves any number of timeouts. A timeout
+ * lands in the slot its deadline falls in (modulo the wheel size) with the
+ * number of full turns still to wait; each tick the thread walks one slot,
+ * fires what is due and counts down the rest. Scheduling and cancelling are
+ * O(1) and lock-free - new timeouts go through a queue the ticking thread
+ * drains, cancelled ones are unlinked when their slot next comes round.
+ * Resolution is one tick: a timeout fires up to a tick late, never early.
+ * Tasks run on the wheel's thread and must not block.
+ */
+final class TimerWheel {
+    private static final Log log = Log.get("TimerWheel");
+
+    /**
+     * A scheduled task
+     */
+    static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // nanos since the wheel started
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running; false if it has already run
+         */
+        boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+        private boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * One slot: a doubly linked list only the wheel's thread touches
+     */
+    private static final class Slot {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.next = head;
+            if (head != null) head.prev = timeout;
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            timeout.prev = timeout.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Slot[] slots;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final AtomicInteger pending = new AtomicInteger();
+    private long tick;
+
+    /**
+     * A wheel of slotCount slots (rounded up to a power of two) turning one
+     * slot every tickMs, with its thread started
+     */
+    TimerWheel(String name, long tickMs, int slotCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int size = Integer.highestOneBit(Math.max(2, slotCount) * 2 - 1);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run task on the wheel's thread after delayMs
+     */
+    Timeout schedule(Runnable task, long delayMs) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Timeouts scheduled and neither run nor cancelled yet (cancelled ones
+     * count until their slot comes round)
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = (tick + 1) * tickNanos;
+            long sleep = tickEnd - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferAdded();
+            expire(slots[(int) (tick & mask)], tickEnd);
+            tick++;
+        }
+    }
+
+    /**
+     * Place newly scheduled timeouts in their slots
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                pending.decrementAndGet();
+                continue;
+            }
+            // Already due (or due this tick): the current slot, no full turns
+            long dueTick = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.rounds = (dueTick - tick) / slots.length;
+            slots[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Slot slot, long tickEnd) {
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                slot.remove(timeout);
+                pending.decrementAndGet();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.deadline < tickEnd) {
+                slot.remove(timeout);
+                pending.decrementAndGet();
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Timer task failed", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
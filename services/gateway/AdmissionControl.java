@@ -0,0 +1,143 @@
+package services.gateway;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import common.Config;
+import common.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control for the gateway's API routes, read from config.properties
+ * (environment variables override):
+ * GATEWAY_RATE_PER_SECOND / GATEWAY_RATE_BURST - token bucket per client IP
+ * and route, and per username for proxied calls
+ * GATEWAY_MAX_CONCURRENT - requests in flight to the backend services
+ * Calls to third-party APIs (geocoding, directions) get their own, much
+ * smaller limits. Anything over a limit is answered at once with 429 and
+ * Retry-After, before any backend work happens.
+ */
+public class AdmissionControl {
+    private static final int MAX_CLIENTS = 100_000;
+    // Nominatim's usage policy allows about one request per second
+    private static final double EXTERNAL_RATE_PER_SECOND = 1.0;
+    private static final int EXTERNAL_BURST = 5;
+    private static final int EXTERNAL_MAX_CONCURRENT = 4;
+
+    private static final Metrics.Counter rateLimited = Metrics.counter("gateway_rejected_total{reason=\"rate_limited\"}",
+            "Requests answered with 429, by reason");
+    private static final Metrics.Counter overCapacity = Metrics.counter("gateway_rejected_total{reason=\"over_capacity\"}",
+            null);
+
+    private final double ratePerSecond;
+    private final int burst;
+    private final Semaphore backendSlots;
+    private final Semaphore externalSlots = new Semaphore(EXTERNAL_MAX_CONCURRENT);
+    private final TokenBucketStore users;
+
+    public AdmissionControl(double ratePerSecond, int burst, int maxConcurrent) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.backendSlots = new Semaphore(maxConcurrent);
+        this.users = new TokenBucketStore(ratePerSecond, burst, MAX_CLIENTS);
+    }
+
+    public static AdmissionControl fromConfig() {
+        return new AdmissionControl(
+                Config.getDouble("GATEWAY_RATE_PER_SECOND", 10),
+                Config.getInt("GATEWAY_RATE_BURST", 20),
+                Config.getInt("GATEWAY_MAX_CONCURRENT", 64));
+    }
+
+    /**
+     * Filter for a route served by the backend services
+     */
+    public Filter backend(String route) {
+        return new AdmissionFilter(route, new TokenBucketStore(ratePerSecond, burst, MAX_CLIENTS), backendSlots);
+    }
+
+    /**
+     * Filter for a route that calls a third-party API
+     */
+    public Filter external(String route) {
+        return new AdmissionFilter(route,
+                new TokenBucketStore(EXTERNAL_RATE_PER_SECOND, EXTERNAL_BURST, MAX_CLIENTS), externalSlots);
+    }
+
+    /**
+     * Per-user limit, applied once the request body has named the user
+     */
+    public boolean allowUser(String username) {
+        if (username == null || users.tryAcquire(username))
+            return true;
+        rateLimited.increment();
+        return false;
+    }
+
+    public String describe() {
+        return ratePerSecond + " req/s (burst " + burst + ") per client, " + backendSlots.availablePermits()
+                + " concurrent backend calls";
+    }
+
+    public static long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public static long getOverCapacity() {
+        return overCapacity.get();
+    }
+
+    static void reject(HttpExchange t, String error) throws IOException {
+        byte[] bytes = ("{\"error\": \"" + error + "\"}").getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.getResponseHeaders().set("Retry-After", "1");
+        t.sendResponseHeaders(429, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static class AdmissionFilter extends Filter {
+        private final String route;
+        private final TokenBucketStore clients;
+        private final Semaphore slots;
+
+        AdmissionFilter(String route, TokenBucketStore clients, Semaphore slots) {
+            this.route = route;
+            this.clients = clients;
+            this.slots = slots;
+        }
+
+        @Override
+        public void doFilter(HttpExchange t, Chain chain) throws IOException {
+            if ("OPTIONS".equals(t.getRequestMethod())) {
+                chain.doFilter(t);
+                return;
+            }
+            if (!clients.tryAcquire(t.getRemoteAddress().getAddress().getHostAddress())) {
+                rateLimited.increment();
+                reject(t, "Too many requests");
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                overCapacity.increment();
+                reject(t, "Server busy, try again");
+                return;
+            }
+            try {
+                chain.doFilter(t);
+            } finally {
+                slots.release();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Admission control for " + route;
+        }
+    }
+}
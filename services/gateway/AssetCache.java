@@ -0,0 +1,317 @@
+package services.gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import common.Log;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of the files under web/.
+ * Every file is loaded (and text files gzipped) once at startup, so requests
+ * never touch the disk. A WatchService reloads files as they change.
+ * Responses carry ETag / Last-Modified / Cache-Control, and conditional
+ * requests that still match are answered with an empty 304.
+ * Files above STREAMED_THRESHOLD are not kept on the heap: each request
+ * opens the file and sends it with FileChannel.transferTo, and nothing holds
+ * the file open between requests, so it can be replaced on disk at any time
+ * (a mapping would keep it locked on Windows until garbage collected).
+ */
+public class AssetCache {
+    private static final Log log = Log.get("AssetCache");
+    private static final long STREAMED_THRESHOLD = 1024 * 1024;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private final Path root;
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    public AssetCache(String rootDir) {
+        this.root = Paths.get(rootDir).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Load every file under the root and start watching it for changes
+     */
+    public void start() {
+        long bytes = 0;
+        try {
+            Files.walk(root).filter(Files::isRegularFile).forEach(this::load);
+        } catch (IOException e) {
+            log.warn("Could not read {}: {}", root, e.getMessage());
+        }
+        for (Asset asset : assets.values()) {
+            bytes += asset.length;
+        }
+        log.info("Cached {} files ({} KB) from {}", assets.size(), bytes / 1024, root);
+
+        Thread watcher = new Thread(this::watch, "asset-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Serve one cached file, by path relative to the working directory
+     * (e.g. "web/admin.html"). Sends 404 if it is not cached.
+     */
+    public void serve(HttpExchange t, String path) throws IOException {
+        String key = key(Paths.get(path).toAbsolutePath().normalize());
+        Asset asset = assets.get(key);
+        FileChannel file = null;
+        if (asset != null && asset.bytes == null) {
+            try {
+                file = FileChannel.open(asset.file, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // Deleted before the watcher noticed
+                assets.remove(key, asset);
+                asset = null;
+            }
+        }
+        if (asset == null) {
+            String response = "File not found: " + path;
+            t.sendResponseHeaders(404, response.length());
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return;
+        }
+
+        boolean gzip = asset.gzipped != null && acceptsGzip(t);
+        String etag = gzip ? asset.etag.substring(0, asset.etag.length() - 1) + "-gz\"" : asset.etag;
+
+        t.getResponseHeaders().set("Content-Type", asset.contentType);
+        t.getResponseHeaders().set("Cache-Control", asset.cacheControl);
+        t.getResponseHeaders().set("ETag", etag);
+        t.getResponseHeaders().set("Last-Modified", asset.lastModified);
+        if (asset.gzipped != null)
+            t.getResponseHeaders().set("Vary", "Accept-Encoding");
+
+        try (FileChannel channel = file) {
+            if (notModified(t, asset, etag)) {
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
+            if (gzip)
+                t.getResponseHeaders().set("Content-Encoding", "gzip");
+
+            boolean head = "HEAD".equals(t.getRequestMethod());
+            // A streamed file may have changed since it was cached; send what is there now
+            long length = gzip ? asset.gzipped.length : channel != null ? channel.size() : asset.length;
+            t.sendResponseHeaders(200, head ? -1 : length);
+            if (head) {
+                t.close();
+                return;
+            }
+            try (OutputStream os = t.getResponseBody()) {
+                if (gzip) {
+                    os.write(asset.gzipped);
+                } else if (channel == null) {
+                    os.write(asset.bytes);
+                } else {
+                    transfer(channel, length, Channels.newChannel(os));
+                }
+            }
+        }
+    }
+
+    private static void transfer(FileChannel from, long length, WritableByteChannel to) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            long n = from.transferTo(sent, length - sent, to);
+            if (n <= 0)
+                throw new EOFException("File shrank while being sent");
+            sent += n;
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange t) {
+        String accept = t.getRequestHeaders().getFirst("Accept-Encoding");
+        return accept != null && accept.contains("gzip");
+    }
+
+    private static boolean notModified(HttpExchange t, Asset asset, String etag) {
+        String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(etag) || ifNoneMatch.contains(asset.etag) || ifNoneMatch.trim().equals("*");
+        }
+        String ifModifiedSince = t.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toEpochSecond();
+                return asset.modifiedSeconds <= since;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // --- Loading ---
+
+    private String key(Path file) {
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+
+    private void load(Path file) {
+        try {
+            Asset asset = new Asset(file);
+            assets.put(key(file), asset);
+        } catch (IOException e) {
+            log.warn("Could not load {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void watch() {
+        try (WatchService watchService = root.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+            Files.walk(root).filter(Files::isDirectory).forEach(dir -> register(watchService, dirs, dir));
+
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                Path dir = dirs.get(watchKey);
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        continue;
+                    Path file = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        if (assets.remove(key(file)) != null)
+                            log.info("Removed {}", key(file));
+                    } else if (Files.isDirectory(file)) {
+                        register(watchService, dirs, file);
+                    } else if (Files.isRegularFile(file)) {
+                        load(file);
+                        log.info("Reloaded {}", key(file));
+                    }
+                }
+                if (!watchKey.reset())
+                    dirs.remove(watchKey);
+            }
+        } catch (IOException e) {
+            log.warn("File watching stopped: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void register(WatchService watchService, Map<WatchKey, Path> dirs, Path dir) {
+        try {
+            dirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        } catch (IOException e) {
+            log.warn("Cannot watch {}: {}", dir, e.getMessage());
+        }
+    }
+
+    static String contentType(String name) {
+        if (name.endsWith(".html"))
+            return "text/html; charset=utf-8";
+        if (name.endsWith(".css"))
+            return "text/css; charset=utf-8";
+        if (name.endsWith(".js"))
+            return "application/javascript; charset=utf-8";
+        if (name.endsWith(".json"))
+            return "application/json";
+        if (name.endsWith(".svg"))
+            return "image/svg+xml";
+        if (name.endsWith(".png"))
+            return "image/png";
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg"))
+            return "image/jpeg";
+        if (name.endsWith(".ico"))
+            return "image/x-icon";
+        return "application/octet-stream";
+    }
+
+    /**
+     * One cached file. Immutable: a change on disk replaces the whole entry.
+     */
+    private static class Asset {
+        final String contentType;
+        final String cacheControl;
+        final String etag;
+        final String lastModified;
+        final long modifiedSeconds;
+        final long length;
+        final byte[] bytes; // null when streamed from file
+        final Path file;
+        final byte[] gzipped; // null when not worth compressing
+
+        Asset(Path file) throws IOException {
+            String name = file.getFileName().toString();
+            this.contentType = contentType(name);
+            // Pages always revalidate (a cheap 304); css/js may be reused for a few minutes
+            this.cacheControl = name.endsWith(".html") ? "no-cache" : "public, max-age=300";
+            this.modifiedSeconds = Files.getLastModifiedTime(file).toInstant().getEpochSecond();
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochSecond(modifiedSeconds).atZone(ZoneOffset.UTC));
+
+            long size = Files.size(file);
+            byte[] content = size > STREAMED_THRESHOLD ? null : Files.readAllBytes(file);
+            this.bytes = content;
+            this.file = file;
+            this.length = size;
+            this.etag = "\"" + (content != null ? digest(content) : digest(file)) + "\"";
+            this.gzipped = content != null && isText(contentType) ? compress(content) : null;
+        }
+
+        private static boolean isText(String contentType) {
+            return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+                    || contentType.equals("application/json") || contentType.equals("image/svg+xml");
+        }
+
+        private static byte[] compress(byte[] content) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 3 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                gzip.write(content);
+            }
+            // Tiny files can grow; serve those as-is
+            return buffer.size() < content.length ? buffer.toByteArray() : null;
+        }
+
+        private static String digest(byte[] content) {
+            MessageDigest sha = sha1();
+            sha.update(content);
+            return hex(sha);
+        }
+
+        private static String digest(Path file) throws IOException {
+            MessageDigest sha = sha1();
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    sha.update(buffer, 0, n);
+                }
+            }
+            return hex(sha);
+        }
+
+        private static MessageDigest sha1() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String hex(MessageDigest sha) {
+            StringBuilder hex = new StringBuilder();
+            byte[] hash = sha.digest();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        }
+    }
+}
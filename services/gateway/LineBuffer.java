@@ -0,0 +1,312 @@
+package services.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer for one proxied message, reused across requests on
+ * the same thread so bodies go from socket to socket without being decoded
+ * into Strings. Holds at most limit bytes.
+ */
+final class LineBuffer {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int RETAINED_SIZE = 64 * 1024; // larger buffers are dropped on reset
+
+    private final int limit;
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int length;
+    private byte[] chunk;
+
+    LineBuffer(int limit) {
+        this.limit = limit;
+    }
+
+    static LineBuffer of(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        LineBuffer buffer = new LineBuffer(Integer.MAX_VALUE);
+        buffer.data = bytes;
+        buffer.length = bytes.length;
+        return buffer;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    void reset() {
+        if (data.length > RETAINED_SIZE)
+            data = new byte[INITIAL_SIZE];
+        length = 0;
+    }
+
+    /**
+     * Read a whole HTTP request body, dropping CR/LF so it stays a single
+     * protocol line (JSON strings cannot contain raw line breaks anyway).
+     * Returns false if the body is larger than the limit.
+     */
+    boolean readBody(InputStream in) throws IOException {
+        reset();
+        if (chunk == null)
+            chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (b == '\n' || b == '\r')
+                    continue;
+                if (length == limit)
+                    return false;
+                append(b);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read one line (without its terminator) from a buffered stream.
+     * Returns false if the stream ended before any byte was read.
+     */
+    boolean readLine(InputStream in) throws IOException {
+        reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (length > 0 && data[length - 1] == '\r')
+                    length--;
+                return true;
+            }
+            if (length == limit)
+                throw new IOException("Response exceeds " + limit + " bytes");
+            append((byte) b);
+        }
+        if (length == 0)
+            return false;
+        throw new IOException("Connection closed mid-response");
+    }
+
+    private void append(byte b) {
+        if (length == data.length) {
+            byte[] grown = new byte[(int) Math.min((long) data.length * 2, Math.max(limit, data.length + 1))];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+        data[length++] = b;
+    }
+
+    /**
+     * Value of a "name":"value" string field at any depth (used for routing
+     * keys, so no full JSON parse per request). Text inside string values is
+     * never taken for a field.
+     */
+    String stringField(String name) {
+        int p = valueIndex(name, false);
+        if (p == -1 || data[p] != '"')
+            return null;
+        int end = stringEnd(p);
+        return end == -1 ? null : new String(data, p + 1, end - p - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Integer value of the top-level field name, or fallback if it is missing
+     * or not an integer
+     */
+    long longField(String name, long fallback) {
+        int p = valueIndex(name, true);
+        if (p == -1)
+            return fallback;
+        try {
+            return Long.parseLong(new String(data, p, valueEnd(p) - p, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Add "name":value as the last field of the JSON object, unless the
+     * message already has that top-level field. Returns false if it could not
+     * be added.
+     */
+    boolean addField(String name, long value) {
+        return addRawField(name, Long.toString(value));
+    }
+
+    /**
+     * String variant of addField(); value is written as is, so it must not
+     * need escaping (ids, enum names)
+     */
+    boolean addField(String name, String value) {
+        return addRawField(name, "\"" + value + "\"");
+    }
+
+    /**
+     * Set the top-level field name to value, replacing whatever the message
+     * had. Returns false if the message is not a JSON object or too large.
+     */
+    boolean setField(String name, long value) {
+        int key;
+        while ((key = keyIndex(name, true)) != -1) {
+            int p = valueAfterKey(key, name);
+            if (p == -1)
+                return false;
+            int start = key;
+            int end = valueEnd(p);
+            // Take one separating comma along with the field
+            int next = skipBlanks(end);
+            if (next < length && data[next] == ',') {
+                end = next + 1;
+            } else {
+                int previous = start - 1;
+                while (previous >= 0 && (data[previous] == ' ' || data[previous] == '\t'))
+                    previous--;
+                if (previous >= 0 && data[previous] == ',')
+                    start = previous;
+            }
+            System.arraycopy(data, end, data, start, length - end);
+            length -= end - start;
+        }
+        return addRawField(name, Long.toString(value));
+    }
+
+    private boolean addRawField(String name, String value) {
+        if (valueIndex(name, true) != -1)
+            return true;
+        int end = length - 1;
+        while (end >= 0 && (data[end] == ' ' || data[end] == '\t'))
+            end--;
+        if (end < 1 || data[end] != '}')
+            return false;
+        int last = end - 1;
+        while (last >= 0 && (data[last] == ' ' || data[last] == '\t'))
+            last--;
+        byte[] field = ((data[last] == '{' ? "\"" : ",\"") + name + "\":" + value + "}")
+                .getBytes(StandardCharsets.UTF_8);
+        if (end + field.length > limit)
+            return false;
+        length = end;
+        for (byte b : field) {
+            append(b);
+        }
+        return true;
+    }
+
+    /**
+     * Index of the first byte of the value of field name, or -1
+     */
+    private int valueIndex(String name, boolean topLevel) {
+        int key = keyIndex(name, topLevel);
+        return key == -1 ? -1 : valueAfterKey(key, name);
+    }
+
+    private int valueAfterKey(int key, String name) {
+        int p = skipBlanks(key + name.length() + 2);
+        if (p >= length || data[p] != ':')
+            return -1;
+        p = skipBlanks(p + 1);
+        return p < length ? p : -1;
+    }
+
+    /**
+     * Index of the opening quote of the first key "name" (in the top-level
+     * object only, or at any depth), or -1. Keys are compared byte for byte,
+     * the way the services read them; strings, escapes included, are skipped.
+     */
+    private int keyIndex(String name, boolean topLevel) {
+        int depth = 0;
+        long objects = 0; // bit d: the container at depth d + 1 is an object
+        boolean key = false;
+        for (int i = 0; i < length; i++) {
+            byte b = data[i];
+            if (b == '"') {
+                int end = stringEnd(i);
+                if (end == -1)
+                    return -1;
+                if (key && (depth == 1 || !topLevel) && end - i - 1 == name.length() && matches(name, i + 1))
+                    return i;
+                key = false;
+                i = end;
+            } else if (b == '{' || b == '[') {
+                if (depth == 64)
+                    return -1;
+                objects = b == '{' ? objects | 1L << depth : objects & ~(1L << depth);
+                depth++;
+                key = b == '{';
+            } else if (b == '}' || b == ']') {
+                if (--depth < 0)
+                    return -1;
+                key = false;
+            } else if (b == ',') {
+                key = depth > 0 && (objects & 1L << (depth - 1)) != 0;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int from) {
+        for (int j = 0; j < name.length(); j++) {
+            if (data[from + j] != name.charAt(j))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Index of the quote closing the string that opens at open, or -1
+     */
+    private int stringEnd(int open) {
+        for (int p = open + 1; p < length; p++) {
+            if (data[p] == '\\')
+                p++;
+            else if (data[p] == '"')
+                return p;
+        }
+        return -1;
+    }
+
+    /**
+     * Index just past the value starting at p
+     */
+    private int valueEnd(int p) {
+        int depth = 0;
+        for (int i = p; i < length; i++) {
+            byte b = data[i];
+            if (b == '"') {
+                int end = stringEnd(i);
+                if (end == -1)
+                    return length;
+                if (depth == 0)
+                    return end + 1;
+                i = end;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0)
+                    return i;
+                if (--depth == 0)
+                    return i + 1;
+            } else if (depth == 0 && (b == ',' || b == ' ' || b == '\t')) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private int skipBlanks(int p) {
+        while (p < length && (data[p] == ' ' || data[p] == '\t'))
+            p++;
+        return p;
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package services.gateway;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import common.Metrics;
+import common.Span;
+import common.Tracer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency and response codes of one gateway route. Installed ahead of
+ * admission control, so rejected requests are counted too.
+ * Also where a request's trace starts (or continues, if the client sent
+ * X-Trace-Id); the trace id is returned in the same header.
+ */
+class RouteMetrics extends Filter {
+    private static final Metrics.HistogramFamily latency = Metrics.histograms("gateway_request_seconds", "route",
+            "Time to answer a gateway API request, by route");
+
+    private final String route;
+    private final Metrics.Histogram histogram;
+    private final Map<Integer, Metrics.Counter> responses = new ConcurrentHashMap<>();
+
+    RouteMetrics(String route) {
+        this.route = route;
+        this.histogram = latency.get(route);
+    }
+
+    @Override
+    public void doFilter(HttpExchange t, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        Span span = Tracer.begin(t.getRequestHeaders().getFirst(Tracer.TRACE_HEADER),
+                t.getRequestHeaders().getFirst(Tracer.PARENT_HEADER), t.getRequestMethod() + " " + route, true);
+        if (span.isRecording())
+            t.getResponseHeaders().set(Tracer.TRACE_HEADER, span.getTraceId());
+        try {
+            chain.doFilter(t);
+        } finally {
+            histogram.recordSince(start);
+            int status = t.getResponseCode();
+            responses(status).increment();
+            if (status >= 400 || status < 0)
+                span.setError("HTTP " + status);
+            span.close();
+        }
+    }
+
+    private Metrics.Counter responses(int status) {
+        Metrics.Counter counter = responses.get(status);
+        if (counter == null) {
+            counter = responses.computeIfAbsent(status, s -> Metrics.counter(
+                    "gateway_responses_total{route=\"" + route + "\",status=\"" + s + "\"}",
+                    "Gateway API responses, by route and HTTP status (-1: no response sent)"));
+        }
+        return counter;
+    }
+
+    @Override
+    public String description() {
+        return "Metrics for " + route;
+    }
+}
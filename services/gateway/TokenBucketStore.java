@@ -0,0 +1,91 @@
+package services.gateway;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets keyed by client (IP or username), without locks: each
+ * bucket is one AtomicLong packing the last refill time (upper 40 bits, ms
+ * since the store was created) and the tokens left (lower 24 bits, in
+ * thousandths of a token), updated with compare-and-set.
+ * Memory is bounded: at maxKeys buckets, buckets that have refilled
+ * completely (idle clients) are swept, and if the store is still full new
+ * clients share one overflow bucket instead of growing the map.
+ */
+class TokenBucketStore {
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1000;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final double ratePerMs; // thousandths of a token per ms == tokens per second
+    private final long capacity; // in thousandths
+    private final int maxKeys;
+    private final long epoch = System.currentTimeMillis();
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong overflow;
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    TokenBucketStore(double ratePerSecond, int burst, int maxKeys) {
+        this.ratePerMs = ratePerSecond;
+        this.capacity = Math.min((long) burst * ONE_TOKEN, TOKEN_MASK);
+        this.maxKeys = maxKeys;
+        this.overflow = new AtomicLong(pack(0, capacity));
+    }
+
+    /**
+     * Take one token from key's bucket; false means the client is over its rate
+     */
+    boolean tryAcquire(String key) {
+        long now = System.currentTimeMillis() - epoch;
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                sweep(now);
+            }
+            bucket = buckets.size() < maxKeys ? buckets.computeIfAbsent(key, k -> new AtomicLong(pack(now, capacity)))
+                    : overflow;
+        }
+
+        while (true) {
+            long state = bucket.get();
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            long refill = now > last ? (long) ((now - last) * ratePerMs) : 0;
+            if (refill > 0) {
+                tokens = Math.min(capacity, tokens + refill);
+                last = now;
+            }
+            if (tokens < ONE_TOKEN)
+                return false;
+            if (bucket.compareAndSet(state, pack(last, tokens - ONE_TOKEN)))
+                return true;
+        }
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Drop buckets that would be full by now; at most once per second
+     */
+    private void sweep(long now) {
+        long previous = lastSweep.get();
+        if (now - previous < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(previous, now))
+            return;
+        Iterator<AtomicLong> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            long state = it.next().get();
+            long idleMs = now - (state >>> TOKEN_BITS);
+            if ((state & TOKEN_MASK) + idleMs * ratePerMs >= capacity)
+                it.remove();
+        }
+    }
+
+    private static long pack(long time, long tokens) {
+        return (time << TOKEN_BITS) | tokens;
+    }
+}
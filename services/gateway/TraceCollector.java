@@ -0,0 +1,323 @@
+package services.gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import common.Span;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Collects the spans of every service (POSTed to /traces by their Tracer, and
+ * this gateway's own) and keeps the most recent MAX_TRACES traces in memory.
+ * GET /traces - recent traces, newest first, as JSON
+ * GET /traces/{traceId} - waterfall of one trace and its critical path
+ * GET /traces/critical-path?span=RIDE_REQUEST - where the time goes on the
+ * critical path of that span, averaged over the stored traces that have it
+ * The critical path of a span is the chain of steps it actually waited on:
+ * walking back from its end, the child that finished last, then the one that
+ * finished last before that child started, and so on; time not covered by a
+ * child is the span's own.
+ */
+class TraceCollector implements HttpHandler, Consumer<List<Span>> {
+    private static final int MAX_TRACES = 2000;
+    private static final int MAX_SPANS_PER_TRACE = 512;
+    private static final int DEFAULT_LIST_LIMIT = 50;
+    private static final int BAR_WIDTH = 40;
+
+    private final Map<String, List<Span>> traces = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>(); // oldest first
+
+    @Override
+    public void accept(List<Span> batch) {
+        for (Span span : batch) {
+            add(span);
+        }
+    }
+
+    void add(Span span) {
+        List<Span> spans = traces.get(span.getTraceId());
+        if (spans == null) {
+            List<Span> created = new ArrayList<>();
+            spans = traces.putIfAbsent(span.getTraceId(), created);
+            if (spans == null) {
+                spans = created;
+                order.add(span.getTraceId());
+                while (traces.size() > MAX_TRACES) {
+                    String oldest = order.poll();
+                    if (oldest == null)
+                        break;
+                    traces.remove(oldest);
+                }
+            }
+        }
+        synchronized (spans) {
+            if (spans.size() < MAX_SPANS_PER_TRACE)
+                spans.add(span);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        String path = t.getRequestURI().getPath();
+        String rest = path.length() > "/traces".length() ? path.substring("/traces/".length()) : "";
+        if ("POST".equals(t.getRequestMethod())) {
+            ingest(t);
+        } else if (rest.isEmpty()) {
+            int limit = DEFAULT_LIST_LIMIT;
+            String value = query(t, "limit");
+            if (value != null) {
+                try {
+                    limit = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // keep the default
+                }
+            }
+            respond(t, 200, "application/json", list(limit));
+        } else if (rest.equals("critical-path")) {
+            String name = query(t, "span");
+            respond(t, 200, "text/plain; charset=utf-8", aggregate(name != null ? name : "RIDE_REQUEST"));
+        } else {
+            List<Span> spans = snapshot(rest);
+            if (spans == null)
+                respond(t, 404, "text/plain; charset=utf-8", "No trace " + rest + "\n");
+            else
+                respond(t, 200, "text/plain; charset=utf-8", waterfall(rest, spans));
+        }
+    }
+
+    private void ingest(HttpExchange t) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(t.getRequestBody(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Span span = Span.parse(line);
+            if (span != null)
+                add(span);
+        }
+        t.sendResponseHeaders(204, -1);
+        t.close();
+    }
+
+    private List<Span> snapshot(String traceId) {
+        List<Span> spans = traces.get(traceId);
+        if (spans == null)
+            return null;
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    /**
+     * Recent traces, newest first: id, root span, duration
+     */
+    String list(int limit) {
+        List<String> ids = new ArrayList<>(order);
+        StringBuilder sb = new StringBuilder("[");
+        int count = 0;
+        for (int i = ids.size() - 1; i >= 0 && count < limit; i--) {
+            List<Span> spans = snapshot(ids.get(i));
+            if (spans == null || spans.isEmpty())
+                continue;
+            Span root = roots(spans).get(0);
+            long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+            int errors = 0;
+            for (Span span : spans) {
+                start = Math.min(start, span.getStart());
+                end = Math.max(end, span.getEnd());
+                if (span.getError() != null)
+                    errors++;
+            }
+            if (count++ > 0)
+                sb.append(',');
+            sb.append("{\"traceId\":\"").append(ids.get(i)).append("\",\"root\":\"").append(escape(root.getName()))
+                    .append("\",\"service\":\"").append(escape(root.getService())).append("\",\"start\":")
+                    .append(start / 1000).append(",\"durationMs\":").append(ms(end - start)).append(",\"spans\":")
+                    .append(spans.size()).append(",\"errors\":").append(errors).append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Every span of the trace on a shared timeline, children under their parent
+     */
+    String waterfall(String traceId, List<Span> spans) {
+        long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+        for (Span span : spans) {
+            start = Math.min(start, span.getStart());
+            end = Math.max(end, span.getEnd());
+        }
+        long total = Math.max(1, end - start);
+        Map<String, List<Span>> children = children(spans);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Trace ").append(traceId).append(": ").append(ms(end - start)).append(" ms, ")
+                .append(spans.size()).append(" spans\n\n");
+        sb.append(String.format("%10s %10s  %-" + (BAR_WIDTH + 2) + "s  %s%n", "offset", "duration", "timeline", "span"));
+        for (Span root : roots(spans)) {
+            row(sb, root, 0, start, total, children);
+        }
+
+        sb.append("\nCritical path:\n");
+        for (Span root : roots(spans)) {
+            Map<String, Long> path = new HashMap<>();
+            criticalPath(root, root.getEnd(), children, path);
+            table(sb, path, root.getDuration(), 1);
+        }
+        return sb.toString();
+    }
+
+    private void row(StringBuilder sb, Span span, int depth, long start, long total, Map<String, List<Span>> children) {
+        int from = (int) ((span.getStart() - start) * BAR_WIDTH / total);
+        int width = Math.max(1, (int) (span.getDuration() * BAR_WIDTH / total));
+        from = Math.max(0, Math.min(from, BAR_WIDTH - 1));
+        width = Math.min(width, BAR_WIDTH - from);
+        StringBuilder bar = new StringBuilder("[");
+        for (int i = 0; i < BAR_WIDTH; i++) {
+            bar.append(i >= from && i < from + width ? '#' : ' ');
+        }
+        bar.append(']');
+        sb.append(String.format("%7s ms %7s ms  %s  %s%s  %s%s%n", ms(span.getStart() - start), ms(span.getDuration()),
+                bar, "  ".repeat(depth), span.getService(), span.getName(),
+                span.getError() != null ? "  ERROR: " + span.getError() : ""));
+        List<Span> kids = new ArrayList<>(children.getOrDefault(span.getSpanId(), List.of()));
+        kids.sort(Comparator.comparingLong(Span::getStart));
+        for (Span child : kids) {
+            row(sb, child, depth + 1, start, total, children);
+        }
+    }
+
+    /**
+     * Critical-path time by step, averaged over the stored traces containing
+     * a span named spanName (measured from that span down)
+     */
+    String aggregate(String spanName) {
+        Map<String, Long> path = new HashMap<>();
+        long totalMicros = 0;
+        int count = 0;
+        for (String traceId : new ArrayList<>(order)) {
+            List<Span> spans = snapshot(traceId);
+            if (spans == null)
+                continue;
+            Map<String, List<Span>> children = null;
+            for (Span span : spans) {
+                if (!spanName.equals(span.getName()))
+                    continue;
+                if (children == null)
+                    children = children(spans);
+                criticalPath(span, span.getEnd(), children, path);
+                totalMicros += span.getDuration();
+                count++;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        if (count == 0)
+            return sb.append("No stored trace has a span named ").append(spanName).append('\n').toString();
+        sb.append("Critical path of ").append(spanName).append(", mean over ").append(count).append(" spans: ")
+                .append(ms(totalMicros / count)).append(" ms\n\n");
+        table(sb, path, totalMicros, count);
+        return sb.toString();
+    }
+
+    private static void table(StringBuilder sb, Map<String, Long> path, long totalMicros, int count) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(path.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> entry : entries) {
+            sb.append(String.format("%10s ms %5.1f%%  %s%n", ms(entry.getValue() / count),
+                    totalMicros > 0 ? 100.0 * entry.getValue() / totalMicros : 0.0, entry.getKey()));
+        }
+    }
+
+    /**
+     * Add to path the time span spends on the critical path up to end, its
+     * own and, recursively, its children's
+     */
+    private static void criticalPath(Span span, long end, Map<String, List<Span>> children, Map<String, Long> path) {
+        long cursor = Math.min(span.getEnd(), end);
+        List<Span> kids = new ArrayList<>(children.getOrDefault(span.getSpanId(), List.of()));
+        kids.sort(Comparator.comparingLong(Span::getEnd).reversed());
+        String key = span.getService() + "  " + span.getName();
+        for (Span child : kids) {
+            if (cursor <= span.getStart())
+                break;
+            if (child.getStart() >= cursor)
+                continue; // overlaps a later step that was waited on instead
+            long childEnd = Math.min(child.getEnd(), cursor);
+            path.merge(key, cursor - childEnd, Long::sum);
+            criticalPath(child, childEnd, children, path);
+            cursor = Math.max(child.getStart(), span.getStart());
+        }
+        if (cursor > span.getStart())
+            path.merge(key, cursor - span.getStart(), Long::sum);
+    }
+
+    private static Map<String, List<Span>> children(List<Span> spans) {
+        Map<String, List<Span>> children = new HashMap<>();
+        for (Span span : spans) {
+            if (span.getParentId() != null)
+                children.computeIfAbsent(span.getParentId(), k -> new ArrayList<>()).add(span);
+        }
+        return children;
+    }
+
+    /**
+     * Spans whose parent is not in the trace (normally just the gateway's),
+     * earliest first
+     */
+    private static List<Span> roots(List<Span> spans) {
+        Set<String> ids = new HashSet<>();
+        for (Span span : spans) {
+            ids.add(span.getSpanId());
+        }
+        List<Span> roots = new ArrayList<>();
+        for (Span span : spans) {
+            if (span.getParentId() == null || !ids.contains(span.getParentId()))
+                roots.add(span);
+        }
+        roots.sort(Comparator.comparingLong(Span::getStart));
+        return roots;
+    }
+
+    private static String ms(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String query(HttpExchange t, String name) {
+        String query = t.getRequestURI().getQuery();
+        if (query == null)
+            return null;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).equals(name))
+                return param.substring(eq + 1);
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange t, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Content-Type", contentType);
+        t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        t.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
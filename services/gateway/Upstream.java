@@ -0,0 +1,253 @@
+package services.gateway;
+
+import common.Log;
+import common.RequestContext;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One backend instance behind the gateway: its health, the number of
+ * requests in flight to it and, for services that keep connections open,
+ * a small pool of idle connections so requests skip the TCP handshake.
+ * Outlier ejection: after EJECT_AFTER_FAILURES consecutive failed requests
+ * the instance is taken out of rotation, for longer each time it happens.
+ */
+class Upstream {
+    private static final Log log = Log.get("Upstream");
+    static final int CONNECT_TIMEOUT_MS = 2_000;
+    static final int READ_TIMEOUT_MS = 30_000;
+    static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_IDLE = 8;
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    private static final int EJECT_AFTER_FAILURES = 3;
+    private static final long BASE_EJECTION_MS = 10_000;
+    private static final long MAX_EJECTION_MS = 120_000;
+
+    private final String group;
+    private final String host;
+    private final int port;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private volatile boolean healthy = true; // result of the last active check
+    private volatile long ejectedUntil = 0;
+    private volatile long lastSuccess = 0;
+    private int consecutiveFailures = 0;
+    private int ejections = 0;
+
+    Upstream(String group, String host, int port) {
+        this.group = group;
+        this.host = host;
+        this.port = port;
+    }
+
+    static Upstream parse(String group, String hostPort) {
+        int sep = hostPort.lastIndexOf(':');
+        return new Upstream(group, hostPort.substring(0, sep).trim(),
+                Integer.parseInt(hostPort.substring(sep + 1).trim()));
+    }
+
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    boolean isAvailable() {
+        return healthy && System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    /**
+     * Send one request line and read one response line. With keepAlive the
+     * connection comes from (and goes back to) the idle pool; a pooled
+     * connection the backend has since closed is replaced by a fresh one.
+     * Throws ConnectException if no connection could be opened at all, and
+     * SocketTimeoutException if the backend did not answer in time (read
+     * timeouts never run past the current request's deadline).
+     */
+    String exchange(String line, boolean keepAlive) throws IOException {
+        LineBuffer request = LineBuffer.of(line);
+        LineBuffer response = new LineBuffer(MAX_RESPONSE_BYTES);
+        forward(request, response, keepAlive);
+        return response.toString();
+    }
+
+    /**
+     * Byte-level exchange used by the proxy: request bytes out, response
+     * line into the caller's buffer, no String in between
+     */
+    void forward(LineBuffer request, LineBuffer response, boolean keepAlive) throws IOException {
+        outstanding.incrementAndGet();
+        try {
+            if (keepAlive) {
+                Connection pooled = borrow();
+                if (pooled != null) {
+                    try {
+                        if (pooled.exchange(request, response)) {
+                            release(pooled);
+                            recordSuccess();
+                            return;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        pooled.close();
+                        throw e;
+                    } catch (IOException e) {
+                        // Stale connection; fall through to a fresh one
+                    }
+                    pooled.close();
+                }
+            }
+
+            Connection connection = open();
+            try {
+                if (!connection.exchange(request, response))
+                    throw new IOException("Connection closed by " + getAddress());
+                if (keepAlive)
+                    release(connection);
+                else
+                    connection.close();
+                recordSuccess();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            // Running out of the request's time says nothing about the instance
+            if (!RequestContext.isExpired())
+                recordFailure(e);
+            throw e;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    // --- Health ---
+
+    /**
+     * Active check: can we open a TCP connection? Skipped while real traffic
+     * keeps succeeding.
+     */
+    void check(long intervalMs) {
+        long now = System.currentTimeMillis();
+        if (healthy && now - lastSuccess < intervalMs)
+            return;
+        boolean ok;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            ok = true;
+        } catch (IOException e) {
+            ok = false;
+        }
+        if (ok != healthy) {
+            if (ok)
+                log.info("{} {} is healthy again", group, getAddress());
+            else
+                log.warn("{} {} failed health check", group, getAddress());
+        }
+        healthy = ok;
+        if (!ok)
+            drainIdle();
+    }
+
+    private synchronized void recordSuccess() {
+        lastSuccess = System.currentTimeMillis();
+        consecutiveFailures = 0;
+        ejections = 0;
+    }
+
+    private synchronized void recordFailure(IOException e) {
+        if (++consecutiveFailures < EJECT_AFTER_FAILURES)
+            return;
+        consecutiveFailures = 0;
+        ejections++;
+        long duration = Math.min(BASE_EJECTION_MS * ejections, MAX_EJECTION_MS);
+        ejectedUntil = System.currentTimeMillis() + duration;
+        drainIdle();
+        log.warn("Ejecting {} {} for {}s after repeated failures: {}", group, getAddress(), duration / 1000,
+                e.getMessage());
+    }
+
+    // --- Connection pool ---
+
+    private Connection open() throws IOException {
+        int connectTimeout = RequestContext.timeout(CONNECT_TIMEOUT_MS);
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw new ConnectException(getAddress() + ": " + e.getMessage());
+        }
+        socket.setTcpNoDelay(true);
+        return new Connection(socket);
+    }
+
+    private Connection borrow() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (System.currentTimeMillis() - connection.lastUsed < IDLE_TIMEOUT_MS)
+                return connection;
+            connection.close();
+        }
+        return null;
+    }
+
+    private void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.offerFirst(connection);
+        } else {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    private void drainIdle() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        /**
+         * Returns false if the backend closed the connection without answering
+         */
+        boolean exchange(LineBuffer request, LineBuffer response) throws IOException {
+            // A request's own deadline replaces the default wait
+            socket.setSoTimeout(RequestContext.getDeadline() > 0 ? RequestContext.timeout(Integer.MAX_VALUE)
+                    : READ_TIMEOUT_MS);
+            out.write(request.array(), 0, request.length());
+            out.write('\n');
+            out.flush();
+            return response.readLine(in);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package services.gateway;
+
+import common.Rendezvous;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The instances of one backend service. Sticky groups route by consistent
+ * (rendezvous) hash of a key such as the username, so a user's requests keep
+ * landing on the instance holding their session, and only the users of an
+ * instance that goes away move. Other groups pick the instance with the
+ * fewest requests in flight.
+ */
+class UpstreamGroup {
+    private final String name;
+    private final List<Upstream> upstreams;
+    private final boolean sticky;
+    private final boolean keepAlive;
+    private final long requestTimeoutMs;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    UpstreamGroup(String name, List<Upstream> upstreams, boolean sticky, boolean keepAlive, long requestTimeoutMs) {
+        this.name = name;
+        this.upstreams = Collections.unmodifiableList(new ArrayList<>(upstreams));
+        this.sticky = sticky;
+        this.keepAlive = keepAlive;
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    boolean isSticky() {
+        return sticky;
+    }
+
+    /**
+     * Deadline given to a request proxied to this service
+     */
+    long getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    /**
+     * Send one request line to an instance of this service. If the chosen
+     * instance cannot even be connected to (so the request was never
+     * delivered), the next choice is tried. Fails fast with ConnectException
+     * when no instance is in rotation.
+     */
+    String exchange(String key, String line) throws IOException {
+        LineBuffer response = new LineBuffer(Upstream.MAX_RESPONSE_BYTES);
+        forward(key, LineBuffer.of(line), response);
+        return response.toString();
+    }
+
+    void forward(String key, LineBuffer request, LineBuffer response) throws IOException {
+        Set<Upstream> tried = new HashSet<>();
+        IOException last = null;
+        while (tried.size() < upstreams.size()) {
+            Upstream upstream = pick(key, tried);
+            if (upstream == null)
+                break;
+            tried.add(upstream);
+            try {
+                upstream.forward(request, response, keepAlive);
+                return;
+            } catch (ConnectException e) {
+                last = e;
+            }
+        }
+        throw last != null ? last : new ConnectException("No healthy " + name + " instance");
+    }
+
+    private Upstream pick(String key, Set<Upstream> exclude) {
+        if (sticky && key != null) {
+            Upstream best = null;
+            long bestScore = Long.MIN_VALUE;
+            for (Upstream upstream : upstreams) {
+                if (exclude.contains(upstream) || !upstream.isAvailable())
+                    continue;
+                long score = Rendezvous.weight(upstream.getAddress(), key);
+                if (best == null || score > bestScore) {
+                    bestScore = score;
+                    best = upstream;
+                }
+            }
+            return best;
+        }
+
+        // Least outstanding requests; the rotating start spreads ties
+        Upstream best = null;
+        int size = upstreams.size();
+        int start = Math.floorMod(rotation.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            Upstream upstream = upstreams.get((start + i) % size);
+            if (exclude.contains(upstream) || !upstream.isAvailable())
+                continue;
+            if (best == null || upstream.getOutstanding() < best.getOutstanding())
+                best = upstream;
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name).append(" [");
+        for (int i = 0; i < upstreams.size(); i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(upstreams.get(i).getAddress());
+        }
+        return sb.append("]").append(sticky ? " sticky" : " least-outstanding")
+                .append(keepAlive ? ", pooled" : "").toString();
+    }
+}
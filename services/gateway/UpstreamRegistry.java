@@ -0,0 +1,93 @@
+package services.gateway;
+
+import common.Config;
+import common.Metrics;
+import common.OfferSettings;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The backend services the gateway proxies to, read from config.properties
+ * (environment variables override):
+ * GATEWAY_DISPATCH_UPSTREAMS - Dispatch Servers (default DISPATCH_PEERS, else DISPATCH_HOST:5000)
+ * GATEWAY_DRIVER_API_UPSTREAMS - Driver Service API ports (default DRIVER_HOST:5003)
+ * GATEWAY_DATABASE_UPSTREAMS - Database Services (default localhost:5002)
+ * Every instance is health-checked in the background. Requests get
+ * REQUEST_TIMEOUT_MS, except Dispatch's, which get the time its ride offers
+ * can take (OfferSettings.matchingBudgetMs()).
+ */
+public class UpstreamRegistry {
+    public static final String DISPATCH = "dispatch";
+    public static final String DRIVER_API = "driver-api";
+    public static final String DATABASE = "database";
+
+    private static final long HEALTH_CHECK_INTERVAL_MS = 5_000;
+    static final long REQUEST_TIMEOUT_MS = 10_000;
+
+    private final Map<String, UpstreamGroup> groups = new LinkedHashMap<>();
+
+    public static UpstreamRegistry fromConfig() {
+
+        String dispatchHost = Config.get("DISPATCH_HOST", "localhost");
+        String dispatch = Config.get("GATEWAY_DISPATCH_UPSTREAMS",
+                Config.get("DISPATCH_PEERS", dispatchHost + ":5000"));
+        String driverApi = Config.get("GATEWAY_DRIVER_API_UPSTREAMS",
+                Config.get("DRIVER_HOST", "localhost") + ":5003");
+        String database = Config.get("GATEWAY_DATABASE_UPSTREAMS", "localhost:5002");
+
+        // A ride request may wait out every round of offers before it is left waiting
+        long dispatchTimeout = Math.max(REQUEST_TIMEOUT_MS, OfferSettings.matchingBudgetMs());
+
+        UpstreamRegistry registry = new UpstreamRegistry();
+        // Passenger sessions live on the Dispatch Server they connected to, so
+        // dispatch is sticky by user and never pooled (it pushes to its clients)
+        registry.add(DISPATCH, dispatch, true, false, dispatchTimeout);
+        registry.add(DRIVER_API, driverApi, false, true, REQUEST_TIMEOUT_MS);
+        registry.add(DATABASE, database, false, true, REQUEST_TIMEOUT_MS);
+        return registry;
+    }
+
+    private void add(String name, String hostPorts, boolean sticky, boolean keepAlive, long requestTimeoutMs) {
+        List<Upstream> upstreams = new ArrayList<>();
+        for (String hostPort : hostPorts.split(",")) {
+            if (!hostPort.trim().isEmpty())
+                upstreams.add(Upstream.parse(name, hostPort));
+        }
+        groups.put(name, new UpstreamGroup(name, upstreams, sticky, keepAlive, requestTimeoutMs));
+    }
+
+    public UpstreamGroup get(String name) {
+        return groups.get(name);
+    }
+
+    public Collection<UpstreamGroup> getGroups() {
+        return groups.values();
+    }
+
+    public void startHealthChecks() {
+        for (UpstreamGroup group : groups.values()) {
+            for (Upstream upstream : group.getUpstreams()) {
+                String labels = "{group=\"" + group.getName() + "\",upstream=\"" + upstream.getAddress() + "\"}";
+                Metrics.gauge("gateway_upstream_outstanding" + labels, "Requests in flight to each backend instance",
+                        upstream::getOutstanding);
+                Metrics.gauge("gateway_upstream_available" + labels, "1 if the instance is in rotation",
+                        () -> upstream.isAvailable() ? 1 : 0);
+            }
+        }
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gateway-health");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(() -> {
+            for (UpstreamGroup group : groups.values()) {
+                for (Upstream upstream : group.getUpstreams()) {
+                    upstream.check(HEALTH_CHECK_INTERVAL_MS);
+                }
+            }
+        }, HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+}
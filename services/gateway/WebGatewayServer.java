@@ -1,17 +1,24 @@
 package services.gateway;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import common.GeoHeatmap;
 import common.Message;
 import common.MessageType;
 import common.JSONUtil;
+import common.Log;
+import common.Metrics;
+import common.RequestContext;
+import common.Span;
+import common.Tracer;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Executors;
 
 /**
  * WEB GATEWAY SERVER
@@ -23,38 +30,51 @@ import java.util.*;
  * 3. Proxying API requests to Backend Services
  */
 public class WebGatewayServer {
+    private static final Log log = Log.get("WebGateway");
     private static final int PORT = 8080;
 
-    // Backend Config
-    private static final String DISPATCH_HOST = System.getenv("DISPATCH_HOST") != null ? System.getenv("DISPATCH_HOST")
-            : "localhost";
-    private static final int DISPATCH_PORT = 5000;
-    private static final String DRIVER_HOST = System.getenv("DRIVER_HOST") != null ? System.getenv("DRIVER_HOST")
-            : "localhost";
-    private static final int DRIVER_PORT = 5001; // Direct driver connection
+    // Backend Config (see UpstreamRegistry)
+    private static final UpstreamRegistry upstreams = UpstreamRegistry.fromConfig();
+
+    // Proxy limits and per-thread body buffers
+    private static final int MAX_REQUEST_BYTES = 64 * 1024;
+    private static final ThreadLocal<LineBuffer> proxyRequest = ThreadLocal
+            .withInitial(() -> new LineBuffer(MAX_REQUEST_BYTES));
+    private static final ThreadLocal<LineBuffer> proxyResponse = ThreadLocal
+            .withInitial(() -> new LineBuffer(Upstream.MAX_RESPONSE_BYTES));
+
+    // Rate limits and concurrency caps for the API routes
+    private static final AdmissionControl admission = AdmissionControl.fromConfig();
+
+    // Spans of every service, assembled into per-request waterfalls
+    private static final TraceCollector traces = new TraceCollector();
+
+    // Static files under web/, served from memory
+    private static final AssetCache assets = new AssetCache("web");
 
     public static void main(String[] args) throws IOException {
         String myIP = getLocalIpAddress();
 
-        System.out.println("==================================================");
-        System.out.println("WEB GATEWAY SERVER (HTTP -> TCP Bridge)");
-        System.out.println("==================================================");
-        System.out.println("Server is listening on ALL network interfaces");
-        System.out.println("");
-        System.out.println("LOCAL ACCESS:");
-        System.out.println("  http://localhost:" + PORT + "/");
-        System.out.println("");
-        System.out.println("NETWORK ACCESS (from other PCs):");
-        System.out.println("  http://" + myIP + ":" + PORT + "/");
-        System.out.println("");
-        System.out.println("Share the network URL with other devices on your LAN!");
-        System.out.println("Geocoding Service: ACTIVE (via Nominatim)");
-        System.out.println("==================================================");
+        log.info("Web Gateway (HTTP -> TCP bridge) listening on all network interfaces");
+        log.info("Local access: http://localhost:{}/", PORT);
+        log.info("Network access (share with other devices on your LAN): http://{}:{}/", myIP, PORT);
+        log.info("Geocoding: via Nominatim");
+        for (UpstreamGroup group : upstreams.getGroups()) {
+            log.info("Upstream: {}", group);
+        }
+        log.info("Admission: {}", admission.describe());
+        upstreams.startHealthChecks();
+        Tracer.init("gateway", traces);
+
+        // Send responses immediately: with Nagle on, a keep-alive client waits
+        // for a delayed ACK (~40 ms) between the headers and the body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
 
         // Bind to all network interfaces (0.0.0.0) to allow external access
         HttpServer server = HttpServer.create(new InetSocketAddress((InetAddress) null, PORT), 0);
 
         // --- Static File Handlers ---
+        assets.start();
         server.createContext("/", new StaticFileHandler("web/index.html"));
         server.createContext("/passenger", new StaticFileHandler("web/passenger.html"));
         server.createContext("/driver", new StaticFileHandler("web/driver.html"));
@@ -69,27 +89,61 @@ public class WebGatewayServer {
         server.createContext("/js", new DirectoryHandler("web/js"));
 
         // --- API Handlers ---
-        server.createContext("/api/geocode", new GeocodeHandler());
-        server.createContext("/api/passenger", new PassengerProxyHandler());
-        server.createContext("/api/driver", new DriverProxyHandler());
-        server.createContext("/api/mapdata", new MapDataHandler());
-        server.createContext("/api/direction", new DirectionProxyHandler());
+        externalApi(server, "/api/geocode", new GeocodeHandler());
+        backendApi(server, "/api/passenger", new PassengerProxyHandler());
+        backendApi(server, "/api/driver", new DriverProxyHandler());
+        backendApi(server, "/api/mapdata", new MapDataHandler());
+        backendApi(server, "/api/heatmap", new HeatmapHandler());
+        externalApi(server, "/api/direction", new DirectionProxyHandler());
 
         // Auth Handlers
-        server.createContext("/api/admin/register-driver", new AdminDriverHandler());
-        server.createContext("/api/admin/assign-ride", new AdminAssignHandler()); // Manual Assign
-        server.createContext("/api/auth/login", new AuthHandler(false)); // Login
-        server.createContext("/api/passenger/register", new AuthHandler(true)); // Register
+        backendApi(server, "/api/admin/register-driver", new AdminDriverHandler());
+        backendApi(server, "/api/admin/assign-ride", new AdminAssignHandler()); // Manual Assign
+        backendApi(server, "/api/auth/login", new AuthHandler(false)); // Login
+        backendApi(server, "/api/passenger/register", new AuthHandler(true)); // Register
 
         // Detailed Driver Onboarding
-        server.createContext("/api/secure/driver-registration", new DriverRegistrationHandler());
-        server.createContext("/api/admin/pending-drivers", new PendingDriversHandler());
-        server.createContext("/api/admin/approve-driver", new ApproveDriverHandler());
+        backendApi(server, "/api/secure/driver-registration", new DriverRegistrationHandler());
+        backendApi(server, "/api/admin/pending-drivers", new PendingDriversHandler());
+        backendApi(server, "/api/admin/approve-driver", new ApproveDriverHandler());
+
+        // Scrape endpoint for this process's metrics
+        server.createContext("/metrics", new MetricsHandler());
 
-        server.setExecutor(null);
+        // Span collector and trace waterfalls (see TraceCollector)
+        server.createContext("/traces", traces);
+
+        // Proxied calls block on the backend, so handle requests in parallel
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
     }
 
+    // --- Helper: API contexts behind admission control ---
+    private static void backendApi(HttpServer server, String path, HttpHandler handler) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(new RouteMetrics(path));
+        filters.add(admission.backend(path));
+    }
+
+    private static void externalApi(HttpServer server, String path, HttpHandler handler) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(new RouteMetrics(path));
+        filters.add(admission.external(path));
+    }
+
+    // --- Handler: Metrics ---
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            t.sendResponseHeaders(200, body.length);
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
     // --- Helper: Get LAN IP Address ---
     private static String getLocalIpAddress() {
         try {
@@ -109,29 +163,7 @@ public class WebGatewayServer {
 
         @Override
         public void handle(HttpExchange t) throws IOException {
-            File file = new File(filePath);
-            if (!file.exists()) {
-                String response = "File not found: " + filePath;
-                t.sendResponseHeaders(404, response.length());
-                OutputStream os = t.getResponseBody();
-                os.write(response.getBytes());
-                os.close();
-                return;
-            }
-
-            // Set content type
-            if (filePath.endsWith(".html"))
-                t.getResponseHeaders().set("Content-Type", "text/html");
-            if (filePath.endsWith(".css"))
-                t.getResponseHeaders().set("Content-Type", "text/css");
-            if (filePath.endsWith(".js"))
-                t.getResponseHeaders().set("Content-Type", "application/javascript");
-
-            byte[] bytes = Files.readAllBytes(file.toPath());
-            t.sendResponseHeaders(200, bytes.length);
-            OutputStream os = t.getResponseBody();
-            os.write(bytes);
-            os.close();
+            assets.serve(t, filePath);
         }
     }
 
@@ -147,23 +179,7 @@ public class WebGatewayServer {
         public void handle(HttpExchange t) throws IOException {
             String path = t.getRequestURI().getPath();
             String fileName = path.substring(path.lastIndexOf("/") + 1);
-            File file = new File(rootDir, fileName);
-
-            if (!file.exists()) {
-                t.sendResponseHeaders(404, -1);
-                return;
-            }
-
-            if (fileName.endsWith(".css"))
-                t.getResponseHeaders().set("Content-Type", "text/css");
-            if (fileName.endsWith(".js"))
-                t.getResponseHeaders().set("Content-Type", "application/javascript");
-
-            byte[] bytes = Files.readAllBytes(file.toPath());
-            t.sendResponseHeaders(200, bytes.length);
-            OutputStream os = t.getResponseBody();
-            os.write(bytes);
-            os.close();
+            assets.serve(t, rootDir + "/" + fileName);
         }
     }
 
@@ -178,7 +194,7 @@ public class WebGatewayServer {
                 String query = t.getRequestURI().getQuery();
                 String address = query.replace("q=", "");
 
-                System.out.println("[WebGateway] Geocoding request: " + address);
+                log.info("Geocoding request: {}", address);
 
                 try {
                     String urlStr = "https://nominatim.openstreetmap.org/search?q=" +
@@ -205,7 +221,7 @@ public class WebGatewayServer {
                     os.close();
 
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    log.error("GeocodeHandler failed", e);
                     t.sendResponseHeaders(500, -1);
                 }
             }
@@ -216,7 +232,7 @@ public class WebGatewayServer {
     static class PassengerProxyHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            handleProxy(t, DISPATCH_HOST, DISPATCH_PORT);
+            handleProxy(t, upstreams.get(UpstreamRegistry.DISPATCH));
         }
     }
 
@@ -228,11 +244,11 @@ public class WebGatewayServer {
             // registration
             // In a real web app, we'd use WebSockets. Here we'll do simple HTTP->TCP
             // command firing.
-            handleProxy(t, DRIVER_HOST, 5003); // Use API port for driver operations if possible
+            handleProxy(t, upstreams.get(UpstreamRegistry.DRIVER_API)); // Use API port for driver operations if possible
         }
     }
 
-    private static void handleProxy(HttpExchange t, String host, int port) throws IOException {
+    private static void handleProxy(HttpExchange t, UpstreamGroup group) throws IOException {
         t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         t.getResponseHeaders().add("Access-Control-Allow-Methods", "POST, OPTIONS");
         t.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
@@ -241,41 +257,104 @@ public class WebGatewayServer {
             t.sendResponseHeaders(204, -1);
             return;
         }
+        if (!"POST".equals(t.getRequestMethod())) {
+            sendError(t, 405, "Method not allowed");
+            return;
+        }
 
-        if ("POST".equals(t.getRequestMethod())) {
-            // Read JSON from HTTP Body
-            InputStreamReader isr = new InputStreamReader(t.getRequestBody(), StandardCharsets.UTF_8);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null)
-                sb.append(line);
-            String jsonRequest = sb.toString();
+        // Read JSON from HTTP Body (bytes only, into this thread's buffer)
+        LineBuffer request = proxyRequest.get();
+        String contentLength = t.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null && parseLength(contentLength) > request.limit()) {
+            sendError(t, 413, "Request body exceeds " + request.limit() + " bytes");
+            return;
+        }
+        if (!request.readBody(t.getRequestBody())) {
+            sendError(t, 413, "Request body exceeds " + request.limit() + " bytes");
+            return;
+        }
+        if (request.length() == 0) {
+            sendError(t, 400, "Empty request body");
+            return;
+        }
+
+        String username = request.stringField("username");
+        if (!admission.allowUser(username)) {
+            AdmissionControl.reject(t, "Too many requests");
+            return;
+        }
+        String key = null;
+        if (group.isSticky()) {
+            key = username != null ? username : request.stringField("passengerUsername");
+        }
+        log.debug("Proxying {} bytes to {}", request.length(), group.getName());
+
+        // The deadline travels with the request through every service behind us,
+        // as a budget each hop rebases on its own clock. A client may ask for
+        // less time than the group allows, never more.
+        long budget = group.getRequestTimeoutMs();
+        long asked = request.longField("budgetMs", 0);
+        if (asked > 0)
+            budget = Math.min(asked, budget);
+        long deadline = System.currentTimeMillis() + budget;
+        if (!request.setField("budgetMs", budget)) {
+            sendError(t, 400, "Request body is not a JSON object");
+            return;
+        }
 
-            System.out.println("[WebGateway] Proxying to " + host + ":" + port + " -> " + jsonRequest);
+        // So does the trace; an untraced request is marked so no later hop starts one
+        Span span = Tracer.start("proxy " + group.getName());
+        boolean stamped = span.isRecording()
+                ? request.addField("traceId", span.getTraceId()) && request.addField("spanId", span.getSpanId())
+                : request.addField("traceId", Tracer.NOT_SAMPLED);
+        if (!stamped) {
+            span.setError("Request too large to stamp").close();
+            sendError(t, 413, "Request body exceeds " + request.limit() + " bytes");
+            return;
+        }
 
-            // Forward to Backend via TCP Socket
-            String jsonResponse = "{\"error\": \"Backend unavailable\"}";
-            try (Socket socket = new Socket(host, port);
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        // Forward to Backend via TCP Socket
+        LineBuffer response = proxyResponse.get();
+        RequestContext.begin(deadline);
+        try {
+            group.forward(key, request, response);
+        } catch (SocketTimeoutException e) {
+            log.warn("Proxy Timeout: {}", group.getName());
+            span.setError("Backend timed out");
+            sendError(t, 504, "Backend timed out");
+            return;
+        } catch (IOException e) {
+            log.warn("Proxy Error: {}", e.getMessage());
+            span.setError(e.getMessage());
+            sendError(t, 502, "Backend unavailable");
+            return;
+        } finally {
+            RequestContext.end();
+            span.close();
+        }
 
-                out.println(jsonRequest);
-                String resp = in.readLine();
-                if (resp != null)
-                    jsonResponse = resp;
+        // Send Response back to HTTP Client
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.sendResponseHeaders(200, response.length());
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(response.array(), 0, response.length());
+        }
+    }
 
-            } catch (Exception e) {
-                System.err.println("[WebGateway] Proxy Error: " + e.getMessage());
-            }
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-            // Send Response back to HTTP Client
-            byte[] bytes = jsonResponse.getBytes(StandardCharsets.UTF_8);
-            t.getResponseHeaders().set("Content-Type", "application/json");
-            t.sendResponseHeaders(200, bytes.length);
-            OutputStream os = t.getResponseBody();
+    private static void sendError(HttpExchange t, int status, String error) throws IOException {
+        byte[] bytes = ("{\"error\": \"" + error + "\"}").getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
             os.write(bytes);
-            os.close();
         }
     }
 
@@ -285,22 +364,12 @@ public class WebGatewayServer {
         public void handle(HttpExchange t) throws IOException {
             t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
 
-            // Query Database Service (Port 5002)
+            // Query Database Service
             String jsonResponse = "{\"drivers\":[], \"passengers\":[]}";
-            try (Socket socket = new Socket("localhost", 5002);
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
+            try {
                 Message req = new Message(MessageType.GET_LOCATIONS);
-                out.println(JSONUtil.toJSON(req));
-
-                String resp = in.readLine();
-                if (resp != null) {
-                    // Extract payload to return simple JSON
-                    Message msg = JSONUtil.fromJSON(resp);
-                    // Just return the raw message payload as JSON for simplicity
-                    jsonResponse = resp;
-                }
+                // Just return the raw message payload as JSON for simplicity
+                jsonResponse = upstreams.get(UpstreamRegistry.DATABASE).exchange(null, JSONUtil.toJSON(req));
             } catch (Exception e) {
                 // ignore
             }
@@ -314,6 +383,74 @@ public class WebGatewayServer {
         }
     }
 
+    // --- Handler: Demand/supply heatmap ---
+    // Ride requests per cell over the window (summed over every Dispatch
+    // instance) against available drivers per cell (Driver Service)
+    static class HeatmapHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+            String request = JSONUtil.toJSON(new Message(MessageType.GET_HEATMAP));
+            Map<Long, long[]> demand = new HashMap<>();
+            Map<Long, long[]> supply = new HashMap<>();
+            double cellDegrees = 0;
+            long windowSeconds = 0;
+            for (Upstream upstream : upstreams.get(UpstreamRegistry.DISPATCH).getUpstreams()) {
+                if (!upstream.isAvailable())
+                    continue;
+                try {
+                    Message response = JSONUtil.fromJSON(upstream.exchange(request, false));
+                    if (response != null && response.getType() == MessageType.HEATMAP_DATA) {
+                        GeoHeatmap.decode(response.getPayloadString("cells"), demand);
+                        cellDegrees = response.getPayloadDouble("cellDegrees");
+                        windowSeconds = response.getPayloadInt("windowSeconds");
+                    }
+                } catch (IOException e) {
+                    log.warn("Heatmap: no demand from {}: {}", upstream.getAddress(), e.getMessage());
+                }
+            }
+            try {
+                Message response = JSONUtil.fromJSON(upstreams.get(UpstreamRegistry.DRIVER_API).exchange(null, request));
+                if (response != null && response.getType() == MessageType.HEATMAP_DATA) {
+                    GeoHeatmap.decode(response.getPayloadString("cells"), supply);
+                    // Same grid settings; the only source when no Dispatch instance answered
+                    if (cellDegrees == 0) {
+                        cellDegrees = response.getPayloadDouble("cellDegrees");
+                        windowSeconds = response.getPayloadInt("windowSeconds");
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Heatmap: no supply from the Driver Service: {}", e.getMessage());
+            }
+
+            Set<Long> cells = new TreeSet<>(demand.keySet());
+            cells.addAll(supply.keySet());
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"cellDegrees\":").append(cellDegrees)
+                    .append(",\"windowSeconds\":").append(windowSeconds)
+                    .append(",\"cells\":[");
+            boolean first = true;
+            for (long cell : cells) {
+                long requests = demand.containsKey(cell) ? demand.get(cell)[0] : 0;
+                long drivers = supply.containsKey(cell) ? supply.get(cell)[1] : 0;
+                if (!first)
+                    sb.append(',');
+                first = false;
+                // South-west corner, rounded off the float noise of row * size
+                sb.append("{\"lat\":").append(Math.round(((cell >>> 32) * cellDegrees - 90.0) * 1e6) / 1e6)
+                        .append(",\"lon\":").append(Math.round(((cell & 0xFFFFFFFFL) * cellDegrees - 180.0) * 1e6) / 1e6)
+                        .append(",\"demand\":").append(requests)
+                        .append(",\"supply\":").append(drivers)
+                        .append(",\"ratio\":").append(Math.round(GeoHeatmap.ratio(requests, drivers) * 100) / 100.0)
+                        .append(",\"surge\":").append(GeoHeatmap.isSurge(requests, drivers))
+                        .append('}');
+            }
+            sb.append("]}");
+            sendResponse(t, sb.toString());
+        }
+    }
+
     // --- Handler: Direction API Proxy (Gebeta) ---
     static class DirectionProxyHandler implements HttpHandler {
         @Override
@@ -333,7 +470,7 @@ public class WebGatewayServer {
                 String urlStr = "https://mapapi.gebeta.app/api/route/direction/?origin=" + origin +
                         "&destination=" + dest + "&apiKey=" + apiKey;
 
-                System.out.println("[WebGateway] Fetching Direction: " + urlStr);
+                log.info("Fetching Direction: {}", urlStr);
 
                 try {
 
@@ -356,7 +493,7 @@ public class WebGatewayServer {
                     os.close();
 
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    log.error("DirectionProxyHandler failed", e);
                     t.sendResponseHeaders(500, -1);
                 }
             }
@@ -414,7 +551,7 @@ public class WebGatewayServer {
 
                 if ("POST".equals(t.getRequestMethod())) {
                     String body = readBody(t);
-                    System.out.println("[WebGateway] Auth Request: " + body);
+                    log.debug("Auth Request: {}", body);
                     Message msg = JSONUtil.fromJSON(body);
                     if (msg == null)
                         throw new Exception("Invalid JSON request");
@@ -434,7 +571,7 @@ public class WebGatewayServer {
                     sendResponse(t, resp);
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("AuthHandler failed", e);
                 sendResponse(t, "{\"success\":false, \"error\":\"Auth Gateway Error: " + e.getMessage() + "\"}");
             }
         }
@@ -452,15 +589,7 @@ public class WebGatewayServer {
                 }
                 if ("POST".equals(t.getRequestMethod())) {
                     String body = readBody(t);
-                    System.out.println("[WebGateway] Driver Registration Request: " + body);
-
-                    // File Logging for diagnostics
-                    try (FileWriter fw = new FileWriter("gateway_log.txt", true)) {
-                        fw.write("\n--- [" + new java.util.Date() + "] REGISTRATION REQUEST ---\n");
-                        fw.write(body);
-                        fw.write("\n----------------------------------------------------\n");
-                    } catch (Exception logEx) {
-                    }
+                    log.debug("Driver Registration Request: {}", body);
 
                     Message msg = JSONUtil.fromJSON(body);
                     if (msg == null)
@@ -471,7 +600,7 @@ public class WebGatewayServer {
                     sendResponse(t, sendToDatabase(dbReq));
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("DriverRegistrationHandler failed", e);
                 sendResponse(t,
                         "{\"success\":false, \"error\":\"Registration Gateway Error: " + e.getMessage() + "\"}");
             }
@@ -493,7 +622,7 @@ public class WebGatewayServer {
                     sendResponse(t, sendToDatabase(dbReq));
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("PendingDriversHandler failed", e);
                 sendResponse(t, "{\"success\":false, \"error\":\"Gateway Error: " + e.getMessage() + "\"}");
             }
         }
@@ -512,7 +641,7 @@ public class WebGatewayServer {
             try {
                 if ("POST".equals(t.getRequestMethod())) {
                     String body = readBody(t);
-                    System.out.println("[WebGateway] Approve Request: " + body);
+                    log.debug("Approve Request: {}", body);
                     Message msg = JSONUtil.fromJSON(body);
                     if (msg == null)
                         throw new Exception("Invalid JSON Request");
@@ -522,7 +651,7 @@ public class WebGatewayServer {
                     sendResponse(t, sendToDatabase(dbReq));
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("ApproveDriverHandler failed", e);
                 sendResponse(t, "{\"success\":false, \"error\":\"Gateway Error: " + e.getMessage() + "\"}");
             }
         }
@@ -555,12 +684,9 @@ public class WebGatewayServer {
                 // But we can add support in DispatchServer side.
 
                 String jsonResponse = "{\"success\": false, \"error\": \"Dispatch Unavailable\"}";
-                try (Socket socket = new Socket(DISPATCH_HOST, DISPATCH_PORT);
-                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                    out.println(JSONUtil.toJSON(dMsg));
-                    String resp = in.readLine();
+                try {
+                    String resp = upstreams.get(UpstreamRegistry.DISPATCH)
+                            .exchange(routingKey(dMsg), JSONUtil.toJSON(dMsg));
                     if (resp != null) {
                         Message m = JSONUtil.fromJSON(resp);
                         // If we get an error or success message
@@ -571,7 +697,7 @@ public class WebGatewayServer {
                         }
                     }
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    log.error("AdminAssignHandler failed", e);
                 }
 
                 sendResponse(t, jsonResponse);
@@ -589,7 +715,7 @@ public class WebGatewayServer {
             sb.append("\"").append(entry.getKey()).append("\":");
             Object val = entry.getValue();
             if (val instanceof String)
-                sb.append("\"").append(val).append("\"");
+                sb.append("\"").append(JSONUtil.escapeJSONString((String) val)).append("\"");
             else
                 sb.append(val);
             first = false;
@@ -598,6 +724,16 @@ public class WebGatewayServer {
         return sb.toString();
     }
 
+    /**
+     * Key for sticky routing: the user the request is about, if any
+     */
+    private static String routingKey(Message msg) {
+        if (msg == null)
+            return null;
+        String key = msg.getPayloadString("username");
+        return key != null ? key : msg.getPayloadString("passengerUsername");
+    }
+
     private static String readBody(HttpExchange t) throws IOException {
         InputStreamReader isr = new InputStreamReader(t.getRequestBody(), StandardCharsets.UTF_8);
         BufferedReader br = new BufferedReader(isr);
@@ -609,23 +745,17 @@ public class WebGatewayServer {
     }
 
     private static String sendToDatabase(Message msg) {
-        String jsonReq = JSONUtil.toJSON(msg);
-        System.out.println("[WebGateway] Sending to DB: "
-                + (jsonReq.length() > 100 ? jsonReq.substring(0, 100) + "..." : jsonReq));
-        try (Socket socket = new Socket("localhost", 5002);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            out.println(jsonReq);
-            String resp = in.readLine();
-            if (resp == null) {
-                System.err.println("[WebGateway] DB Service returned NULL (Connection closed?)");
-                return "{\"success\":false, \"error\":\"Database connection reset\"}";
+        try (Span span = Tracer.start("db " + msg.getType())) {
+            Tracer.inject(msg);
+            String jsonReq = JSONUtil.toJSON(msg);
+            log.debug("Sending {} bytes to DB", jsonReq.length());
+            try {
+                return upstreams.get(UpstreamRegistry.DATABASE).exchange(null, jsonReq);
+            } catch (Exception e) {
+                log.warn("DB Service unavailable: {}", e.getMessage());
+                span.setError(e.getMessage());
+                return "{\"success\":false, \"error\":\"Database unavailable: " + e.getMessage() + "\"}";
             }
-            return resp;
-        } catch (Exception e) {
-            System.err.println("[WebGateway] DB Service unavailable: " + e.getMessage());
-            return "{\"success\":false, \"error\":\"Database unavailable: " + e.getMessage() + "\"}";
         }
     }
 
@@ -638,7 +768,7 @@ public class WebGatewayServer {
         try (OutputStream os = t.getResponseBody()) {
             os.write(bytes);
         } catch (IOException e) {
-            System.err.println("[WebGateway] Failed to send HTTP response: " + e.getMessage());
+            log.warn("Failed to send HTTP response: {}", e.getMessage());
             throw e;
         }
     }
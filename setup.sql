@@ -46,8 +46,7 @@ CREATE TABLE IF NOT EXISTS ride_status_history (
     status VARCHAR(20),
     latitude DOUBLE,
     longitude DOUBLE,
-    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    FOREIGN KEY (ride_id) REFERENCES rides(id)
+    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
 -- 5. Admins Table (NEW)
@@ -0,0 +1,20 @@
+@echo off
+REM Start Database Service (Port 5002) with the embedded storage engine
+REM No MySQL/XAMPP required - data is kept under data\embedded
+
+echo ========================================
+echo STARTING DATABASE SERVICE (EMBEDDED)
+echo ========================================
+echo Port: 5002
+echo Role: Handles all database operations
+echo Storage: embedded (data\embedded)
+echo ========================================
+echo.
+
+call "%~dp0build-java.bat"
+if %ERRORLEVEL% NEQ 0 exit /b %ERRORLEVEL%
+
+set STORAGE_ENGINE=embedded
+java -cp out;lib\mysql-connector-j-9.2.0.jar services.database.DatabaseServiceServer
+
+pause
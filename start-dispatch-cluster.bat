@@ -0,0 +1,29 @@
+@echo off
+REM Start a 3-instance Dispatch Server cluster (Ports 5000, 5005, 5006)
+REM Each instance owns a share of the map cells and driver reservations.
+REM This replaces start-dispatch-server.bat (start it THIRD as well)
+
+echo ========================================
+echo STARTING DISPATCH CLUSTER
+echo ========================================
+echo Ports: 5000, 5005, 5006 (for passenger clients)
+echo Cluster ports: 6000, 6005, 6006 (heartbeats and handoffs)
+echo ========================================
+echo.
+
+echo Make sure these services are running:
+echo   - Database Service (port 5002)
+echo   - Driver Service (ports 5001, 5003)
+echo.
+pause
+
+call "%~dp0build-java.bat"
+if %ERRORLEVEL% NEQ 0 exit /b %ERRORLEVEL%
+
+set DISPATCH_PEERS=localhost:5000,localhost:5005,localhost:5006
+
+start "Dispatch 5000" java -cp out;lib\mysql-connector-j-9.2.0.jar services.dispatch.DispatchServer 5000
+start "Dispatch 5005" java -cp out;lib\mysql-connector-j-9.2.0.jar services.dispatch.DispatchServer 5005
+start "Dispatch 5006" java -cp out;lib\mysql-connector-j-9.2.0.jar services.dispatch.DispatchServer 5006
+
+pause
@@ -0,0 +1,19 @@
+@echo off
+REM Headless load test: simulated drivers and passengers against the local services
+REM Starts its own Database (embedded), Driver and Dispatch services; options are passed through,
+REM e.g. start-load-test.bat --drivers=2000 --passengers=500 --rate=50 --duration=120
+
+echo ========================================
+echo STARTING LOAD TEST
+echo ========================================
+echo Drivers    -^> Driver Service (port 5001)
+echo Passengers -^> Dispatch Server (port 5000)
+echo ========================================
+echo.
+
+call "%~dp0build-java.bat"
+if %ERRORLEVEL% NEQ 0 exit /b %ERRORLEVEL%
+
+java -cp out;lib\mysql-connector-j-9.2.0.jar clients.loadtest.LoadGenerator --spawn %*
+
+pause
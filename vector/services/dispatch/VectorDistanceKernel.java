@@ -0,0 +1,29 @@
+package services.dispatch;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * DistanceKernel with the Vector API: as many drivers per instruction as
+ * the CPU's widest vector register holds (4 on AVX2, 8 on AVX-512). Only
+ * loaded by DistanceKernel.best() when jdk.incubator.vector is present.
+ */
+final class VectorDistanceKernel implements DistanceKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void squaredDistances(double[] lat, double[] lon, int n, double lat0, double lon0, double lonScale,
+            double[] out) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector dy = DoubleVector.fromArray(SPECIES, lat, i).sub(lat0);
+            DoubleVector dx = DoubleVector.fromArray(SPECIES, lon, i).sub(lon0).mul(lonScale);
+            dx.fma(dx, dy.mul(dy)).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            double dy = lat[i] - lat0;
+            double dx = (lon[i] - lon0) * lonScale;
+            out[i] = dx * dx + dy * dy;
+        }
+    }
+}